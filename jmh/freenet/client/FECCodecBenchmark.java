@@ -0,0 +1,94 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.CHKBlock;
+
+/**
+ * Encode and decode a full (128,256) segment of CHK-sized blocks with each FECCodec. The decode
+ * has a random half of the blocks, so it has to recover about 64 data blocks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FECCodecBenchmark {
+
+    private static final int DATA_BLOCKS = 128;
+    private static final int CHECK_BLOCKS = 128;
+    private static final int BLOCK_LENGTH = CHKBlock.DATA_LENGTH;
+
+    @Param({ "onion", "purejava" })
+    public String codecName;
+
+    private FECCodec codec;
+    private byte[][] dataBlocks;
+    private byte[][] checkBlocks;
+    private boolean[] noCheckBlocks;
+    private byte[][] decodeDataBlocks;
+    private boolean[] dataBlocksPresent;
+    private boolean[] checkBlocksPresent;
+
+    @Setup
+    public void setUp() {
+        codec = "onion".equals(codecName) ? new OnionFECCodec() : new PureJavaFECCodec();
+        Random random = new Random(1234);
+        dataBlocks = new byte[DATA_BLOCKS][BLOCK_LENGTH];
+        for (byte[] block : dataBlocks) {
+            random.nextBytes(block);
+        }
+        checkBlocks = new byte[CHECK_BLOCKS][BLOCK_LENGTH];
+        noCheckBlocks = new boolean[CHECK_BLOCKS];
+        codec.encode(dataBlocks, checkBlocks, noCheckBlocks, BLOCK_LENGTH);
+        // Keep a random half of the blocks.
+        dataBlocksPresent = new boolean[DATA_BLOCKS];
+        checkBlocksPresent = new boolean[CHECK_BLOCKS];
+        int kept = 0;
+        while (kept < DATA_BLOCKS) {
+            int i = random.nextInt(DATA_BLOCKS + CHECK_BLOCKS);
+            boolean[] present = i < DATA_BLOCKS ? dataBlocksPresent : checkBlocksPresent;
+            int index = i < DATA_BLOCKS ? i : i - DATA_BLOCKS;
+            if (present[index]) {
+                continue;
+            }
+            present[index] = true;
+            kept++;
+        }
+        decodeDataBlocks = new byte[DATA_BLOCKS][];
+        for (int i = 0; i < DATA_BLOCKS; i++) {
+            decodeDataBlocks[i] = dataBlocksPresent[i] ? dataBlocks[i].clone() : new byte[BLOCK_LENGTH];
+        }
+    }
+
+    @Benchmark
+    public byte[][] encode() {
+        codec.encode(dataBlocks, checkBlocks, noCheckBlocks, BLOCK_LENGTH);
+        return checkBlocks;
+    }
+
+    @Benchmark
+    public byte[][] decode() {
+        // Decoding the same blocks again gives the same result, so nothing needs resetting.
+        codec.decode(decodeDataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, BLOCK_LENGTH);
+        return decodeDataBlocks;
+    }
+
+}
@@ -0,0 +1,105 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.filter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.l10n.BaseL10n;
+import freenet.l10n.BaseL10n.LANGUAGE;
+
+/**
+ * Run the HTML content filter over sample pages: a freesite index, mostly links to other keys,
+ * and an article, mostly text with some markup, inline CSS and a script to remove.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HTMLFilterBenchmark {
+
+    private static final String KEY = "USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,"
+            + "3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/";
+
+    private static final String HEAD = "<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n"
+            + "<meta charset=\"utf-8\">\n<title>Sample page</title>\n"
+            + "<link rel=\"stylesheet\" href=\"style.css\" type=\"text/css\">\n"
+            + "<style>body { font-family: sans-serif; margin: 0 auto; max-width: 50em; }\n"
+            + "a:hover { color: #c00; } .entry img { float: left; width: 108px; height: 36px; }"
+            + "</style>\n</head>\n<body>\n";
+
+    private static final String TAIL = "<script type=\"text/javascript\">document.write('x');</script>\n"
+            + "</body>\n</html>\n";
+
+    @Param({ "index", "article" })
+    public String page;
+
+    private byte[] html;
+    private URI baseURI;
+
+    @Setup
+    public void setUp() throws URISyntaxException {
+        GenericReadFilterCallback.setBaseL10n(new BaseL10n("freenet/l10n/",
+                "freenet.l10n.${lang}.properties",
+                new File(System.getProperty("java.io.tmpdir"), "freenet.l10n.${lang}.override.properties").getPath(),
+                LANGUAGE.ENGLISH));
+        baseURI = new URI("http://localhost:8888/" + KEY + "Index/1/");
+        StringBuilder sb = new StringBuilder(HEAD);
+        if ("index".equals(page)) {
+            sb.append("<h1>Index</h1>\n<ul>\n");
+            for (int i = 0; i < 500; i++) {
+                sb.append("<li class=\"entry\"><a href=\"/").append(KEY).append("Site").append(i)
+                        .append("/").append(i % 17).append("/\"><img src=\"/").append(KEY)
+                        .append("Site").append(i).append("/").append(i % 17)
+                        .append("/activelink.png\" alt=\"Site ").append(i).append("\"></a> ")
+                        .append("<b>Site ").append(i).append("</b> &ndash; a site about things, ")
+                        .append("<a href=\"http://example.com/").append(i).append("\">external</a>")
+                        .append("</li>\n");
+            }
+            sb.append("</ul>\n");
+        } else {
+            sb.append("<h1>An article</h1>\n");
+            for (int i = 0; i < 200; i++) {
+                sb.append("<h2 id=\"s").append(i).append("\">Section ").append(i).append("</h2>\n")
+                        .append("<p style=\"text-align: justify\">Lorem ipsum dolor sit amet, ")
+                        .append("<em>consectetur</em> adipiscing elit, sed do eiusmod tempor ")
+                        .append("incididunt ut labore et dolore magna aliqua. Ut enim ad minim ")
+                        .append("veniam, quis nostrud <a href=\"#s").append((i + 1) % 200)
+                        .append("\">exercitation</a> ullamco laboris nisi ut aliquip ex ea ")
+                        .append("commodo consequat.</p>\n<table><tr><td>").append(i)
+                        .append("</td><td onclick=\"alert(1)\">&lt;cell&gt;</td></tr></table>\n");
+            }
+        }
+        sb.append(TAIL);
+        html = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int filter() throws IOException, UnsafeContentTypeException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(html.length);
+        ContentFilter.filter(new ByteArrayInputStream(html), output, "text/html", baseURI, null, null, null, null);
+        return output.size();
+    }
+
+}
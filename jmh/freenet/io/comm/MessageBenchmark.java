@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.ShortBuffer;
+
+/**
+ * Encode and decode some of the commonest DMT messages, with every field set to a random value:
+ * all primitives, primitives with a key, with short buffers, and with a bulk transfer packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageBenchmark {
+
+    /** The names the types are registered under, which are not always the DMT field names. */
+    @Param({ "FNPAccepted", "FNPRejectOverload", "FNPRouteNotFound", "FNPPeerLoadStatusInt",
+            "FNPCHKDataRequest", "FNPCHKDataFound", "FNPSwapRequest", "packetTransmit" })
+    public String type;
+
+    private Message message;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws ClassNotFoundException {
+        // The types are registered when DMT is initialised.
+        Class.forName(DMT.class.getName());
+        MessageType spec = MessageType.getSpec(type.hashCode(), false);
+        Random random = new Random(1234);
+        message = new Message(spec);
+        for (String field : spec.getOrderedFields()) {
+            message.set(field, randomValue(spec.typeOf(field), random));
+        }
+        encoded = message.encodeToPacket();
+    }
+
+    private static Object randomValue(Class<?> type, Random random) {
+        if (type == Boolean.class) {
+            return random.nextBoolean();
+        } else if (type == Byte.class) {
+            return (byte) random.nextInt();
+        } else if (type == Short.class) {
+            return (short) random.nextInt();
+        } else if (type == Integer.class) {
+            return random.nextInt();
+        } else if (type == Long.class) {
+            return random.nextLong();
+        } else if (type == Double.class) {
+            return random.nextDouble();
+        } else if (type == Float.class) {
+            return random.nextFloat();
+        } else if (type == ShortBuffer.class) {
+            return new ShortBuffer(randomBytes(random, 100));
+        } else if (type == Buffer.class) {
+            return new Buffer(randomBytes(random, 1024));
+        } else if (type == BitArray.class) {
+            return new BitArray(randomBytes(random, 4));
+        } else if (type == NodeCHK.class) {
+            return new NodeCHK(randomBytes(random, 32), Key.ALGO_AES_CTR_256_SHA256);
+        } else {
+            throw new IllegalArgumentException("Not used by the benchmarked types: " + type);
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] buf = new byte[length];
+        random.nextBytes(buf);
+        return buf;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return message.encodeToPacket();
+    }
+
+    @Benchmark
+    public Message decode() {
+        return Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+    }
+
+}
@@ -0,0 +1,71 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucketFactory;
+
+/**
+ * Encode, verify and decode a full CHK block, as a splitfile block would be. Verifying is what
+ * the node does for every block it receives or reads from the store.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CHKBlockBenchmark {
+
+    private final ArrayBucketFactory bf = new ArrayBucketFactory();
+    private byte[] data;
+    private byte[] rawData;
+    private byte[] rawHeaders;
+    private NodeCHK nodeKey;
+    private ClientCHKBlock block;
+
+    @Setup
+    public void setUp() throws CHKEncodeException {
+        data = new byte[CHKBlock.DATA_LENGTH];
+        new Random(1234).nextBytes(data);
+        block = ClientCHKBlock.encodeSplitfileBlock(data, null, Key.ALGO_AES_CTR_256_SHA256);
+        rawData = block.getBlock().getRawData();
+        rawHeaders = block.getBlock().getRawHeaders();
+        nodeKey = block.getBlock().getKey();
+    }
+
+    @Benchmark
+    public ClientCHKBlock encode() throws CHKEncodeException {
+        return ClientCHKBlock.encodeSplitfileBlock(data, null, Key.ALGO_AES_CTR_256_SHA256);
+    }
+
+    @Benchmark
+    public CHKBlock verify() throws CHKVerifyException {
+        return new CHKBlock(rawData, rawHeaders, nodeKey, true, Key.ALGO_AES_CTR_256_SHA256);
+    }
+
+    @Benchmark
+    public long decode() throws CHKDecodeException, IOException {
+        Bucket decoded = block.decode(bf, CHKBlock.DATA_LENGTH, true);
+        long size = decoded.size();
+        decoded.free();
+        return size;
+    }
+
+}
@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+
+/**
+ * Build and parse a full size NewPacketFormat packet, with a few acks, a short message and a
+ * fragment of a large one. The sealed variants also encrypt and MAC the packet, or check and
+ * decrypt it, the same way NewPacketFormat does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NPFPacketBenchmark {
+
+    private static final int MAX_PACKET_SIZE = 1280;
+    private static final int HMAC_LENGTH = 10;
+
+    private final Random paddingGen = new Random(1234);
+    private final BasePeerNode pn = new NullBasePeerNode();
+    private byte[] shortMessage;
+    private byte[] longFragment;
+    private byte[] plaintext;
+    private byte[] sealed;
+    private Rijndael cipher;
+    private Rijndael ivCipher;
+    private byte[] hmacKey;
+
+    @Setup
+    public void setUp() throws UnsupportedCipherException {
+        Random random = new Random(5678);
+        shortMessage = new byte[100];
+        random.nextBytes(shortMessage);
+        longFragment = new byte[1000];
+        random.nextBytes(longFragment);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        cipher = new Rijndael(256, 256);
+        cipher.initialize(key);
+        random.nextBytes(key);
+        ivCipher = new Rijndael(256, 256);
+        ivCipher.initialize(key);
+        hmacKey = new byte[32];
+        random.nextBytes(hmacKey);
+        plaintext = build(0);
+        sealed = seal();
+    }
+
+    private NPFPacket createPacket() {
+        NPFPacket packet = new NPFPacket();
+        packet.setSequenceNumber(1000);
+        for (int i = 0; i < 8; i++) {
+            packet.addAck(2000 + i * 3, MAX_PACKET_SIZE);
+        }
+        packet.addMessageFragment(new MessageFragment(true, false, true, 10, shortMessage.length,
+                shortMessage.length, 0, shortMessage, null));
+        packet.addMessageFragment(new MessageFragment(false, true, false, 11, longFragment.length,
+                32768, 4096, longFragment, null));
+        return packet;
+    }
+
+    private byte[] build(int offset) {
+        // toBytes() needs a zeroed buffer, so allocate one each time as NewPacketFormat does.
+        NPFPacket packet = createPacket();
+        byte[] data = new byte[offset + packet.getLength()];
+        packet.toBytes(data, offset, paddingGen);
+        return data;
+    }
+
+    private byte[] seal() {
+        byte[] data = build(HMAC_LENGTH);
+        byte[] iv = ivFor(data, HMAC_LENGTH);
+        PCFBMode.create(cipher, iv).blockEncipher(data, HMAC_LENGTH, data.length - HMAC_LENGTH);
+        byte[] hash = HMAC.macWithSHA256(hmacKey, Arrays.copyOfRange(data, HMAC_LENGTH, data.length));
+        System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+        return data;
+    }
+
+    private byte[] ivFor(byte[] data, int offset) {
+        // As in NewPacketFormat: the IV is the encrypted sequence number.
+        byte[] iv = new byte[ivCipher.getBlockSize() / 8];
+        System.arraycopy(data, offset, iv, iv.length - 4, 4);
+        ivCipher.encipher(iv, iv);
+        return iv;
+    }
+
+    @Benchmark
+    public byte[] buildPacket() {
+        return build(0);
+    }
+
+    @Benchmark
+    public int parsePacket() {
+        return NPFPacket.create(plaintext, pn).getLength();
+    }
+
+    @Benchmark
+    public byte[] buildSealedPacket() {
+        return seal();
+    }
+
+    @Benchmark
+    public int parseSealedPacket() {
+        byte[] payload = Arrays.copyOfRange(sealed, HMAC_LENGTH, sealed.length);
+        byte[] hash = HMAC.macWithSHA256(hmacKey, payload);
+        for (int i = 0; i < HMAC_LENGTH; i++) {
+            if (hash[i] != sealed[i]) {
+                throw new IllegalStateException("Bad HMAC");
+            }
+        }
+        // The receiver knows which sequence number to expect, so it can work out the IV.
+        PCFBMode.create(cipher, ivFor(plaintext, 0)).blockDecipher(payload, 0, payload.length);
+        return NPFPacket.create(payload, pn).getLength();
+    }
+
+}
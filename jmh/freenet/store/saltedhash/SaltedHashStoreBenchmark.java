@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.store.KeyCollisionException;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TrivialTicker;
+import freenet.support.compress.Compressor;
+import freenet.support.io.FileUtil;
+
+/**
+ * Fetch and put CHKs on a SaltedHashFreenetStore in a temporary directory, with and without
+ * memory mapping. The store is filled to about a quarter before measuring; fetches are all hits,
+ * and puts overwrite blocks which are already there, so the store does not fill up as the
+ * benchmark runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SaltedHashStoreBenchmark {
+
+    private static final int STORE_SIZE = 4096;
+    private static final int BLOCKS = 1024;
+
+    @Param({ "none", "metadata", "all" })
+    public String mmap;
+
+    private final PooledExecutor exec = new PooledExecutor();
+    private File dir;
+    private CHKStore store;
+    private SaltedHashFreenetStore<CHKBlock> saltStore;
+    private CHKBlock[] blocks;
+    private NodeCHK[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException, CHKEncodeException, KeyCollisionException {
+        exec.start();
+        ResizablePersistentIntBuffer.setPersistenceTime(-1);
+        dir = Files.createTempDirectory("saltedhash-benchmark").toFile();
+        store = new CHKStore();
+        saltStore = SaltedHashFreenetStore.construct(dir, "benchmark", store, new Random(1234),
+                STORE_SIZE, true, SemiOrderedShutdownHook.get(), true, true,
+                new TrivialTicker(exec), null);
+        if (!"none".equals(mmap)) {
+            saltStore.setMemoryMapped("all".equals(mmap), 256 * 1024 * 1024);
+        }
+        saltStore.start(null, true);
+        Random random = new Random(5678);
+        blocks = new CHKBlock[BLOCKS];
+        keys = new NodeCHK[BLOCKS];
+        byte[] data = new byte[CHKBlock.DATA_LENGTH];
+        for (int i = 0; i < BLOCKS; i++) {
+            random.nextBytes(data);
+            SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+            ClientCHKBlock block = ClientCHKBlock.encode(bucket, false, true, (short) -1,
+                    bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR, null, (byte) 0);
+            blocks[i] = block.getBlock();
+            keys[i] = block.getClientKey().getNodeCHK();
+            store.put(blocks[i], false);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        saltStore.close();
+        FileUtil.removeAll(dir);
+    }
+
+    @Benchmark
+    public CHKBlock fetch() throws IOException {
+        next = (next + 1) % BLOCKS;
+        return store.fetch(keys[next], false, false, null);
+    }
+
+    @Benchmark
+    public int put() throws IOException, KeyCollisionException {
+        next = (next + 1) % BLOCKS;
+        store.put(blocks[next], true);
+        return next;
+    }
+
+}
@@ -0,0 +1,86 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parse and serialise a SimpleFieldSet shaped like a node reference: a few dozen fields, some of
+ * them nested, with long base64 values for the keys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimpleFieldSetBenchmark {
+
+    private SimpleFieldSet fs;
+    private String text;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1234);
+        fs = new SimpleFieldSet(true);
+        fs.putSingle("identity", randomBase64(random, 32));
+        fs.putSingle("version", "Fred,0.7,1.0,1500");
+        fs.putSingle("lastGoodVersion", "Fred,0.7,1.0,1497");
+        fs.putSingle("opennet", "true");
+        fs.putSingle("myName", "Benchmark node");
+        fs.put("location", 0.123456789);
+        for (int i = 0; i < 3; i++) {
+            fs.putAppend("physical.udp", "192.168.0." + (i + 1) + ":" + (12345 + i));
+        }
+        fs.putSingle("auth.negTypes", "10");
+        fs.putSingle("ark.number", "42");
+        fs.putSingle("ark.pubURI", "SSK@" + randomBase64(random, 32) + "," + randomBase64(random, 32)
+                + ",AQACAAE/ark");
+        fs.putSingle("ecdsa.P256.pub", randomBase64(random, 91));
+        fs.putSingle("sig", randomBase64(random, 64));
+        fs.putSingle("sigP256", randomBase64(random, 72));
+        for (int i = 0; i < 20; i++) {
+            fs.put("stats.counter" + i, random.nextInt());
+        }
+        text = fs.toOrderedString();
+    }
+
+    private static String randomBase64(Random random, int length) {
+        byte[] buf = new byte[length];
+        random.nextBytes(buf);
+        return Base64.encode(buf);
+    }
+
+    @Benchmark
+    public SimpleFieldSet parse() throws IOException {
+        return new SimpleFieldSet(text, false, true, false);
+    }
+
+    @Benchmark
+    public String serialise() {
+        return fs.toOrderedString();
+    }
+
+    @Benchmark
+    public int writeTo() throws IOException {
+        StringWriter sw = new StringWriter(text.length());
+        fs.writeTo(sw);
+        return sw.getBuffer().length();
+    }
+
+}
@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queue a timeout and cancel it again, as the node does for most request and message filter
+ * timeouts, with each Ticker already holding a backlog of pending jobs. The tickers' threads are
+ * not started, so this only measures the bookkeeping, not running the jobs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TickerBenchmark {
+
+    private static final int JOBS = 1024;
+
+    @Param({ "prioritized", "wheel" })
+    public String tickerType;
+
+    /** Number of jobs already queued. */
+    @Param({ "100", "10000" })
+    public int backlog;
+
+    private Ticker ticker;
+    private Runnable[] jobs;
+    private long[] offsets;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Executor executor = new PooledExecutor();
+        ticker = "wheel".equals(tickerType) ? new TimerWheelTicker(executor, 0)
+                : new PrioritizedTicker(executor, 0);
+        Random random = new Random(1234);
+        for (int i = 0; i < backlog; i++) {
+            // Far enough ahead that they won't be due during the run.
+            ticker.queueTimedJob(new NullJob(), "backlog", TimeUnit.HOURS.toMillis(1) + random.nextInt(1000000),
+                    true, false);
+        }
+        jobs = new Runnable[JOBS];
+        offsets = new long[JOBS];
+        for (int i = 0; i < JOBS; i++) {
+            jobs[i] = new NullJob();
+            // Typical timeouts, from half a second to five minutes.
+            offsets[i] = 500 + random.nextInt(300000);
+        }
+    }
+
+    @Benchmark
+    public void queueAndCancel() {
+        int i = next++ & (JOBS - 1);
+        ticker.queueTimedJob(jobs[i], "timeout", offsets[i], true, false);
+        ticker.removeQueuedJob(jobs[i]);
+    }
+
+    @Benchmark
+    public void queueNoDupesAndCancel() {
+        int i = next++ & (JOBS - 1);
+        ticker.queueTimedJob(jobs[i], "timeout", offsets[i], true, true);
+        ticker.queueTimedJob(jobs[i], "timeout", offsets[i] + 1000, true, true);
+        ticker.removeQueuedJob(jobs[i]);
+    }
+
+    private static class NullJob implements Runnable {
+
+        @Override
+        public void run() {
+            // Never run.
+        }
+
+    }
+
+}
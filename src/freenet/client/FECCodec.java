@@ -48,7 +48,7 @@ public abstract class FECCodec {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
-            return new OnionFECCodec();
+            return new PureJavaFECCodec();
         default:
             throw new IllegalArgumentException();
         }
@@ -157,6 +157,12 @@ public class OnionFECCodec extends FECCodec {
     
     @Override
     public int getCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
+        return getStandardCheckBlocks(dataBlocks, compatibilityMode);
+    }
+    
+    /** Check blocks per segment for the onion standard splitfile format, whichever codec 
+     * implements it. */
+    static int getStandardCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
         /**
          * ALCHEMY: What we do know is that redundancy by FEC is much more efficient than 
          * redundancy by simply duplicating blocks, for obvious reasons (see e.g. Wuala). But
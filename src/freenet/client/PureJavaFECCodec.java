@@ -0,0 +1,282 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import freenet.client.InsertContext.CompatibilityMode;
+
+/**
+ * Reed-Solomon codec over GF(2^8) producing exactly the same check blocks as the onion FEC
+ * library (OnionFECCodec), without going through it.
+ *
+ * The encoding matrix is the onion one: a Vandermonde matrix on 0, 1, a, a^2, ... (a being the
+ * generator for the polynomial 0x11d) multiplied by the inverse of its top k rows, so the data
+ * blocks are encoded as themselves. The matrix is the same whatever way it is computed, so we
+ * use plain Gauss-Jordan elimination rather than the library's Vandermonde-specific inversion.
+ *
+ * All multiplications use a precomputed 256x256 product table. Blocks are processed a tile at a
+ * time, so the tile of the block being written stays in the L1 cache while all the inputs are
+ * added to it. Decoding only solves for the missing data blocks. The scratch space for a decode
+ * is kept per thread and reused, and the codec has no other mutable state, so any number of
+ * segments can be decoded or encoded in parallel, e.g. by MemoryLimitedJobRunner.
+ */
+public class PureJavaFECCodec extends FECCodec {
+
+    /** Bytes of each block processed at a time. */
+    static final int TILE = 4096;
+
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[510];
+    private static final int[] LOG = new int[256];
+    /** MUL[a][b] = a*b in GF(2^8) */
+    static final byte[][] MUL = new byte[256][256];
+
+    static {
+        int x = 1;
+        for(int i = 0; i < 255; i++) {
+            EXP[i] = EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if((x & 0x100) != 0) x ^= PRIMITIVE_POLYNOMIAL;
+        }
+        for(int a = 1; a < 256; a++)
+            for(int b = 1; b < 256; b++)
+                MUL[a][b] = EXP[LOG[a] + LOG[b]];
+    }
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    static int inverse(int a) {
+        if(a == 0) throw new ArithmeticException("Zero has no inverse");
+        return EXP[255 - LOG[a]] & 0xff;
+    }
+
+    /** Parity rows of the encoding matrix by (k,n). Immutable once created. */
+    private static final ConcurrentHashMap<Integer, SoftReference<byte[][]>> parityMatrices =
+        new ConcurrentHashMap<Integer, SoftReference<byte[][]>>();
+
+    /** Scratch space for the syndromes when decoding. */
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+
+    /** @return The bottom n-k rows of the systematic encoding matrix, i.e. row i gives the
+     * coefficients of the data blocks for check block i. */
+    static byte[][] getParityMatrix(int k, int n) {
+        if(k <= 0 || n <= k || n > MAX_TOTAL_BLOCKS_PER_SEGMENT)
+            throw new IllegalArgumentException("Bad k="+k+" n="+n);
+        Integer key = (k << 16) | n;
+        SoftReference<byte[][]> ref = parityMatrices.get(key);
+        byte[][] matrix = ref == null ? null : ref.get();
+        if(matrix == null) {
+            // Two threads may do this at once, but they will get the same answer.
+            matrix = createParityMatrix(k, n);
+            parityMatrices.put(key, new SoftReference<byte[][]>(matrix));
+        }
+        return matrix;
+    }
+
+    private static byte[][] createParityMatrix(int k, int n) {
+        // Row 0 evaluates at 0, row r > 0 at a^(r-1).
+        byte[][] vandermonde = new byte[n][k];
+        vandermonde[0][0] = 1;
+        for(int row = 1; row < n; row++)
+            for(int col = 0; col < k; col++)
+                vandermonde[row][col] = EXP[((row - 1) * col) % 255];
+        byte[][] topInverse = invert(Arrays.copyOf(vandermonde, k));
+        byte[][] parity = new byte[n - k][k];
+        for(int row = 0; row < n - k; row++) {
+            byte[] v = vandermonde[row + k];
+            for(int col = 0; col < k; col++) {
+                int sum = 0;
+                for(int i = 0; i < k; i++)
+                    sum ^= mul(v[i] & 0xff, topInverse[i][col] & 0xff);
+                parity[row][col] = (byte) sum;
+            }
+        }
+        return parity;
+    }
+
+    /** Invert a square matrix by Gauss-Jordan elimination. The rows passed in are not changed.
+     * @throws IllegalArgumentException If the matrix is singular. */
+    static byte[][] invert(byte[][] matrix) {
+        int size = matrix.length;
+        byte[][] m = new byte[size][];
+        byte[][] inv = new byte[size][size];
+        for(int i = 0; i < size; i++) {
+            m[i] = matrix[i].clone();
+            inv[i][i] = 1;
+        }
+        for(int col = 0; col < size; col++) {
+            int pivot = col;
+            while(pivot < size && m[pivot][col] == 0) pivot++;
+            if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                byte[] t = m[pivot]; m[pivot] = m[col]; m[col] = t;
+                t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+            }
+            byte[] scale = MUL[inverse(m[col][col] & 0xff)];
+            for(int i = 0; i < size; i++) {
+                m[col][i] = scale[m[col][i] & 0xff];
+                inv[col][i] = scale[inv[col][i] & 0xff];
+            }
+            for(int row = 0; row < size; row++) {
+                if(row == col || m[row][col] == 0) continue;
+                byte[] factor = MUL[m[row][col] & 0xff];
+                for(int i = 0; i < size; i++) {
+                    m[row][i] ^= factor[m[col][i] & 0xff];
+                    inv[row][i] ^= factor[inv[col][i] & 0xff];
+                }
+            }
+        }
+        return inv;
+    }
+
+    /** dst[dstOffset...] ^= coefficient * src[srcOffset...] */
+    static void multiplyAdd(int coefficient, byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        if(coefficient == 0) return;
+        if(coefficient == 1) {
+            for(int i = 0; i < length; i++)
+                dst[dstOffset + i] ^= src[srcOffset + i];
+            return;
+        }
+        byte[] table = MUL[coefficient];
+        for(int i = 0; i < length; i++)
+            dst[dstOffset + i] ^= table[src[srcOffset + i] & 0xff];
+    }
+
+    /** dst[offset...] ^= sum of coefficients[j] * sources[j][offset...], for the sources which
+     * are wanted (all if wanted is null). Four sources are added in each pass over the tile. */
+    private static void multiplyAddAll(byte[] coefficients, byte[][] sources, boolean[] wanted,
+            byte[] dst, int dstOffset, int offset, int length) {
+        int[] use = new int[4];
+        int count = 0;
+        for(int j = 0; j < sources.length; j++) {
+            if(coefficients[j] == 0 || (wanted != null && !wanted[j])) continue;
+            use[count++] = j;
+            if(count == 4) {
+                byte[] t0 = MUL[coefficients[use[0]] & 0xff], t1 = MUL[coefficients[use[1]] & 0xff];
+                byte[] t2 = MUL[coefficients[use[2]] & 0xff], t3 = MUL[coefficients[use[3]] & 0xff];
+                byte[] s0 = sources[use[0]], s1 = sources[use[1]], s2 = sources[use[2]], s3 = sources[use[3]];
+                for(int i = 0; i < length; i++) {
+                    int p = offset + i;
+                    dst[dstOffset + i] ^= t0[s0[p] & 0xff] ^ t1[s1[p] & 0xff] ^ t2[s2[p] & 0xff] ^ t3[s3[p] & 0xff];
+                }
+                count = 0;
+            }
+        }
+        for(int j = 0; j < count; j++)
+            multiplyAdd(coefficients[use[j]] & 0xff, sources[use[j]], offset, dst, dstOffset, length);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        for(byte[] block : dataBlocks) {
+            if(block == null || block.length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i = 0; i < checkBlocks.length; i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        byte[][] parity = getParityMatrix(k, k + checkBlocks.length);
+        for(int offset = 0; offset < blockLength; offset += TILE) {
+            int length = Math.min(TILE, blockLength - offset);
+            for(int i = 0; i < checkBlocks.length; i++) {
+                if(checkBlocksPresent[i]) continue;
+                byte[] out = checkBlocks[i];
+                byte[] row = parity[i];
+                Arrays.fill(out, offset, offset + length, (byte) 0);
+                multiplyAddAll(row, dataBlocks, null, out, offset, offset, length);
+            }
+        }
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent,
+            boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int[] missing = new int[k];
+        int missingCount = 0;
+        for(int i = 0; i < k; i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) missing[missingCount++] = i;
+        }
+        if(missingCount == 0) return;
+        // Any check blocks will do, the result is the same.
+        int[] using = new int[missingCount];
+        int usingCount = 0;
+        for(int i = 0; i < checkBlocks.length && usingCount < missingCount; i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            using[usingCount++] = i;
+        }
+        if(usingCount < missingCount)
+            throw new IllegalArgumentException("Not enough blocks to decode");
+        byte[][] parity = getParityMatrix(k, k + checkBlocks.length);
+        // Each check block we use is a sum over the data blocks. Take away the data blocks we
+        // have, and what is left (the syndrome) is a sum over the missing ones only.
+        byte[][] sub = new byte[missingCount][missingCount];
+        for(int r = 0; r < missingCount; r++)
+            for(int c = 0; c < missingCount; c++)
+                sub[r][c] = parity[using[r]][missing[c]];
+        byte[][] solve = invert(sub);
+        byte[] syndromes = getScratch(missingCount * TILE);
+        for(int offset = 0; offset < blockLength; offset += TILE) {
+            int length = Math.min(TILE, blockLength - offset);
+            for(int r = 0; r < missingCount; r++) {
+                int base = r * TILE;
+                byte[] row = parity[using[r]];
+                System.arraycopy(checkBlocks[using[r]], offset, syndromes, base, length);
+                multiplyAddAll(row, dataBlocks, dataBlocksPresent, syndromes, base, offset, length);
+            }
+            for(int c = 0; c < missingCount; c++) {
+                byte[] out = dataBlocks[missing[c]];
+                byte[] row = solve[c];
+                Arrays.fill(out, offset, offset + length, (byte) 0);
+                for(int r = 0; r < missingCount; r++)
+                    multiplyAdd(row[r] & 0xff, syndromes, r * TILE, out, offset, length);
+            }
+        }
+    }
+
+    private static byte[] getScratch(int length) {
+        byte[] buf = scratch.get();
+        if(buf == null || buf.length < length) {
+            buf = new byte[length];
+            scratch.set(buf);
+        }
+        return buf;
+    }
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int missing = Math.min(dataBlocks, checkBlocks);
+        // As encoding, plus the inverted submatrix and its copy, and the syndromes.
+        return maxMemoryOverheadEncode(dataBlocks, checkBlocks) + 3L * missing * missing + 
+            (long) missing * TILE;
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        // Parity matrix, and the whole Vandermonde matrix and its inverted top while creating it.
+        int n = dataBlocks + checkBlocks;
+        return (long) n * dataBlocks + 3L * dataBlocks * dataBlocks;
+    }
+
+    @Override
+    public int getCheckBlocks(int dataBlocks, CompatibilityMode cmode) {
+        // Same format.
+        return OnionFECCodec.getStandardCheckBlocks(dataBlocks, cmode);
+    }
+
+}
@@ -492,6 +492,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ClientContext context) {
+			BaseManifestPutter.this.markChanged();
 			if (logDEBUG) {
 				//temp hack, ignored if called via super
 				Throwable t = new Throwable("DEBUG onSuccess");
@@ -539,6 +540,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onFailure(InsertException e, ClientPutState state, ClientContext context) {
+			BaseManifestPutter.this.markChanged();
 			ClientPutState oldState;
 			synchronized(this) {
 				oldState = currentState;
@@ -561,6 +563,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			synchronized (this) {
 				if (currentState == oldState) {
 					currentState = newState;
+					BaseManifestPutter.this.markChanged();
 					if(logMINOR)
 						Logger.minor(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState+" for "+this);
 					return;
@@ -699,6 +699,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		synchronized(this) {
 			if(currentState == oldState) {
 				currentState = newState;
+				markChanged();
 				if(logMINOR) Logger.minor(this, "Transition: "+oldState+" -> "+newState+" on "+this+" persistent = "+persistent()+" instance = "+super.toString(), new Exception("debug"));
 			} else {
 				if(logMINOR) Logger.minor(this, "Ignoring transition: "+oldState+" -> "+newState+" because current = "+currentState+" on "+this+" persistent = "+persistent(), new Exception("debug"));
@@ -1,5 +1,6 @@
 package freenet.client.async;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -12,10 +13,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
@@ -32,6 +42,7 @@ import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
@@ -40,14 +51,16 @@ import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
 import freenet.support.io.TempBucketFactory;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 /** Top level of persistence mechanism for ClientRequest's (persistent downloads and uploads).
  * Note that we use three different persistence mechanisms here:
  * 1) Splitfile persistence. The downloaded data and all the status for a splitfile is kept in a 
  * single random access file (technically a LockableRandomAccessBuffer).
- * 2) Java persistence. The overall list of ClientRequest's is stored to client.dat using 
- * serialization, by this class.
+ * 2) Java persistence. Each ClientRequest is serialized separately and stored in client.dat, a
+ * simple binary file, by this class. On a checkpoint, only the requests which have changed since
+ * the last one are serialized again; the rest are copied from the previous file.
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
  * 
@@ -95,6 +108,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     // Can be set later ...
     private Bucket writeToBucket;
     private File writeToFilename;
+    private Bucket writeToBackupBucket;
     private File writeToBackupFilename;
     private File deleteAfterSuccessfulWrite;
     private File otherDeleteAfterSuccessfulWrite;
@@ -102,7 +116,24 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private String baseName;
     
     private static final long MAGIC = 0xd332925f3caf4aedL;
-    private static final int VERSION = 1;
+    /** The whole file was written with one ObjectOutputStream. We can still read it. */
+    private static final int VERSION_SERIALIZED = 1;
+    /** Plain binary, only the requests and a few other objects are serialized, separately. */
+    private static final int VERSION = 2;
+    
+    /** Serialize every request at least this often, even if it doesn't seem to have changed. */
+    static final long FULL_CHECKPOINT_INTERVAL = HOURS.toMillis(1);
+    /** ClientRequest.getChangeCount() for each request when it was last written, or null if the
+     * last write failed or there hasn't been one. */
+    private Map<ClientRequest, Long> savedChangeCounts;
+    private long lastFullCheckpoint;
+    
+    /** Number of requests read before deserializing them in parallel on startup. */
+    private static final int LOAD_BATCH_SIZE = 256;
+    /** Maximum number of threads deserializing or resuming requests on startup, including the 
+     * one loading them. */
+    private static final int STARTUP_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private final PersistentStartupStats startupStats = new PersistentStartupStats();
     
     private static volatile boolean logMINOR;
     static {
@@ -141,6 +172,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             if(noWrite) {
                 writeToBucket = null;
                 writeToFilename = null;
+                writeToBackupBucket = null;
                 writeToBackupFilename = null;
                 deleteFile(dir, baseName, false, false);
                 deleteFile(dir, baseName, false, true);
@@ -192,8 +224,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         File oldWriteToFilename = writeToFilename;
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
+        writeToBackupBucket = makeBucket(dir, baseName, true, writeEncrypted ? encryptionKey : null);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        savedChangeCounts = null; // Can't copy from a different file.
         System.out.println("Will save downloads to "+writeToFilename);
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -245,6 +279,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
+        writeToBackupBucket = makeBucket(dir, baseName, true, writeEncrypted ? encryptionKey : null);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         
         if(loaded.doneSomething()) {
@@ -264,43 +299,36 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             int restoredRestarted = 0;
             int restoredFully = 0;
             int failed = 0;
+            long startTime = System.nanoTime();
             // Resume the requests.
-            for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
-                ClientRequest req = partial.request;
-                if(req == null) continue;
-                try {
-                    req.onResume(context);
-                    if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
-                            partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
-                        req.start(context);
-                    }
-                    switch(partial.status) {
-                    case LOADED:
-                        success++;
-                        break;
-                    case RESTORED_FULLY:
-                        restoredFully++;
-                        break;
-                    case RESTORED_RESTARTED:
-                        restoredRestarted++;
-                        break;
-                    case FAILED:
-                        failed++;
-                        break;
-                    }
-                } catch (Throwable t) {
+            List<PartiallyLoadedRequest> resumed = resumeRequests(loaded, context);
+            long workTime = 0;
+            for(PartiallyLoadedRequest partial : resumed) {
+                workTime += partial.resumeTime;
+                if(partial.resumeFailed) {
                     if(partial.status == RequestLoadStatus.LOADED)
                         failedSerialize = true;
                     failed++;
-                    System.err.println("Unable to resume request "+req+" after loading it.");
-                    Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
-                    try {
-                        req.cancel(context);
-                    } catch (Throwable t1) {
-                        Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
-                    }
+                    continue;
+                }
+                switch(partial.status) {
+                case LOADED:
+                    success++;
+                    break;
+                case RESTORED_FULLY:
+                    restoredFully++;
+                    break;
+                case RESTORED_RESTARTED:
+                    restoredRestarted++;
+                    break;
+                case FAILED:
+                    failed++;
+                    break;
                 }
             }
+            startupStats.addResume(System.nanoTime() - startTime, workTime, 
+                    Math.min(STARTUP_THREADS, resumed.size()), success, restoredFully, 
+                    restoredRestarted, failed);
             if(success > 0)
                 System.out.println("Resumed "+success+" requests ...");
             if(restoredFully > 0)
@@ -351,12 +379,111 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private class PartiallyLoadedRequest {
         final ClientRequest request;
         final RequestLoadStatus status;
+        /** Set by resumeRequest() */
+        boolean resumeFailed;
+        long resumeTime;
         PartiallyLoadedRequest(ClientRequest request, RequestLoadStatus status) {
             this.request = request;
             this.status = status;
         }
     }
     
+    /** Resume the loaded requests in parallel, starting with the highest priority requests, so
+     * that they are running again as soon as possible.
+     *
+     * Each request is resumed by exactly one thread, and the requests don't share any objects
+     * apart from their clients, so onResume() implementations only need to worry about the
+     * global structures they register with. These are all safe to call from several threads at
+     * once, because they were already called from job threads, FCP and fproxy while the loading
+     * thread was resuming the rest:
+     * - PersistentRequestRoot.makeClient() and resume(), and PersistentRequestClient.resume().
+     * - PersistentTempBucketFactory.register(), via the buckets' onResume().
+     * - ClientRequestScheduler.register() and registerInsert(): the KeyListenerTracker, the
+     * DatastoreChecker and the ClientRequestSelector all lock.
+     * - USKManager, MemoryLimitedJobRunner and queueing jobs on this persister.
+     * newSalt() and the salt are set before we start, so don't need locking.
+     * @return The requests we tried to resume, i.e. excluding those which failed to load. */
+    private List<PartiallyLoadedRequest> resumeRequests(PartialLoad loaded, final ClientContext context) {
+        final List<PartiallyLoadedRequest> requests = new ArrayList<PartiallyLoadedRequest>();
+        for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
+            if(partial.request != null) requests.add(partial);
+        }
+        Collections.sort(requests, new Comparator<PartiallyLoadedRequest>() {
+
+            @Override
+            public int compare(PartiallyLoadedRequest a, PartiallyLoadedRequest b) {
+                // Lower is more important.
+                return Short.compare(a.request.getPriority(), b.request.getPriority());
+            }
+            
+        });
+        final AtomicInteger next = new AtomicInteger();
+        runInParallel(Math.min(STARTUP_THREADS, requests.size()), new Runnable() {
+
+            @Override
+            public void run() {
+                int i;
+                while((i = next.getAndIncrement()) < requests.size())
+                    resumeRequest(requests.get(i), context);
+            }
+            
+        }, "Resuming persistent requests");
+        return requests;
+    }
+    
+    private void resumeRequest(PartiallyLoadedRequest partial, ClientContext context) {
+        ClientRequest req = partial.request;
+        long startTime = System.nanoTime();
+        try {
+            req.onResume(context);
+            if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
+                    partial.status == RequestLoadStatus.RESTORED_RESTARTED) {
+                req.start(context);
+            }
+        } catch (Throwable t) {
+            partial.resumeFailed = true;
+            System.err.println("Unable to resume request "+req+" after loading it.");
+            Logger.error(this, "Unable to resume request "+req+" after loading it: "+t, t);
+            try {
+                req.cancel(context);
+            } catch (Throwable t1) {
+                Logger.error(this, "Unable to terminate "+req+" after failure: "+t1, t1);
+            }
+        }
+        partial.resumeTime = System.nanoTime() - startTime;
+    }
+    
+    /** Run the job on the given number of threads, including this one, and wait for all of them
+     * to finish. */
+    private void runInParallel(int threads, Runnable job, String name) {
+        if(threads <= 0) return;
+        final CountDownLatch done = new CountDownLatch(threads - 1);
+        for(int t = 1; t < threads; t++) {
+            final Runnable r = job;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        r.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            }, name);
+        }
+        job.run();
+        while(true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+    
     private class PartialLoad {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
@@ -416,6 +543,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             ClientContext context, RequestStarterGroup requestStarters, Random random) {
         long length = bucket.size();
         InputStream fis = null;
+        long startTime = System.nanoTime();
         try {
             fis = bucket.getInputStream();
             innerLoad(loaded, fis, length, !noSerialize && !loaded.doneSomething(), context, 
@@ -438,111 +566,177 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 System.err.println("Failed to load persistent requests: "+e);
                 e.printStackTrace();
             }
+            startupStats.addLoad(System.nanoTime() - startTime);
         }
     }
     
     private void innerLoad(PartialLoad loaded, InputStream fis, long length, boolean latest, 
             ClientContext context, RequestStarterGroup requestStarters, Random random, boolean noSerialize) throws NodeInitException, IOException {
-        ObjectInputStream ois = new ObjectInputStream(fis);
-        long magic = ois.readLong();
+        BufferedInputStream bis = new BufferedInputStream(fis);
+        bis.mark(2);
+        boolean serialized = new DataInputStream(bis).readShort() == ObjectStreamConstants.STREAM_MAGIC;
+        bis.reset();
+        ObjectInputStream ois = null;
+        DataInputStream dis;
+        if(serialized) {
+            // Written by an older version. The next checkpoint will use the new format.
+            ois = new ObjectInputStream(bis);
+            dis = new DataInputStream(ois);
+        } else {
+            dis = new DataInputStream(bis);
+        }
+        long magic = dis.readLong();
         if(magic != MAGIC) throw new IOException("Bad magic");
-        int version = ois.readInt();
-        if(version != VERSION) throw new IOException("Bad version");
+        int version = dis.readInt();
+        if(version != (serialized ? VERSION_SERIALIZED : VERSION)) throw new IOException("Bad version");
         byte[] salt = new byte[32];
         try {
-            checker.readAndChecksum(ois, salt, 0, salt.length);
+            checker.readAndChecksum(dis, salt, 0, salt.length);
             loaded.setSalt(salt);
         } catch (ChecksumFailedException e1) {
             Logger.error(this, "Unable to read global salt (checksum failed)");
         }
         requestStarters.setGlobalSalt(salt);
-        int requestCount = ois.readInt();
+        int requestCount = dis.readInt();
+        List<StoredRequest> batch = new ArrayList<StoredRequest>(LOAD_BATCH_SIZE);
         for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
+            RequestIdentifier reqID = readRequestIdentifier(dis);
             if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
                 Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
+                skipChecksummedObject(dis, length); // Request itself
+                skipChecksummedObject(dis, length); // Recovery data
                 continue;
             }
-            try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
-            } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
-            }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            StoredRequest stored = new StoredRequest(reqID);
+            if(!noSerialize) {
+                stored.serialized = readChecksummedBytes(dis, length);
+                if(stored.serialized == null) {
+                    Logger.error(this, "Failed to load request (checksum failed)");
+                    System.err.println("Failed to load a request (checksum failed)");
                 }
-            } else {
-                skipChecksummedObject(ois, length);
+            } else
+                skipChecksummedObject(dis, length);
+            stored.recoveryData = readChecksummedBytes(dis, length);
+            batch.add(stored);
+            if(batch.size() == LOAD_BATCH_SIZE) {
+                restoreRequests(loaded, batch);
+                batch.clear();
             }
         }
+        restoreRequests(loaded, batch);
         if(latest) {
             try {
                 // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
+                readStatsAndBuckets(dis, ois, length, context);
             } catch (Throwable t) {
                 Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
         }
-        ois.close();
-        fis = null;
+        dis.close();
     }
 
-    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
-        PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-        this.bandwidthStatsPutter.addFrom(storedStatsPutter);
-        int count = ois.readInt();
+    /** A request read from client.dat, with its checksums verified but not yet deserialized. */
+    private class StoredRequest {
+        final RequestIdentifier reqID;
+        /** The serialized request, or null if it failed the checksum or we're not deserializing. */
+        byte[] serialized;
+        /** The recovery data, or null if it failed the checksum. */
+        byte[] recoveryData;
+        /** Set by deserialize(), null if that failed. */
+        Object request;
+
+        StoredRequest(RequestIdentifier reqID) {
+            this.reqID = reqID;
+        }
+
+        void deserialize() {
+            if(serialized == null) return;
+            try {
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized));
+                request = ois.readObject();
+                ois.close();
+            } catch (Throwable t) {
+                Logger.error(this, "Serialization failed: "+t, t);
+            }
+            serialized = null;
+        }
+    }
+
+    /** Deserialize a batch of requests in parallel, then restore or restart them in order. */
+    private void restoreRequests(PartialLoad loaded, final List<StoredRequest> batch) {
+        if(batch.isEmpty()) return;
+        long startTime = System.nanoTime();
+        final AtomicInteger next = new AtomicInteger();
+        runInParallel(Math.min(STARTUP_THREADS, batch.size()), new Runnable() {
+
+            @Override
+            public void run() {
+                int i;
+                while((i = next.getAndIncrement()) < batch.size())
+                    batch.get(i).deserialize();
+            }
+
+        }, "Deserializing persistent requests");
+        startupStats.addDeserialize(System.nanoTime() - startTime);
+        for(StoredRequest stored : batch)
+            restoreRequest(loaded, stored);
+    }
+
+    private void restoreRequest(PartialLoad loaded, StoredRequest stored) {
+        RequestIdentifier reqID = stored.reqID;
+        ClientRequest request = null;
+        try {
+            request = (ClientRequest) stored.request;
+            if(request != null) {
+                if(reqID != null) {
+                    if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                        Logger.error(this, "Request does not match request identifier, discarding");
+                        request = null;
+                    } else {
+                        loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(request == null || logMINOR) {
+            if(stored.recoveryData == null) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                return;
+            }
+            ClientRequest restored = readRequestFromRecoveryData(stored.recoveryData, reqID);
+            if(request == null && restored != null) {
+                request = restored;
+                boolean loadedFully = restored.fullyResumed();
+                loaded.addPartiallyLoadedRequest(reqID, request, 
+                        loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+            }
+        }
+    }
+
+    private void readStatsAndBuckets(DataInputStream dis, ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException, ChecksumFailedException {
+        PersistentStatsPutter storedStatsPutter;
+        if(ois != null)
+            storedStatsPutter = (PersistentStatsPutter) ois.readObject();
+        else
+            storedStatsPutter = (PersistentStatsPutter) readChecksummedObject(dis, length);
+        if(storedStatsPutter != null)
+            this.bandwidthStatsPutter.addFrom(storedStatsPutter);
+        int count = dis.readInt();
         DelayedFree[] buckets = new DelayedFree[count];
         for(int i=0;i<count;i++) {
             try {
-                buckets[i] = (DelayedFree) readChecksummedObject(ois, length);
+                buckets[i] = (DelayedFree) readChecksummedObject(dis, length);
             } catch (ChecksumFailedException e) {
                 Logger.warning(this, "Failed to load a bucket to free");
             }
@@ -574,14 +768,16 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     private boolean innerSave(boolean shutdown) {
         DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        long now = System.currentTimeMillis();
+        boolean full = shutdown || savedChangeCounts == null || 
+            now - lastFullCheckpoint >= FULL_CHECKPOINT_INTERVAL;
         OutputStream fos = null;
         try {
             fos = writeToBucket.getOutputStream();
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeLong(MAGIC);
-            oos.writeInt(VERSION);
-            checker.writeAndChecksum(oos, salt);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            dos.writeLong(MAGIC);
+            dos.writeInt(VERSION);
+            checker.writeAndChecksum(dos, salt, 0, salt.length);
             ClientRequest[] requests = getRequests();
             if(shutdown) {
                 for(ClientRequest req : requests) {
@@ -593,30 +789,49 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     }
                 }
             }
-            oos.writeInt(requests.length);
+            // Get the change counts before writing, so anything that changes during the write is
+            // written again next time.
+            Map<ClientRequest, Long> changeCounts = new IdentityHashMap<ClientRequest, Long>();
+            Map<RequestIdentifier, ClientRequest> unchanged = new HashMap<RequestIdentifier, ClientRequest>();
             for(ClientRequest req : requests) {
+                long changes = req.getChangeCount();
+                changeCounts.put(req, changes);
+                if(full) continue;
+                Long saved = savedChangeCounts.get(req);
+                if(saved != null && saved == changes)
+                    unchanged.put(req.getRequestIdentifier(), req);
+            }
+            savedChangeCounts = null; // Until we have finished.
+            dos.writeInt(requests.length);
+            Set<ClientRequest> copied = Collections.newSetFromMap(new IdentityHashMap<ClientRequest, Boolean>());
+            if(!unchanged.isEmpty())
+                copyUnchangedRequests(dos, unchanged, copied);
+            for(ClientRequest req : requests) {
+                if(copied.contains(req)) continue;
                 // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
+                writeRequestIdentifier(dos, req.getRequestIdentifier());
                 // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
+                writeChecksummedObject(dos, req, req.toString());
                 // Write recovery data. This is just enough to restart the request from scratch, 
                 // but may support continuing the request in simple cases e.g. if a fetch is now
                 // just a single splitfile.
-                writeRecoveryData(oos, req);
+                writeRecoveryData(dos, req);
             }
             bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
+            writeChecksummedObject(dos, bandwidthStatsPutter, "bandwidth stats");
             if(buckets == null) {
-                oos.writeInt(0);
+                dos.writeInt(0);
             } else {
-                oos.writeInt(buckets.length);
+                dos.writeInt(buckets.length);
                 for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
+                    writeChecksummedObject(dos, bucket, null);
             }
-            oos.close();
+            dos.close();
             fos = null;
-            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
+            Logger.normal(this, "Saved "+requests.length+" requests ("+copied.size()+" unchanged) to "+writeToFilename+" in "+(System.currentTimeMillis() - now)+"ms");
             persistentTempFactory.finishDelayedFree(buckets);
+            savedChangeCounts = changeCounts;
+            if(full) lastFullCheckpoint = now;
             return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
@@ -632,7 +847,48 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    /** Copy requests which haven't changed from the last file we wrote, which save() has just 
+     * renamed to the backup file. Requests are only copied if their checksums are valid.
+     * @param unchanged The requests to copy, by identifier. 
+     * @param copied Requests which have been copied are added to this set. */
+    private void copyUnchangedRequests(DataOutputStream dos, Map<RequestIdentifier, ClientRequest> unchanged, 
+            Set<ClientRequest> copied) {
+        if(writeToBackupBucket == null) return;
+        long length = writeToBackupBucket.size();
+        InputStream is = null;
+        try {
+            is = writeToBackupBucket.getInputStream();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+            if(dis.readLong() != MAGIC || dis.readInt() != VERSION) return;
+            FileUtil.skipFully(dis, 32 + checker.checksumLength()); // Salt
+            int count = dis.readInt();
+            for(int i=0;i<count && !unchanged.isEmpty();i++) {
+                RequestIdentifier reqID = readRequestIdentifier(dis);
+                ClientRequest req = reqID == null ? null : unchanged.remove(reqID);
+                if(req == null) {
+                    skipChecksummedObject(dis, length);
+                    skipChecksummedObject(dis, length);
+                    continue;
+                }
+                byte[] serialized = readChecksummedBytes(dis, length);
+                byte[] recoveryData = readChecksummedBytes(dis, length);
+                // Serialize it again if it failed last time, or the file is corrupt.
+                if(serialized == null || serialized.length == 0 || recoveryData == null) continue;
+                writeRequestIdentifier(dos, reqID);
+                writeChecksummedBytes(dos, serialized);
+                writeChecksummedBytes(dos, recoveryData);
+                copied.add(req);
+            }
+        } catch (IOException e) {
+            // The rest will be serialized again. If the problem is with the output, the caller
+            // will find out soon enough.
+            Logger.error(this, "Unable to copy requests from "+writeToBackupFilename+" : "+e, e);
+        } finally {
+            Closer.close(is);
+        }
+    }
+    
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,24 +905,17 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
-        InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
+    private ClientRequest readRequestFromRecoveryData(byte[] recoveryData, RequestIdentifier reqID) {
         try {
-            DataInputStream dis = new DataInputStream(tmp);
-            ClientRequest request = ClientRequest.restartFrom(dis, reqID, getClientContext(), checker);
-            dis.close();
-            dis = null;
-            tmp = null;
-            return request;
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(recoveryData));
+            return ClientRequest.restartFrom(dis, reqID, getClientContext(), checker);
         } catch (Throwable t) {
             Logger.error(this, "Serialization failed: "+t, t);
             return null;
-        } finally {
-            if(tmp != null) tmp.close();
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -681,7 +930,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
+    private Object readChecksummedObject(InputStream is, long totalLength) throws IOException, ChecksumFailedException {
         InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
@@ -698,12 +947,39 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
+    private void skipChecksummedObject(DataInputStream is, long totalLength) throws IOException {
         long length = is.readLong();
         if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
         FileUtil.skipFully(is, length + checker.checksumLength());
     }
+    
+    /** Read something written by writeChecksummedObject() or writeRecoveryData() without
+     * deserializing it.
+     * @return The data, or null if the checksum failed. */
+    private byte[] readChecksummedBytes(DataInputStream is, long totalLength) throws IOException {
+        long length = is.readLong();
+        if(length < 0 || length > totalLength || length > Integer.MAX_VALUE) 
+            throw new IOException("Bad length: "+length+" (total "+totalLength+")");
+        byte[] buf = new byte[(int) length];
+        try {
+            checker.readAndChecksum(is, buf, 0, buf.length);
+            return buf;
+        } catch (ChecksumFailedException e) {
+            return null;
+        }
+    }
+    
+    /** Write data read by readChecksummedBytes(), in the same format. */
+    private void writeChecksummedBytes(DataOutputStream os, byte[] buf) throws IOException {
+        os.writeLong(buf.length);
+        checker.writeAndChecksum(os, buf, 0, buf.length);
+    }
 
+    /** @return How long it took to load and resume the persistent requests on startup. */
+    public PersistentStartupStats getStartupStats() {
+        return startupStats;
+    }
+    
     private ClientRequest[] getRequests() {
         return clientCore.getPersistentRequests();
     }
@@ -765,6 +1041,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             writeToFilename = null;
             writeToBackupFilename = null;
             writeToBucket = null;
+            writeToBackupBucket = null;
+            savedChangeCounts = null;
         }
         super.disableWrite();
     }
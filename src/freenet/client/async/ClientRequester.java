@@ -86,6 +86,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	protected synchronized boolean cancel() {
 		boolean ret = cancelled;
 		cancelled = true;
+		changeCount++;
 		return ret;
 	}
 
@@ -120,6 +121,22 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		return hashCode;
 	}
 
+	/** Incremented whenever something changes which is saved with the request: the block counts,
+	 * the state, etc. Not saved itself, see getChangeCount(). */
+	private transient int changeCount;
+
+	/** Called when something has changed which will need to be saved. Subclasses should call this
+	 * when changing state, e.g. in onTransition(), unless the block counts change anyway. */
+	protected synchronized void markChanged() {
+		changeCount++;
+	}
+
+	/** @return A number which changes whenever the request does, as far as we know. Used to avoid
+	 * serializing requests which haven't changed since the last checkpoint. */
+	public synchronized int getChangeCount() {
+		return changeCount;
+	}
+
 	/** Total number of blocks this request has tried to fetch/put. */
 	protected int totalBlocks;
 	/** Number of blocks we have successfully completed a fetch/put for. */
@@ -183,6 +200,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		minSuccessBlocks = 0;
 		blockSetFinalized = false;
 		sentToNetwork = false;
+		changeCount++;
 	}
 	
 	/** The set of blocks has been finalised, total will not change any
@@ -194,6 +212,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			if(blockSetFinalized) return;
 			blockSetFinalized = true;
+			changeCount++;
 		}
 		if(logMINOR)
 			Logger.minor(this, "Finalized set of blocks for "+this, new Exception("debug"));
@@ -205,6 +224,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		boolean wasFinalized;
 		synchronized (this) {
 			totalBlocks++;
+			changeCount++;
 			wasFinalized = blockSetFinalized;
 		}
 
@@ -223,6 +243,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		boolean wasFinalized;
 		synchronized (this) {
 			totalBlocks += num;
+			changeCount++;
 			wasFinalized = blockSetFinalized;
 		}
 
@@ -244,6 +265,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(cancelled) return;
 			successfulBlocks++;
 			latestSuccess = new Date();
+			changeCount++;
 		}
 		if(dontNotify) return;
 		notifyClients(context);
@@ -256,6 +278,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
         synchronized(this) {
             failedBlocks++;
             latestFailure = new Date();
+            changeCount++;
         }
         if(!dontNotify)
             notifyClients(context);
@@ -271,6 +294,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			fatallyFailedBlocks++;
 			latestFailure = new Date();
+			changeCount++;
 		}
 		notifyClients(context);
 	}
@@ -279,6 +303,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addMustSucceedBlocks(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changeCount++;
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 
@@ -286,6 +311,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addRedundantBlocksInsert(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changeCount++;
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 	
@@ -315,6 +341,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			if(sentToNetwork) return;
 			sentToNetwork = true;
+			changeCount++;
 		}
 		innerToNetwork(context);
 	}
@@ -335,6 +362,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		// See ClientRequester.getLatestSuccess() for why this defaults to current time.
 		this.latestSuccess = new Date();
 		this.totalBlocks = 0;
+		markChanged();
 	}
 
 	/** Get client context object */
@@ -351,6 +379,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			oldPrio = priorityClass;
 			this.priorityClass = newPriorityClass;
+			changeCount++;
 		}
 		if(logMINOR) Logger.minor(this, "Changing priority class of "+this+" from "+oldPrio+" to "+newPriorityClass);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
@@ -4,13 +4,16 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Random;
 
 import freenet.support.math.MersenneTwister;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
-import freenet.keys.NodeSSK;
 import freenet.node.LowLevelGetException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
@@ -29,10 +32,19 @@ public class DatastoreChecker implements PrioRunnable {
 
     /** True to start the DatastoreChecker thread lazily (mostly for simulations). */
     private final boolean lazy;
-    /** True if lazy is true and the datastore checker thread is running */
-    private boolean running;
+    /** Number of worker threads. Each checks a batch of requests at a time. */
+    private final int threads;
+    /** Number of worker threads running. If lazy, they exit when there is nothing to do. */
+    private int runningWorkers;
     private final Executor executor;
     private final String threadName;
+    /** Check up to this many keys at once, from as many requests as fit, so we can sort them. */
+    static final int BATCH_SIZE = 256;
+    /** Statistics. LOCKING: this */
+    private int queuedKeys;
+    private long keysChecked;
+    private long requestsChecked;
+    private long checkingTime;
     
 	// Setting these to 1, 3 kills 1/3rd of datastore checks.
 	// 2, 5 gives 40% etc.
@@ -91,10 +103,16 @@ public class DatastoreChecker implements PrioRunnable {
 		this.context = context;
 	}
 
-	@SuppressWarnings("unchecked")
     public DatastoreChecker(Node node, boolean lazyStart, Executor executor, String threadName) {
+        this(node, lazyStart, 1, executor, threadName);
+    }
+
+	@SuppressWarnings("unchecked")
+    public DatastoreChecker(Node node, boolean lazyStart, int threads, Executor executor, String threadName) {
+		if(threads < 1) throw new IllegalArgumentException();
 		this.node = node;
 		this.lazy = lazyStart;
+		this.threads = threads;
 		this.executor = executor;
 		this.threadName = threadName;
 		int priorities = RequestStarter.NUMBER_OF_PRIORITY_CLASSES;
@@ -121,6 +139,7 @@ public class DatastoreChecker implements PrioRunnable {
 				return;
 			}
 			queue[prio].add(queueItem);
+			queuedKeys += queueItem.keys.length;
 			wakeUp();
 		}
 	}
@@ -136,7 +155,28 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 	}
 
-	/** Process a single job, waiting if necessary.
+	/** A key to check, and the request it is for. */
+	private static class Check {
+		final Key key;
+		final QueueItem item;
+		final long slot;
+		Check(Key key, QueueItem item, long slot) {
+			this.key = key;
+			this.item = item;
+			this.slot = slot;
+		}
+	}
+
+	private static final Comparator<Check> SLOT_ORDER = new Comparator<Check>() {
+
+		@Override
+		public int compare(Check a, Check b) {
+			return Long.compare(a.slot, b.slot);
+		}
+
+	};
+
+	/** Process a batch of requests, waiting if necessary.
 	 * @return True if lazy=true and there are no jobs to run.
 	 */
 	private boolean realRun() {
@@ -145,33 +185,29 @@ public class DatastoreChecker implements PrioRunnable {
 			random = new MersenneTwister();
 		else
 			random = null;
-		Key[] keys = null;
-		SendableGet getter = null;
-		ClientRequestScheduler sched = null;
-		BlockSet blocks = null;
-		boolean waited = false;
+		ArrayList<QueueItem> items = new ArrayList<QueueItem>();
+		int batchKeys = 0;
 		synchronized(this) {
 			while(true) {
-				for(short prio = 0;prio<queue.length;prio++) {
-				    QueueItem trans;
-					if((trans = queue[prio].pollFirst()) != null) {
-						keys = trans.keys;
-						getter = trans.getter;
-						// sched assigned out of loop
-						blocks = trans.blockSet;
+				// Take whole requests, highest priority first, until we have enough keys.
+				for(short prio = 0;prio<queue.length && batchKeys < BATCH_SIZE;prio++) {
+					QueueItem trans;
+					while(batchKeys < BATCH_SIZE && (trans = queue[prio].pollFirst()) != null) {
+						items.add(trans);
+						batchKeys += trans.keys.length;
 						if(logMINOR)
-							Logger.minor(this, "Checking transient request "+getter+" prio "+prio+" of "+queue[prio].size());
-						break;
+							Logger.minor(this, "Checking transient request "+trans.getter+" prio "+prio+" of "+queue[prio].size());
 					}
 				}
-				if(keys != null)
+				if(!items.isEmpty()) {
+					queuedKeys -= batchKeys;
 					break;
+				}
 				if(logMINOR) Logger.minor(this, "Waiting for more transient requests");
 				if(lazy) {
-				    running = false;
-				    return true;
+					runningWorkers--;
+					return true;
 				}
-				waited = true;
 				try {
 					// Wait for anything.
 					wait(SECONDS.toMillis(100));
@@ -180,34 +216,49 @@ public class DatastoreChecker implements PrioRunnable {
 				}
 			}
 		}
-		sched = getter.getScheduler(context);
-		boolean anyValid = false;
-		for(Key key : keys) {
+		long startTime = System.currentTimeMillis();
+		// Read the keys in the order they are in the store, rather than seeking all over it.
+		Check[] checks = new Check[batchKeys];
+		int x = 0;
+		for(QueueItem item : items) {
+			for(Key key : item.keys)
+				checks[x++] = new Check(key, item, item.blockSet != null ? -1 : node.getStoreSlot(key));
+		}
+		Arrays.sort(checks, SLOT_ORDER);
+		HashSet<QueueItem> valid = new HashSet<QueueItem>();
+		for(Check check : checks) {
+			Key key = check.key;
 			if(random != null) {
 				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
-					anyValid = true;
+					valid.add(check.item);
 					continue;
 				}
 			}
 			KeyBlock block;
-			if(blocks != null)
-				block = blocks.get(key);
+			if(check.item.blockSet != null)
+				block = check.item.blockSet.get(key);
 			else
 				block = node.fetch(key, true, true, false, false, null);
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
-				if(key instanceof NodeSSK)
-					sched.tripPendingKey(block);
-				else // CHK
-					sched.tripPendingKey(block);
+				check.item.getter.getScheduler(context).tripPendingKey(block);
 			} else {
-				anyValid = true;
+				valid.add(check.item);
 			}
-//			synchronized(this) {
-//				keysToCheck[priority].remove(key);
-//			}
 		}
-		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys");
+		if(logMINOR) Logger.minor(this, "Checked "+batchKeys+" keys for "+items.size()+" requests");
+		synchronized(this) {
+			keysChecked += batchKeys;
+			requestsChecked += items.size();
+			checkingTime += System.currentTimeMillis() - startTime;
+		}
+		for(QueueItem item : items)
+			finishRegister(item.getter, valid.contains(item));
+		return false;
+	}
+
+	private void finishRegister(SendableGet getter, boolean anyValid) {
+		ClientRequestScheduler sched = getter.getScheduler(context);
 		if(getter.persistent()) {
 			final SendableGet get = getter;
 			final ClientRequestScheduler scheduler = sched;
@@ -242,13 +293,12 @@ public class DatastoreChecker implements PrioRunnable {
 		} else {
 			sched.finishRegister(new SendableGet[] { getter }, false, anyValid);
 		}
-		return false;
 	}
 
 	synchronized void wakeUp() {
 	    if(lazy) {
-	        if(!running) {
-	            start();
+	        if(runningWorkers < threads) {
+	            startWorkers();
 	            return;
 	        }
 	    }
@@ -258,10 +308,15 @@ public class DatastoreChecker implements PrioRunnable {
 	public synchronized void start() {
 	    if(lazy) {
 	        if(isEmpty()) return;
-	        if(running) return;
 	    }
-	    running = true;
-            executor.execute(this, threadName);
+	    startWorkers();
+	}
+
+	private synchronized void startWorkers() {
+	    while(runningWorkers < threads) {
+	        runningWorkers++;
+	        executor.execute(this, threadName);
+	    }
 	}
 
 	private synchronized boolean isEmpty() {
@@ -271,6 +326,39 @@ public class DatastoreChecker implements PrioRunnable {
 	    return true;
     }
 
+	/** @return The number of requests waiting to be checked. */
+	public synchronized int queuedRequests() {
+		int count = 0;
+		for(ArrayDeque<QueueItem> q : queue)
+			count += q.size();
+		return count;
+	}
+
+	/** @return The number of keys waiting to be checked. */
+	public synchronized int queuedKeys() {
+		return queuedKeys;
+	}
+
+	/** @return The number of keys checked so far. */
+	public synchronized long keysChecked() {
+		return keysChecked;
+	}
+
+	/** @return The number of requests checked so far. */
+	public synchronized long requestsChecked() {
+		return requestsChecked;
+	}
+
+	/** @return Keys checked per second spent checking, by each worker. */
+	public synchronized double keysPerSecond() {
+		if(checkingTime == 0) return 0.0;
+		return keysChecked * 1000.0 / checkingTime;
+	}
+
+	public int threads() {
+		return threads;
+	}
+
         @Override
 	public int getPriority() {
 		return NativeThread.NORM_PRIORITY;
@@ -280,7 +368,17 @@ public class DatastoreChecker implements PrioRunnable {
 		if(logMINOR) Logger.minor(this, "Removing request prio="+prio+" persistent="+persistent);
 		QueueItem requestMatcher = new QueueItem(null, request, null);
 		synchronized(this) {
-		    if(!queue[prio].remove(requestMatcher)) return;
+		    QueueItem removed = null;
+		    for(Iterator<QueueItem> i = queue[prio].iterator(); i.hasNext();) {
+		        QueueItem item = i.next();
+		        if(item.equals(requestMatcher)) {
+		            i.remove();
+		            removed = item;
+		            break;
+		        }
+		    }
+		    if(removed == null) return;
+		    queuedKeys -= removed.keys.length;
 		}
 		if(logMINOR) Logger.minor(this, "Removed transient request");
 	}
@@ -5,11 +5,13 @@ package freenet.client.async;
 
 import static java.lang.String.format;
 
+import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
@@ -19,11 +21,13 @@ import freenet.crypt.SHA256;
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.keys.NodeSSK;
+import freenet.node.PrioRunnable;
 import freenet.node.SendableGet;
 import freenet.support.ByteArrayWrapper;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
 
 /**
  * <p>Tracks exactly which keys we are listening for. This is 
@@ -68,6 +72,13 @@ class KeyListenerTracker implements KeySalter {
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
 	protected final ArrayList<KeyListener> keyListeners;
 	protected final Map<ByteArrayWrapper,Object> singleKeyListeners;
+	/** Splitfile listeners whose keys have been indexed, so we don't have to ask them about every
+	 * key. These are not in keyListeners. */
+	private final SaltedKeyIndex keyIndex;
+	/** Splitfile listeners waiting to be indexed, in keyListeners until then. LOCKING: this */
+	private final LinkedHashSet<SplitFileFetcherKeyListener> toIndex;
+	/** True if the indexer job is queued or running. LOCKING: this */
+	private boolean indexing;
 
 	final boolean persistent;
 	
@@ -82,6 +93,8 @@ class KeyListenerTracker implements KeySalter {
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
 		singleKeyListeners = this.isSSKScheduler ? new TreeMap<ByteArrayWrapper,Object>(ByteArrayWrapper.FAST_COMPARATOR) : new HashMap<ByteArrayWrapper,Object>();
+		keyIndex = new SaltedKeyIndex();
+		toIndex = new LinkedHashSet<SplitFileFetcherKeyListener>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -133,13 +146,82 @@ class KeyListenerTracker implements KeySalter {
 					singleKeyListeners.put(wrapper, newListeners);
 				}
 			} else {
-				if(keyListeners.contains(listener))
+				if(keyListeners.contains(listener) || keyIndex.contains(listener))
 					return;
 				keyListeners.add(listener);
 			}
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
+		if(listener instanceof SplitFileFetcherKeyListener)
+			indexLater((SplitFileFetcherKeyListener)listener);
+	}
+
+	/** Index the listener's keys in the background. Until then it is in keyListeners. */
+	private void indexLater(SplitFileFetcherKeyListener listener) {
+		synchronized(this) {
+			toIndex.add(listener);
+			if(indexing) return;
+			indexing = true;
+		}
+		sched.clientContext.mainExecutor.execute(indexer, "Indexing keys for "+this);
+	}
+
+	/** Indexes the queued listeners one at a time, so that thousands of splitfiles being resumed
+	 * at startup only use one thread. */
+	private final PrioRunnable indexer = new PrioRunnable() {
+
+		@Override
+		public void run() {
+			while(true) {
+				SplitFileFetcherKeyListener listener;
+				synchronized(KeyListenerTracker.this) {
+					Iterator<SplitFileFetcherKeyListener> it = toIndex.iterator();
+					if(!it.hasNext()) {
+						indexing = false;
+						return;
+					}
+					listener = it.next();
+					it.remove();
+				}
+				try {
+					indexKeys(listener);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" indexing keys for "+listener, t);
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.LOW_PRIORITY;
+		}
+
+	};
+
+	/** Move the listener from keyListeners to the index, unless it has been removed meanwhile or
+	 * the index is full. */
+	void indexKeys(SplitFileFetcherKeyListener listener) {
+		synchronized(this) {
+			if(!keyListeners.contains(listener)) return;
+		}
+		long[] keys;
+		try {
+			keys = listener.getSaltedKeyPrefixes(this);
+		} catch (IOException e) {
+			// It will fail anyway when it tries to use the keys.
+			Logger.normal(this, "Unable to read keys to index for "+listener+" : "+e, e);
+			return;
+		}
+		synchronized(this) {
+			if(!keyListeners.contains(listener)) return;
+			if(!keyIndex.add(listener, keys)) {
+				if(logMINOR) Logger.minor(this, "Not indexing "+keys.length+" keys for "+listener+" on "+keyIndex);
+				return;
+			}
+			keyListeners.remove(listener);
+		}
+		if(logMINOR) Logger.minor(this, "Indexed "+keys.length+" keys for "+listener+" : "+keyIndex);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
@@ -186,6 +268,10 @@ class KeyListenerTracker implements KeySalter {
 				}
 			} else {
 				ret = keyListeners.remove(listener);
+				if(ret)
+					toIndex.remove(listener);
+				else
+					ret = keyIndex.remove(listener);
 			}
 			listener.onRemove();
 		}
@@ -252,11 +338,21 @@ class KeyListenerTracker implements KeySalter {
 				if(listener.getHasKeyListener() == hasListener) {
 					ret = true;
 					i.remove();
+					toIndex.remove(listener);
 					listener.onRemove();
 					if (logMINOR)
 						Logger.minor(this, "Removed pending keys from "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
 				}
 			}
+			for(KeyListener listener : keyIndex.listeners()) {
+				if(listener.getHasKeyListener() == hasListener) {
+					ret = true;
+					keyIndex.remove(listener);
+					listener.onRemove();
+					if (logMINOR)
+						Logger.minor(this, "Removed indexed keys from "+this+" : "+keyIndex+" : "+listener);
+				}
+			}
 		}
 		return ret;
 	}
@@ -288,6 +384,14 @@ class KeyListenerTracker implements KeySalter {
 			if(matches == null) matches = new ArrayList<KeyListener> ();
 			matches.add(listener);
 		}
+		List<KeyListener> indexed = keyIndex.get(saltedKey);
+		if(indexed != null) {
+			for(KeyListener listener : indexed) {
+				if(!listener.probablyWantKey(key, saltedKey)) continue;
+				if(matches == null) matches = new ArrayList<KeyListener> ();
+				matches.add(listener);
+			}
+		}
 		return matches;
 	}
 	public short getKeyPrio(Key key, short priority, ClientContext context) {
@@ -330,6 +434,13 @@ class KeyListenerTracker implements KeySalter {
 				Logger.error(this, format("Error in countKeys callback for %s", listener), t);
 			}
 		}
+		for (KeyListener listener : keyIndex.listeners()) {
+			try {
+				count += listener.countKeys();
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in countKeys callback for %s", listener), t);
+			}
+		}
 		return count;
 	}
 	
@@ -378,6 +489,18 @@ class KeyListenerTracker implements KeySalter {
 				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
 			}
 		}
+		List<KeyListener> indexed = keyIndex.get(saltedKey);
+		if (indexed != null) {
+			for (KeyListener listener : indexed) {
+				try {
+					if (listener.probablyWantKey(key, saltedKey)) {
+						return true;
+					}
+				} catch (Throwable t) {
+					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+				}
+			}
+		}
 		return false;
 	}
 	
@@ -493,6 +616,20 @@ class KeyListenerTracker implements KeySalter {
 				}
 				matches.add(listener);
 			}
+			List<KeyListener> indexed = keyIndex.get(saltedKey);
+			if (indexed != null) {
+				for (KeyListener listener : indexed) {
+					try {
+						if (!listener.probablyWantKey(key, saltedKey)) {
+							continue;
+						}
+					} catch (Throwable t) {
+						Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+						continue;
+					}
+					matches.add(listener);
+				}
+			}
 		}
 		return matches;
 	}
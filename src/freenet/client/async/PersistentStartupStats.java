@@ -0,0 +1,85 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * How long ClientLayerPersister took to load and resume the persistent requests when the node
+ * started, for the statistics page. If loading has to be retried without serialization, both
+ * attempts are added together.
+ */
+public class PersistentStartupStats {
+
+    private long loadNanos;
+    private long deserializeNanos;
+    private long resumeNanos;
+    private long resumeWorkNanos;
+    private int threads;
+    private int resumed;
+    private int restoredFully;
+    private int restarted;
+    private int failed;
+
+    synchronized void addLoad(long nanos) {
+        loadNanos += nanos;
+    }
+
+    synchronized void addDeserialize(long nanos) {
+        deserializeNanos += nanos;
+    }
+
+    synchronized void addResume(long wallNanos, long workNanos, int threadCount, int resumed,
+            int restoredFully, int restarted, int failed) {
+        resumeNanos += wallNanos;
+        resumeWorkNanos += workNanos;
+        threads = Math.max(threads, threadCount);
+        this.resumed += resumed;
+        this.restoredFully += restoredFully;
+        this.restarted += restarted;
+        this.failed += failed;
+    }
+
+    /** @return Time spent reading client.dat and its backups, including deserializing. */
+    public synchronized long getLoadTime() {
+        return NANOSECONDS.toMillis(loadNanos);
+    }
+
+    /** @return Time spent deserializing requests, in parallel. Part of getLoadTime(). */
+    public synchronized long getDeserializeTime() {
+        return NANOSECONDS.toMillis(deserializeNanos);
+    }
+
+    /** @return Time taken to resume the requests, in parallel. */
+    public synchronized long getResumeTime() {
+        return NANOSECONDS.toMillis(resumeNanos);
+    }
+
+    /** @return Total time taken to resume the requests, added up over all the threads. */
+    public synchronized long getResumeWorkTime() {
+        return NANOSECONDS.toMillis(resumeWorkNanos);
+    }
+
+    /** @return The number of threads used to resume requests. */
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    public synchronized int getResumed() {
+        return resumed;
+    }
+
+    public synchronized int getRestoredFully() {
+        return restoredFully;
+    }
+
+    public synchronized int getRestarted() {
+        return restarted;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+}
@@ -0,0 +1,181 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index from salted keys to the KeyListeners which want them, so KeyListenerTracker doesn't need
+ * to ask every listener's Bloom filters about every block. Keys are stored as the first 8 bytes of
+ * the salted key, which is a SHA-256 hash (or an SSK's public key hash), in an open addressing
+ * table of primitive arrays, with an index into the list of listeners. So 12 bytes per slot, and
+ * the table is at most 3/4 full.
+ *
+ * A match is only a hint: the caller still asks the listener (probablyWantKey()), which catches
+ * both the rare false match on the prefix and keys which have already been found.
+ *
+ * LOCKING: Not thread-safe, synchronized by the caller (KeyListenerTracker).
+ */
+final class SaltedKeyIndex {
+
+	/** About 24MB when full. Listeners which don't fit are not indexed. */
+	static final int MAX_KEYS = 1 << 20;
+	private static final int MIN_SLOTS = 1024;
+	/** Marks an empty slot. A prefix of 0 is stored as 1. */
+	private static final long EMPTY = 0;
+
+	private long[] prefixes;
+	private int[] ids;
+	private int mask;
+	private int size;
+	/** Indexed by id. Null entries are free. */
+	private final ArrayList<KeyListener> listeners;
+	private final Map<KeyListener, Integer> listenerIDs;
+
+	SaltedKeyIndex() {
+		prefixes = new long[MIN_SLOTS];
+		ids = new int[MIN_SLOTS];
+		mask = MIN_SLOTS - 1;
+		listeners = new ArrayList<KeyListener>();
+		listenerIDs = new IdentityHashMap<KeyListener, Integer>();
+	}
+
+	/** @return The prefix of the salted key which is indexed. */
+	static long prefix(byte[] saltedKey) {
+		long prefix = 0;
+		for(int i=0;i<8;i++)
+			prefix = (prefix << 8) | (saltedKey[i] & 0xFF);
+		return prefix == EMPTY ? 1 : prefix;
+	}
+
+	/**
+	 * Index a listener.
+	 * @param keys The prefixes of the salted keys it wants.
+	 * @return False if there isn't room, or it is already indexed.
+	 */
+	boolean add(KeyListener listener, long[] keys) {
+		if(listenerIDs.containsKey(listener)) return false;
+		if(size + keys.length > MAX_KEYS) return false;
+		int id = listeners.indexOf(null);
+		if(id == -1) {
+			id = listeners.size();
+			listeners.add(listener);
+		} else
+			listeners.set(id, listener);
+		listenerIDs.put(listener, id);
+		while((size + keys.length) * 4L > prefixes.length * 3L)
+			resize(prefixes.length * 2);
+		for(long key : keys)
+			insert(key == EMPTY ? 1 : key, id);
+		return true;
+	}
+
+	/** Remove a listener and all its keys. @return False if it wasn't indexed. */
+	boolean remove(KeyListener listener) {
+		Integer id = listenerIDs.remove(listener);
+		if(id == null) return false;
+		listeners.set(id, null);
+		// Called for every finished download, with the caller's lock held, so delete the keys in
+		// place. Start after an empty slot, so a cluster we shift back doesn't wrap around to
+		// slots we have already passed.
+		int start = 0;
+		while(prefixes[start] != EMPTY)
+			start++;
+		for(int n=1;n<=mask;n++) {
+			int i = (start + n) & mask;
+			// The slot may be refilled with another of the listener's keys.
+			while(prefixes[i] != EMPTY && ids[i] == id)
+				delete(i);
+		}
+		if(size * 8L < prefixes.length && prefixes.length > MIN_SLOTS)
+			resize(Math.max(MIN_SLOTS, prefixes.length / 2));
+		return true;
+	}
+
+	boolean contains(KeyListener listener) {
+		return listenerIDs.containsKey(listener);
+	}
+
+	/** @return The listeners which may want the key, or null. */
+	List<KeyListener> get(byte[] saltedKey) {
+		long prefix = prefix(saltedKey);
+		List<KeyListener> matches = null;
+		for(int i = slot(prefix); prefixes[i] != EMPTY; i = (i + 1) & mask) {
+			if(prefixes[i] != prefix) continue;
+			if(matches == null) matches = new ArrayList<KeyListener>(1);
+			matches.add(listeners.get(ids[i]));
+		}
+		return matches;
+	}
+
+	/** @return The listeners in the index. */
+	KeyListener[] listeners() {
+		return listenerIDs.keySet().toArray(new KeyListener[listenerIDs.size()]);
+	}
+
+	int countListeners() {
+		return listenerIDs.size();
+	}
+
+	int countKeys() {
+		return size;
+	}
+
+	int countSlots() {
+		return prefixes.length;
+	}
+
+	private int slot(long prefix) {
+		return (int)(prefix ^ (prefix >>> 32)) & mask;
+	}
+
+	private void insert(long prefix, int id) {
+		int i = slot(prefix);
+		while(prefixes[i] != EMPTY) {
+			if(prefixes[i] == prefix && ids[i] == id) return; // Already there
+			i = (i + 1) & mask;
+		}
+		prefixes[i] = prefix;
+		ids[i] = id;
+		size++;
+	}
+
+	/** Empty a slot, moving back any later keys in the cluster which would no longer be found. */
+	private void delete(int hole) {
+		int i = hole;
+		while(true) {
+			i = (i + 1) & mask;
+			if(prefixes[i] == EMPTY) break;
+			int home = slot(prefixes[i]);
+			// Leave the key if its home slot is after the hole, cyclically.
+			if(hole <= i ? (hole < home && home <= i) : (hole < home || home <= i)) continue;
+			prefixes[hole] = prefixes[i];
+			ids[hole] = ids[i];
+			hole = i;
+		}
+		prefixes[hole] = EMPTY;
+		size--;
+	}
+
+	private void resize(int slots) {
+		long[] oldPrefixes = prefixes;
+		int[] oldIDs = ids;
+		prefixes = new long[slots];
+		ids = new int[slots];
+		mask = slots - 1;
+		size = 0;
+		for(int i=0;i<oldPrefixes.length;i++)
+			if(oldPrefixes[i] != EMPTY)
+				insert(oldPrefixes[i], oldIDs[i]);
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+countListeners()+" listeners, "+size+" keys, "+prefixes.length+" slots";
+	}
+
+}
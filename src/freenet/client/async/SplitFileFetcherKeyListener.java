@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.Arrays;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -354,6 +355,24 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         dos.writeInt(perSegmentK);
     }
 
+    /** List all the keys, for KeyListenerTracker's index. May read the keys from disk, so don't
+     * call with locks held.
+     * @return The prefixes of the keys, salted with salter. See SaltedKeyIndex.prefix().
+     * @throws IOException If we can't read the keys. */
+    long[] getSaltedKeyPrefixes(KeySalter salter) throws IOException {
+        long[] prefixes = new long[0];
+        int count = 0;
+        for(SplitFileFetcherSegmentStorage segment : storage.segments) {
+            SplitFileSegmentKeys keys = segment.getSegmentKeys();
+            int total = keys.totalKeys();
+            if(prefixes.length < count + total)
+                prefixes = Arrays.copyOf(prefixes, Math.max(count + total, prefixes.length * 2));
+            for(int i=0;i<total;i++)
+                prefixes[count++] = SaltedKeyIndex.prefix(salter.saltKey(keys.getKey(i, null, false).getNodeKey(false)));
+        }
+        return Arrays.copyOf(prefixes, count);
+    }
+
     public boolean needsKeys() {
         return mustRegenerateMainFilter || mustRegenerateSegmentFilters;
     }
@@ -853,14 +853,9 @@ public class SplitFileFetcherStorage {
                 segmentsToTryDecode.add(segment);
             }
         }
-        for(int i=0;i<segments.length;i++) {
-            SplitFileFetcherSegmentStorage segment = segments[i];
-            try {
-                segment.readSegmentKeys();
-            } catch (ChecksumFailedException e) {
-                throw new StorageFormatException("Keys corrupted");
-            }
-        }
+        // The segment keys are verified when they are first used, in getSegmentKeys(), so that
+        // resuming a large queue doesn't have to read all of them. If they are corrupted the 
+        // download fails with a disk error then.
         if(this.crossSegments != null) {
             for(SplitFileFetcherCrossSegmentStorage crossSegment : this.crossSegments)
                 // Must be after reading the metadata for the plain segments.
@@ -574,6 +574,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public void receive(ClientEvent ce, ClientContext context) {
 	    if(logMINOR) Logger.minor(this, "Receiving "+ce+" on "+this);
+	    markChanged();
 	    final FCPMessage progress;
 		final int verbosityMask;
 		if(ce instanceof SplitfileProgressEvent) {
@@ -871,6 +872,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
 		if(!canRestart()) return false;
+		markChanged();
 		FreenetURI redirect = null;
 		synchronized(this) {
 			finished = false;
@@ -402,6 +402,7 @@ public class ClientPut extends ClientPutBase {
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
 		if(!canRestart()) return false;
+		markChanged();
 		setVarsRestart();
 		try {
 			if(client != null) {
@@ -204,6 +204,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 
 	@Override
 	public void onGeneratedURI(FreenetURI uri, BaseClientPutter state) {
+		markChanged();
 		synchronized(this) {
 			if(generatedURI != null) {
 				if(!uri.equals(generatedURI))
@@ -229,6 +230,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	
 	@Override
 	public void onGeneratedMetadata(Bucket metadata, BaseClientPutter state) {
+		markChanged();
 		boolean delete = false;
 		synchronized(this) {
 			if(generatedURI != null)
@@ -288,6 +290,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	@Override
 	public void receive(final ClientEvent ce, ClientContext context) {
 		if(finished) return;
+		markChanged();
 		if(logMINOR) Logger.minor(this, "Receiving event "+ce+" on "+this);
 		if(ce instanceof SplitfileProgressEvent) {
 			if((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
@@ -332,6 +335,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	@Override
 	public void onFetchable(BaseClientPutter putter) {
 		if(finished) return;
+		markChanged();
 		if((verbosity & VERBOSITY_PUT_FETCHABLE) == VERBOSITY_PUT_FETCHABLE) {
 			FreenetURI temp;
 			synchronized (this) {
@@ -317,6 +317,7 @@ public class ClientPutDir extends ClientPutBase {
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
 		if(!canRestart()) return false;
+		markChanged();
 		setVarsRestart();
 		if(client != null) {
 			RequestStatusCache cache = client.getRequestStatusCache();
@@ -65,6 +65,8 @@ public abstract class ClientRequest implements Serializable {
 
 	protected transient RequestClient lowLevelClient;
 	private final int hashCode; // for debugging it is good to have a persistent id
+	/** Incremented when something changes which is saved with the request. Not saved itself. */
+	private transient int changeCount;
 	
 	@Override
 	public int hashCode() {
@@ -252,6 +254,7 @@ public abstract class ClientRequest implements Serializable {
 
 	/** Request completed. But we may have to stick around until we are acked. */
 	protected void finish() {
+		markChanged();
 		if(persistence == Persistence.CONNECTION)
 			origHandler.finishedClientRequest(this);
 		else
@@ -316,6 +319,7 @@ public abstract class ClientRequest implements Serializable {
 	 */
 	public void modifyRequest(String newClientToken, short newPriorityClass, FCPServer server) {
 
+		markChanged();
 		boolean clientTokenChanged = false;
 		boolean priorityClassChanged = false;
 
@@ -427,6 +431,22 @@ public abstract class ClientRequest implements Serializable {
 	}
 
 	abstract RequestStatus getStatus();
+
+	/** Called when something has changed which will need to be saved, e.g. on progress events. */
+	protected synchronized void markChanged() {
+		changeCount++;
+	}
+
+	/** @return A number which changes whenever the request or its ClientRequester does, as far as
+	 * we know. ClientLayerPersister uses this to avoid serializing requests which haven't changed
+	 * since the last checkpoint. */
+	public long getChangeCount() {
+		ClientRequester request = getClientRequest();
+		int requesterChanges = request == null ? 0 : request.getChangeCount();
+		synchronized(this) {
+			return ((long) changeCount << 32) | (requesterChanges & 0xFFFFFFFFL);
+		}
+	}
 	
 	private static final long CLIENT_DETAIL_MAGIC = 0xebf0b4f4fa9f6721L;
 	private static final int CLIENT_DETAIL_VERSION = 1;
@@ -497,7 +517,9 @@ public abstract class ClientRequest implements Serializable {
      * purpose of this method is to give us an opportunity to connect to the various (transient) 
      * system utilities we get from ClientContext, e.g. bucket factories, the FCP persistent root 
      * etc. The base class implementation in ClientRequest will register the request with an 
-     * PersistentRequestClient via the new PersistentRequestRoot.
+     * PersistentRequestClient via the new PersistentRequestRoot. Several requests may be resumed
+     * at once on startup, so anything shared between requests must be locked, see
+     * ClientLayerPersister.resumeRequests().
      * @param context Contains all the important system utilities.
      * @throws ResumeFailedException 
      */
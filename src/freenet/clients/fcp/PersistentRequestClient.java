@@ -531,22 +531,26 @@ public class PersistentRequestClient {
     }
 
     public void resume(ClientRequest clientRequest) {
-        if(clientRequest.hasFinished())
-            completedUnackedRequests.add(clientRequest);
-        else
-            runningPersistentRequests.add(clientRequest);
-        String identifier = clientRequest.identifier;
-        if(clientRequestsByIdentifier.get(identifier) != null) {
-            if(clientRequest != clientRequestsByIdentifier.get(identifier))
-                throw new IllegalArgumentException("Adding new client request "+clientRequest+
-                        " with same name \""+identifier+"\" as "+
-                        clientRequestsByIdentifier.get(identifier));
-            else {
-                Logger.error(this, "Adding the same identifier twice: "+identifier);
-                return;
+        // Requests are resumed in parallel on startup.
+        boolean finished = clientRequest.hasFinished();
+        synchronized(this) {
+            if(finished)
+                completedUnackedRequests.add(clientRequest);
+            else
+                runningPersistentRequests.add(clientRequest);
+            String identifier = clientRequest.identifier;
+            if(clientRequestsByIdentifier.get(identifier) != null) {
+                if(clientRequest != clientRequestsByIdentifier.get(identifier))
+                    throw new IllegalArgumentException("Adding new client request "+clientRequest+
+                            " with same name \""+identifier+"\" as "+
+                            clientRequestsByIdentifier.get(identifier));
+                else {
+                    Logger.error(this, "Adding the same identifier twice: "+identifier);
+                    return;
+                }
+            } else {
+                clientRequestsByIdentifier.put(identifier, clientRequest);
             }
-        } else {
-            clientRequestsByIdentifier.put(identifier, clientRequest);
         }
     }
 
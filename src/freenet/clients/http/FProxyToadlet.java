@@ -6,8 +6,6 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
@@ -32,6 +30,7 @@ import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.FoundURICallback;
 import freenet.client.filter.PushingTagReplacerCallback;
 import freenet.client.filter.UnsafeContentTypeException;
+import freenet.clients.http.FProxyFetchInProgress.REFILTER_POLICY;
 import freenet.clients.http.ajaxpush.DismissAlertToadlet;
 import freenet.clients.http.ajaxpush.LogWritebackToadlet;
 import freenet.clients.http.ajaxpush.PushDataToadlet;
@@ -57,6 +56,7 @@ import freenet.node.RequestClientBuilder;
 import freenet.node.RequestStarter;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
+import freenet.node.Version;
 import freenet.pluginmanager.PluginInfoWrapper;
 import freenet.support.HTMLEncoder;
 import freenet.support.HTMLNode;
@@ -70,11 +70,8 @@ import freenet.support.SizeUtil;
 import freenet.support.URIPreEncoder;
 import freenet.support.URLEncoder;
 import freenet.support.api.Bucket;
-import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
-import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 import freenet.support.io.NoFreeBucket;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
@@ -97,6 +94,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 
 	// ?force= links become invalid after 2 hours.
 	private static final long FORCE_GRAIN_INTERVAL = HOURS.toMillis(1);
+	/** Maximum number of ranges in a Range header, so overlapping ranges can't be used to make
+	 * us send the same data many times. */
+	private static final int MAX_RANGES = 16;
 	/** Maximum size for transparent pass-through. See config passthroughMaxSizeProgress */
 	public static long MAX_LENGTH_WITH_PROGRESS = (100*1024*1024) * 11 / 10; // 100MiB plus a bit due to buggy inserts, because our Windows installer is >70 MiB nowadays
 	public static long MAX_LENGTH_NO_PROGRESS = (2*1024*1024) * 11 / 10; // 2MiB plus a bit due to buggy inserts
@@ -150,7 +150,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
-	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
+	private void handleDownload(ToadletContext context, Bucket data, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset, String etag) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
 		String extrasNoMime = extras; // extras will not include MIME type to start with - REDFLAG maybe it should be an array
@@ -256,39 +256,53 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			MultiValueTable<String, String> retHdr = MultiValueTable.from("Content-Encoding", "identity");
 
 			String rangeStr = hdr.getFirst("range");
+			if (etag != null) {
+				retHdr.put("ETag", etag);
+			}
 			// was a range request
 			if (rangeStr != null) {
 
-				long[] range;
+				List<long[]> ranges;
 				try {
-					range = parseRange(rangeStr);
+					ranges = satisfiableRanges(parseRange(rangeStr), size);
 				} catch (HTTPRangeException e) {
 					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
 					return;
 				}
-				if (range[1] == -1 || range[1] >= size) {
-					range[1] = size - 1;
-				}
-				InputStream is = null;
-				OutputStream os = null;
-				Bucket tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-				try {
-					is = data.getInputStream();
-					os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						FileUtil.skipFully(is, range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
-					// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
-					os.close(); os = null; // If we can't write, we need to throw, so we don't send too little data.
-				} finally {
-					Closer.close(is);
-					Closer.close(os);
+				if (ranges.isEmpty()) {
+					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", MultiValueTable.from("Content-Range", "bytes */" + size), null, 0);
+					return;
 				}
-				retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
                 retHdr.put("X-Content-Type-Options", "nosniff");
-				context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, tmpRange.size());
-				context.writeData(tmpRange);
+				// The ranges are sent straight from the data, without copying them anywhere first.
+				// FIXME catch IOException here and tell the user there is a problem instead of just closing the connection.
+				// Currently there is no way to tell the difference between an IOE caused by the connection to the client and an internal one, we just close the connection in both cases.
+				if (ranges.size() == 1) {
+					long[] range = ranges.get(0);
+					retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+					context.sendReplyHeadersFProxy(206, "Partial content", retHdr, mimeType, range[1] - range[0] + 1);
+					context.writeData(data, range[0], range[1] - range[0] + 1);
+				} else {
+					// multipart/byteranges: each range has its own headers, and is preceded by the boundary.
+					String boundary = "fproxy-" + Long.toHexString(core.getNode().fastWeakRandom.nextLong());
+					byte[][] partHeaders = new byte[ranges.size()][];
+					long length = 0;
+					for (int i = 0; i < ranges.size(); i++) {
+						long[] range = ranges.get(i);
+						partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: bytes " +
+								range[0] + "-" + range[1] + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+						length += partHeaders[i].length + range[1] - range[0] + 1;
+					}
+					byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+					length += end.length;
+					context.sendReplyHeadersFProxy(206, "Partial content", retHdr, "multipart/byteranges; boundary=" + boundary, length);
+					for (int i = 0; i < ranges.size(); i++) {
+						long[] range = ranges.get(i);
+						context.writeData(partHeaders[i]);
+						context.writeData(data, range[0], range[1] - range[0] + 1);
+					}
+					context.writeData(end);
+				}
 			} else {
                 retHdr.put("X-Content-Type-Options", "nosniff");
                 if (container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
@@ -671,6 +685,14 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			else override = override+"&forcedownload";
 		}
 
+		String etag = httprequest.isParameterSet("forcedownload") ? null : getETag(key, requestedMimeType, maybeCharset, force, ctx.getReFilterPolicy());
+		if(etag != null && etagMatches(ctx.getHeaders().getFirst("if-none-match"), etag)) {
+			// The browser already has it, and a CHK never changes, so there is no need to fetch it.
+			if(logMINOR) Logger.minor(this, "Not modified: "+key);
+			ctx.sendReplyHeadersStatic(304, "Not Modified", MultiValueTable.from("ETag", etag), null, -1, new Date());
+			return;
+		}
+
 		Bucket data = null;
 		String mimeType = null;
 		String referer = sanitizeReferer(ctx);
@@ -777,9 +799,11 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 						result=waiter.getResult(false);
 						if(result.failed==null && result.data!=null){
 							mimeType=result.mimeType;
-							data=result.data;
-							data=ctx.getBucketFactory().makeBucket(result.data.size());
-							BucketTools.copy(result.data, data);
+							// Send it straight from the fetch's bucket. The result stays open, so
+							// the data isn't freed, until it has been sent.
+							data=new NoFreeBucket(result.data);
+							fr=result;
+							result=null;
 							needsFetch=false;
 						}
 					}finally{
@@ -802,7 +826,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 
-			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset);
+			handleDownload(ctx, data, mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset, etag);
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
 			String msg = e.getMessage();
@@ -1291,9 +1315,14 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return DefaultMIMETypes.forceExtension(uri.getPreferredFilename(), expectedMimeType);
 	}
 
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
+	/**
+	 * Parse a Range header.
+	 * @return The ranges as [from, to]. to is -1 if the range is open, and from is -1 for a range
+	 * of the last to bytes.
+	 */
+	static List<long[]> parseRange(String hdrrange) throws HTTPRangeException {
 
-		long[] result = new long[2];
+		List<long[]> result = new ArrayList<>(1);
 		try {
 			String[] units = hdrrange.split("=", 2);
 			// FIXME are MBytes and co valid? if so, we need to adjust the values and
@@ -1301,16 +1330,29 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			if (!"bytes".equals(units[0])) {
 				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
 			}
-			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
-			if (result[0] < 0)
-				throw new HTTPRangeException("Negative 'from' value");
-			if (!range[1].trim().isEmpty()) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
-			} else {
-				result[1] = -1;
+			for (String spec : units[1].split(",")) {
+				String[] range = spec.trim().split("-", 2);
+				long[] fromTo = new long[2];
+				if (range[0].isEmpty()) {
+					fromTo[0] = -1;
+					fromTo[1] = Long.parseLong(range[1].trim());
+					if (fromTo[1] <= 0)
+						throw new HTTPRangeException("Empty suffix range");
+				} else {
+					fromTo[0] = Long.parseLong(range[0]);
+					if (fromTo[0] < 0)
+						throw new HTTPRangeException("Negative 'from' value");
+					if (!range[1].trim().isEmpty()) {
+						fromTo[1] = Long.parseLong(range[1].trim());
+						if (fromTo[1] <= fromTo[0])
+							throw new HTTPRangeException("'from' value must be less then 'to' value");
+					} else {
+						fromTo[1] = -1;
+					}
+				}
+				result.add(fromTo);
+				if (result.size() > MAX_RANGES)
+					throw new HTTPRangeException("More than " + MAX_RANGES + " ranges");
 			}
 		} catch (NumberFormatException | IndexOutOfBoundsException nfe) {
 			throw new HTTPRangeException(nfe);
@@ -1318,6 +1360,59 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return result;
 	}
 
+	/**
+	 * @return The ranges which are at least partly within the data, as the first and last byte
+	 * of each.
+	 */
+	static List<long[]> satisfiableRanges(List<long[]> ranges, long size) {
+		List<long[]> result = new ArrayList<>(ranges.size());
+		for (long[] range : ranges) {
+			long from = range[0];
+			long to = range[1];
+			if (from == -1) {
+				from = Math.max(0, size - to);
+				to = size - 1;
+			} else if (to == -1 || to >= size) {
+				to = size - 1;
+			}
+			if (from <= to)
+				result.add(new long[] { from, to });
+		}
+		return result;
+	}
+
+	/**
+	 * @return The ETag for the data we send for a CHK, or null if we don't send one. It is a hash
+	 * of the key and everything else which changes what we send for it, including the build,
+	 * since the content filter changes between builds.
+	 */
+	private String getETag(FreenetURI key, String requestedMimeType, String maybeCharset, boolean force, REFILTER_POLICY refilterPolicy) {
+		if (!key.isCHK() || !container.enableCachingForChkAndSskKeys())
+			return null;
+		// Pages are different every time if they are pushed.
+		if (container.isFProxyWebPushingEnabled())
+			return null;
+		String s = key.toString(false, false) + '\n' + Version.buildNumber() + '\n' + requestedMimeType + '\n' +
+				maybeCharset + '\n' + force + '\n' + refilterPolicy;
+		byte[] hash = Arrays.copyOf(SHA256.digest(s.getBytes(StandardCharsets.UTF_8)), 16);
+		return '"' + HexUtil.bytesToHex(hash) + '"';
+	}
+
+	/** @return True if the If-None-Match header includes the ETag. */
+	static boolean etagMatches(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null)
+			return false;
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			// If-None-Match uses the weak comparison.
+			if (tag.startsWith("W/"))
+				tag = tag.substring(2);
+			if (tag.equals(etag))
+				return true;
+		}
+		return false;
+	}
+
 	@Override
 	public boolean persistent() {
 		return false;
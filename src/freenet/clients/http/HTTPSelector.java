@@ -0,0 +1,483 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import freenet.clients.http.updateableelements.PushDataManager;
+import freenet.clients.http.updateableelements.UpdaterConstants;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.NativeThread;
+
+/**
+ * Non-blocking connection layer for {@link SimpleToadletServer}, used if fproxy.nioConnections is
+ * enabled. One thread selects over all the open connections and reads each one's next request
+ * into a buffer. Only when the request is complete (or too big to buffer) is the connection put
+ * into blocking mode and given to a worker, which handles that one request in
+ * {@link ToadletContextImpl} and then gives the connection back. So idle persistent connections
+ * don't need a thread, and neither do push notification polls: they wait here until the
+ * {@link PushDataManager} has something for them. At most maxFproxyConnections requests are handled at once.
+ *
+ * LOCKING: A connection is only used by the selector thread while it is registered, and by its
+ * worker while it is not. Connections are handed back to the selector thread through the
+ * synchronized queue.
+ */
+final class HTTPSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Initial size of a connection's buffer. */
+	private static final int BUFFER_SIZE = 4096;
+	/** Requests bigger than this (uploads, mostly) are handed over with the rest still unread. */
+	static final int MAX_BUFFER_SIZE = 65536;
+	/** Open connections, including those being handled. Others are closed when accepted. */
+	private static final int MAX_CONNECTIONS = 1024;
+	/** Close persistent connections which have not sent another request in this long. */
+	private static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+	/** Close connections which have not finished sending a request in this long. */
+	private static final long REQUEST_TIMEOUT = MINUTES.toMillis(1);
+	private static final long SELECT_TIMEOUT = SECONDS.toMillis(10);
+
+	/** What the selector needs from the {@link SimpleToadletServer}. */
+	interface Server {
+
+		/**
+		 * Handle one request. The socket is in blocking mode.
+		 * @return True if the connection can be kept open for another request.
+		 */
+		boolean handle(Socket sock, LineReadingInputStream lis);
+
+		/** @return The most requests to handle at once. */
+		int maxWorkers();
+
+		/** @return False if the executor can't be used yet. */
+		boolean finishedStartup();
+
+		/** @return The PushDataManager, or null. */
+		PushDataManager getPushDataManager();
+
+	}
+
+	private final Server server;
+	private final Executor executor;
+	private final Selector selector;
+	/** Connections to register: new, or finished with by a worker. Synchronized on this. */
+	private final ArrayDeque<Connection> toRegister = new ArrayDeque<Connection>();
+	/** Open connections, including those being handled. Synchronized on this. */
+	private int connections;
+	/** Requests being handled. Synchronized on this. */
+	private int workers;
+	/** Complete requests waiting for a worker. Selector thread only. */
+	private final ArrayDeque<Connection> ready = new ArrayDeque<Connection>();
+	/** Notification polls waiting for the PushDataManager. Selector thread only. */
+	private final Set<Connection> polls = new HashSet<Connection>();
+	/** Set by the PushDataManager when a poll may be able to return. */
+	private volatile boolean pollsChanged;
+	private long lastTimeoutCheck;
+
+	HTTPSelector(Server server, Executor executor) throws IOException {
+		this.server = server;
+		this.executor = executor;
+		this.selector = Selector.open();
+	}
+
+	void start() {
+		PushDataManager pushDataManager = server.getPushDataManager();
+		if(pushDataManager != null) {
+			pushDataManager.setNotificationListener(new Runnable() {
+
+				@Override
+				public void run() {
+					pollsChanged = true;
+					selector.wakeup();
+				}
+
+			});
+		}
+		Thread t = new Thread(this, "HTTP selector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Take over an accepted connection.
+	 * @param sock Must have a channel, i.e. have been accepted by a
+	 * {@link freenet.io.ChannelNetworkInterface}.
+	 */
+	void add(Socket sock) {
+		synchronized(this) {
+			if(connections < MAX_CONNECTIONS) {
+				connections++;
+				toRegister.add(new Connection(sock.getChannel()));
+				selector.wakeup();
+				return;
+			}
+		}
+		Logger.normal(this, "Too many HTTP connections, closing connection from "+sock.getInetAddress());
+		try {
+			sock.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				// Keys selected by the selectNow() in dispatch() are already in the set.
+				if(selector.selectedKeys().isEmpty())
+					selector.select(SELECT_TIMEOUT);
+				else
+					selector.selectNow();
+				register();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.isValid() && key.isReadable())
+						read((Connection) key.attachment());
+				}
+				if(pollsChanged) {
+					pollsChanged = false;
+					checkPolls();
+				}
+				dispatch();
+				long now = System.currentTimeMillis();
+				if(now - lastTimeoutCheck > SELECT_TIMEOUT) {
+					lastTimeoutCheck = now;
+					closeTimedOut(now);
+				}
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in HTTP selector", t);
+			}
+		}
+	}
+
+	private void register() {
+		Connection[] conns;
+		synchronized(this) {
+			if(toRegister.isEmpty()) return;
+			conns = toRegister.toArray(new Connection[toRegister.size()]);
+			toRegister.clear();
+		}
+		for(Connection c : conns) {
+			try {
+				c.channel.configureBlocking(false);
+				c.key = c.channel.register(selector, SelectionKey.OP_READ, c);
+			} catch (IOException e) {
+				close(c);
+				continue;
+			}
+			c.lastActive = System.currentTimeMillis();
+			// There may be a pipelined request left over from the last one.
+			if(c.length > 0) process(c);
+		}
+	}
+
+	private void read(Connection c) {
+		if(c.length == c.buffer.length)
+			c.buffer = Arrays.copyOf(c.buffer, Math.min(c.buffer.length * 2, MAX_BUFFER_SIZE));
+		int read;
+		try {
+			read = c.channel.read(ByteBuffer.wrap(c.buffer, c.length, c.buffer.length - c.length));
+		} catch (IOException e) {
+			read = -1;
+		}
+		if(read < 0) {
+			// Closed by the browser, quite possibly while waiting for a notification.
+			polls.remove(c);
+			close(c);
+			return;
+		}
+		c.length += read;
+		c.lastActive = System.currentTimeMillis();
+		if(c.pollRequestId == null) {
+			process(c);
+		} else if(c.length == MAX_BUFFER_SIZE) {
+			// Shouldn't send anything while waiting, but we can't buffer any more.
+			polls.remove(c);
+			c.pollRequestId = null;
+			ready(c);
+		}
+	}
+
+	/** Decide what to do with a connection which has read some more. */
+	private void process(Connection c) {
+		long requestLength = requestLength(c.buffer, c.length);
+		if(requestLength < 0) {
+			if(c.length < MAX_BUFFER_SIZE) return; // Wait for the rest of the headers
+		} else if(requestLength > c.length) {
+			if(requestLength <= MAX_BUFFER_SIZE) return; // Wait for the rest of the body
+		} else {
+			String requestId = pollRequestId(c.buffer, (int) requestLength);
+			PushDataManager pushDataManager = server.getPushDataManager();
+			if(requestId != null && pushDataManager != null && !pushDataManager.hasNextNotification(requestId)) {
+				if(logMINOR) Logger.minor(this, "Waiting for a notification for "+requestId);
+				c.pollRequestId = requestId;
+				polls.add(c);
+				return;
+			}
+		}
+		ready(c);
+	}
+
+	private void checkPolls() {
+		PushDataManager pushDataManager = server.getPushDataManager();
+		for(Iterator<Connection> i = polls.iterator(); i.hasNext();) {
+			Connection c = i.next();
+			if(pushDataManager.hasNextNotification(c.pollRequestId)) {
+				i.remove();
+				c.pollRequestId = null;
+				ready(c);
+			}
+		}
+	}
+
+	private void ready(Connection c) {
+		c.key.interestOps(0);
+		c.queued = true;
+		ready.add(c);
+	}
+
+	/** Give as many of the ready requests to workers as the limit allows. */
+	private void dispatch() throws IOException {
+		if(ready.isEmpty()) return;
+		int free;
+		synchronized(this) {
+			free = server.maxWorkers() - workers;
+		}
+		List<Connection> handOver = new ArrayList<Connection>(Math.max(0, Math.min(free, ready.size())));
+		while(free-- > 0 && !ready.isEmpty()) {
+			Connection c = ready.poll();
+			c.key.cancel();
+			handOver.add(c);
+		}
+		if(handOver.isEmpty()) return;
+		// Deregister the cancelled keys, so the channels can be put in blocking mode.
+		selector.selectNow();
+		boolean finishedStartup = server.finishedStartup();
+		for(Connection c : handOver) {
+			c.queued = false;
+			c.key = null;
+			try {
+				c.channel.configureBlocking(true);
+			} catch (IOException e) {
+				close(c);
+				continue;
+			}
+			synchronized(this) {
+				workers++;
+			}
+			Worker worker = new Worker(c);
+			if(finishedStartup)
+				executor.execute(worker, "HTTP request handler@"+worker.hashCode());
+			else
+				new Thread(worker).start();
+		}
+	}
+
+	private void closeTimedOut(long now) {
+		for(SelectionKey key : selector.keys()) {
+			Connection c = (Connection) key.attachment();
+			if(!key.isValid() || c.queued || c.pollRequestId != null) continue;
+			long timeout = c.length == 0 ? IDLE_TIMEOUT : REQUEST_TIMEOUT;
+			if(now - c.lastActive > timeout) {
+				if(logMINOR) Logger.minor(this, "Closing idle HTTP connection from "+c.channel.socket().getInetAddress());
+				close(c);
+			}
+		}
+	}
+
+	private void close(Connection c) {
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		synchronized(this) {
+			connections--;
+		}
+	}
+
+	/**
+	 * Find the end of the first request in the buffer: the header block, ended by an empty line,
+	 * and the body, whose length is given by Content-Length. Empty lines before the request line
+	 * are skipped, as {@link ToadletContextImpl} does.
+	 * @return The length of the request, which may be more than is in the buffer, or -1 if the
+	 * header block isn't complete yet.
+	 */
+	static long requestLength(byte[] buf, int length) {
+		boolean seenRequestLine = false;
+		long contentLength = -1;
+		int lineStart = 0;
+		for(int i=0;i<length;i++) {
+			if(buf[i] != '\n') continue;
+			int lineEnd = i;
+			if(lineEnd > lineStart && buf[lineEnd-1] == '\r') lineEnd--;
+			if(lineEnd == lineStart) {
+				if(seenRequestLine) return i + 1 + Math.max(contentLength, 0);
+			} else if(!seenRequestLine) {
+				seenRequestLine = true;
+			} else if(contentLength == -1) {
+				contentLength = contentLength(buf, lineStart, lineEnd);
+			}
+			lineStart = i + 1;
+		}
+		return -1;
+	}
+
+	private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * @return The value if the line is a Content-Length header, 0 if it is but can't be parsed
+	 * (it will be rejected when handled), or -1 if it is some other header.
+	 */
+	private static long contentLength(byte[] buf, int start, int end) {
+		if(end - start < CONTENT_LENGTH.length) return -1;
+		for(int i=0;i<CONTENT_LENGTH.length;i++) {
+			if(Character.toLowerCase((char) buf[start+i]) != CONTENT_LENGTH[i]) return -1;
+		}
+		String value = new String(buf, start + CONTENT_LENGTH.length, end - start - CONTENT_LENGTH.length, StandardCharsets.ISO_8859_1).trim();
+		try {
+			return Math.max(Integer.parseInt(value), 0);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return The requestId parameter if the request is a GET for the push notification poll,
+	 * otherwise null.
+	 */
+	static String pollRequestId(byte[] buf, int length) {
+		int start = 0;
+		int end;
+		// Skip empty lines before the request line, as requestLength() does.
+		while(true) {
+			end = start;
+			while(end < length && buf[end] != '\n') end++;
+			if(end == length) return null;
+			int lineEnd = end > start && buf[end-1] == '\r' ? end - 1 : end;
+			if(lineEnd > start) {
+				end = lineEnd;
+				break;
+			}
+			start = end + 1;
+		}
+		String[] split = new String(buf, start, end - start, StandardCharsets.ISO_8859_1).split(" ");
+		if(split.length != 3 || !split[0].equals("GET")) return null;
+		String target = split[1];
+		int query = target.indexOf('?');
+		String path = query == -1 ? target : target.substring(0, query);
+		if(!path.startsWith(UpdaterConstants.notificationPath)) return null;
+		try {
+			return new HTTPRequestImpl(path, query == -1 ? null : target.substring(query + 1), "GET").getParam("requestId");
+		} catch (URISyntaxException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static final class Connection {
+
+		final SocketChannel channel;
+		/** What has been read but not handled yet. */
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int length;
+		SelectionKey key;
+		long lastActive;
+		/** Waiting for a worker. */
+		boolean queued;
+		/** If waiting for a push notification, the id of the page. */
+		String pollRequestId;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+	}
+
+	/** Handles one request and gives the connection back. */
+	private final class Worker implements PrioRunnable {
+
+		private final Connection c;
+
+		Worker(Connection c) {
+			this.c = c;
+		}
+
+		@Override
+		public void run() {
+			boolean keepAlive = false;
+			try {
+				Socket sock = c.channel.socket();
+				ByteArrayInputStream buffered = new ByteArrayInputStream(c.buffer, 0, c.length);
+				// Not buffered, so that nothing after the request is read from the socket.
+				LineReadingInputStream lis = new LineReadingInputStream(new SequenceInputStream(buffered, sock.getInputStream()));
+				keepAlive = server.handle(sock, lis);
+				if(keepAlive) {
+					// Keep whatever was pipelined after the request.
+					int left = buffered.available();
+					byte[] buffer = c.buffer;
+					if(buffer.length > BUFFER_SIZE && left <= BUFFER_SIZE)
+						c.buffer = new byte[BUFFER_SIZE];
+					System.arraycopy(buffer, c.length - left, c.buffer, 0, left);
+					c.length = left;
+				}
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" handling HTTP request", t);
+				keepAlive = false;
+			} finally {
+				if(!keepAlive) close(c);
+				synchronized(HTTPSelector.this) {
+					workers--;
+					if(keepAlive) toRegister.add(c);
+				}
+				selector.wakeup();
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY-1;
+		}
+
+	}
+
+}
@@ -28,6 +28,7 @@ import freenet.config.NodeNeedRestartException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
@@ -52,6 +53,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.StringCallback;
 import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.NativeThread;
 
 /** 
@@ -124,6 +126,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private int fproxyConnections;
 	
 	private boolean finishedStartup;
+	/** Read requests without a thread per connection? Only applies after a restart. */
+	private boolean nioConnections;
+	/** Non-null if we are using it, i.e. nioConnections was enabled at startup, without SSL. */
+	private HTTPSelector httpSelector;
 
 	/**
 	 * The PushDataManager handles all the pushing tasks
@@ -727,6 +733,27 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}, false);
 		maxFproxyConnections = fproxyConfig.getInt("maxFproxyConnections");
 		
+		fproxyConfig.register("nioConnections", false, configItemOrder++, true, false, "SimpleToadletServer.nioConnections", "SimpleToadletServer.nioConnectionsLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(SimpleToadletServer.this) {
+							return nioConnections;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(SimpleToadletServer.this) {
+							if(nioConnections == val) return;
+							nioConnections = val;
+						}
+						throw new NodeNeedRestartException(l10n("nioConnectionsNeedsRestart"));
+					}
+		});
+		nioConnections = fproxyConfig.getBoolean("nioConnections");
+		
 		fproxyConfig.register("metaRefreshSamePageInterval", 1, configItemOrder++, true, false, "SimpleToadletServer.metaRefreshSamePageInterval", "SimpleToadletServer.metaRefreshSamePageIntervalLong",
 				new IntCallback() {
 
@@ -864,7 +891,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	private void maybeGetNetworkInterface() throws IOException {
 		if (this.networkInterface!=null) return;
 		if(ssl) {
+			// SSL sockets don't have channels, so we can't use the HTTPSelector.
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(nioConnections) {
+			this.networkInterface = ChannelNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
@@ -883,6 +913,10 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	public void start() {
 		if(myThread != null) try {
 			maybeGetNetworkInterface();
+			if(networkInterface instanceof ChannelNetworkInterface && httpSelector == null) {
+				httpSelector = new HTTPSelector(new SelectorServer(), executor);
+				httpSelector.start();
+			}
 			myThread.start();
 			Logger.normal(this, "Starting FProxy on "+bindTo+ ':' +port);
 			System.out.println("Starting FProxy on "+bindTo+ ':' +port);
@@ -1025,7 +1059,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		boolean finishedStartup = false;
 		while(true) {
 			synchronized(this) {
-				while(fproxyConnections > maxFproxyConnections) {
+				while(httpSelector == null && fproxyConnections > maxFproxyConnections) {
 					try {
 						wait();
 					} catch (InterruptedException e) {
@@ -1043,11 +1077,43 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            if(httpSelector != null) {
+                httpSelector.add(conn);
+                continue;
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	private class SelectorServer implements HTTPSelector.Server {
+
+		@Override
+		public boolean handle(Socket sock, LineReadingInputStream lis) {
+			return ToadletContextImpl.handle(sock, lis, true, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager);
+		}
+
+		@Override
+		public int maxWorkers() {
+			synchronized(SimpleToadletServer.this) {
+				return maxFproxyConnections;
+			}
+		}
+
+		@Override
+		public boolean finishedStartup() {
+			synchronized(SimpleToadletServer.this) {
+				return finishedStartup;
+			}
+		}
+
+		@Override
+		public PushDataManager getPushDataManager() {
+			return pushDataManager;
+		}
+
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
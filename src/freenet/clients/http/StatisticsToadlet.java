@@ -18,14 +18,19 @@ import java.util.Map;
 
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.async.ClientRequester;
+import freenet.client.async.DatastoreChecker;
+import freenet.client.async.PersistentStartupStats;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.MessageCore;
 import freenet.io.xfer.BlockReceiver;
 import freenet.io.xfer.BlockTransmitter;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
+import freenet.node.FailureTable;
 import freenet.node.Location;
+import freenet.node.NewPacketFormat;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
 import freenet.node.NodeStarter;
@@ -40,6 +45,7 @@ import freenet.node.Version;
 import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
+import freenet.node.stats.LatencyHistogram;
 import freenet.node.stats.StoreAccessStats;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
@@ -200,6 +206,16 @@ public class StatisticsToadlet extends Toadlet {
 		
 		drawJVMStatsBox(jvmStatsInfobox, advancedMode);
 		
+		if(advancedMode) {
+			HTMLNode persistentStartupInfobox = nextTableCell.addChild("div", "class", "infobox");
+			
+			drawPersistentStartupBox(persistentStartupInfobox);
+			
+			HTMLNode failureTableInfobox = nextTableCell.addChild("div", "class", "infobox");
+			
+			drawFailureTableBox(failureTableInfobox);
+		}
+		
 		// Statistic gathering box
 		HTMLNode statGatheringContent = ctx.getPageMaker().getInfobox("#", l10n("statisticGatheringTitle"), nextTableCell, "statistics-generating", true);
 		// Generate a Thread-Dump
@@ -621,15 +637,60 @@ public class StatisticsToadlet extends Toadlet {
 				jvmStatsList.addChild("li", l10n("cryptoUsingBuiltin"));
 			else
 				jvmStatsList.addChild("li", l10n("cryptoUsingJCA", "provider", Rijndael.getProviderName()));
+			double sendAllocation = NewPacketFormat.averageSendAllocation();
+			if(sendAllocation >= 0)
+				jvmStatsList.addChild("li", l10n("packetSendAllocation", "bytes", thousandPoint.format(Math.round(sendAllocation))));
 		}
 	}
 	
+	private void drawPersistentStartupBox(HTMLNode persistentStartupInfobox) {
+		PersistentStartupStats startup = core.getClientLayerPersister().getStartupStats();
+		persistentStartupInfobox.addChild("div", "class", "infobox-header", l10n("persistentStartupTitle"));
+		HTMLNode startupList = persistentStartupInfobox.addChild("div", "class", "infobox-content").addChild("ul");
+		startupList.addChild("li", l10n("persistentStartupLoad", new String[] { "time", "deserialize" },
+				new String[] { TimeUtil.formatTime(startup.getLoadTime(), 2, true),
+						TimeUtil.formatTime(startup.getDeserializeTime(), 2, true) }));
+		startupList.addChild("li", l10n("persistentStartupResume", new String[] { "time", "work", "threads" },
+				new String[] { TimeUtil.formatTime(startup.getResumeTime(), 2, true),
+						TimeUtil.formatTime(startup.getResumeWorkTime(), 2, true),
+						Integer.toString(startup.getThreads()) }));
+		startupList.addChild("li", l10n("persistentStartupRequests",
+				new String[] { "resumed", "restored", "restarted", "failed" },
+				new String[] { thousandPoint.format(startup.getResumed()),
+						thousandPoint.format(startup.getRestoredFully()),
+						thousandPoint.format(startup.getRestarted()),
+						thousandPoint.format(startup.getFailed()) }));
+	}
+	
+	private void drawFailureTableBox(HTMLNode failureTableInfobox) {
+		FailureTable failureTable = node.getFailureTable();
+		failureTableInfobox.addChild("div", "class", "infobox-header", l10n("failureTableTitle"));
+		HTMLNode failureTableList = failureTableInfobox.addChild("div", "class", "infobox-content").addChild("ul");
+		failureTableList.addChild("li", l10n("failureTableEntries", new String[] { "entries", "offers" },
+				new String[] { thousandPoint.format(failureTable.countEntries()),
+						thousandPoint.format(failureTable.countOffers()) }));
+		failureTableList.addChild("li", l10n("failureTableMemory", new String[] { "used", "limit" },
+				new String[] { SizeUtil.formatSize(failureTable.getMemoryUsed(), true),
+						SizeUtil.formatSize(failureTable.getMemoryLimit(), true) }));
+		long hits = failureTable.entryHits();
+		long lookups = hits + failureTable.entryMisses();
+		failureTableList.addChild("li", l10n("failureTableLookups", new String[] { "total", "hitRate" },
+				new String[] { thousandPoint.format(lookups),
+						fix3p1pct.format(lookups == 0 ? 0.0 : (double) hits / lookups) }));
+		failureTableList.addChild("li", l10n("failureTableEvictions", new String[] { "entries", "offers" },
+				new String[] { thousandPoint.format(failureTable.entryEvictions()),
+						thousandPoint.format(failureTable.offerEvictions()) }));
+	}
+	
 	private void drawThreadPriorityStatsBox(HTMLNode node) {
 		
 		node.addChild("div", "class", "infobox-header", l10n("threadsByPriority"));
 		HTMLNode threadsInfoboxContent = node.addChild("div", "class", "infobox-content");
 		int[] activeThreadsByPriority = stats.getActiveThreadsByPriority();
 		int[] waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
+		// Only if the executor queues jobs.
+		int[] queuedJobsByPriority = stats.getQueuedJobsByPriority();
+		double[] averageJobWaitByPriority = stats.getAverageJobWaitByPriority();
 		
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
@@ -637,12 +698,20 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(queuedJobsByPriority != null) {
+			row.addChild("th", l10n("queuedJobs"));
+			row.addChild("th", l10n("averageJobWait"));
+		}
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(queuedJobsByPriority != null) {
+				row.addChild("td", String.valueOf(queuedJobsByPriority[i]));
+				row.addChild("td", fix3p1US.format(averageJobWaitByPriority[i]));
+			}
 		}
 	}
 
@@ -730,6 +799,9 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
 		row.addChild("th", l10n("falsePos"));
+		row.addChild("th", l10n("readLatency"));
+		row.addChild("th", l10n("writeLatency"));
+		row.addChild("th", l10n("lockWaitLatency"));
 		row.addChild("th", l10n("avgLocation"));
 		row.addChild("th", l10n("avgSuccessLoc"));
 		row.addChild("th", l10n("furthestSuccess"));
@@ -791,6 +863,9 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", access);
 			row.addChild("td", thousandPoint.format(sessionAccess.falsePos()) +
 					(totalAccess == null ? "" : (" ("+thousandPoint.format(totalAccess.falsePos())+")")));
+			row.addChild("td", formatLatency(sessionAccess.readLatency()));
+			row.addChild("td", formatLatency(sessionAccess.writeLatency()));
+			row.addChild("td", formatLatency(sessionAccess.lockWaitLatency()));
 			try {
 				row.addChild("td", fix1p4.format(stats.avgLocation()));
 			} catch (StatsNotAvailableException e) {
@@ -824,6 +899,19 @@ public class StatisticsToadlet extends Toadlet {
 
 	}
 
+	/** @return Median and 99th percentile latency in milliseconds, or N/A. */
+	private String formatLatency(LatencyHistogram latency) {
+		if(latency == null || latency.count() == 0) return "N/A";
+		return formatLatencyMillis(latency.percentileMicros(0.5)) + " / " +
+				formatLatencyMillis(latency.percentileMicros(0.99)) + " ms";
+	}
+
+	private String formatLatencyMillis(long micros) {
+		if(micros == Long.MAX_VALUE)
+			return ">" + fix1p2.format((1L << (LatencyHistogram.BUCKETS - 2)) / 1000.0);
+		return fix1p2.format(micros / 1000.0);
+	}
+
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
 		
 		unclaimedFIFOMessageCountsInfobox.addChild("div", "class", "infobox-header", "unclaimedFIFO Message Counts");
@@ -1274,6 +1362,11 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		MessageCore usm = node.getUSM();
+		overviewList.addChild("li", "messageFilters:\u00a0" + usm.getFilterCount() + "\u00a0(" + usm.getUnindexedFilterCount() + "\u00a0unindexed)");
+		overviewList.addChild("li", "messageFilterMatchTime:\u00a0" + fix1p1.format(usm.getFilterMatchTimeAverage()) + "\u00a0\u00b5s\u00a0(" + fix1p1.format(usm.getFiltersCheckedAverage()) + "\u00a0filters\u00a0checked)");
+		DatastoreChecker storeChecker = core.getStoreChecker();
+		overviewList.addChild("li", "datastoreChecker:\u00a0" + storeChecker.queuedRequests() + "\u00a0requests\u00a0(" + storeChecker.queuedKeys() + "\u00a0keys)\u00a0queued, " + storeChecker.keysChecked() + "\u00a0keys\u00a0checked, " + fix1p1.format(storeChecker.keysPerSecond()) + "\u00a0keys/s\u00a0per\u00a0thread\u00a0(" + storeChecker.threads() + "\u00a0threads)");
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.getTempBucketFactory().getRamUsed())+ " / "+ SizeUtil.formatSize(core.getTempBucketFactory().getMaxRamUsed()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.getUptimeEstimator().getUptime()));
 		
@@ -1281,6 +1374,10 @@ public class StatisticsToadlet extends Toadlet {
 		if(decoded != null) {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"+fix3p1pct.format(((double)decoded[0])/((double)decoded[1]))+"\u00a0("+decoded[1]+")");
 		}
+		long[] trials = IncomingPacketFilterImpl.getTrialDecryptStats();
+		if(trials[0] > 0) {
+			overviewList.addChild("li", "trialDecryptsPerPacket:\u00a0"+fix1p1.format(((double)trials[1])/((double)trials[0]))+"\u00a0("+fix3p1pct.format(((double)trials[2])/((double)trials[0]))+"\u00a0by\u00a0sequence\u00a0number, "+fix3p1pct.format(((double)trials[3])/((double)trials[0]))+"\u00a0tried\u00a0all\u00a0peers)");
+		}
 		
 	}
 
@@ -111,6 +111,17 @@ public interface ToadletContext {
 	 * @see freenet.support.io.NoFreeBucket
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
+
+	/**
+	 * Write part of a bucket, without copying it into another bucket first. You must send reply
+	 * headers first. Unlike writeData(Bucket), this does not free the bucket, as it is usually
+	 * called several times for one bucket.
+	 *
+	 * @param data The Bucket which contains the data.
+	 * @param offset The offset of the first byte to write.
+	 * @param length The number of bytes to write.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
 	
 	/**
 	 * Get the page maker object.
@@ -511,184 +511,23 @@ public class ToadletContextImpl implements ToadletContext {
 			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
 			LineReadingInputStream lis = new LineReadingInputStream(is)
 		) {
-			while(true) {
-				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
-				if (firstLine == null) {
-					sock.close();
-					return;
-				} else if (firstLine.isEmpty()) {
-					continue;
-				}
-				
-				if(logMINOR)
-					Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
-				
-				String[] split = firstLine.split(" ");
-				
-				if(split.length != 3)
-					throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
-				
-				if(!split[2].startsWith("HTTP/1."))
-					throw new ParseException("Unrecognized protocol "+split[2], -1);
-				
-				URI uri;
-				try {
-					uri = URIPreEncoder.encodeURI(split[1]).normalize();
-					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
-				} catch (URISyntaxException e) {
-					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
-				}
-				String method = split[0];
-				
-				MultiValueTable<String,String> headers = new MultiValueTable<>();
-				
-				while(true) {
-					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
-					if (line == null) {
-						sock.close();
-						return;
-					}
-					//System.out.println("Length="+line.length()+": "+line);
-					if(line.isEmpty()) break;
-					int index = line.indexOf(':');
-					if (index < 0) {
-						throw new ParseException("Missing ':' in request header field", -1);
-					}
-					String before = line.substring(0, index).toLowerCase();
-					String after = line.substring(index+1);
-					after = after.trim();
-					headers.put(before, after);
-				}
-				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
-
-				boolean allowPost = container.allowPosts();
-				BucketFactory bf = container.getBucketFactory();
-				
-				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
-				ctx.shouldDisconnect = disconnect;
-				
-				/*
-				 * copy the data into a bucket now,
-				 * before we go into the redirect loop
-				 */
-				
-				Bucket data;
-
-
-				String slen = headers.getFirst("content-length");
-
-				if (METHODS_MUST_HAVE_DATA.contains(method)) {
-					// <method> must have data
-					if (slen == null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
-					// <method> can not have data
-					if (slen != null) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-				}
-
-				if (slen != null) {
-					long len;
-					try {
-						len = Integer.parseInt(slen);
-						if(len < 0) throw new NumberFormatException("content-length less than 0");
-					} catch (NumberFormatException e) {
-						ctx.shouldDisconnect = true;
-						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
-					}
-					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
-						data = bf.makeBucket(len);
-						BucketTools.copyFrom(data, is, len);
-					} else {
-						FileUtil.skipFully(is, len);
-						if (method.equals("POST")) {
-							ctx.sendMethodNotAllowed("POST", true);
-						} else {
-							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
-						}
-						ctx.close();
-						return;
-					}
-				} else {
-					// we're not doing to use it, but we have to keep
-					// the compiler happy
-					data = null;
-				}
-
-				if (!container.enableExtendedMethodHandling()) {
-					if (!METHODS_RESTRICTED_MODE.contains(method)) {
-						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
-					}
-				}
+			handle(sock, lis, false, container, pageMaker, userAlertManager, bookmarkManager);
+		} catch (IOException e) {
+			// ignore and return
+		}
+	}
 
-				// Handle it.
-				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
-					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
-
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
-
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						
-						// require form password if it's a POST, unless the toadlet requests otherwise
-						if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
-							if (!ctx.checkFormPassword(req, t.path())) {
-								break;
-							}
-						}
-						
-						if(ctx.isAllowedFullAccess()) {
-							ctx.getPageMaker().parseMode(req, container);
-						}
-						
-						try {
-							callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
-						}
-					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
-						return;
-					}
-				} finally {
-					if(data != null) data.free();
-				}
+	/**
+	 * Handle requests read from the stream, replying on the socket.
+	 * @param once If true, return after one request, without closing the socket if the connection
+	 * can be kept alive. {@link HTTPSelector} uses this, having already buffered the request.
+	 * @return True if the next request can be read from the connection.
+	 */
+	static boolean handle(Socket sock, LineReadingInputStream lis, boolean once, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		try {
+			while(handleRequest(sock, lis, container, pageMaker, userAlertManager, bookmarkManager)) {
+				if(once) return true;
 			}
-			
 		} catch (ParseException e) {
 			try {
 				sendError(sock.getOutputStream(), 400, "Bad Request", l10n("parseErrorWithError", "error", e.getMessage()), true, null);
@@ -722,8 +561,193 @@ public class ToadletContextImpl implements ToadletContext {
 				// ignore and return
 			}
 		}
+		return false;
 	}
-	
+
+	/**
+	 * Read and handle one request.
+	 * @return False if the connection has been closed, or should be.
+	 */
+	private static boolean handleRequest(Socket sock, LineReadingInputStream lis, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) throws Throwable {
+		String firstLine;
+		do {
+			firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
+			if (firstLine == null) {
+				sock.close();
+				return false;
+			}
+		} while (firstLine.isEmpty());
+		
+		if(logMINOR)
+			Logger.minor(ToadletContextImpl.class, "first line: "+firstLine);
+		
+		String[] split = firstLine.split(" ");
+		
+		if(split.length != 3)
+			throw new ParseException("Could not parse request line (split.length="+split.length+"): "+firstLine, -1);
+		
+		if(!split[2].startsWith("HTTP/1."))
+			throw new ParseException("Unrecognized protocol "+split[2], -1);
+		
+		URI uri;
+		try {
+			uri = URIPreEncoder.encodeURI(split[1]).normalize();
+			if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
+		} catch (URISyntaxException e) {
+			sendURIParseError(sock.getOutputStream(), true, e);
+			return false;
+		}
+		String method = split[0];
+		
+		MultiValueTable<String,String> headers = new MultiValueTable<>();
+		
+		while(true) {
+			String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
+			if (line == null) {
+				sock.close();
+				return false;
+			}
+			//System.out.println("Length="+line.length()+": "+line);
+			if(line.isEmpty()) break;
+			int index = line.indexOf(':');
+			if (index < 0) {
+				throw new ParseException("Missing ':' in request header field", -1);
+			}
+			String before = line.substring(0, index).toLowerCase();
+			String after = line.substring(index+1);
+			after = after.trim();
+			headers.put(before, after);
+		}
+		
+		boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+
+		boolean allowPost = container.allowPosts();
+		BucketFactory bf = container.getBucketFactory();
+		
+		ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container, userAlertManager, bookmarkManager, uri, container.generateUniqueID());
+		ctx.shouldDisconnect = disconnect;
+		
+		/*
+		 * copy the data into a bucket now,
+		 * before we go into the redirect loop
+		 */
+		
+		Bucket data;
+
+
+		String slen = headers.getFirst("content-length");
+
+		if (METHODS_MUST_HAVE_DATA.contains(method)) {
+			// <method> must have data
+			if (slen == null) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return false;
+			}
+		} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
+			// <method> can not have data
+			if (slen != null) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return false;
+			}
+		}
+
+		if (slen != null) {
+			long len;
+			try {
+				len = Integer.parseInt(slen);
+				if(len < 0) throw new NumberFormatException("content-length less than 0");
+			} catch (NumberFormatException e) {
+				ctx.shouldDisconnect = true;
+				ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
+				return false;
+			}
+			if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
+				data = bf.makeBucket(len);
+				BucketTools.copyFrom(data, lis, len);
+			} else {
+				FileUtil.skipFully(lis, len);
+				if (method.equals("POST")) {
+					ctx.sendMethodNotAllowed("POST", true);
+				} else {
+					sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
+				}
+				ctx.close();
+				return false;
+			}
+		} else {
+			// we're not doing to use it, but we have to keep
+			// the compiler happy
+			data = null;
+		}
+
+		if (!container.enableExtendedMethodHandling()) {
+			if (!METHODS_RESTRICTED_MODE.contains(method)) {
+				sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
+				return false;
+			}
+		}
+
+		// Handle it.
+		try {
+			boolean redirect = true;
+			while (redirect) {
+				// don't go around the loop unless set explicitly
+				redirect = false;
+				
+				Toadlet t;
+				try {
+					t = container.findToadlet(uri);
+				} catch (PermanentRedirectException e) {
+					Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+					break;
+				}
+			
+				if(t == null) {
+					ctx.sendNoToadletError(ctx.shouldDisconnect);
+					break;
+				}
+
+				// if the Toadlet does not support the method, we don't need to parse the data
+				// also due this pre check a 'NoSuchMethodException' should never appear
+				if (!(t.findSupportedMethods().contains(method))) {
+					ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+					break;
+				}
+
+				HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+				
+				// require form password if it's a POST, unless the toadlet requests otherwise
+				if (method.equals("POST") && !t.allowPOSTWithoutPassword()) {
+					if (!ctx.checkFormPassword(req, t.path())) {
+						break;
+					}
+				}
+				
+				if(ctx.isAllowedFullAccess()) {
+					ctx.getPageMaker().parseMode(req, container);
+				}
+				
+				try {
+					callToadletMethod(t, method, uri, req, ctx, data, sock, redirect);
+				} catch (RedirectException re) {
+					uri = re.newuri;
+					redirect = true;
+				} finally {
+					req.freeParts();
+				}
+			}
+			if(ctx.shouldDisconnect) {
+				sock.close();
+				return false;
+			}
+		} finally {
+			if(data != null) data.free();
+		}
+		return true;
+	}
+
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
 			ToadletContextImpl ctx, Bucket data, Socket sock, boolean methodIsConfigurable) throws Throwable {
 		String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
@@ -821,6 +845,12 @@ public class ToadletContextImpl implements ToadletContext {
 		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
 		data.free();
 	}
+
+	@Override
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
+		if(closed) throw new ToadletContextClosedException();
+		BucketTools.copyTo(data, sockOutputStream, offset, length);
+	}
 	
 	@Override
 	public BucketFactory getBucketFactory() {
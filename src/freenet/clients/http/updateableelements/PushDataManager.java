@@ -41,6 +41,9 @@ public class PushDataManager {
 	/** The Cleaner only runs when needed. If this field is true, then the Cleaner is scheduled to run */
 	private boolean										isScheduled				= false;
 
+	/** Run whenever a notification poll may be able to return, without waiting */
+	private Runnable									notificationListener;
+
 	public PushDataManager(Ticker ticker) {
 		cleaner = ticker;
 	}
@@ -85,7 +88,7 @@ public class PushDataManager {
 			if(logMINOR){
 				Logger.minor(this, "Waking up notification polls");
 			}
-			notifyAll();
+			notificationsChanged();
 		}
 	}
 
@@ -168,7 +171,7 @@ public class PushDataManager {
 			if (logMINOR) {
 				Logger.minor(this, "copied " + awaitingNotifications.get(newRequestId).size() + " notification:" + awaitingNotifications.get(newRequestId));
 			}
-			notifyAll();
+			notificationsChanged();
 			return true;
 		} else {
 			if (logMINOR) {
@@ -209,7 +212,7 @@ public class PushDataManager {
 		}
 		isKeepaliveReceived.put(requestId, true);
 		isFirstKeepaliveReceived.put(requestId, true);
-		notifyAll();
+		notificationsChanged();
 		return true;
 	}
 
@@ -241,6 +244,40 @@ public class PushDataManager {
 		return awaitingNotifications.get(requestId).remove(0);
 	}
 
+	/**
+	 * Checks whether a notification poll would return without waiting.
+	 * 
+	 * @param requestId
+	 *            - The id of the request
+	 * @return True if {@link #getNextNotification(String)} would return immediately
+	 */
+	public synchronized boolean hasNextNotification(String requestId) {
+		List<UpdateEvent> notifications = awaitingNotifications.get(requestId);
+		if (notifications == null) {
+			return true;
+		}
+		return !notifications.isEmpty() && isFirstKeepaliveReceived.containsKey(notifications.get(0).requestId);
+	}
+
+	/**
+	 * Sets a callback for when notification polls may be able to return, so they can be waited for without blocking a
+	 * thread. It is called with the lock held, so it must not block.
+	 * 
+	 * @param listener
+	 *            - The callback, or null
+	 */
+	public synchronized void setNotificationListener(Runnable listener) {
+		notificationListener = listener;
+	}
+
+	/** Wakes up the notification polls */
+	private void notificationsChanged() {
+		notifyAll();
+		if (notificationListener != null) {
+			notificationListener.run();
+		}
+	}
+
 	/** Returns the cleaner's delay in ms */
 	private int getDelayInMs() {
 		return (int) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
@@ -288,6 +325,8 @@ public class PushDataManager {
 			}
 		}
 		awaitingNotifications.remove(requestId);
+		// Polls for the request return now
+		notificationsChanged();
 		return true;
 	}
 
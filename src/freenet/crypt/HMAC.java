@@ -28,6 +28,14 @@ public enum HMAC {
   }
 
   public static byte[] mac(HMAC hash, byte[] key, byte[] data) {
+    return newMac(hash, key).doFinal(data);
+  }
+
+  /**
+   * @return A Mac initialised with the key. It can be reused for any number of messages, which
+   * is cheaper than calling mac() for each, but is not thread-safe.
+   */
+  public static Mac newMac(HMAC hash, byte[] key) {
     if(key.length != hash.digestSize)
       throw new IllegalArgumentException("Wrong keysize! We're not doing key stretching "+
                                          key.length+" expected "+hash.digestSize);
@@ -46,7 +54,7 @@ public enum HMAC {
       Logger.error(HMAC.class, "Impossible InvalidKeyException", e);
       throw new Error(e);
     }
-    return mac.doFinal(data);
+    return mac;
   }
 
   public static boolean verify(HMAC hash, byte[] key, byte[] data, byte[] mac) {
@@ -4,12 +4,14 @@
 package freenet.io.comm;
 
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import freenet.crypt.EntropySource;
 import freenet.node.FNPPacketMangler;
 import freenet.node.Node;
 import freenet.node.NodeCrypto;
 import freenet.node.PeerNode;
+import freenet.node.SessionKeyIndex;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -30,6 +32,8 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	private NodeCrypto crypto;
 	private Node node;
 	private final EntropySource fnpTimingSource;
+	/** Which peer a packet is probably from, so we don't have to try them all. */
+	private final SessionKeyIndex keyIndex = new SessionKeyIndex();
 
 	public IncomingPacketFilterImpl(FNPPacketMangler mangler, Node node, NodeCrypto crypto) {
 		this.mangler = mangler;
@@ -54,31 +58,65 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return new long[] { decoded, decoded+failed };
 	}
 
+	/** Packets processed. */
+	private static final LongAdder receivedPackets = new LongAdder();
+	/** Times we tried to decrypt a packet with a peer's keys. */
+	private static final LongAdder trialDecrypts = new LongAdder();
+	/** Packets decrypted by the peer expecting their sequence number. */
+	private static final LongAdder hintDecoded = new LongAdder();
+	/** Packets we had to try against every peer. */
+	private static final LongAdder fullScans = new LongAdder();
+
+	/**
+	 * @return The number of packets received, the number of times we have tried to decrypt one
+	 * with a peer's keys, the number decrypted by the peer expected from the sequence number, and
+	 * the number we had to try against every peer.
+	 */
+	public static long[] getTrialDecryptStats() {
+		return new long[] { receivedPackets.sum(), trialDecrypts.sum(), hintDecoded.sum(), fullScans.sum() };
+	}
+
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
-		node.getRandom().acceptTimerEntropy(fnpTimingSource, 0.25);
+		// Called by several receive threads at once in batched mode, and the source is stateful.
+		synchronized(fnpTimingSource) {
+			node.getRandom().acceptTimerEntropy(fnpTimingSource, 0.25);
+		}
+		receivedPackets.increment();
+
+		// Usually the packet is from a peer we've received from recently, and has the next
+		// sequence number.
+		PeerNode hinted = keyIndex.getByHint(buf, offset, length);
+		if(hinted != null && tryPeer(hinted, buf, offset, length, now, peer)) {
+			hintDecoded.increment();
+			return DECODED.DECODED;
+		}
+
 		PeerNode opn = node.getPeers().getByPeer(peer, mangler);
 
 		if(opn != null) {
-			if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
-				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+			if(opn != hinted && tryPeer(opn, buf, offset, length, now, peer))
 				return DECODED.DECODED;
-			}
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
+		// The peer may have been moved to a different port by its NAT.
+		PeerNode cached = keyIndex.getByAddress(peer);
+		if(cached != null && cached != opn && cached != hinted) {
+			if(tryPeer(cached, buf, offset, length, now, peer))
+				return DECODED.DECODED;
+		}
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if(decoded == DECODED.DECODED) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
 			
+			fullScans.increment();
 			for(PeerNode pn : crypto.getPeerNodes()) {
-				if(pn == opn) continue;
-				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+				if(pn == opn || pn == hinted || pn == cached) continue;
+				if(tryPeer(pn, buf, offset, length, now, peer))
 					return DECODED.DECODED;
-				}
 			}
 			
 			if(logMINOR) failedDecodePackets.incrementAndGet();
@@ -86,4 +124,12 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return decoded;
 	}
 
+	private boolean tryPeer(PeerNode pn, byte[] buf, int offset, int length, long now, Peer peer) {
+		trialDecrypts.increment();
+		if(!pn.handleReceivedPacket(buf, offset, length, now, peer)) return false;
+		keyIndex.decoded(peer, pn);
+		if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+		return true;
+	}
+
 }
@@ -25,7 +25,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -49,6 +48,10 @@ import freenet.support.ShortBuffer;
  * 
  * FIXME we should get rid of sub-messages.
  *
+ * The fields are stored in the slots laid out by the MessageType: primitive fields unboxed in a
+ * long[], everything else in an Object[], and a bitmask of which are set. Encoding and decoding
+ * walk the slots in order, reading and writing primitives directly.
+ *
  * @author ian
  */
 public class Message {
@@ -67,10 +70,17 @@ public class Message {
 		});
 	}
 
+	private static final long[] NO_PRIMITIVES = new long[0];
+	private static final Object[] NO_OBJECTS = new Object[0];
+
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	/** Doubles and floats are stored as their bits, booleans as 0 or 1. */
+	private final long[] _primitives;
+	private final Object[] _objects;
+	/** Bit n is set if the field in slot n is set. */
+	private long _set;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -105,14 +115,8 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
+			for (int slot = 0; slot < mspec.fieldCount(); slot++) {
+				m.readField(slot, bb);
 			}
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
@@ -165,6 +169,8 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_primitives = spec.primitiveFields() == 0 ? NO_PRIMITIVES : new long[spec.primitiveFields()];
+		_objects = spec.objectFields() == 0 ? NO_OBJECTS : new Object[spec.objectFields()];
 	}
 
 	/** Drops sub-messages, and makes it locally originated */
@@ -172,55 +178,151 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_primitives = m._primitives.length == 0 ? NO_PRIMITIVES : m._primitives.clone();
+		_objects = m._objects.length == 0 ? NO_OBJECTS : m._objects.clone();
+		_set = m._set;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
 		priority = m.priority;
 	}
 
+	private void readField(int slot, ByteBufferInputStream bb) throws IOException {
+		int index = _spec.indexOf(slot);
+		switch (_spec.kindOf(slot)) {
+		case MessageType.BOOLEAN:
+			byte bool = bb.readByte();
+			// Only 0 and 1 are written, anything else means the message is corrupt.
+			if (bool != 0 && bool != 1) throw new IOException("Boolean is non boolean value: " + bool);
+			_primitives[index] = bool;
+			break;
+		case MessageType.BYTE:
+			_primitives[index] = bb.readByte();
+			break;
+		case MessageType.SHORT:
+			_primitives[index] = bb.readShort();
+			break;
+		case MessageType.INT:
+		case MessageType.FLOAT:
+			_primitives[index] = bb.readInt();
+			break;
+		case MessageType.LONG:
+		case MessageType.DOUBLE:
+			_primitives[index] = bb.readLong();
+			break;
+		default:
+			Class<?> type = _spec.typeOf(slot);
+			Object value;
+			if (type == LinkedList.class) { // Special handling for LinkedList to deal with element type
+				value = Serializer.readListFromDataInputStream(_spec.getLinkedListTypes().get(_spec.nameOf(slot)), bb);
+			} else {
+				value = Serializer.readFromDataInputStream(type, bb);
+				// E.g. Key.read() for a NodeCHK field can return a NodeSSK.
+				if (!type.isInstance(value)) {
+					throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + type);
+				}
+			}
+			_objects[index] = value;
+		}
+		_set |= 1L << slot;
+	}
+
+	/** @return The index of the field if it is a primitive of this kind and is set, otherwise -1. */
+	private int primitiveIndex(String key, byte kind) {
+		int slot = _spec.slotOf(key);
+		if (slot == -1 || _spec.kindOf(slot) != kind || (_set & (1L << slot)) == 0) return -1;
+		return _spec.indexOf(slot);
+	}
+
+	/** @return False if the field isn't a primitive of this kind. */
+	private boolean setPrimitive(String key, byte kind, long value) {
+		int slot = _spec.slotOf(key);
+		if (slot == -1 || _spec.kindOf(slot) != kind) return false;
+		_primitives[_spec.indexOf(slot)] = value;
+		_set |= 1L << slot;
+		return true;
+	}
+
+	// The getters fall back to getObject() when the field isn't set or is of a different type,
+	// which fails in the same way as it always has.
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.BOOLEAN);
+		if (index == -1) return (Boolean) getObject(key);
+		return _primitives[index] != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.BYTE);
+		if (index == -1) return (Byte) getObject(key);
+		return (byte) _primitives[index];
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.SHORT);
+		if (index == -1) return (Short) getObject(key);
+		return (short) _primitives[index];
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.INT);
+		if (index == -1) return (Integer) getObject(key);
+		return (int) _primitives[index];
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.LONG);
+		if (index == -1) return (Long) getObject(key);
+		return _primitives[index];
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.DOUBLE);
+		if (index == -1) return (Double) getObject(key);
+		return Double.longBitsToDouble(_primitives[index]);
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		int index = primitiveIndex(key, MessageType.FLOAT);
+		if (index == -1) return (Float) getObject(key);
+		return Float.intBitsToFloat((int) _primitives[index]);
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if it isn't set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int slot = _spec.slotOf(key);
+		if (slot == -1 || (_set & (1L << slot)) == 0) return null;
+		int index = _spec.indexOf(slot);
+		switch (_spec.kindOf(slot)) {
+		case MessageType.BOOLEAN:
+			return Boolean.valueOf(_primitives[index] != 0);
+		case MessageType.BYTE:
+			return Byte.valueOf((byte) _primitives[index]);
+		case MessageType.SHORT:
+			return Short.valueOf((short) _primitives[index]);
+		case MessageType.INT:
+			return Integer.valueOf((int) _primitives[index]);
+		case MessageType.LONG:
+			return Long.valueOf(_primitives[index]);
+		case MessageType.DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(_primitives[index]));
+		case MessageType.FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) _primitives[index]));
+		default:
+			return _objects[index];
+		}
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -229,31 +331,31 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		if (!setPrimitive(key, MessageType.BOOLEAN, b ? 1 : 0)) set(key, Boolean.valueOf(b));
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		if (!setPrimitive(key, MessageType.BYTE, b)) set(key, Byte.valueOf(b));
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		if (!setPrimitive(key, MessageType.SHORT, s)) set(key, Short.valueOf(s));
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		if (!setPrimitive(key, MessageType.INT, i)) set(key, Integer.valueOf(i));
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		if (!setPrimitive(key, MessageType.LONG, l)) set(key, Long.valueOf(l));
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		if (!setPrimitive(key, MessageType.DOUBLE, Double.doubleToLongBits(d))) set(key, Double.valueOf(d));
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		if (!setPrimitive(key, MessageType.FLOAT, Float.floatToIntBits(f))) set(key, Float.valueOf(f));
 	}
 
 	public void set(String key, Object value) {
@@ -263,7 +365,34 @@ public class Message {
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		int slot = _spec.slotOf(key);
+		int index = _spec.indexOf(slot);
+		switch (_spec.kindOf(slot)) {
+		case MessageType.BOOLEAN:
+			_primitives[index] = ((Boolean) value) ? 1 : 0;
+			break;
+		case MessageType.BYTE:
+			_primitives[index] = (Byte) value;
+			break;
+		case MessageType.SHORT:
+			_primitives[index] = (Short) value;
+			break;
+		case MessageType.INT:
+			_primitives[index] = (Integer) value;
+			break;
+		case MessageType.LONG:
+			_primitives[index] = (Long) value;
+			break;
+		case MessageType.DOUBLE:
+			_primitives[index] = Double.doubleToLongBits((Double) value);
+			break;
+		case MessageType.FLOAT:
+			_primitives[index] = Float.floatToIntBits((Float) value);
+			break;
+		default:
+			_objects[index] = value;
+		}
+		_set |= 1L << slot;
 	}
 
 	public byte[] encodeToPacket() {
@@ -273,12 +402,23 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		if (_spec.objectFields() == 0 && (_subMessages == null || !includeSubMessages)) {
+			// Only primitives, so we know the length and can write them straight into the buffer.
+			byte[] buf = new byte[4 + _spec.primitiveLength()];
+			int offset = writeBigEndian(buf, 0, _spec.getName().hashCode(), 4);
+			for (int slot = 0; slot < _spec.fieldCount(); slot++) {
+				checkSet(slot);
+				offset = writeBigEndian(buf, offset, _primitives[_spec.indexOf(slot)], length(_spec.kindOf(slot)));
+			}
+			if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+			return buf;
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(4 + _spec.primitiveLength() + 64 * _spec.objectFields());
 		DataOutputStream dos = new DataOutputStream(baos);
 		try {
 			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+			for (int slot = 0; slot < _spec.fieldCount(); slot++) {
+				writeField(slot, dos);
 			}
 			dos.flush();
 		} catch (IOException e) {
@@ -304,6 +444,59 @@ public class Message {
 		return buf;
 	}
 
+	private void checkSet(int slot) {
+		if ((_set & (1L << slot)) == 0) {
+			throw new FieldNotSetException(_spec.nameOf(slot)+" not set in "+_spec.getName());
+		}
+	}
+
+	private void writeField(int slot, DataOutputStream dos) throws IOException {
+		checkSet(slot);
+		int index = _spec.indexOf(slot);
+		switch (_spec.kindOf(slot)) {
+		case MessageType.BOOLEAN:
+		case MessageType.BYTE:
+			dos.writeByte((int) _primitives[index]);
+			break;
+		case MessageType.SHORT:
+			dos.writeShort((int) _primitives[index]);
+			break;
+		case MessageType.INT:
+		case MessageType.FLOAT:
+			dos.writeInt((int) _primitives[index]);
+			break;
+		case MessageType.LONG:
+		case MessageType.DOUBLE:
+			dos.writeLong(_primitives[index]);
+			break;
+		default:
+			Serializer.writeToDataOutputStream(_objects[index], dos);
+		}
+	}
+
+	/** @return The encoded length of a primitive field. */
+	private static int length(byte kind) {
+		switch (kind) {
+		case MessageType.BOOLEAN:
+		case MessageType.BYTE:
+			return 1;
+		case MessageType.SHORT:
+			return 2;
+		case MessageType.INT:
+		case MessageType.FLOAT:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+
+	private static int writeBigEndian(byte[] buf, int offset, long value, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			buf[offset++] = (byte) (value >>> (i * 8));
+		}
+		return offset;
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder ret = new StringBuilder(1000);
@@ -311,7 +504,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -331,11 +524,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int slot = _spec.slotOf(fieldName);
+		return slot != -1 && (_set & (1L << slot)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -18,17 +18,15 @@
  */
 package freenet.io.comm;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 
-import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
@@ -36,6 +34,8 @@ import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
+import freenet.support.math.BootstrappingDecayingRunningAverage;
+import freenet.support.math.RunningAverage;
 
 public class MessageCore {
 
@@ -56,8 +56,12 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex(System.currentTimeMillis());
+	private final UnclaimedMessageQueue _unclaimed = new UnclaimedMessageQueue();
+	/** Time spent matching a message against the filters, in microseconds */
+	private final RunningAverage filterMatchTime = new BootstrappingDecayingRunningAverage(0.0, 0.0, Long.MAX_VALUE, 1000, null);
+	/** Number of filters checked per incoming message */
+	private final RunningAverage filtersChecked = new BootstrappingDecayingRunningAverage(0.0, 0.0, Integer.MAX_VALUE, 1000, null);
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
@@ -122,38 +126,22 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		ArrayList<MessageFilter> timedOutFilters;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
-						}
+			// Filters with a callback are all checked, because their client callbacks may say they
+			// should be timed out. The rest are found through the timeout wheel.
+			// See also the end of waitFor() for another weird case.
+			nextTimeout = _filters.removeTimedOut(tStart, nextTimeout);
+			timedOutFilters = _filters.takeTimedOut();
+			if(logMINOR && timedOutFilters != null) {
+				for(MessageFilter f : timedOutFilters) {
+					Logger.minor(this, "Removing "+f);
+					Message m = _unclaimed.findMatch(f, tStart, false);
+					if (m != null) {
+						// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+						Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
@@ -181,7 +169,6 @@ public class MessageCore {
 	 */
 	public void checkFilters(Message m, PacketSocketHandler from) {
 		final boolean logMINOR = MessageCore.logMINOR;
-		final boolean logDEBUG = MessageCore.logDEBUG;
 		long tStart = System.currentTimeMillis();
 		if(logMINOR) Logger.minor(this, "checkFilters: "+m+" from "+m.getSource());
 		if ((m.getSource()) instanceof PeerNode)
@@ -193,34 +180,22 @@ public class MessageCore {
 			Logger.minor(this, "" + (System.currentTimeMillis() % 60000) + ' ' + from + " <- "
 					+ m.getSource() + " : " + m);
 		}
-		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
+		MessageFilter match;
+		ArrayList<MessageFilter> timedOut;
+		long matchStart = System.nanoTime();
+		int checked;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, false, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
+			match = _filters.match(m, tStart);
+			checked = _filters.lastChecked();
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
 			}
+			timedOut = _filters.takeTimedOut();
 		}
+		long matchTime = System.nanoTime() - matchStart;
 		if(timedOut != null) {
 			for(MessageFilter f : timedOut) {
 				if(logMINOR) Logger.minor(this, "Timed out "+f);
@@ -240,7 +215,6 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -265,26 +239,17 @@ public class MessageCore {
 		     * Another race is possible if we merely recheck the
 		     * filters after we return from dispatcher, for example.
 		     */
+			matchStart = System.nanoTime();
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, false, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				match = _filters.match(m, tStart);
+				checked += _filters.lastChecked();
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
 				}
+				timedOut = _filters.takeTimedOut();
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
 				        Message removed = _unclaimed.removeFirst();
@@ -299,6 +264,7 @@ public class MessageCore {
 				    if(logMINOR) Logger.minor(this, "Done");
 				}
 			}
+			matchTime += System.nanoTime() - matchStart;
 			if(match != null) {
 				match.onMatched(_executor);
 			}
@@ -309,6 +275,8 @@ public class MessageCore {
 				}
 			}
 		}
+		filterMatchTime.report(matchTime / 1000.0);
+		filtersChecked.report(checked);
 		long tEnd = System.currentTimeMillis();
 		long dT = tEnd - tStart;
 		if(dT > 50) {
@@ -321,18 +289,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		ArrayList<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeForPeer(ctx, false);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -343,18 +302,9 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+		ArrayList<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+	    	droppedFilters = _filters.removeForPeer(ctx, true);
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -380,7 +330,6 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
 		synchronized (_filters) {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
@@ -391,43 +340,16 @@ public class MessageCore {
 				//but we are holding the _filters lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			// These messages have already arrived, so we can match against them even if we are timed out.
+			ret = _unclaimed.findMatch(filter, now, true);
+			if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			dropOldUnclaimed(now, messageDropTime);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				// The index keeps filters in order of timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added "+filter+" timeout="+timeout);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -472,45 +394,16 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = _unclaimed.findMatch(filter, startTime, true);
+			if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
+			dropOldUnclaimed(now, messageDropTime);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				// The index keeps filters in order of timeout
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added "+filter+" timeout="+filter.getTimeout());
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -525,21 +418,32 @@ public class MessageCore {
 		// So we have to release it here
 		if(ret == null) {	
 			if(logMINOR) Logger.minor(this, "Waiting...");
-			synchronized (filter) {
-				try {
-					// Precaution against filter getting matched between being added to _filters and
-					// here - bug discovered by Mason
-					// Check reallyTimedOut() too a) for paranoia, b) for filters with a callback (we could conceivably waitFor() them).
-				    while(!(filter.matched() || (filter.droppedConnection() != null) || (filter.reallyTimedOut(now = System.currentTimeMillis())))) {
-						long wait = filter.getTimeout()-now;
-						if(wait <= 0)
+			// Park rather than wait on the filter's monitor, so that a virtual thread
+			// doesn't pin its carrier thread while waiting. The filter unparks us.
+			filter.setWaiter(Thread.currentThread());
+			try {
+				while(true) {
+					long wait;
+					synchronized (filter) {
+						// Precaution against filter getting matched between being added to _filters and
+						// here - bug discovered by Mason
+						// Check reallyTimedOut() too a) for paranoia, b) for filters with a callback (we could conceivably waitFor() them).
+						if(filter.matched() || (filter.droppedConnection() != null) || (filter.reallyTimedOut(now = System.currentTimeMillis())))
 							break;
-						filter.wait(wait);
+						wait = filter.getTimeout()-now;
 					}
-				    if(filter.droppedConnection() != null)
-				        throw new DisconnectedException();
-				} catch (InterruptedException e) {
+					if(wait <= 0)
+						break;
+					LockSupport.parkNanos(filter, MILLISECONDS.toNanos(wait));
+					if(Thread.interrupted())
+						break;
 				}
+			} finally {
+				filter.setWaiter(null);
+			}
+			synchronized (filter) {
+				if(filter.droppedConnection() != null)
+					throw new DisconnectedException();
 				ret = filter.getMessage();
 			}
 			if(logMINOR) Logger.minor(this, "Returning "+ret+" from "+filter);
@@ -552,7 +456,7 @@ public class MessageCore {
 			// E.g. the filter can be matched and yet we timeout at the same time.
 			// Hence we need to be absolutely sure that when we remove it it hasn't been matched.
 			// Note also that the locking does work here - the filter lock is taken last, and
-			// _filters protects both the unwanted messages (above), the filter list, and 
+			// _filters protects both the unwanted messages (above), the filter index, and 
 			// is taken when a match is found too.
 			if(ret == null) {
 				// Check again.
@@ -562,10 +466,7 @@ public class MessageCore {
 			}
 			filter.clearMatched();
 			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
+			// it will be in the index twice.
 			_filters.remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		}
@@ -611,21 +512,58 @@ public class MessageCore {
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				String messageName = m.getSpec().getName();
-				Integer messageCount = messageCounts.get(messageName);
-				if (messageCount == null) {
-					messageCounts.put(messageName, 1);
-				} else {
-					messageCount = messageCount + 1;
-					messageCounts.put(messageName, messageCount );
-				}
-			}
+			_unclaimed.countByName(messageCounts);
 		}
 		return messageCounts;
 	}
 
+	/**
+	 * @return the number of filters currently waiting for a message
+	 */
+	public int getFilterCount() {
+		synchronized (_filters) {
+			return _filters.size();
+		}
+	}
+
+	/**
+	 * @return the number of waiting filters which can match any message type, and therefore
+	 * have to be checked against every incoming message
+	 */
+	public int getUnindexedFilterCount() {
+		synchronized (_filters) {
+			return _filters.unindexedSize();
+		}
+	}
+
+	/**
+	 * @return the average time spent matching an incoming message against the filters, in
+	 * microseconds
+	 */
+	public double getFilterMatchTimeAverage() {
+		return filterMatchTime.currentValue();
+	}
+
+	/**
+	 * @return the average number of filters an incoming message is checked against
+	 */
+	public double getFiltersCheckedAverage() {
+		return filtersChecked.currentValue();
+	}
+
+	/** Drop unclaimed messages older than dropTime. Caller must hold the _filters lock. */
+	private void dropOldUnclaimed(long now, long dropTime) {
+		Message m;
+		while((m = _unclaimed.removeFirstOlderThan(dropTime)) != null) {
+			long messageLifeTime = now - m.localInstantiationTime;
+			if ((m.getSource()) instanceof PeerNode) {
+				Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			} else {
+				Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			}
+		}
+	}
+
 	public Executor getExecutor() {
 		return _executor;
 	}
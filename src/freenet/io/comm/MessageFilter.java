@@ -21,6 +21,7 @@ package freenet.io.comm;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 import freenet.node.PrioRunnable;
 import freenet.support.Executor;
@@ -59,6 +60,8 @@ public final class MessageFilter {
     private AsyncMessageFilterCallback _callback;
     private ByteCounter _ctr;
     private boolean _setTimeout = false;
+    /** The thread blocked in MessageCore.waitFor() on this filter, if any. */
+    private volatile Thread _waiter;
 
     private MessageFilter() {
         _timeoutFromWait = true;
@@ -138,6 +141,28 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	/** The type this filter matches, or null if it matches any type. Does not include the or()'ed
+	 * filters, see getOr(). */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The next filter in the or() chain, or null. */
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/**
+	 * @return The value a message must have for the given field to match this filter, or null
+	 * if this filter does not constrain the field. Does not include the or()'ed filters.
+	 */
+	Object getFieldValue(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return i >= 0 ? _fields.get(i) : null;
+		}
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -275,6 +300,20 @@ public final class MessageFilter {
 		return reallyTimedOut(time);
 	}
 
+    /** Set or clear the thread to wake up when the filter is matched, times out or its
+     * connection drops. */
+    void setWaiter(Thread waiter) {
+        _waiter = waiter;
+    }
+
+    /** Waiters park rather than wait on the filter's monitor, so that a virtual thread waiting
+     * doesn't hold on to its carrier thread. */
+    private void wakeWaiter() {
+        Thread waiter = _waiter;
+        if(waiter != null)
+            LockSupport.unpark(waiter);
+    }
+
     public Message getMessage() {
         return _message;
     }
@@ -284,7 +323,7 @@ public final class MessageFilter {
         _message = message;
         // Avoid race conditions where it is removed from the filter list because of a timeout but not woken up.
         _matched = true;
-        notifyAll();
+        wakeWaiter();
     }
 
     public long getInitialTimeout() {
@@ -339,7 +378,7 @@ public final class MessageFilter {
     	synchronized(this) {
     		cb = _callback;
     		_droppedConnection = ctx;
-    		notifyAll();
+    		wakeWaiter();
     		_ctr = null;
     	}
     	if(cb != null) {
@@ -374,7 +413,7 @@ public final class MessageFilter {
     	synchronized(this) {
     		_droppedConnection = ctx;
     		cb = _callback;
-    		notifyAll();
+    		wakeWaiter();
     		_ctr = null;
     	}
     	if(cb != null) {
@@ -443,7 +482,7 @@ public final class MessageFilter {
 	public void onTimedOut(Executor executor) {
 		final AsyncMessageFilterCallback cb;
 		synchronized(this) {
-			notifyAll();
+			wakeWaiter();
 			cb = _callback;
 		}
 		if(cb != null) {
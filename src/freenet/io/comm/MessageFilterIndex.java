@@ -0,0 +1,393 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The MessageFilter's which are waiting for a message, indexed so that an incoming message is
+ * only checked against the filters which could possibly match it.
+ *
+ * Every filter in an or() chain which specifies a MessageType is filed under (type, source, uid),
+ * where source and uid are null if the filter doesn't constrain them. A message can then only
+ * match filters in four buckets: (type, source, uid), (type, source, null), (type, null, uid) and
+ * (type, null, null). If any filter in a chain has no type, the chain can match anything, so it
+ * goes on the unindexed list, which is always checked.
+ *
+ * Within a bucket, filters are kept in the order they would have had on the old single list,
+ * i.e. by their timeout when added and then by the order they were added in. The filter which
+ * would have been first on that list wins, so which filter gets a message does not change.
+ *
+ * Filters without a callback are expired by a hashed timeout wheel, so we don't need to look at
+ * every filter to find the ones that have timed out. Filters with a callback are still polled on
+ * every sweep, because AsyncMessageFilterCallback.shouldTimeout() can time them out at any time.
+ *
+ * Not thread-safe: MessageCore synchronizes on the index.
+ */
+final class MessageFilterIndex {
+
+	/** Length of one slot of the timeout wheel */
+	static final long WHEEL_TICK = 100;
+	/** Number of slots in the timeout wheel. Filters which time out further ahead than one
+	 * revolution are simply skipped until the wheel comes round to them again. */
+	static final int WHEEL_SLOTS = 1024;
+
+	private static final class Entry {
+		final MessageFilter filter;
+		/** Timeout when added. Determines priority, like the position on the old list did. */
+		final long timeout;
+		/** Tie-break for filters with the same timeout: first added has priority. */
+		final long seq;
+		/** Buckets the filter is in, or null if it is on the unindexed list. */
+		final Key[] keys;
+		int wheelSlot = -1;
+		int wheelPos;
+		int callbackPos = -1;
+
+		Entry(MessageFilter filter, long seq, Key[] keys) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.keys = keys;
+		}
+	}
+
+	private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			if(e1.timeout != e2.timeout) return e1.timeout < e2.timeout ? -1 : 1;
+			if(e1.seq != e2.seq) return e1.seq < e2.seq ? -1 : 1;
+			return 0;
+		}
+
+	};
+
+	private static final class Key {
+		MessageType type;
+		PeerContext source;
+		Object uid;
+		int hashCode;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			set(type, source, uid);
+		}
+
+		void set(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			int h = type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			if(uid != null) h = h * 31 + uid.hashCode();
+			hashCode = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(hashCode != k.hashCode) return false;
+			if(!type.equals(k.type)) return false;
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			if(uid == null ? k.uid != null : !uid.equals(k.uid)) return false;
+			return true;
+		}
+	}
+
+	private final IdentityHashMap<MessageFilter, Entry> entries = new IdentityHashMap<MessageFilter, Entry>();
+	private final HashMap<Key, ArrayList<Entry>> buckets = new HashMap<Key, ArrayList<Entry>>();
+	private final ArrayList<Entry> unindexed = new ArrayList<Entry>();
+	private final ArrayList<Entry> withCallback = new ArrayList<Entry>();
+	private final ArrayList<Entry>[] wheel;
+	/** The wheel has been swept up to and including this tick. */
+	private long wheelTick;
+	private long nextSeq;
+	/** Reused for lookups so that matching a message doesn't allocate. */
+	private final Key probe = new Key(DMT.packetTransmit, null, null);
+	/** Filters which timed out while matching or sweeping, for the caller to notify. */
+	private ArrayList<MessageFilter> timedOut;
+	/** Number of filters match() was called on by the last match(). */
+	private int lastChecked;
+
+	@SuppressWarnings("unchecked")
+	MessageFilterIndex(long now) {
+		wheel = (ArrayList<Entry>[]) new ArrayList<?>[WHEEL_SLOTS];
+		for(int i=0;i<WHEEL_SLOTS;i++)
+			wheel[i] = new ArrayList<Entry>();
+		wheelTick = now / WHEEL_TICK;
+	}
+
+	/** Add a filter. Its timeout must already have been set by onStartWaiting(). */
+	void add(MessageFilter filter) {
+		Entry old = entries.remove(filter);
+		if(old != null) {
+			Logger.error(this, "Filter "+filter+" is in filter list twice!");
+			unlink(old);
+		}
+		Entry e = new Entry(filter, nextSeq++, keysFor(filter));
+		entries.put(filter, e);
+		if(e.keys == null) {
+			insert(unindexed, e);
+		} else {
+			for(Key key : e.keys) {
+				ArrayList<Entry> bucket = buckets.get(key);
+				if(bucket == null) {
+					bucket = new ArrayList<Entry>(2);
+					buckets.put(key, bucket);
+				}
+				insert(bucket, e);
+			}
+		}
+		if(filter.hasCallback()) {
+			e.callbackPos = withCallback.size();
+			withCallback.add(e);
+		} else if(e.timeout != Long.MAX_VALUE) {
+			int slot = (int) (Math.max(e.timeout / WHEEL_TICK, wheelTick) % WHEEL_SLOTS);
+			e.wheelSlot = slot;
+			e.wheelPos = wheel[slot].size();
+			wheel[slot].add(e);
+		}
+	}
+
+	/** @return True if the filter was in the index. */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if(e == null) return false;
+		unlink(e);
+		return true;
+	}
+
+	/**
+	 * Find the filter which gets the message, and remove it. Filters found to have timed out on
+	 * the way are removed too, and must be collected with takeTimedOut().
+	 * @return The matched filter, or null.
+	 */
+	MessageFilter match(Message m, long now) {
+		MessageType spec = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		lastChecked = 0;
+		Entry best = scan(unindexed, m, now, null);
+		best = scan(spec, source, uid, m, now, best);
+		if(uid != null)
+			best = scan(spec, source, null, m, now, best);
+		if(source != null) {
+			best = scan(spec, null, uid, m, now, best);
+			if(uid != null)
+				best = scan(spec, null, null, m, now, best);
+		}
+		if(best == null) return null;
+		entries.remove(best.filter);
+		unlink(best);
+		return best.filter;
+	}
+
+	private Entry scan(MessageType spec, PeerContext source, Object uid, Message m, long now, Entry best) {
+		probe.set(spec, source, uid);
+		ArrayList<Entry> bucket = buckets.get(probe);
+		if(bucket == null) return best;
+		return scan(bucket, m, now, best);
+	}
+
+	/** @return The first filter in the bucket that matches, if it comes before best; else best. */
+	private Entry scan(ArrayList<Entry> bucket, Message m, long now, Entry best) {
+		for(int i=0;i<bucket.size();i++) {
+			Entry e = bucket.get(i);
+			// Anything from here on would have come after best on the old list.
+			if(best != null && ORDER.compare(e, best) >= 0) break;
+			MessageFilter f = e.filter;
+			lastChecked++;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				entries.remove(f);
+				unlink(e);
+				i--;
+				continue;
+			}
+			MATCHED status = f.match(m, false, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				addTimedOut(e);
+				i--;
+			} else if(status == MATCHED.MATCHED) {
+				return e;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Remove filters which have timed out. They must be collected with takeTimedOut().
+	 * @param nextTimeout The latest time at which the caller wants to sweep again.
+	 * @return The earliest timeout of a filter with a callback, if it is before nextTimeout.
+	 */
+	long removeTimedOut(long now, long nextTimeout) {
+		long nowTick = now / WHEEL_TICK;
+		for(long tick = Math.max(wheelTick, nowTick - WHEEL_SLOTS + 1); tick <= nowTick; tick++) {
+			ArrayList<Entry> slot = wheel[(int) (tick % WHEEL_SLOTS)];
+			// Backwards, because removal moves the last entry into the gap.
+			for(int i=slot.size()-1;i>=0;i--) {
+				if(i >= slot.size()) continue;
+				Entry e = slot.get(i);
+				if(e.filter.timedOut(now))
+					addTimedOut(e);
+			}
+		}
+		// Don't advance past the current tick: filters may still be added to it.
+		wheelTick = nowTick;
+		for(int i=withCallback.size()-1;i>=0;i--) {
+			if(i >= withCallback.size()) continue;
+			Entry e = withCallback.get(i);
+			if(e.filter.timedOut(now)) {
+				addTimedOut(e);
+			} else if(nextTimeout > e.filter.getTimeout()) {
+				nextTimeout = e.filter.getTimeout();
+			}
+		}
+		return nextTimeout;
+	}
+
+	/**
+	 * Remove all filters which are waiting for a message from the given peer.
+	 * @param restarted If true, the peer has restarted, otherwise it has disconnected.
+	 * @return The removed filters, or null if there are none.
+	 */
+	ArrayList<MessageFilter> removeForPeer(PeerContext ctx, boolean restarted) {
+		ArrayList<MessageFilter> removed = null;
+		for(Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+			Entry e = i.next();
+			MessageFilter f = e.filter;
+			if(restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+				if(removed == null)
+					removed = new ArrayList<MessageFilter>();
+				removed.add(f);
+				i.remove();
+				unlink(e);
+			}
+		}
+		return removed;
+	}
+
+	/** @return Filters which have timed out since the last call, or null if there are none. */
+	ArrayList<MessageFilter> takeTimedOut() {
+		ArrayList<MessageFilter> ret = timedOut;
+		timedOut = null;
+		return ret;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	int unindexedSize() {
+		return unindexed.size();
+	}
+
+	int bucketCount() {
+		return buckets.size();
+	}
+
+	/** @return The number of filters which the last call to match() had to check. */
+	int lastChecked() {
+		return lastChecked;
+	}
+
+	private void addTimedOut(Entry e) {
+		if(timedOut == null)
+			timedOut = new ArrayList<MessageFilter>();
+		timedOut.add(e.filter);
+		entries.remove(e.filter);
+		unlink(e);
+	}
+
+	/** Remove from everything except entries. */
+	private void unlink(Entry e) {
+		if(e.keys == null) {
+			remove(unindexed, e);
+		} else {
+			for(Key key : e.keys) {
+				ArrayList<Entry> bucket = buckets.get(key);
+				if(bucket == null) continue;
+				remove(bucket, e);
+				if(bucket.isEmpty())
+					buckets.remove(key);
+			}
+		}
+		if(e.wheelSlot >= 0) {
+			removeSwap(wheel[e.wheelSlot], e.wheelPos, false);
+			e.wheelSlot = -1;
+		}
+		if(e.callbackPos >= 0) {
+			removeSwap(withCallback, e.callbackPos, true);
+			e.callbackPos = -1;
+		}
+	}
+
+	/** Remove an element from an unordered list by moving the last element into its place. */
+	private static void removeSwap(ArrayList<Entry> list, int pos, boolean callbackList) {
+		Entry last = list.remove(list.size()-1);
+		if(pos < list.size()) {
+			list.set(pos, last);
+			if(callbackList)
+				last.callbackPos = pos;
+			else
+				last.wheelPos = pos;
+		}
+	}
+
+	private static void insert(ArrayList<Entry> list, Entry e) {
+		// Usually goes at the end, as most filters have similar timeouts.
+		int size = list.size();
+		if(size == 0 || ORDER.compare(list.get(size-1), e) < 0) {
+			list.add(e);
+			return;
+		}
+		int idx = Collections.binarySearch(list, e, ORDER);
+		list.add(-(idx+1), e);
+	}
+
+	private static void remove(ArrayList<Entry> list, Entry e) {
+		int idx = Collections.binarySearch(list, e, ORDER);
+		if(idx >= 0)
+			list.remove(idx);
+	}
+
+	/** @return The keys for a filter chain, or null if it can't be indexed. */
+	private static Key[] keysFor(MessageFilter filter) {
+		int count = 0;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			if(f.getType() == null) return null;
+			count++;
+		}
+		Key[] keys = new Key[count];
+		count = 0;
+		outer: for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Key key = new Key(f.getType(), f.getSource(), f.getFieldValue(DMT.UID));
+			for(int i=0;i<count;i++)
+				if(keys[i].equals(key)) continue outer;
+			keys[count++] = key;
+		}
+		if(count < keys.length) {
+			Key[] k = new Key[count];
+			System.arraycopy(keys, 0, k, 0, count);
+			keys = k;
+		}
+		return keys;
+	}
+
+}
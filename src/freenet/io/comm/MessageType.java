@@ -19,6 +19,7 @@
 
 package freenet.io.comm;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -31,12 +32,36 @@ public class MessageType {
 
     public static final String VERSION = "$Id: MessageType.java,v 1.6 2005/08/25 17:28:19 amphibian Exp $";
 
+	/** Field kinds. Primitive fields are kept unboxed in Message, everything else is an OBJECT. */
+	static final byte OBJECT = 0;
+	static final byte BOOLEAN = 1;
+	static final byte BYTE = 2;
+	static final byte SHORT = 3;
+	static final byte INT = 4;
+	static final byte LONG = 5;
+	static final byte DOUBLE = 6;
+	static final byte FLOAT = 7;
+	/** Message keeps a bitmask of which fields are set. DMT's biggest type has 16. */
+	static final int MAX_FIELDS = 64;
+
 	private static HashMap<Integer, MessageType> _specs = new HashMap<Integer, MessageType>();
 
 	private final String _name;
 	private final LinkedList<String> _orderedFields = new LinkedList<String>();
 	private final HashMap<String, Class<?>> _fields = new HashMap<String, Class<?>>();
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
+	/** Field name to slot, which is its position in _orderedFields. */
+	private final HashMap<String, Integer> _slots = new HashMap<String, Integer>();
+	/** Per slot: the kind of the field, its type, and its index in Message's primitive or
+	 * object array. */
+	private String[] _names = new String[0];
+	private byte[] _kinds = new byte[0];
+	private Class<?>[] _types = new Class<?>[0];
+	private int[] _index = new int[0];
+	private int _primitiveFields;
+	private int _objectFields;
+	/** Bytes taken by the primitive fields when encoded. */
+	private int _primitiveLength;
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
@@ -68,8 +93,38 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		int slot = _kinds.length;
+		if (slot == MAX_FIELDS) {
+			throw new IllegalStateException("Too many fields in the message type \"" + getName() + "\".");
+		}
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		_slots.put(name, slot);
+		byte kind = kindOf(type);
+		_names = Arrays.copyOf(_names, slot + 1);
+		_kinds = Arrays.copyOf(_kinds, slot + 1);
+		_types = Arrays.copyOf(_types, slot + 1);
+		_index = Arrays.copyOf(_index, slot + 1);
+		_names[slot] = name;
+		_kinds[slot] = kind;
+		_types[slot] = type;
+		if (kind == OBJECT) {
+			_index[slot] = _objectFields++;
+		} else {
+			_index[slot] = _primitiveFields++;
+			_primitiveLength += Serializer.length(type, 0);
+		}
+	}
+
+	private static byte kindOf(Class<?> type) {
+		if (type == Boolean.class) return BOOLEAN;
+		if (type == Byte.class) return BYTE;
+		if (type == Short.class) return SHORT;
+		if (type == Integer.class) return INT;
+		if (type == Long.class) return LONG;
+		if (type == Double.class) return DOUBLE;
+		if (type == Float.class) return FLOAT;
+		return OBJECT;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -98,6 +153,47 @@ public class MessageType {
 		return _fields.get(field);
 	}
 
+	/** @return The slot of the field, or -1 if there is no such field. */
+	int slotOf(String field) {
+		Integer slot = _slots.get(field);
+		return slot == null ? -1 : slot;
+	}
+
+	int fieldCount() {
+		return _kinds.length;
+	}
+
+	String nameOf(int slot) {
+		return _names[slot];
+	}
+
+	byte kindOf(int slot) {
+		return _kinds[slot];
+	}
+
+	Class<?> typeOf(int slot) {
+		return _types[slot];
+	}
+
+	/** @return The index of the field's value in Message's primitive or object array. */
+	int indexOf(int slot) {
+		return _index[slot];
+	}
+
+	int primitiveFields() {
+		return _primitiveFields;
+	}
+
+	int objectFields() {
+		return _objectFields;
+	}
+
+	/** @return The encoded length of the primitive fields. This is the whole message, apart from
+	 * the type, if there are no object fields. */
+	int primitiveLength() {
+		return _primitiveLength;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (!(o instanceof MessageType)) {
@@ -0,0 +1,82 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * One of several threads which decrypt and dispatch the packets received by a UdpSocketHandler,
+ * used when there is more than one packet receiver thread. Packets are given to the worker chosen
+ * by the sender's address, so packets from any one peer are still processed in the order they
+ * arrived, while packets from different peers are decrypted in parallel.
+ */
+final class PacketReceiveWorker implements Runnable {
+
+	private final UdpSocketHandler handler;
+	private final NativeThread thread;
+	private final ArrayDeque<UdpSocketHandler.ReceivedPacket> queue = new ArrayDeque<UdpSocketHandler.ReceivedPacket>();
+	private boolean closed;
+
+	PacketReceiveWorker(UdpSocketHandler handler, int index) {
+		this.handler = handler;
+		thread = new NativeThread(this, "Packet receiver " + index + " for " + handler.getPortNumber(), NativeThread.MAX_PRIORITY, false);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/** @return The index of the worker which processes packets from the given address. */
+	static int workerFor(Peer peer, int count) {
+		return (peer.hashCode() & Integer.MAX_VALUE) % count;
+	}
+
+	/** Queue a batch of packets, in the order they were received. */
+	synchronized void queue(List<UdpSocketHandler.ReceivedPacket> packets) {
+		if(closed) {
+			for(UdpSocketHandler.ReceivedPacket p : packets)
+				handler.release(p);
+			return;
+		}
+		boolean wasEmpty = queue.isEmpty();
+		queue.addAll(packets);
+		if(wasEmpty) notifyAll();
+	}
+
+	synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			UdpSocketHandler.ReceivedPacket p;
+			synchronized(this) {
+				while(queue.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				p = queue.poll();
+				if(p == null) return;
+			}
+			try {
+				handler.processPacket(p.data, p.length, p.peer, p.time);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t, t);
+			} finally {
+				handler.release(p);
+			}
+		}
+	}
+
+}
@@ -22,6 +22,16 @@ public interface PacketSocketHandler extends SocketHandler {
      */
     public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException;
 
+    /**
+     * Send part of a buffer as a packet. The packet has been sent, or dropped, when this
+     * returns, so the caller can reuse the buffer.
+     * @param data The buffer containing the packet.
+     * @param offset The offset of the packet in the buffer.
+     * @param length The length of the packet.
+     * @param destination The peer to send it to.
+     */
+    public void sendPacket(byte[] data, int offset, int length, Peer destination, boolean allowLocalAddresses) throws LocalAddressException;
+
     /**
      * Get the size of the transport layer headers, for byte accounting purposes.
      */
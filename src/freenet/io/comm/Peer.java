@@ -23,6 +23,7 @@ import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Comparator;
 
@@ -49,6 +50,8 @@ public class Peer implements WritableToDataOutputStream {
 
     private final FreenetInetAddress addr;
 	private final int _port;
+	/** Last socket address we sent to, so we don't create a new one for every packet. */
+	private volatile InetSocketAddress socketAddress;
 
 	public Peer(DataInput dis) throws IOException {
 		addr = new FreenetInetAddress(dis);
@@ -235,6 +238,19 @@ public class Peer implements WritableToDataOutputStream {
 		return addr.getHandshakeAddress();
 	}
 	
+	/**
+	 * Get a socket address for the given IP address (normally the result of getAddress()) and
+	 * our port, reusing the last one if the address hasn't changed.
+	 */
+	InetSocketAddress getSocketAddress(InetAddress address) {
+		InetSocketAddress sa = socketAddress;
+		if(sa == null || !address.equals(sa.getAddress())) {
+			sa = new InetSocketAddress(address, _port);
+			socketAddress = sa;
+		}
+		return sa;
+	}
+	
 	@Override
 	public int hashCode() {
 		return addr.hashCode() + _port;
@@ -9,8 +9,13 @@ import java.net.SocketTimeoutException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.UnsupportedAddressTypeException;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import com.sun.jna.LastErrorException;
 import com.sun.jna.Native;
@@ -21,6 +26,7 @@ import freenet.io.AddressTracker;
 import freenet.io.comm.Peer.LocalAddressException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
+import freenet.support.LRUMap;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
 import sun.misc.Unsafe;
@@ -48,6 +54,35 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector ioStatistics;
+	/** Peer for each recently seen source address, so we don't create one for every packet. */
+	private final LRUMap<InetSocketAddress, Peer> peerCache = new LRUMap<InetSocketAddress, Peer>();
+	/** If not null, packets are read in batches and processed by these threads. */
+	private final PacketReceiveWorker[] receiveWorkers;
+	/** Packets read but not yet given to a worker, by worker. Only used by the receiving thread. */
+	private final ArrayList<ArrayList<ReceivedPacket>> pendingPackets;
+	/** Buffers which are not being used by a worker */
+	private final ArrayBlockingQueue<ReceivedPacket> freePackets;
+	private int allocatedPackets;
+	private final Selector selector;
+	/** Batched mode: used by senders to wait for room in the send buffer. LOCKING: Senders
+	 * waiting for room synchronize on it. */
+	private final Selector writeSelector;
+
+	private static final int PEER_CACHE_SIZE = 1024;
+	/** Maximum number of packets read from the socket in one go in batched mode. */
+	private static final int RECEIVE_BATCH_SIZE = 64;
+	/** Maximum number of packets read but not yet processed in batched mode. */
+	private static final int RECEIVE_POOL_SIZE = 512;
+
+	/** A packet read in batched mode, on its way to a PacketReceiveWorker. Reused. */
+	static final class ReceivedPacket {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+		/** IncomingPacketFilter needs an array, so we copy out of the direct buffer once. */
+		final byte[] data = new byte[MAX_RECEIVE_SIZE];
+		int length;
+		Peer peer;
+		long time;
+	}
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -144,6 +179,28 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port " + listenPort + " is a " + (r ? "success" : "failure"));
 		}
 
+		int threads = node.getPacketReceiverThreads();
+		if(threads > 1) {
+			datagramChannel.configureBlocking(false);
+			selector = Selector.open();
+			datagramChannel.register(selector, SelectionKey.OP_READ);
+			writeSelector = Selector.open();
+			datagramChannel.register(writeSelector, SelectionKey.OP_WRITE);
+			receiveWorkers = new PacketReceiveWorker[threads];
+			pendingPackets = new ArrayList<ArrayList<ReceivedPacket>>(threads);
+			for(int i = 0; i < threads; i++) {
+				receiveWorkers[i] = new PacketReceiveWorker(this, i);
+				pendingPackets.add(new ArrayList<ReceivedPacket>());
+			}
+			freePackets = new ArrayBlockingQueue<ReceivedPacket>(RECEIVE_POOL_SIZE);
+		} else {
+			selector = null;
+			writeSelector = null;
+			receiveWorkers = null;
+			pendingPackets = null;
+			freePackets = null;
+		}
+
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.getFastWeakRandom();
 		tracker = AddressTracker.create(node.getLastBootId(), node.runDir(), listenPort);
@@ -209,7 +266,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private void runLoop() {
 		while (_active) {
 			try {
-				realRun();
+				if(receiveWorkers != null)
+					receiveBatch();
+				else
+					realRun();
 			} catch (Throwable t) {
 				System.err.println("Caught "+t);
 				t.printStackTrace(System.err);
@@ -223,7 +283,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		long now = System.currentTimeMillis();
 		if (remote != null) {
 			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(remote.getAddress(), remote.getPort());
+			Peer peer = getPeer(remote);
 			tracker.receivedPacketFrom(peer);
 			long endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
@@ -233,33 +293,129 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 				}
 			}
+			processPacket(receiveBuffer.array(), receiveBuffer.limit(), peer, now);
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
 
-			try {
-				if(logMINOR) {
-					Logger.minor(this, "Processing packet of length " + receiveBuffer.limit() + " from " + peer);
+	/**
+	 * Pass a received packet to the low level filter. Called by the workers in batched mode, so
+	 * packets from different addresses are processed in parallel; packets from one address are
+	 * always processed by the same worker, in order.
+	 */
+	void processPacket(byte[] buf, int length, Peer peer, long now) {
+		try {
+			if(logMINOR) {
+				Logger.minor(this, "Processing packet of length " + length + " from " + peer);
+			}
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(buf, 0, length, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
 				}
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(receiveBuffer.array(), 0, receiveBuffer.limit(), peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
+			}
+			if(logMINOR) {
+				Logger.minor(this, "Successfully handled packet length " + length);
+			}
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
+	private Peer getPeer(InetSocketAddress remote) {
+		Peer peer = peerCache.get(remote);
+		if(peer == null) {
+			peer = new Peer(remote.getAddress(), remote.getPort());
+			peerCache.push(remote, peer);
+			if(peerCache.size() > PEER_CACHE_SIZE)
+				peerCache.popKey();
+		}
+		return peer;
+	}
+
+	/**
+	 * Batched mode: wait for the socket to be readable, read everything waiting (up to
+	 * RECEIVE_BATCH_SIZE packets), and give the packets to the workers, one batch per worker.
+	 */
+	private void receiveBatch() {
+		int received = 0;
+		try {
+			selector.select();
+			selector.selectedKeys().clear();
+			while(received < RECEIVE_BATCH_SIZE && _active) {
+				// If every buffer is in use, wait for the workers before reading the first packet,
+				// rather than spinning on a readable socket. The kernel will buffer or drop packets.
+				ReceivedPacket p = allocatePacket(received == 0);
+				if(p == null) break;
+				p.buffer.clear();
+				InetSocketAddress remote = (InetSocketAddress) datagramChannel.receive(p.buffer);
+				if(remote == null) {
+					release(p);
+					break;
 				}
-				if(logMINOR) {
-					Logger.minor(this, "Successfully handled packet length " + receiveBuffer.limit());
+				p.time = System.currentTimeMillis();
+				p.buffer.flip();
+				p.length = p.buffer.remaining();
+				p.buffer.get(p.data, 0, p.length);
+				p.peer = getPeer(remote);
+				InetAddress address = remote.getAddress();
+				ioStatistics.reportReceivedBytes(address, getHeadersLength(address) + p.length);
+				tracker.receivedPacketFrom(p.peer);
+				pendingPackets.get(PacketReceiveWorker.workerFor(p.peer, receiveWorkers.length)).add(p);
+				received++;
+			}
+		} catch (IOException e) {
+			if (_active) throw new RuntimeException(e);
+		} finally {
+			if(received > 0) {
+				for(int i = 0; i < receiveWorkers.length; i++) {
+					ArrayList<ReceivedPacket> batch = pendingPackets.get(i);
+					if(batch.isEmpty()) continue;
+					receiveWorkers[i].queue(batch);
+					batch.clear();
 				}
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
+				if(logMINOR) Logger.minor(this, "Received " + received + " packets");
 			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
 	}
 
+	private ReceivedPacket allocatePacket(boolean wait) {
+		ReceivedPacket p = freePackets.poll();
+		if(p != null) return p;
+		if(allocatedPackets < RECEIVE_POOL_SIZE) {
+			allocatedPackets++;
+			return new ReceivedPacket();
+		}
+		if(!wait) return null;
+		try {
+			return freePackets.poll(100, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+
+	/** Return a packet's buffers to the pool once it has been processed. */
+	void release(ReceivedPacket p) {
+		p.peer = null;
+		freePackets.offer(p);
+	}
+
+	/** Batched mode: the number of receive buffers allocated so far. For tests. */
+	int allocatedPackets() {
+		return allocatedPackets;
+	}
+
+	/** Batched mode: the number of receive buffers which are not being used. For tests. */
+	int freePackets() {
+		return freePackets.size();
+	}
+
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
 	private InetSocketAddress receive() {
@@ -289,6 +445,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	 */
 	@Override
 	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
+		sendPacket(blockToSend, 0, blockToSend.length, destination, allowLocalAddresses);
+	}
+
+	@Override
+	public void sendPacket(byte[] data, int offset, int length, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
 		if(!_active) {
 			Logger.error(this, "Trying to send packet but no longer active");
 			// It is essential that for recording accurate AddressTracker data that we don't send any more
@@ -296,7 +457,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			return;
 		}
 
-		ByteBuffer packet = ByteBuffer.wrap(blockToSend);
+		ByteBuffer packet = ByteBuffer.wrap(data, offset, length);
 		int port = destination.getPort();
 		InetAddress address;
 		// there should be no DNS needed here, but go ahead if we can, but complain doing it
@@ -315,11 +476,15 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 
 		try {
-			datagramChannel.send(packet, new InetSocketAddress(address, port));
+			InetSocketAddress target = destination.getSocketAddress(address);
+			if(datagramChannel.send(packet, target) == 0) {
+				// Only happens in batched mode, where the channel is non-blocking.
+				if(sendWhenWritable(packet, target) == 0) return;
+			}
 			tracker.sentPacketTo(destination);
-            ioStatistics.reportSentBytes(address, getHeadersLength(address) + blockToSend.length);
+            ioStatistics.reportSentBytes(address, getHeadersLength(address) + length);
 			if (logMINOR) {
-				Logger.minor(this, "Sent packet length " + blockToSend.length + " to " + address + ':' + port);
+				Logger.minor(this, "Sent packet length " + length + " to " + address + ':' + port);
 			}
 		} catch (IOException | UnsupportedAddressTypeException e) {
 			if (address instanceof Inet6Address) {
@@ -330,6 +495,23 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
+	/**
+	 * Batched mode: the send buffer is full, so wait for room and try again, as a blocking
+	 * send would, rather than dropping the packet.
+	 * @return The number of bytes sent, or 0 if we are shutting down.
+	 */
+	private int sendWhenWritable(ByteBuffer packet, InetSocketAddress target) throws IOException {
+		if(logMINOR) Logger.minor(this, "Send buffer full, waiting to send to " + target);
+		synchronized(writeSelector) {
+			int sent;
+			while((sent = datagramChannel.send(packet, target)) == 0 && _active) {
+				writeSelector.select(100);
+				writeSelector.selectedKeys().clear();
+			}
+			return sent;
+		}
+	}
+
 	// CompuServe use 1400 MTU; AOL claim 1450; DFN@home use 1448.
 	// http://info.aol.co.uk/broadband/faqHomeNetworking.adp
 	// http://www.compuserve.de/cso/hilfe/linux/hilfekategorien/installation/contentview.jsp?conid=385700
@@ -383,6 +565,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			_started = true;
 			startTime = System.currentTimeMillis();
 		}
+		if(receiveWorkers != null) {
+			for(PacketReceiveWorker worker : receiveWorkers)
+				worker.start();
+		}
 		node.getExecutor().execute(this, "UdpSocketHandler for port " + localAddress.getPort());
 	}
 
@@ -395,16 +581,30 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			} catch (IOException e) {
 				Logger.error(this, "Error closing DatagramChannel", e);
 			}
-
-			if(!_started) return;
-			while (!_isDone) {
-				try {
-					wait(2000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+			if(selector != null)
+				selector.wakeup();
+
+			if(_started) {
+				while (!_isDone) {
+					try {
+						wait(2000);
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
 				}
 			}
 		}
+		if(selector != null) {
+			for(PacketReceiveWorker worker : receiveWorkers)
+				worker.close();
+			try {
+				selector.close();
+				writeSelector.close();
+			} catch (IOException e) {
+				Logger.error(this, "Error closing Selector", e);
+			}
+		}
+		if(!_started) return;
 		tracker.storeData(node.getBootId(), node.runDir(), localAddress.getPort());
 	}
 
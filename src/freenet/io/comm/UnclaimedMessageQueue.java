@@ -0,0 +1,149 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+
+/**
+ * FIFO of messages which no filter or Dispatcher wanted yet, indexed by MessageType so that a new
+ * filter only has to look at the messages of the types it can match. Filters where any part of
+ * the or() chain has no type still look at the whole queue.
+ *
+ * Not thread-safe: MessageCore synchronizes on its filter index.
+ */
+final class UnclaimedMessageQueue {
+
+	private static final class Node {
+		final Message msg;
+		final long seq;
+		Node prev;
+		Node next;
+		Node typePrev;
+		Node typeNext;
+
+		Node(Message msg, long seq) {
+			this.msg = msg;
+			this.seq = seq;
+		}
+	}
+
+	private static final class TypeList {
+		Node head;
+		Node tail;
+	}
+
+	private final HashMap<MessageType, TypeList> byType = new HashMap<MessageType, TypeList>();
+	private Node head;
+	private Node tail;
+	private int size;
+	private long nextSeq;
+
+	int size() {
+		return size;
+	}
+
+	void addLast(Message m) {
+		Node n = new Node(m, nextSeq++);
+		if(tail == null) {
+			head = tail = n;
+		} else {
+			n.prev = tail;
+			tail.next = n;
+			tail = n;
+		}
+		TypeList list = byType.get(m.getSpec());
+		if(list == null) {
+			list = new TypeList();
+			byType.put(m.getSpec(), list);
+		}
+		if(list.tail == null) {
+			list.head = list.tail = n;
+		} else {
+			n.typePrev = list.tail;
+			list.tail.typeNext = n;
+			list.tail = n;
+		}
+		size++;
+	}
+
+	Message removeFirst() {
+		if(head == null) return null;
+		Node n = head;
+		unlink(n);
+		return n.msg;
+	}
+
+	/** Remove and return the oldest message, if it was created before the given time. */
+	Message removeFirstOlderThan(long time) {
+		if(head == null || head.msg.localInstantiationTime >= time) return null;
+		return removeFirst();
+	}
+
+	/**
+	 * Find the oldest message which matches the filter, ignoring the filter's timeout since the
+	 * messages have already arrived.
+	 * @param remove If true, remove the message from the queue.
+	 */
+	Message findMatch(MessageFilter filter, long now, boolean remove) {
+		boolean indexed = true;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			if(f.getType() == null) {
+				indexed = false;
+				break;
+			}
+		}
+		Node found = null;
+		if(!indexed) {
+			for(Node n = head; n != null; n = n.next) {
+				if(filter.match(n.msg, true, now) == MATCHED.MATCHED) {
+					found = n;
+					break;
+				}
+			}
+		} else {
+			for(MessageFilter f = filter; f != null; f = f.getOr()) {
+				TypeList list = byType.get(f.getType());
+				if(list == null) continue;
+				for(Node n = list.head; n != null; n = n.typeNext) {
+					if(found != null && n.seq >= found.seq) break;
+					if(filter.match(n.msg, true, now) == MATCHED.MATCHED) {
+						found = n;
+						break;
+					}
+				}
+			}
+		}
+		if(found == null) return null;
+		if(remove) unlink(found);
+		return found.msg;
+	}
+
+	void countByName(Map<String, Integer> messageCounts) {
+		for(Node n = head; n != null; n = n.next) {
+			String messageName = n.msg.getSpec().getName();
+			Integer messageCount = messageCounts.get(messageName);
+			if (messageCount == null) {
+				messageCounts.put(messageName, 1);
+			} else {
+				messageCounts.put(messageName, messageCount + 1);
+			}
+		}
+	}
+
+	private void unlink(Node n) {
+		if(n.prev == null) head = n.next; else n.prev.next = n.next;
+		if(n.next == null) tail = n.prev; else n.next.prev = n.prev;
+		MessageType type = n.msg.getSpec();
+		TypeList list = byType.get(type);
+		if(n.typePrev == null) list.head = n.typeNext; else n.typePrev.typeNext = n.typeNext;
+		if(n.typeNext == null) list.tail = n.typePrev; else n.typeNext.typePrev = n.typePrev;
+		if(list.head == null)
+			byType.remove(type);
+		size--;
+	}
+
+}
@@ -46,6 +46,9 @@ public interface BasePeerNode extends PeerContext {
 
 	void sendEncryptedPacket(byte[] data) throws LocalAddressException;
 
+	/** Send part of a buffer. The buffer can be reused once this returns. */
+	void sendEncryptedPacket(byte[] data, int offset, int length) throws LocalAddressException;
+
 	void sentPacket();
 
 	boolean shouldThrottle();
@@ -27,6 +27,7 @@ import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.ParkingWaiters;
 import freenet.support.ShortBuffer;
 import freenet.support.io.NativeThread;
 
@@ -186,14 +187,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
         boolean receivedRejectedOverload = false;
         
         while(true) {
-            synchronized(sender) {
-                try {
-                	if(sender.getStatus() == CHKInsertSender.NOT_FINISHED)
-                		sender.wait(5000);
-                } catch (InterruptedException e) {
-                    // Cool, probably this is because the receive failed...
-                }
-            }
+            // If interrupted, probably this is because the receive failed...
+            sender.waitForStatusChange(5000);
             if(receiveFailed()) {
                 // Nothing else we can do
                 finish(CHKInsertSender.RECEIVE_FAILED);
@@ -382,15 +377,13 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
     	long transferTimeout = realTimeFlag ?
     			CHKInsertSender.TRANSFER_COMPLETION_ACK_TIMEOUT_REALTIME :
     				CHKInsertSender.TRANSFER_COMPLETION_ACK_TIMEOUT_BULK;
-		synchronized(this) {
-			while(receiveStarted && !receiveCompleted) {
-				try {
-					wait(SECONDS.toMillis(100));
-				} catch (InterruptedException e) {
-					// Ignore
-				}
+		while(true) {
+			synchronized(this) {
+				if(!receiveStarted || receiveCompleted) break;
+				waiters.register();
 			}
-    	}
+			waiters.await(SECONDS.toMillis(100));
+		}
 		
 		CHKBlock block = verify();
 		// If we wanted to reduce latency at the cost of security (bug 3338), we'd commit here, or even on the receiver thread.
@@ -409,23 +402,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
             if(logMINOR) Logger.minor(this, "Waiting for completion");
             long startedTime = System.currentTimeMillis();
 			//If there are downstream senders, our final success report depends on there being no timeouts in the chain.
-        	while(true) {
-        		synchronized(sender) {
-        			if(sender.completed()) {
-        				break;
-        			}
-        			try {
-        				int t = (int)Math.min(Integer.MAX_VALUE, startedTime + transferTimeout - System.currentTimeMillis());
-        				if(t > 0) sender.wait(t);
-        				else {
-        					routingTookTooLong = true;
-        					break;
-        				}
-        			} catch (InterruptedException e) {
-        				// Loop
-        			}
-        		}
-        	}
+        	if(!sender.waitForCompletion(startedTime + transferTimeout - System.currentTimeMillis()))
+        		routingTookTooLong = true;
         	if(routingTookTooLong) {
         		tag.timedOutToHandlerButContinued();
         		sentCompletionWasSet = true;
@@ -438,17 +416,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
         		Logger.error(this, "Insert took too long, telling downstream that it's finished and reassigning to self on "+this);
         		
         		// Still waiting.
-        		while(true) {
-        			synchronized(sender) {
-        				if(sender.completed()) {
-        					break;
-        				}
-        				try {
-        					sender.wait(SECONDS.toMillis(10));
-        				} catch (InterruptedException e) {
-        					// Loop
-        				}
-        			}
+        		while(!sender.waitForCompletion(SECONDS.toMillis(10))) {
+        			// Loop
         		}
         		if(logMINOR) Logger.minor(this, "Completed after telling downstream on "+this);
         	}
@@ -559,6 +528,8 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
     
     private boolean receiveStarted;
     private boolean receiveCompleted;
+    /** Threads waiting for the receive to complete. LOCKING: Woken with (this) held. */
+    private final ParkingWaiters waiters = new ParkingWaiters();
 
     public class DataReceiver implements PrioRunnable {
 
@@ -573,7 +544,7 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
         			if(logMINOR) Logger.minor(this, "Received data for "+CHKInsertHandler.this);
         			synchronized(CHKInsertHandler.this) {
         				receiveCompleted = true;
-        				CHKInsertHandler.this.notifyAll();
+        				waiters.wakeAll();
         			}
    					node.getNodeStats().successfulBlockReceive(realTimeFlag, false);
         		}
@@ -583,7 +554,7 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
         			synchronized(CHKInsertHandler.this) {
         				receiveCompleted = true;
         				receiveFailed = true;
-        				CHKInsertHandler.this.notifyAll();
+        				waiters.wakeAll();
         			}
         			// Cancel the sender
         			if(sender != null)
@@ -26,6 +26,7 @@ import freenet.keys.CHKBlock;
 import freenet.keys.CHKVerifyException;
 import freenet.keys.NodeCHK;
 import freenet.support.Logger;
+import freenet.support.ParkingWaiters;
 import freenet.support.io.NativeThread;
 
 public final class CHKInsertSender extends BaseSender implements PrioRunnable, AnyInsertSender, ByteCounter {
@@ -111,7 +112,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		}
 		
 		void start() {
-			node.getExecutor().execute(this, "CHKInsert-BackgroundTransfer for "+uid+" to "+pn.getPeer());
+			node.getRequestExecutor().execute(this, "CHKInsert-BackgroundTransfer for "+uid+" to "+pn.getPeer());
 		}
 		
 		@Override
@@ -136,7 +137,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			synchronized(backgroundTransfers) {
 				//transferSucceeded = success; //FIXME Don't used
 				completedTransfer = true;
-				backgroundTransfers.notifyAll();
+				transferWaiters.wakeAll();
 			}
 			if(!success) {
 				setTransferTimedOut();
@@ -201,7 +202,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			synchronized(backgroundTransfers) {
 				// Avoid "Unlocked handler but still routing to yet not reassigned".
 				if(!gotFatalTimeout) {
-					backgroundTransfers.notifyAll();
+					transferWaiters.wakeAll();
 				}
 			}
 			if(timeout && gotFatalTimeout) {
@@ -328,7 +329,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     }
 
 	void start() {
-		node.getExecutor().execute(this, "CHKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
+		node.getRequestExecutor().execute(this, "CHKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
 	}
 
 	static boolean logMINOR;
@@ -362,6 +363,11 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     /** List of nodes we are waiting for either a transfer completion
      * notice or a transfer completion from. Also used as a sync object for waiting for transfer completion. */
     private List<BackgroundTransfer> backgroundTransfers;
+    /** Threads waiting for the background transfers. LOCKING: Woken with backgroundTransfers held. */
+    private final ParkingWaiters transferWaiters = new ParkingWaiters();
+    /** Threads waiting for the status to change. They park rather than waiting on the monitor, so
+     * that insert handlers can run on virtual threads. LOCKING: Woken with (this) held. */
+    private final ParkingWaiters waiters = new ParkingWaiters();
     
     /** Have all transfers completed and all nodes reported completion status? */
     private boolean allTransfersCompleted;
@@ -743,7 +749,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 		BackgroundTransfer ac = new BackgroundTransfer(node, prb, tag);
 		synchronized(backgroundTransfers) {
 			backgroundTransfers.add(ac);
-			backgroundTransfers.notifyAll();
+			transferWaiters.wakeAll();
 		}
 		ac.start();
 		return ac;
@@ -762,14 +768,14 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     protected synchronized void forwardRejectedOverload() {
     	if(hasForwardedRejectedOverload) return;
     	hasForwardedRejectedOverload = true;
-   		notifyAll();
+   		notifyWaiters();
 	}
 	
 	private void setTransferTimedOut() {
 		synchronized(this) {
 			if(!transferTimedOut) {
 				transferTimedOut = true;
-				notifyAll();
+				notifyWaiters();
 			}
 		}
 	}
@@ -801,7 +807,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
                 status = code;
         	}
         	
-        	notifyAll();
+        	notifyWaiters();
         	if(logMINOR) Logger.minor(this, "Set status code: "+getStatusString()+" on "+uid);
         }
 		
@@ -830,7 +836,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 				if(failedRecv)
 					status = RECEIVE_FAILED;
 				allTransfersCompleted = true;
-				notifyAll();
+				notifyWaiters();
 			}
 		}
         	
@@ -869,7 +875,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     	if(logMINOR) Logger.minor(this, "Receive failed on "+this);
     	synchronized(backgroundTransfers) {
     		receiveFailed = true;
-    		backgroundTransfers.notifyAll();
+    		transferWaiters.wakeAll();
     		// Locking is safe as UIDTag always taken last.
     		for(BackgroundTransfer t : backgroundTransfers)
     			t.thisTag.handlingTimeout(t.pn);
@@ -881,7 +887,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
     	synchronized(this) {
     		status = RECEIVE_FAILED;
     		allTransfersCompleted = true;
-    		notifyAll();
+    		notifyWaiters();
     	}
     	// Do not call finish(), that can only be called on the main thread and it will block.
     }
@@ -933,7 +939,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 			} finally {
 				synchronized(CHKInsertSender.this) {
 					allTransfersCompleted = true;
-					CHKInsertSender.this.notifyAll();
+					notifyWaiters();
 				}
 			}
 		}
@@ -990,12 +996,9 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 					if(completedTransfers && completedNotifications) return !someFailed;
 					
 					if(logMINOR) Logger.minor(this, "Waiting: transfer completion=" + completedTransfers + " notification="+completedNotifications); 
-					try {
-						backgroundTransfers.wait(SECONDS.toMillis(100));
-					} catch (InterruptedException e) {
-						// Ignore
-					}
-				}				
+					transferWaiters.register();
+				}
+				transferWaiters.await(SECONDS.toMillis(100));
 			}
 		}
 
@@ -1005,14 +1008,47 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 	}
 
 	/** Block until status has been set to something other than NOT_FINISHED */
-	public synchronized void waitForStatus() {
-		while(status == NOT_FINISHED) {
-			try {
-				CHKInsertSender.this.wait(SECONDS.toMillis(100));
-			} catch (InterruptedException e) {
-				// Ignore
+	public void waitForStatus() {
+		while(true) {
+			synchronized(this) {
+				if(status != NOT_FINISHED) return;
+				waiters.register();
 			}
+			waiters.await(SECONDS.toMillis(100));
+		}
+	}
+
+	/** Wait until the status is set or anything else changes, e.g. a RejectedOverload is
+	 * forwarded, or until the timeout passes. Returns at once if the status is already set. */
+	void waitForStatusChange(long timeout) {
+		synchronized(this) {
+			if(status != NOT_FINISHED) return;
+			waiters.register();
 		}
+		waiters.await(timeout);
+	}
+
+	/** Wait until all the background transfers have completed, or until the timeout passes.
+	 * @return True if they have completed. */
+	boolean waitForCompletion(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(true) {
+			long wait;
+			synchronized(this) {
+				if(allTransfersCompleted) return true;
+				wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) return false;
+				waiters.register();
+			}
+			waiters.await(wait);
+		}
+	}
+
+	/** Wake up everything waiting for the status to change. Some callers still wait on the
+	 * monitor, so notifyAll() as well. Call with (this) held. */
+	private void notifyWaiters() {
+		notifyAll();
+		waiters.wakeAll();
 	}
 
 	public boolean anyTransfersFailed() {
@@ -1209,7 +1245,7 @@ public final class CHKInsertSender extends BaseSender implements PrioRunnable, A
 
 				synchronized(this) {
 					status = TIMED_OUT;
-					notifyAll();
+					notifyWaiters();
 				}
 				
 				// Wait for the second timeout off-thread.
@@ -9,6 +9,8 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
@@ -23,11 +25,11 @@ import freenet.keys.KeyBlock;
 import freenet.keys.NodeCHK;
 import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
-import freenet.support.LRUMap;
 import freenet.support.ListUtils;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SerialExecutor;
+import freenet.support.ShardedLRUMap;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
@@ -35,8 +37,8 @@ import freenet.support.io.NativeThread;
 // Otherwise it will be much too easy to trace a request if an attacker busts the node afterwards.
 // We can use an HMAC or something to authenticate offers.
 
-// LOCKING: Always take the FailureTable lock first if you need both. Take the FailureTableEntry 
-// lock only on cheap internal operations.
+// LOCKING: Always take the segment lock (entriesByKey.lockFor(key)) first if you need both. Take
+// the FailureTableEntry lock only on cheap internal operations. Lookups don't need any lock.
 
 /**
  * Tracks recently DNFed keys, where they were routed to, what the location was at the time, who requested them.
@@ -61,16 +63,19 @@ public class FailureTable {
 		});
 	}
 
-	/** FailureTableEntry's by key. Note that we push an entry only when sentTime changes. */
-	private final LRUMap<Key,FailureTableEntry> entriesByKey;
-	/** BlockOfferList by key. Synchronized on self, as it doesn't interact with the main FT. */
-	private final LRUMap<Key,BlockOfferList> blockOfferListByKey;
+	/** FailureTableEntry's by key, limited by their estimated size in memory. We push an entry
+	 * after adding to it, so its size is up to date. */
+	private final ShardedLRUMap<Key,FailureTableEntry> entriesByKey;
+	/** BlockOfferList by key. A BlockOfferList is synchronized on the segment lock for its key,
+	 * as it doesn't interact with the main FT. */
+	private final ShardedLRUMap<Key,BlockOfferList> blockOfferListByKey;
 	private final Node node;
 	
-	/** Maximum number of keys to track */
-	static final int MAX_ENTRIES = 20*1000;
 	/** Maximum number of offers to track */
 	static final int MAX_OFFERS = 10*1000;
+	/** Number of independently locked segments in each table. Each evicts its own least
+	 * recently used entries, so this must be much smaller than MAX_OFFERS. */
+	static final int SEGMENTS = 16;
 	/** Terminate a request if there was a DNF on the same key less than this time ago.
 	 * Maximum time for any FailureTable i.e. for this period after a DNF, we will avoid the node that 
 	 * DNFed. */
@@ -92,9 +97,16 @@ public class FailureTable {
 	static final long CLEANUP_PERIOD = MINUTES.toMillis(10);
 
 	FailureTable(Node node) {
-		entriesByKey = LRUMap.createSafeMap();
-		blockOfferListByKey = LRUMap.createSafeMap();
 		this.node = node;
+		entriesByKey = new ShardedLRUMap<Key,FailureTableEntry>(SEGMENTS, node.getFailureTableSize(), new ToIntFunction<FailureTableEntry>() {
+
+			@Override
+			public int applyAsInt(FailureTableEntry entry) {
+				return entry.estimatedSize();
+			}
+
+		}, node.getRandom());
+		blockOfferListByKey = new ShardedLRUMap<Key,BlockOfferList>(SEGMENTS, MAX_OFFERS, node.getRandom());
 		offerAuthenticatorKey = new byte[32];
 		node.getRandom().nextBytes(offerAuthenticatorKey);
 		offerExecutor = new SerialExecutor(NativeThread.HIGH_PRIORITY);
@@ -131,17 +143,17 @@ public class FailureTable {
 		if(!(node.isEnableULPRDataPropagation() || node.isEnablePerNodeFailureTables())) return;
 		long now = System.currentTimeMillis();
 		FailureTableEntry entry;
-		synchronized(this) {
+		synchronized(entriesByKey.lockFor(key)) {
 			entry = entriesByKey.get(key);
 			if(entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+				entry = new FailureTableEntry(key, node.getPeers());
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
 			// We have to do this inside the lock to prevent race condition with the cleaner causing us to get dropped because isEmpty() before updating.
 			entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
-
-			trimEntries(now);
+			// Push after updating so the size is right. Also evicts the oldest entries if the
+			// segment is full.
+			entriesByKey.push(key, entry);
 		}
 	}
 	
@@ -166,11 +178,10 @@ public class FailureTable {
 		if(!(node.isEnableULPRDataPropagation() || node.isEnablePerNodeFailureTables())) return;
 		long now = System.currentTimeMillis();
 		FailureTableEntry entry;
-		synchronized(this) {
+		synchronized(entriesByKey.lockFor(key)) {
 			entry = entriesByKey.get(key);
 			if(entry == null)
-				entry = new FailureTableEntry(key);
-			entriesByKey.push(key, entry);
+				entry = new FailureTableEntry(key, node.getPeers());
 
 			// LOCKING: Taking PeerNode then FT/FTE will deadlock.
 			// However this should not happen.
@@ -180,29 +191,27 @@ public class FailureTable {
 				entry.failedTo(routedTo, rfTimeout, ftTimeout, now, htl);
 			if(requestor != null)
 				entry.addRequestor(requestor, now, origHTL);
-			
-			trimEntries(now);
+			// Push after updating so the size is right. Also evicts the oldest entries if the
+			// segment is full.
+			entriesByKey.push(key, entry);
 		}
 	}
 	
-	private synchronized void trimEntries(long now) {
-		while(entriesByKey.size() > MAX_ENTRIES) {
-			entriesByKey.popKey();
-		}
-	}
-
-	// LOCKING: Synchronized on FailureTable because we need to remove self in deleteOffer(). 
+	// LOCKING: Synchronized on the blockOfferListByKey segment for the key because we need to 
+	// remove self in deleteOffer(). 
 	private final class BlockOfferList {
 		private BlockOffer[] offers;
 		final FailureTableEntry entry;
+		private final Object lock;
 		
 		BlockOfferList(FailureTableEntry entry, BlockOffer offer) {
 			this.entry = entry;
 			this.offers = new BlockOffer[] { offer };
+			this.lock = blockOfferListByKey.lockFor(entry.key);
 		}
 
 		public long expires() {
-			synchronized(blockOfferListByKey) {
+			synchronized(lock) {
 				long last = 0;
 				for(BlockOffer offer: offers) {
 					if(offer.offeredTime > last) last = offer.offeredTime;
@@ -212,7 +221,7 @@ public class FailureTable {
 		}
 
 		public boolean isEmpty(long now) {
-			synchronized(blockOfferListByKey) {
+			synchronized(lock) {
 				for(BlockOffer offer: offers) {
 					if(!offer.isExpired(now)) return false;
 				}
@@ -222,7 +231,7 @@ public class FailureTable {
 
 		public void deleteOffer(BlockOffer offer) {
 			if(logMINOR) Logger.minor(this, "Deleting "+offer+" from "+this);
-			synchronized(blockOfferListByKey) {
+			synchronized(lock) {
 				int idx = -1;
 				final int offerLength = offers.length;
 				for(int i=0;i<offerLength;i++) {
@@ -242,7 +251,7 @@ public class FailureTable {
 		}
 
 		public void addOffer(BlockOffer offer) {
-			synchronized(blockOfferListByKey) {
+			synchronized(lock) {
 				offers = Arrays.copyOf(offers, offers.length+1);
 				offers[offers.length-1] = offer;
 			}
@@ -299,10 +308,8 @@ public class FailureTable {
 		Key key = block.getKey();
 		if(key == null) throw new NullPointerException();
 		FailureTableEntry entry;
-		synchronized(blockOfferListByKey) {
-			blockOfferListByKey.removeKey(key);
-		}
-		synchronized(this) {
+		blockOfferListByKey.removeKey(key);
+		synchronized(entriesByKey.lockFor(key)) {
 			entry = entriesByKey.get(key);
 			if(entry == null) {
 				if(logMINOR) Logger.minor(this, "Key not found in entriesByKey");
@@ -330,13 +337,10 @@ public class FailureTable {
 		if(!node.isEnableULPRDataPropagation()) return;
 		if(logMINOR)
 			Logger.minor(this, "Offered key "+key+" by peer "+peer);
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
-				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) {
+			if(logMINOR) Logger.minor(this, "We didn't ask for the key");
+			return; // we haven't asked for it
 		}
 		offerExecutor.execute(new Runnable() {
 			@Override
@@ -364,14 +368,11 @@ public class FailureTable {
 		}
 		
 		// Re-check after potentially long disk I/O.
-		FailureTableEntry entry;
 		long now = System.currentTimeMillis();
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) {
-				if(logMINOR) Logger.minor(this, "We didn't ask for the key");
-				return; // we haven't asked for it
-			}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) {
+			if(logMINOR) Logger.minor(this, "We didn't ask for the key");
+			return; // we haven't asked for it
 		}
 
 		/*
@@ -407,24 +408,18 @@ public class FailureTable {
 		boolean heAsked = entry.askedByPeer(peer, now);
 		if(!(weAsked || heAsked)) {
 			if(logMINOR) Logger.minor(this, "Not propagating key: weAsked="+weAsked+" heAsked="+heAsked);
-			if(entry.isEmpty(now)) {
-				synchronized(this) {
-					entriesByKey.removeKey(key);
-				}
-			}
-			return;
-		}
-		if(entry.isEmpty(now)) {
-			synchronized(this) {
+			if(entry.isEmpty(now))
 				entriesByKey.removeKey(key);
-			}
+			return;
 		}
+		if(entry.isEmpty(now))
+			entriesByKey.removeKey(key);
 		
 		// Valid offer.
 		
 		// Add to offers list
 		
-		synchronized(blockOfferListByKey) {			
+		synchronized(blockOfferListByKey.lockFor(key)) {
 			if(logMINOR) Logger.minor(this, "Valid offer");
 			BlockOfferList bl = blockOfferListByKey.get(key);
 			BlockOffer offer = new BlockOffer(peer, now, authenticator, peer.getBootID());
@@ -433,8 +428,9 @@ public class FailureTable {
 			} else {
 				bl.addOffer(offer);
 			}
+			// Pushing also evicts the oldest lists if the segment is full.
 			blockOfferListByKey.push(key, bl);
-			trimOffersList(now);
+			trimOffersList(key, now);
 		}
 		
 		// Accept the offer.
@@ -448,19 +444,20 @@ public class FailureTable {
 		node.getClientCore().queueOfferedKey(key, false);
 	}
 
-	private void trimOffersList(long now) {
-		synchronized(blockOfferListByKey) {
-			while(true) {
-				if(blockOfferListByKey.isEmpty()) return;
-				BlockOfferList bl = blockOfferListByKey.peekValue();
-				if(bl.isEmpty(now) || bl.expires() < now || blockOfferListByKey.size() > MAX_OFFERS) {
-					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl+" list size now "+blockOfferListByKey.size());
-					blockOfferListByKey.popKey();
-				} else {
-					return;
+	/** Remove expired offer lists from the segment the key belongs to. */
+	private void trimOffersList(Key key, final long now) {
+		blockOfferListByKey.removeEldestWhile(key, new Predicate<BlockOfferList>() {
+
+			@Override
+			public boolean test(BlockOfferList bl) {
+				if(bl.isEmpty(now) || bl.expires() < now) {
+					if(logMINOR) Logger.minor(this, "Removing block offer list "+bl);
+					return true;
 				}
+				return false;
 			}
-		}
+
+		});
 	}
 
 	/**
@@ -660,18 +657,13 @@ public class FailureTable {
 	 * @return True if there are any offers, false otherwise.
 	 */
 	public boolean hadAnyOffers(Key key) {
-		synchronized(blockOfferListByKey) {
-			return blockOfferListByKey.get(key) != null;
-		}
+		return blockOfferListByKey.get(key) != null;
 	}
 
 	public OfferList getOffers(Key key) {
 		if(!node.isEnableULPRDataPropagation()) return null;
-		BlockOfferList bl;
-		synchronized(blockOfferListByKey) {
-			bl = blockOfferListByKey.get(key);
-			if(bl == null) return null;
-		}
+		BlockOfferList bl = blockOfferListByKey.get(key);
+		if(bl == null) return null;
 		return new OfferList(bl);
 	}
 
@@ -683,9 +675,7 @@ public class FailureTable {
 
 	public TimedOutNodesList getTimedOutNodesList(Key key) {
 		if(!node.isEnablePerNodeFailureTables()) return null;
-		synchronized(this) {
-			return entriesByKey.get(key);
-		}
+		return entriesByKey.get(key);
 	}
 	
 	public class FailureTableCleaner implements Runnable {
@@ -704,14 +694,10 @@ public class FailureTable {
 		private void realRun() {
 			if(logMINOR) Logger.minor(this, "Starting FailureTable cleanup");
 			long startTime = System.currentTimeMillis();
-			FailureTableEntry[] entries;
-			synchronized(FailureTable.this) {
-				entries = new FailureTableEntry[entriesByKey.size()];
-				entriesByKey.valuesToArray(entries);
-			}
+			List<FailureTableEntry> entries = entriesByKey.values();
 			for(FailureTableEntry entry: entries) {
 				if(entry.cleanup()) {
-					synchronized(FailureTable.this) {
+					synchronized(entriesByKey.lockFor(entry.key)) {
 						synchronized(entry) {
 						if(entry.isEmpty()) {
 							if(logMINOR) Logger.minor(this, "Removing entry for "+entry.key);
@@ -727,21 +713,61 @@ public class FailureTable {
 	}
 
 	public boolean peersWantKey(Key key, PeerNode apartFrom) {
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) return false; // Nobody cares
-		}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) return false; // Nobody cares
 		return entry.othersWant(apartFrom);
 	}
         
         /** @return The lowest HTL at which any peer has requested this key recently */
 	public short minOfferedHTL(Key key, short htl) {
-		FailureTableEntry entry;
-		synchronized(this) {
-			entry = entriesByKey.get(key);
-			if(entry == null) return htl;
-		}
+		FailureTableEntry entry = entriesByKey.get(key);
+		if(entry == null) return htl;
 		return entry.minRequestorHTL(htl);
 	}
+
+	/** @return The number of keys we are tracking failures or requestors for. */
+	public int countEntries() {
+		return entriesByKey.size();
+	}
+
+	/** Change the memory budget for entries. If it is reduced, the table shrinks as entries
+	 * are added. */
+	public void setMemoryLimit(long bytes) {
+		entriesByKey.setMaxWeight(bytes);
+	}
+
+	/** @return The memory budget for entries in bytes. */
+	public long getMemoryLimit() {
+		return entriesByKey.maxWeight();
+	}
+
+	/** @return The estimated memory used by entries in bytes, as of when they were last added to. */
+	public long getMemoryUsed() {
+		return entriesByKey.weight();
+	}
+
+	/** @return The number of keys we have offers for. */
+	public int countOffers() {
+		return blockOfferListByKey.size();
+	}
+
+	/** @return The number of lookups of entries by key which found an entry. */
+	public long entryHits() {
+		return entriesByKey.hits();
+	}
+
+	/** @return The number of lookups of entries by key which did not find an entry. */
+	public long entryMisses() {
+		return entriesByKey.misses();
+	}
+
+	/** @return The number of entries dropped because the table was full. */
+	public long entryEvictions() {
+		return entriesByKey.evictions();
+	}
+
+	/** @return The number of offer lists dropped because the table was full. */
+	public long offerEvictions() {
+		return blockOfferListByKey.evictions();
+	}
 }
@@ -2,7 +2,6 @@ package freenet.node;
 
 import static java.util.concurrent.TimeUnit.HOURS;
 
-import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.HashSet;
 
@@ -24,48 +23,61 @@ import freenet.support.Logger.LogLevel;
  * cleanupRequested(), which the FailureTable calls regularly. Against a near-omnipotent 
  * attacker able to compromise nodes at will of course it is still a security risk to 
  * track anything but we have bigger problems at that level.
+ *
+ * MEMORY: There can be a great many of these, so each peer's state is packed into a long[]
+ * rather than kept in parallel arrays of objects, and peers are referred to by their index in
+ * PeerManager rather than by WeakReference. An index which no longer resolves to a peer (because
+ * it has been removed or garbage collected) counts as a null reference did before.
  * @author toad
  */
 class FailureTableEntry implements TimedOutNodesList {
 	
 	/** The key */
 	final Key key; // FIXME should this be stored compressed somehow e.g. just the routing key?
+	/** Resolves peer indexes */
+	private final PeerManager peers;
 	/** Time of creation of this entry */
 	long creationTime;
 	/** Time we last received a request for the key */
 	long receivedTime;
 	/** Time we last received a DNF after sending a request for a key */
 	long sentTime;
-	/** WeakReference's to PeerNodeUnlocked's who have requested the key */
-	WeakReference<? extends PeerNodeUnlocked>[] requestorNodes;
-	/** Times at which they requested it */
-	long[] requestorTimes;
-	/** Boot ID when they requested it. We don't send it to restarted nodes, as a 
-	 * (weak, but useful if combined with other measures) protection against seizure. */
-	long[] requestorBootIDs;
-	short[] requestorHTLs;
+	/** Peers who have requested the key, REQUESTOR_FIELDS longs each: the peer index and the
+	 * HTL of their request packed by header(), the time at which they requested it, and their
+	 * boot ID when they requested it. We don't send it to restarted nodes, as a (weak, but
+	 * useful if combined with other measures) protection against seizure. */
+	long[] requestors;
 	
 	// FIXME Note that just because a node is in this list doesn't mean it DNFed or RFed.
 	// We include *ALL* nodes we routed to here!
-	/** WeakReference's to PeerNodeUnlocked's we have requested it from */
-	WeakReference<? extends PeerNodeUnlocked>[] requestedNodes;
-	/** Their locations when we requested it. This may be needed in the future to
-	 * determine whether to let a request through that we would otherwise have
-	 * failed with RecentlyFailed, because the node we would route it to is closer
-	 * to the target than any we've routed to in the past. */
-	double[] requestedLocs;
-	long[] requestedBootIDs;
-	long[] requestedTimes;
+	/** Peers we have requested it from, REQUESTED_FIELDS longs each: the peer index and the
+	 * timeout HTL packed by header(), their boot ID and the time when we requested it, the two
+	 * timeouts, and their location when we requested it (see REQUESTED_LOC). */
+	long[] requested;
+	
+	static final int REQUESTOR_FIELDS = 3;
+	static final int REQUESTOR_TIME = 1;
+	static final int REQUESTOR_BOOT_ID = 2;
+	
+	static final int REQUESTED_FIELDS = 6;
+	static final int REQUESTED_BOOT_ID = 1;
+	static final int REQUESTED_TIME = 2;
 	/** Timeouts for each node for purposes of RecentlyFailed. We accept what
 	 * they say, subject to an upper limit, because we MUST NOT suppress too
 	 * many requests, as that could lead to a self-sustaining key blocking. */
-	long[] requestedTimeoutsRF;
+	static final int REQUESTED_TIMEOUT_RF = 3;
 	/** Timeouts for each node for purposes of per-node failure tables. We use
 	 * our own estimates, based on time elapsed, for most failure modes; a fixed
 	 * period for DNF and RecentlyFailed. */
-	long[] requestedTimeoutsFT;
+	static final int REQUESTED_TIMEOUT_FT = 4;
+	/** Their location when we requested it, as raw double bits. This may be needed in the
+	 * future to determine whether to let a request through that we would otherwise have
+	 * failed with RecentlyFailed, because the node we would route it to is closer
+	 * to the target than any we've routed to in the past. */
+	static final int REQUESTED_LOC = 5;
 	
-	short[] requestedTimeoutHTLs;
+	/** Rough size of an entry with no peers, including the key and the table's own overhead. */
+	static final int BASE_SIZE = 256;
 	
 	private static volatile boolean logMINOR;
 	
@@ -82,30 +94,43 @@ class FailureTableEntry implements TimedOutNodesList {
 	 * if we receive an offer from that node, we will reject it */
 	static final long MAX_TIME_BETWEEN_REQUEST_AND_OFFER = HOURS.toMillis(1);
 
-        public static final long[] EMPTY_LONG_ARRAY = new long[0];
-        public static final short[] EMPTY_SHORT_ARRAY = new short[0];
-        public static final double[] EMPTY_DOUBLE_ARRAY = new double[0];
-        @SuppressWarnings("unchecked")
-        public static final WeakReference<? extends PeerNodeUnlocked>[] EMPTY_WEAK_REFERENCE =
-            (WeakReference<? extends PeerNodeUnlocked>[])new WeakReference<?>[0];
-        
-	FailureTableEntry(Key key) {
+	public static final long[] EMPTY_LONG_ARRAY = new long[0];
+	
+	FailureTableEntry(Key key, PeerManager peers) {
 		this.key = key.archivalCopy();
+		this.peers = peers;
 		long now = System.currentTimeMillis();
 		creationTime = now;
 		receivedTime = -1;
 		sentTime = -1;
-		requestorNodes = EMPTY_WEAK_REFERENCE;
-		requestorTimes = EMPTY_LONG_ARRAY;
-		requestorBootIDs = EMPTY_LONG_ARRAY;
-		requestorHTLs = EMPTY_SHORT_ARRAY;
-		requestedNodes = EMPTY_WEAK_REFERENCE;
-		requestedLocs = EMPTY_DOUBLE_ARRAY;
-		requestedBootIDs = EMPTY_LONG_ARRAY;
-		requestedTimes = EMPTY_LONG_ARRAY;
-		requestedTimeoutsRF = EMPTY_LONG_ARRAY;
-		requestedTimeoutsFT = EMPTY_LONG_ARRAY;
-		requestedTimeoutHTLs = EMPTY_SHORT_ARRAY;
+		requestors = EMPTY_LONG_ARRAY;
+		requested = EMPTY_LONG_ARRAY;
+	}
+	
+	/** Pack a peer index and an HTL into the first long of a peer's fields. Index 0 means the
+	 * slot is empty. */
+	static long header(int peerIndex, short htl) {
+		return (((long) peerIndex) << 32) | (htl & 0xFFFFL);
+	}
+	
+	static int peerIndex(long header) {
+		return (int) (header >>> 32);
+	}
+	
+	static short htl(long header) {
+		return (short) header;
+	}
+	
+	/** @return The peer, or null if the slot is empty or the peer has gone. */
+	private PeerNodeUnlocked peer(long header) {
+		int index = peerIndex(header);
+		if(index == 0) return null;
+		return peers.getPeerByIndex(index);
+	}
+	
+	/** @return An estimate of the memory used by the entry in bytes. */
+	synchronized int estimatedSize() {
+		return BASE_SIZE + 8 * (requestors.length + requested.length);
 	}
 	
 	/** A request failed to a specific peer.
@@ -120,50 +145,55 @@ class FailureTableEntry implements TimedOutNodesList {
 			Logger.minor(this, "Failed sending request to "+routedTo.shortToString()+" : timeout "+rfTimeout+" / "+ftTimeout);
 		}
 		int idx = addRequestedFrom(routedTo, htl, now);
+		if(idx < 0) return;
+		int offset = idx * REQUESTED_FIELDS;
 		if(rfTimeout > 0) {
-			long curTimeoutTime = requestedTimeoutsRF[idx];
+			long curTimeoutTime = requested[offset + REQUESTED_TIMEOUT_RF];
 			long newTimeoutTime = now + rfTimeout;
 			if(newTimeoutTime > curTimeoutTime) {
-				requestedTimeoutsRF[idx] = newTimeoutTime;
-				requestedTimeoutHTLs[idx] = htl;
+				requested[offset + REQUESTED_TIMEOUT_RF] = newTimeoutTime;
+				requested[offset] = header(peerIndex(requested[offset]), htl);
 			}
 		}
 		if(ftTimeout > 0) {
-			long curTimeoutTime = requestedTimeoutsFT[idx];
+			long curTimeoutTime = requested[offset + REQUESTED_TIMEOUT_FT];
 			long newTimeoutTime = now +  ftTimeout;
 			if(newTimeoutTime > curTimeoutTime) {
-				requestedTimeoutsFT[idx] = newTimeoutTime;
-				requestedTimeoutHTLs[idx] = htl;
+				requested[offset + REQUESTED_TIMEOUT_FT] = newTimeoutTime;
+				requested[offset] = header(peerIndex(requested[offset]), htl);
 			}
 		}
 	}
 
 	// These are rather low level, in an attempt to absolutely minimize memory usage...
 	// The two methods have almost identical code/logic.
-	// Dunno if there's a more elegant way of dealing with this which doesn't significantly increase
-	// per entry byte cost.
 	// Note also this will generate some churn...
 	
 	synchronized int addRequestor(PeerNodeUnlocked requestor, long now, short origHTL) {
 		if(logMINOR) Logger.minor(this, "Adding requestors: "+requestor+" at "+now);
 		receivedTime = now;
+		int requestorIndex = requestor.getPeerIndex();
+		if(requestorIndex <= 0) {
+			Logger.error(this, "No index for "+requestor+", not recording request");
+			return -1;
+		}
 		boolean includedAlready = false;
 		int nulls = 0;
 		int ret = -1;
-		for(int i=0;i<requestorNodes.length;i++) {
-			PeerNodeUnlocked got = requestorNodes[i] == null ? null : requestorNodes[i].get();
+		int count = requestors.length / REQUESTOR_FIELDS;
+		for(int i=0;i<count;i++) {
+			int offset = i * REQUESTOR_FIELDS;
+			PeerNodeUnlocked got = peer(requestors[offset]);
 			// No longer subscribed if they have rebooted, or expired
-			if(got == requestor) {
+			if(got != null && peerIndex(requestors[offset]) == requestorIndex) {
 				// Update existing entry
 				includedAlready = true;
-				requestorTimes[i] = now;
-				requestorBootIDs[i] = requestor.getBootID();
-				requestorHTLs[i] = origHTL;
+				setRequestor(requestors, offset, requestorIndex, origHTL, now, requestor.getBootID());
 				ret = i;
 				break;
 			} else if(got != null && 
-					(got.getBootID() != requestorBootIDs[i] || now - requestorTimes[i] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER)) {
-				requestorNodes[i] = null;
+					(got.getBootID() != requestors[offset + REQUESTOR_BOOT_ID] || now - requestors[offset + REQUESTOR_TIME] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER)) {
+				requestors[offset] = 0;
 				got = null;
 			}
 			if(got == null)
@@ -171,88 +201,79 @@ class FailureTableEntry implements TimedOutNodesList {
 		}
 		if(nulls == 0 && includedAlready) return ret;
 		int notIncluded = includedAlready ? 0 : 1;
-		// Because weak, these can become null; doesn't matter, but we want to minimise memory usage
+		// Because peers can go away, these can become null; doesn't matter, but we want to minimise memory usage
 		if(nulls == 1 && !includedAlready) {
 			// Nice special case
-			for(int i=0;i<requestorNodes.length;i++) {
-				if(requestorNodes[i] == null || requestorNodes[i].get() == null) {
-					requestorNodes[i] = requestor.getWeakRef();
-					requestorTimes[i] = now;
-					requestorBootIDs[i] = requestor.getBootID();
-					requestorHTLs[i] = origHTL;
+			for(int i=0;i<count;i++) {
+				int offset = i * REQUESTOR_FIELDS;
+				if(peer(requestors[offset]) == null) {
+					setRequestor(requestors, offset, requestorIndex, origHTL, now, requestor.getBootID());
 					return i;
 				}
 			}
 		}
-        @SuppressWarnings("unchecked")
-		WeakReference<? extends PeerNodeUnlocked>[] newRequestorNodes =
-		    (WeakReference<? extends PeerNodeUnlocked>[])
-		    new WeakReference<?>[requestorNodes.length+notIncluded-nulls];
-		long[] newRequestorTimes = new long[requestorNodes.length+notIncluded-nulls];
-		long[] newRequestorBootIDs = new long[requestorNodes.length+notIncluded-nulls];
-		short[] newRequestorHTLs = new short[requestorNodes.length+notIncluded-nulls];
+		long[] newRequestors = new long[(count+notIncluded-nulls) * REQUESTOR_FIELDS];
 		int toIndex = 0;
 		
-		for(int i=0;i<requestorNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestorNodes[i];
-			PeerNodeUnlocked pn = ref == null ? null : ref.get();
-			if(pn == null) continue;
-			if(pn == requestor) ret = toIndex;
-			newRequestorNodes[toIndex] = requestorNodes[i];
-			newRequestorTimes[toIndex] = requestorTimes[i];
-			newRequestorBootIDs[toIndex] = requestorBootIDs[i];
-			newRequestorHTLs[toIndex] = requestorHTLs[i];
+		for(int i=0;i<count;i++) {
+			int offset = i * REQUESTOR_FIELDS;
+			if(peer(requestors[offset]) == null) continue;
+			if(peerIndex(requestors[offset]) == requestorIndex) ret = toIndex;
+			System.arraycopy(requestors, offset, newRequestors, toIndex * REQUESTOR_FIELDS, REQUESTOR_FIELDS);
 			toIndex++;
 		}
 		
 		if(!includedAlready) {
-			newRequestorNodes[toIndex] = requestor.getWeakRef();
-			newRequestorTimes[toIndex] = now;
-			newRequestorBootIDs[toIndex] = requestor.getBootID();
-			newRequestorHTLs[toIndex] = origHTL;
+			setRequestor(newRequestors, toIndex * REQUESTOR_FIELDS, requestorIndex, origHTL, now, requestor.getBootID());
 			ret = toIndex;
 			toIndex++;
 		}
 		
-		for(int i=toIndex;i<newRequestorNodes.length;i++) newRequestorNodes[i] = null;
-		if(toIndex > newRequestorNodes.length + 2) {
-			newRequestorNodes = Arrays.copyOf(newRequestorNodes, toIndex);
-			newRequestorTimes = Arrays.copyOf(newRequestorTimes, toIndex);
-			newRequestorBootIDs = Arrays.copyOf(newRequestorBootIDs, toIndex);
-			newRequestorHTLs = Arrays.copyOf(newRequestorHTLs, toIndex);
-		}
-		requestorNodes = newRequestorNodes;
-		requestorTimes = newRequestorTimes;
-		requestorBootIDs = newRequestorBootIDs;
-		requestorHTLs = newRequestorHTLs;
+		// Peers may have gone since we counted them.
+		if(toIndex * REQUESTOR_FIELDS < newRequestors.length)
+			newRequestors = Arrays.copyOf(newRequestors, toIndex * REQUESTOR_FIELDS);
+		requestors = newRequestors;
 		
 		return ret;
 	}
+	
+	private static void setRequestor(long[] requestors, int offset, int peerIndex, short htl, long time, long bootID) {
+		requestors[offset] = header(peerIndex, htl);
+		requestors[offset + REQUESTOR_TIME] = time;
+		requestors[offset + REQUESTOR_BOOT_ID] = bootID;
+	}
 
 	/** Add a requested from entry to the node. If there already is one reuse it but only
 	 * if the HTL matches. Return the index so we can update timeouts etc.
 	 * @param requestedFrom The node we have routed the request to.
 	 * @param htl The HTL at which the request was sent.
 	 * @param now The current time.
-	 * @return The index of the new or old entry.
+	 * @return The index of the new or old entry, or -1 if the peer has no index.
 	 */
 	private synchronized int addRequestedFrom(PeerNodeUnlocked requestedFrom, short htl, long now) {
 		if(logMINOR) Logger.minor(this, "Adding requested from: "+requestedFrom+" at "+now);
 		sentTime = now;
+		int requestedIndex = requestedFrom.getPeerIndex();
+		if(requestedIndex <= 0) {
+			Logger.error(this, "No index for "+requestedFrom+", not recording request");
+			return -1;
+		}
 		boolean includedAlready = false;
 		int nulls = 0;
 		int ret = -1;
-		for(int i=0;i<requestedNodes.length;i++) {
-			PeerNodeUnlocked got = requestedNodes[i] == null ? null : requestedNodes[i].get();
-			if(got == requestedFrom && (requestedTimeoutsRF[i] == -1 || requestedTimeoutsFT[i] == -1 || requestedTimeoutHTLs[i] == htl)) {
+		int count = requested.length / REQUESTED_FIELDS;
+		for(int i=0;i<count;i++) {
+			int offset = i * REQUESTED_FIELDS;
+			PeerNodeUnlocked got = peer(requested[offset]);
+			if(got != null && peerIndex(requested[offset]) == requestedIndex && (requested[offset + REQUESTED_TIMEOUT_RF] == -1 || requested[offset + REQUESTED_TIMEOUT_FT] == -1 || htl(requested[offset]) == htl)) {
 				includedAlready = true;
-				requestedLocs[i] = requestedFrom.getLocation();
-				requestedBootIDs[i] = requestedFrom.getBootID();
-				requestedTimes[i] = now;
+				requested[offset + REQUESTED_LOC] = Double.doubleToRawLongBits(requestedFrom.getLocation());
+				requested[offset + REQUESTED_BOOT_ID] = requestedFrom.getBootID();
+				requested[offset + REQUESTED_TIME] = now;
 				ret = i;
 			} else if(got != null && 
-					(got.getBootID() != requestedBootIDs[i] || now - requestedTimes[i] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER)) {
-				requestedNodes[i] = null;
+					(got.getBootID() != requested[offset + REQUESTED_BOOT_ID] || now - requested[offset + REQUESTED_TIME] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER)) {
+				requested[offset] = 0;
 				got = null;
 			}
 			if(got == null)
@@ -260,107 +281,72 @@ class FailureTableEntry implements TimedOutNodesList {
 		}
 		if(includedAlready && nulls == 0) return ret;
 		int notIncluded = includedAlready ? 0 : 1;
-		// Because weak, these can become null; doesn't matter, but we want to minimise memory usage
+		// Because peers can go away, these can become null; doesn't matter, but we want to minimise memory usage
 		if(nulls == 1 && !includedAlready) {
 			// Nice special case
-			for(int i=0;i<requestedNodes.length;i++) {
-				if(requestedNodes[i] == null || requestedNodes[i].get() == null) {
-					requestedNodes[i] = requestedFrom.getWeakRef();
-					requestedLocs[i] = requestedFrom.getLocation();
-					requestedBootIDs[i] = requestedFrom.getBootID();
-					requestedTimes[i] = now;
-					requestedTimeoutsRF[i] = -1;
-					requestedTimeoutsFT[i] = -1;
-					requestedTimeoutHTLs[i] = (short) -1;
+			for(int i=0;i<count;i++) {
+				int offset = i * REQUESTED_FIELDS;
+				if(peer(requested[offset]) == null) {
+					setRequested(requested, offset, requestedIndex, requestedFrom, now);
 					return i;
 				}
 			}
 		}
-		@SuppressWarnings("unchecked")
-		WeakReference<? extends PeerNodeUnlocked>[] newRequestedNodes =
-		    (WeakReference<? extends PeerNodeUnlocked>[])
-		    new WeakReference<?>[requestedNodes.length+notIncluded-nulls];
-		double[] newRequestedLocs = new double[requestedNodes.length+notIncluded-nulls];
-		long[] newRequestedBootIDs = new long[requestedNodes.length+notIncluded-nulls];
-		long[] newRequestedTimes = new long[requestedNodes.length+notIncluded-nulls];
-		long[] newRequestedTimeoutsFT = new long[requestedNodes.length+notIncluded-nulls];
-		long[] newRequestedTimeoutsRF = new long[requestedNodes.length+notIncluded-nulls];
-		short[] newRequestedTimeoutHTLs = new short[requestedNodes.length+notIncluded-nulls];
+		long[] newRequested = new long[(count+notIncluded-nulls) * REQUESTED_FIELDS];
 
 		int toIndex = 0;
-		for(int i=0;i<requestedNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestedNodes[i];
-			PeerNodeUnlocked pn = ref == null ? null : ref.get();
-			if(pn == null) continue;
-			if(pn == requestedFrom) ret = toIndex;
-			newRequestedNodes[toIndex] = requestedNodes[i];
-			newRequestedTimes[toIndex] = requestedTimes[i];
-			newRequestedBootIDs[toIndex] = requestedBootIDs[i];
-			newRequestedLocs[toIndex] = requestedLocs[i];
-			newRequestedTimeoutsFT[toIndex] = requestedTimeoutsFT[i];
-			newRequestedTimeoutsRF[toIndex] = requestedTimeoutsRF[i];
-			newRequestedTimeoutHTLs[toIndex] = requestedTimeoutHTLs[i];
+		for(int i=0;i<count;i++) {
+			int offset = i * REQUESTED_FIELDS;
+			if(peer(requested[offset]) == null) continue;
+			if(peerIndex(requested[offset]) == requestedIndex) ret = toIndex;
+			System.arraycopy(requested, offset, newRequested, toIndex * REQUESTED_FIELDS, REQUESTED_FIELDS);
 			toIndex++;
 		}
 		
 		if(!includedAlready) {
-			ret = toIndex;
-			newRequestedNodes[toIndex] = requestedFrom.getWeakRef();
-			newRequestedTimes[toIndex] = now;
-			newRequestedBootIDs[toIndex] = requestedFrom.getBootID();
-			newRequestedLocs[toIndex] = requestedFrom.getLocation();
-			newRequestedTimeoutsFT[toIndex] = -1;
-			newRequestedTimeoutsRF[toIndex] = -1;
-			newRequestedTimeoutHTLs[toIndex] = (short) -1;
+			setRequested(newRequested, toIndex * REQUESTED_FIELDS, requestedIndex, requestedFrom, now);
 			ret = toIndex;
 			toIndex++;
 		}
 		
-		for(int i=toIndex;i<newRequestedNodes.length;i++) newRequestedNodes[i] = null;
-		if(toIndex > newRequestedNodes.length + 2) {
-			newRequestedNodes = Arrays.copyOf(newRequestedNodes, toIndex);
-			newRequestedLocs = Arrays.copyOf(newRequestedLocs, toIndex);
-			newRequestedBootIDs = Arrays.copyOf(newRequestedBootIDs, toIndex);
-			newRequestedTimes = Arrays.copyOf(newRequestedTimes, toIndex);
-			newRequestedTimeoutsRF = Arrays.copyOf(newRequestedTimeoutsRF, toIndex);
-			newRequestedTimeoutsFT = Arrays.copyOf(newRequestedTimeoutsFT, toIndex);
-			newRequestedTimeoutHTLs = Arrays.copyOf(newRequestedTimeoutHTLs, toIndex);
-		}
-		requestedNodes = newRequestedNodes;
-		requestedLocs = newRequestedLocs;
-		requestedBootIDs = newRequestedBootIDs;
-		requestedTimes = newRequestedTimes;
-		requestedTimeoutsRF = newRequestedTimeoutsRF;
-		requestedTimeoutsFT = newRequestedTimeoutsFT;
-		requestedTimeoutHTLs = newRequestedTimeoutHTLs;
+		// Peers may have gone since we counted them.
+		if(toIndex * REQUESTED_FIELDS < newRequested.length)
+			newRequested = Arrays.copyOf(newRequested, toIndex * REQUESTED_FIELDS);
+		requested = newRequested;
 		
 		return ret;
 	}
+	
+	/** Fill in a new requested from entry, with no timeouts. */
+	private static void setRequested(long[] requested, int offset, int peerIndex, PeerNodeUnlocked requestedFrom, long now) {
+		requested[offset] = header(peerIndex, (short) -1);
+		requested[offset + REQUESTED_BOOT_ID] = requestedFrom.getBootID();
+		requested[offset + REQUESTED_TIME] = now;
+		requested[offset + REQUESTED_TIMEOUT_RF] = -1;
+		requested[offset + REQUESTED_TIMEOUT_FT] = -1;
+		requested[offset + REQUESTED_LOC] = Double.doubleToRawLongBits(requestedFrom.getLocation());
+	}
 
 	/** Offer this key to all the nodes that have requested it, and all the nodes it has been requested from.
 	 * Called after a) the data has been stored, and b) this entry has been removed from the FT */
 	public void offer() {
 		HashSet<PeerNodeUnlocked> set = new HashSet<PeerNodeUnlocked>();
 		final boolean logMINOR = FailureTableEntry.logMINOR;
-		if(logMINOR) Logger.minor(this, "Sending offers to nodes which requested the key from us: ("+requestorNodes.length+") for "+key);
 		synchronized(this) {
-			for(int i=0;i<requestorNodes.length;i++) {
-				WeakReference<? extends PeerNodeUnlocked> ref = requestorNodes[i];
-				if(ref == null) continue;
-				PeerNodeUnlocked pn = ref.get();
+			if(logMINOR) Logger.minor(this, "Sending offers to nodes which requested the key from us: ("+requestors.length / REQUESTOR_FIELDS+") for "+key);
+			for(int offset=0;offset<requestors.length;offset+=REQUESTOR_FIELDS) {
+				PeerNodeUnlocked pn = peer(requestors[offset]);
 				if(pn == null) continue;
-				if(pn.getBootID() != requestorBootIDs[i]) continue;
+				if(pn.getBootID() != requestors[offset + REQUESTOR_BOOT_ID]) continue;
 				if(!set.add(pn)) {
-					Logger.error(this, "Node is in requestorNodes twice: "+pn);
+					Logger.error(this, "Node is in requestors twice: "+pn);
 				}
 			}
-			if(logMINOR) Logger.minor(this, "Sending offers to nodes which we sent the key to: ("+requestedNodes.length+") for "+key);
-			for(int i=0;i<requestedNodes.length;i++) {
-				WeakReference<? extends PeerNodeUnlocked> ref = requestedNodes[i];
-				if(ref == null) continue;
-				PeerNodeUnlocked pn = ref.get();
+			if(logMINOR) Logger.minor(this, "Sending offers to nodes which we sent the key to: ("+requested.length / REQUESTED_FIELDS+") for "+key);
+			for(int offset=0;offset<requested.length;offset+=REQUESTED_FIELDS) {
+				PeerNodeUnlocked pn = peer(requested[offset]);
 				if(pn == null) continue;
-				if(pn.getBootID() != requestedBootIDs[i]) continue;
+				if(pn.getBootID() != requested[offset + REQUESTED_BOOT_ID]) continue;
 				if(!set.add(pn)) continue;
 			}
 		}
@@ -377,26 +363,21 @@ class FailureTableEntry implements TimedOutNodesList {
 	 */
 	public synchronized boolean othersWant(PeerNodeUnlocked peer) {
 		boolean anyValid = false;
-		for(int i=0;i<requestorNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestorNodes[i];
-			if(ref == null) continue;
-			PeerNodeUnlocked pn = ref.get();
+		for(int offset=0;offset<requestors.length;offset+=REQUESTOR_FIELDS) {
+			PeerNodeUnlocked pn = peer(requestors[offset]);
 			if(pn == null) {
-				requestorNodes[i] = null;
+				requestors[offset] = 0;
 				continue;
 			}
 			long bootID = pn.getBootID();
-			if(bootID != requestorBootIDs[i]) {
-				requestorNodes[i] = null;
+			if(bootID != requestors[offset + REQUESTOR_BOOT_ID]) {
+				requestors[offset] = 0;
 				continue;
 			}
 			anyValid = true;
 		}
-		if(!anyValid) {
-			requestorNodes = EMPTY_WEAK_REFERENCE;
-			requestorTimes = requestorBootIDs = EMPTY_LONG_ARRAY;
-			requestorHTLs = EMPTY_SHORT_ARRAY;
-		}
+		if(!anyValid)
+			requestors = EMPTY_LONG_ARRAY;
 		return anyValid;
 	}
 
@@ -406,29 +387,24 @@ class FailureTableEntry implements TimedOutNodesList {
 	public synchronized boolean askedByPeer(PeerNodeUnlocked peer, long now) {
 		boolean anyValid = false;
 		boolean ret = false;
-		for(int i=0;i<requestorNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestorNodes[i];
-			if(ref == null) continue;
-			PeerNodeUnlocked pn = ref.get();
+		for(int offset=0;offset<requestors.length;offset+=REQUESTOR_FIELDS) {
+			PeerNodeUnlocked pn = peer(requestors[offset]);
 			if(pn == null) {
-				requestorNodes[i] = null;
+				requestors[offset] = 0;
 				continue;
 			}
 			long bootID = pn.getBootID();
-			if(bootID != requestorBootIDs[i]) {
-				requestorNodes[i] = null;
+			if(bootID != requestors[offset + REQUESTOR_BOOT_ID]) {
+				requestors[offset] = 0;
 				continue;
 			}
-			if(now - requestorTimes[i] < MAX_TIME_BETWEEN_REQUEST_AND_OFFER) {
+			if(now - requestors[offset + REQUESTOR_TIME] < MAX_TIME_BETWEEN_REQUEST_AND_OFFER) {
 				if(pn == peer) ret = true;
 				anyValid = true;
 			} 
 		}
-		if(!anyValid) {
-			requestorNodes = EMPTY_WEAK_REFERENCE;
-			requestorTimes = requestorBootIDs = EMPTY_LONG_ARRAY;
-			requestorHTLs = EMPTY_SHORT_ARRAY;
-		}
+		if(!anyValid)
+			requestors = EMPTY_LONG_ARRAY;
 		return ret;
 	}
 
@@ -438,36 +414,31 @@ class FailureTableEntry implements TimedOutNodesList {
 	public synchronized boolean askedFromPeer(PeerNodeUnlocked peer, long now) {
 		boolean anyValid = false;
 		boolean ret = false;
-		for(int i=0;i<requestedNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestedNodes[i];
-			if(ref == null) continue;
-			PeerNodeUnlocked pn = ref.get();
+		for(int offset=0;offset<requested.length;offset+=REQUESTED_FIELDS) {
+			PeerNodeUnlocked pn = peer(requested[offset]);
 			if(pn == null) {
-				requestedNodes[i] = null;
+				requested[offset] = 0;
 				continue;
 			}
 			long bootID = pn.getBootID();
-			if(bootID != requestedBootIDs[i]) {
-				requestedNodes[i] = null;
+			if(bootID != requested[offset + REQUESTED_BOOT_ID]) {
+				requested[offset] = 0;
 				continue;
 			}
 			anyValid = true;
-			if(now - requestedTimes[i] < MAX_TIME_BETWEEN_REQUEST_AND_OFFER) {
+			if(now - requested[offset + REQUESTED_TIME] < MAX_TIME_BETWEEN_REQUEST_AND_OFFER) {
 				if(pn == peer) ret = true;
 				anyValid = true;
 			}
 		}
-		if(!anyValid) {
-			requestedNodes = EMPTY_WEAK_REFERENCE;
-			requestedTimes = requestedBootIDs = requestedTimeoutsRF = requestedTimeoutsFT = EMPTY_LONG_ARRAY;
-			requestedTimeoutHTLs =EMPTY_SHORT_ARRAY;
-		}
+		if(!anyValid)
+			requested = EMPTY_LONG_ARRAY;
 		return ret;
 	}
 
 	public synchronized boolean isEmpty(long now) {
-		if(requestedNodes.length > 0) return false;
-		if(requestorNodes.length > 0) return false;
+		if(requested.length > 0) return false;
+		if(requestors.length > 0) return false;
 		return true;
 	}
 
@@ -477,11 +448,13 @@ class FailureTableEntry implements TimedOutNodesList {
 	@Override
 	public synchronized long getTimeoutTime(PeerNode peer, short htl, long now, boolean forPerNodeFailureTables) {
 		long timeout = -1;
-		for(int i=0;i<requestedNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestedNodes[i];
-			if(ref != null && ref.get() == peer) {
-				if(requestedTimeoutHTLs[i] >= htl) {
-					long thisTimeout = forPerNodeFailureTables ? requestedTimeoutsFT[i] : requestedTimeoutsRF[i];
+		// Compare indexes rather than resolving them, the peer is still ours so its index is current.
+		int index = peer.peerIndex;
+		if(index == 0) return timeout;
+		for(int offset=0;offset<requested.length;offset+=REQUESTED_FIELDS) {
+			if(peerIndex(requested[offset]) == index) {
+				if(htl(requested[offset]) >= htl) {
+					long thisTimeout = requested[offset + (forPerNodeFailureTables ? REQUESTED_TIMEOUT_FT : REQUESTED_TIMEOUT_RF)];
 					if(thisTimeout > timeout && thisTimeout > now)
 						timeout = thisTimeout;
 				}
@@ -501,28 +474,19 @@ class FailureTableEntry implements TimedOutNodesList {
 	private boolean cleanupRequestor(long now) {
 		boolean empty = true;
 		int x = 0;
-		for(int i=0;i<requestorNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestorNodes[i];
-			if(ref == null) continue;
-			PeerNodeUnlocked pn = ref.get();
+		for(int offset=0;offset<requestors.length;offset+=REQUESTOR_FIELDS) {
+			PeerNodeUnlocked pn = peer(requestors[offset]);
 			if(pn == null) continue;
 			long bootID = pn.getBootID();
-			if(bootID != requestorBootIDs[i]) continue;
+			if(bootID != requestors[offset + REQUESTOR_BOOT_ID]) continue;
 			if(!pn.isConnected()) continue;
-			if(now - requestorTimes[i] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER) continue;
+			if(now - requestors[offset + REQUESTOR_TIME] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER) continue;
 			empty = false;
-			requestorNodes[x] = requestorNodes[i];
-			requestorTimes[x] = requestorTimes[i];
-			requestorBootIDs[x] = requestorBootIDs[i];
-			requestorHTLs[x] = requestorHTLs[i];
-			x++;
-		}
-		if(x < requestorNodes.length) {
-			requestorNodes = Arrays.copyOf(requestorNodes, x);
-			requestorTimes = Arrays.copyOf(requestorTimes, x);
-			requestorBootIDs = Arrays.copyOf(requestorBootIDs, x);
-			requestorHTLs = Arrays.copyOf(requestorHTLs, x);
+			System.arraycopy(requestors, offset, requestors, x, REQUESTOR_FIELDS);
+			x += REQUESTOR_FIELDS;
 		}
+		if(x < requestors.length)
+			requestors = x == 0 ? EMPTY_LONG_ARRAY : Arrays.copyOf(requestors, x);
 		
 		return empty;
 	}
@@ -530,40 +494,24 @@ class FailureTableEntry implements TimedOutNodesList {
 	private boolean cleanupRequested(long now) {
 		boolean empty = true;
 		int x = 0;
-		for(int i=0;i<requestedNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestedNodes[i];
-			if(ref == null) continue;
-			PeerNodeUnlocked pn = ref.get();
+		for(int offset=0;offset<requested.length;offset+=REQUESTED_FIELDS) {
+			PeerNodeUnlocked pn = peer(requested[offset]);
 			if(pn == null) continue;
 			long bootID = pn.getBootID();
-			if(bootID != requestedBootIDs[i]) continue;
+			if(bootID != requested[offset + REQUESTED_BOOT_ID]) continue;
 			if(!pn.isConnected()) continue;
-			if(now - requestedTimes[i] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER) continue;
+			if(now - requested[offset + REQUESTED_TIME] > MAX_TIME_BETWEEN_REQUEST_AND_OFFER) continue;
 			empty = false;
-			requestedNodes[x] = requestedNodes[i];
-			requestedTimes[x] = requestedTimes[i];
-			requestedBootIDs[x] = requestedBootIDs[i];
-			requestedLocs[x] = requestedLocs[i];
-			if(now < requestedTimeoutsRF[x] || now < requestedTimeoutsFT[x]) { 
-				requestedTimeoutsRF[x] = requestedTimeoutsRF[i];
-				requestedTimeoutsFT[x] = requestedTimeoutsFT[i];
-				requestedTimeoutHTLs[x] = requestedTimeoutHTLs[i];
-			} else {
-				requestedTimeoutsRF[x] = -1;
-				requestedTimeoutsFT[x] = -1;
-				requestedTimeoutHTLs[x] = (short)-1;
+			System.arraycopy(requested, offset, requested, x, REQUESTED_FIELDS);
+			if(!(now < requested[x + REQUESTED_TIMEOUT_RF] || now < requested[x + REQUESTED_TIMEOUT_FT])) {
+				requested[x] = header(peerIndex(requested[x]), (short) -1);
+				requested[x + REQUESTED_TIMEOUT_RF] = -1;
+				requested[x + REQUESTED_TIMEOUT_FT] = -1;
 			}
-			x++;
-		}
-		if(x < requestedNodes.length) {
-			requestedNodes = Arrays.copyOf(requestedNodes, x);
-			requestedTimes = Arrays.copyOf(requestedTimes, x);
-			requestedBootIDs = Arrays.copyOf(requestedBootIDs, x);
-			requestedLocs = Arrays.copyOf(requestedLocs, x);
-			requestedTimeoutsRF = Arrays.copyOf(requestedTimeoutsRF, x);
-			requestedTimeoutsFT = Arrays.copyOf(requestedTimeoutsFT, x);
-			requestedTimeoutHTLs = Arrays.copyOf(requestedTimeoutHTLs, x);
+			x += REQUESTED_FIELDS;
 		}
+		if(x < requested.length)
+			requested = x == 0 ? EMPTY_LONG_ARRAY : Arrays.copyOf(requested, x);
 		return empty;
 	}
 
@@ -574,29 +522,25 @@ class FailureTableEntry implements TimedOutNodesList {
 	public synchronized short minRequestorHTL(short htl) {
 		long now = System.currentTimeMillis();
 		boolean anyValid = false;
-		for(int i=0;i<requestorNodes.length;i++) {
-			WeakReference<? extends PeerNodeUnlocked> ref = requestorNodes[i];
-			if(ref == null) continue;
-			PeerNodeUnlocked pn = ref.get();
+		for(int offset=0;offset<requestors.length;offset+=REQUESTOR_FIELDS) {
+			PeerNodeUnlocked pn = peer(requestors[offset]);
 			if(pn == null) {
-				requestorNodes[i] = null;
+				requestors[offset] = 0;
 				continue;
 			}
 			long bootID = pn.getBootID();
-			if(bootID != requestorBootIDs[i]) {
-				requestorNodes[i] = null;
+			if(bootID != requestors[offset + REQUESTOR_BOOT_ID]) {
+				requestors[offset] = 0;
 				continue;
 			}
-			if(now - requestorTimes[i] < MAX_TIME_BETWEEN_REQUEST_AND_OFFER) {
-				if(requestorHTLs[i] < htl) htl = requestorHTLs[i];
+			if(now - requestors[offset + REQUESTOR_TIME] < MAX_TIME_BETWEEN_REQUEST_AND_OFFER) {
+				short requestorHTL = htl(requestors[offset]);
+				if(requestorHTL < htl) htl = requestorHTL;
 			}
 			anyValid = true;
 		}
-		if(!anyValid) {
-			requestorNodes = EMPTY_WEAK_REFERENCE;
-			requestorTimes = requestorBootIDs = EMPTY_LONG_ARRAY;
-			requestorHTLs = EMPTY_SHORT_ARRAY;
-		}
+		if(!anyValid)
+			requestors = EMPTY_LONG_ARRAY;
 		return htl;
 	}
 
@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.util.Arrays;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.support.LogThresholdCallback;
@@ -165,7 +164,6 @@ public class MessageWrapper {
 		int end = item.buf.length - 1;
 
 		int dataLength;
-		byte[] fragmentData;
 		synchronized(sent) {
 			for(int[] range : sent) {
 				if(range[0] == start) {
@@ -190,15 +188,14 @@ public class MessageWrapper {
 			dataLength = Math.min(end - start + 1, dataLength);
 			if(dataLength <= 0) return null;
 
-			fragmentData = Arrays.copyOfRange(item.buf, start, start+dataLength);
-
 			sent.add(start, start + dataLength - 1);
 			if(logDEBUG) Logger.debug(this, "Using range "+start+" to "+(start+dataLength-1)+" gives "+sent+" on "+messageID);
 		}
 
 		boolean isFragmented = !((start == 0) && (dataLength == item.buf.length));
+		// Refers to the message rather than copying, it is copied straight into the packet.
 		return new MessageFragment(isShortMessage, isFragmented, start == 0, messageID, dataLength,
-		                item.buf.length, start, fragmentData, this);
+		                item.buf.length, start, item.buf, start, this);
 	}
 
 	public void onDisconnect() {
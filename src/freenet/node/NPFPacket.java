@@ -43,11 +43,22 @@ class NPFPacket {
 	private int ackBlockByteSize = 0;
 	
 	public static NPFPacket create(byte[] plaintext, BasePeerNode pn) {
+		return create(plaintext, 0, plaintext.length, pn);
+	}
+
+	/**
+	 * Parse a decrypted packet from part of a buffer. The fragments refer to the buffer rather
+	 * than copying their data (see MessageFragment.dataOffset), so the packet must be finished
+	 * with before the buffer is reused.
+	 * @param start The offset of the sequence number.
+	 * @param end The end of the packet, after any padding.
+	 */
+	public static NPFPacket create(byte[] plaintext, int start, int end, BasePeerNode pn) {
 		NPFPacket packet = new NPFPacket();
 		if (pn == null) throw new IllegalArgumentException("Can't estimate an ack type of received packet");
-		int offset = 0;
+		int offset = start;
 
-		if(plaintext.length < (offset + 5)) { //Sequence number + the number of acks
+		if(end < (offset + 5)) { //Sequence number + the number of acks
 			packet.error = true;
 			return packet;
 		}
@@ -62,60 +73,67 @@ class NPFPacket {
 
 			int numAckRanges = plaintext[offset++] & 0xFF;
 			if (numAckRanges > 0) {
-				try {
-					int ack, prevAck = 0;
-					
-					for(int i = 0; i < numAckRanges; i++) {
-						if (i == 0) {
+				int ack, prevAck = 0;
+
+				for(int i = 0; i < numAckRanges; i++) {
+					// The buffer may extend past the end of the packet, so check explicitly.
+					if (i == 0) {
+						if(end < offset + 5) {
+							packet.error = true;
+							return packet;
+						}
+						ack = ((plaintext[offset] & 0xFF) << 24)
+					               | ((plaintext[offset + 1] & 0xFF) << 16)
+					               | ((plaintext[offset + 2] & 0xFF) << 8)
+					               | (plaintext[offset + 3] & 0xFF);
+						offset += 4;
+					} else {
+						if(end < offset + 2) {
+							packet.error = true;
+							return packet;
+						}
+						int distanceFromPrevious = (plaintext[offset++] & 0xFF);
+						if (distanceFromPrevious != 0) {
+							ack = prevAck + distanceFromPrevious;
+						} else {
+							// Far offset
+							if(end < offset + 5) {
+								packet.error = true;
+								return packet;
+							}
 							ack = ((plaintext[offset] & 0xFF) << 24)
 						               | ((plaintext[offset + 1] & 0xFF) << 16)
 						               | ((plaintext[offset + 2] & 0xFF) << 8)
 						               | (plaintext[offset + 3] & 0xFF);
 							offset += 4;
-						} else {
-							int distanceFromPrevious = (plaintext[offset++] & 0xFF);
-							if (distanceFromPrevious != 0) {
-								ack = prevAck + distanceFromPrevious;
-							} else {
-								// Far offset
-								ack = ((plaintext[offset] & 0xFF) << 24)
-							               | ((plaintext[offset + 1] & 0xFF) << 16)
-							               | ((plaintext[offset + 2] & 0xFF) << 8)
-							               | (plaintext[offset + 3] & 0xFF);
-								offset += 4;
-							}
 						}
-						
-						int rangeSize = (plaintext[offset++] & 0xFF);
-						for (int j = 1; j <= rangeSize; j++) {
-							packet.acks.add(ack++);
-						}
-						
-						prevAck = ack-1;
 					}
-				} catch (ArrayIndexOutOfBoundsException e) {
-					// The packet's length is not big enough
-					packet.error = true;
-					return packet;
+
+					int rangeSize = (plaintext[offset++] & 0xFF);
+					for (int j = 1; j <= rangeSize; j++) {
+						packet.acks.add(ack++);
+					}
+
+					prevAck = ack-1;
 				}
 			}
 
 		//Handle received message fragments
 		int prevFragmentID = -1;
-		while(offset < plaintext.length) {
+		while(offset < end) {
 			boolean shortMessage = (plaintext[offset] & 0x80) != 0;
 			boolean isFragmented = (plaintext[offset] & 0x40) != 0;
 			boolean firstFragment = (plaintext[offset] & 0x20) != 0;
 
 			if(!isFragmented && !firstFragment) {
 				// Padding or lossy messages.
-				offset = tryParseLossyMessages(packet, plaintext, offset);
+				offset = tryParseLossyMessages(packet, plaintext, offset, end);
 				break;
 			}
 
 			int messageID = -1;
 			if((plaintext[offset] & 0x10) != 0) {
-				if(plaintext.length < (offset + 4)) {
+				if(end < (offset + 4)) {
 					packet.error = true;
 					return packet;
 				}
@@ -126,7 +144,7 @@ class NPFPacket {
 				                | (plaintext[offset + 3] & 0xFF);
 				offset += 4;
 			} else {
-				if(plaintext.length < (offset + 2)) {
+				if(end < (offset + 2)) {
 					packet.error = true;
 					return packet;
 				}
@@ -145,7 +163,7 @@ class NPFPacket {
 			int requiredLength = offset
 			                + (shortMessage ? 1 : 2)
 			                + (isFragmented ? (shortMessage ? 1 : 3) : 0);
-			if(plaintext.length < requiredLength) {
+			if(end < requiredLength) {
 				packet.error = true;
 				return packet;
 			}
@@ -182,49 +200,55 @@ class NPFPacket {
 			} else {
 				messageLength = fragmentLength;
 			}
-			if((offset + fragmentLength) > plaintext.length) {
-				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
+			if((offset + fragmentLength) > end) {
+				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+end+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
 				packet.error = true;
 				break;
 			}
-			byte[] fragmentData = Arrays.copyOfRange(plaintext, offset, offset + fragmentLength);
-			offset += fragmentLength;
-
 			packet.fragments.add(new MessageFragment(shortMessage, isFragmented, firstFragment,
-			                messageID, fragmentLength, messageLength, fragmentOffset, fragmentData, null));
+			                messageID, fragmentLength, messageLength, fragmentOffset, plaintext, offset, null));
+			offset += fragmentLength;
 		}
 		
-		packet.length = offset;
+		packet.length = offset - start;
 
 		return packet;
 	}
 
 	private static int tryParseLossyMessages(NPFPacket packet,
-			byte[] plaintext, int offset) {
+			byte[] plaintext, int offset, int end) {
 		int origOffset = offset;
 		while(true) {
 			if(plaintext[offset] != 0x1F)
 				return offset; // Padding
 			// Else it might be some per-packet lossy messages
 			offset++;
-			if(offset >= plaintext.length) {
+			if(offset >= end) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			int len = plaintext[offset] & 0xFF;
 			offset++;
-			if(len > plaintext.length - offset) {
+			if(len > end - offset) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			byte[] fragment = Arrays.copyOfRange(plaintext, offset, offset + len);
 			packet.lossyMessages.add(fragment);
 			offset += len;
-			if(offset == plaintext.length) return offset;
+			if(offset == end) return offset;
 		}
 	}
 
 	public int toBytes(byte[] buf, int offset, Random paddingGen) {
+		return toBytes(buf, offset, buf.length, paddingGen);
+	}
+
+	/**
+	 * Write the packet to buf at offset, and fill the rest up to end with padding.
+	 * @return The offset after the packet, before the padding.
+	 */
+	public int toBytes(byte[] buf, int offset, int end, Random paddingGen) {
 	    int origOffset = offset;
 		buf[offset] = (byte) (sequenceNumber >>> 24);
 		buf[offset + 1] = (byte) (sequenceNumber >>> 16);
@@ -327,7 +351,7 @@ class NPFPacket {
 				}
 			}
 
-			System.arraycopy(fragment.fragmentData, 0, buf, offset, fragment.fragmentLength);
+			System.arraycopy(fragment.fragmentData, fragment.dataOffset, buf, offset, fragment.fragmentLength);
 			offset += fragment.fragmentLength;
 		}
 		
@@ -343,9 +367,9 @@ class NPFPacket {
 
         assert(offset - origOffset == length);
 
-		if(offset < buf.length) {
+		if(offset < end) {
 			//More room, so add padding
-			Util.randomBytes(paddingGen, buf, offset, buf.length - offset);
+			Util.randomBytes(paddingGen, buf, offset, end - offset);
 
 			byte b = (byte) (buf[offset] & 0x9F); //Make sure firstFragment and isFragmented isn't set
 			if(b == 0x1F)
@@ -5,7 +5,6 @@ package freenet.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -13,6 +12,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.HMAC;
@@ -28,10 +28,11 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.SparseBitmap;
+import freenet.support.ThreadAllocation;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -57,6 +58,34 @@ public class NewPacketFormat implements PacketFormat {
 		});
 	}
 
+	/** Measure the allocation of one in this many packets sent by each thread. */
+	private static final int ALLOCATION_SAMPLE_INTERVAL = 64;
+	private static final LongAdder sampledPackets = new LongAdder();
+	private static final LongAdder sampledPacketsAllocated = new LongAdder();
+
+	/** Bigger than any packet we send, so the send buffers are only allocated once. */
+	private static final int MAX_PACKET_SIZE = 1500;
+
+	/** Buffer for building, encrypting and sending packets, one per sending thread. The socket
+	 * has sent the packet by the time sendEncryptedPacket() returns, so it can be reused for the
+	 * next packet straight away. */
+	private static final class SendBuffer {
+		private byte[] buf = new byte[0];
+		int attempts;
+
+		byte[] get(int length) {
+			if(buf.length < length) buf = new byte[Math.max(length, MAX_PACKET_SIZE)];
+			return buf;
+		}
+	}
+
+	private static final ThreadLocal<SendBuffer> sendBuffers = new ThreadLocal<SendBuffer>() {
+		@Override
+		protected SendBuffer initialValue() {
+			return new SendBuffer();
+		}
+	};
+
 	private final BasePeerNode pn;
 
 	/** The actual buffer of outgoing messages that have not yet been acked.
@@ -73,7 +102,12 @@ public class NewPacketFormat implements PacketFormat {
 	 * LOCKING: Protected by (this). */
 	private final SparseBitmap ackedMessages = new SparseBitmap();
 
+	/** Lock protecting the message reassembly state: receiveBuffers, receiveMaps and
+	 * messageWindowPtrReceived. Taken before receivedMessages and receiveBufferSizeLock. */
+	private final Object receiveLock = new Object();
+	/** LOCKING: Protected by receiveLock. */
 	private final HashMap<Integer, PartiallyReceivedBuffer> receiveBuffers = new HashMap<>();
+	/** LOCKING: Protected by receiveLock. */
 	private final HashMap<Integer, SparseBitmap> receiveMaps = new HashMap<>();
 	/** The first message id that hasn't been fully received */
 	private int messageWindowPtrReceived;
@@ -196,98 +230,101 @@ public class NewPacketFormat implements PacketFormat {
 			for(Message msg : lossyMessages)
 				pn.handleMessage(msg);
 		}
-		for(MessageFragment fragment : packet.getFragments()) {
-			if(messageWindowPtrReceived + MSG_WINDOW_SIZE > NUM_MESSAGE_IDS) {
-				int upperBound = (messageWindowPtrReceived + MSG_WINDOW_SIZE) % NUM_MESSAGE_IDS;
-				if((fragment.messageID > upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
-					if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
-					continue;
+		// Several receive threads may be handling packets from this peer, e.g. if it has two addresses.
+		synchronized(receiveLock) {
+			for(MessageFragment fragment : packet.getFragments()) {
+				if(messageWindowPtrReceived + MSG_WINDOW_SIZE > NUM_MESSAGE_IDS) {
+					int upperBound = (messageWindowPtrReceived + MSG_WINDOW_SIZE) % NUM_MESSAGE_IDS;
+					if((fragment.messageID > upperBound) && (fragment.messageID < messageWindowPtrReceived)) {
+						if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
+						continue;
+					}
+				} else {
+					int upperBound = messageWindowPtrReceived + MSG_WINDOW_SIZE;
+					if(!((fragment.messageID >= messageWindowPtrReceived) && (fragment.messageID < upperBound))) {
+						if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
+						continue;
+					}
 				}
-			} else {
-				int upperBound = messageWindowPtrReceived + MSG_WINDOW_SIZE;
-				if(!((fragment.messageID >= messageWindowPtrReceived) && (fragment.messageID < upperBound))) {
-					if(logMINOR) Logger.minor(this, "Received message "+fragment.messageID+" outside window, acking");
-					continue;
+				synchronized(receivedMessages) {
+					if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
 				}
-			}
-			synchronized(receivedMessages) {
-				if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
-			}
 
-			PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
-			SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
-			if(recvBuffer == null) {
-				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
+				PartiallyReceivedBuffer recvBuffer = receiveBuffers.get(fragment.messageID);
+				SparseBitmap recvMap = receiveMaps.get(fragment.messageID);
+				if(recvBuffer == null) {
+					if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Creating buffer");
 
-				recvBuffer = new PartiallyReceivedBuffer(this);
-				if(fragment.firstFragment) {
-					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
-						dontAck = true;
-						continue;
+					recvBuffer = new PartiallyReceivedBuffer(this);
+					if(fragment.firstFragment) {
+						if(!recvBuffer.setMessageLength(fragment.messageLength)) {
+							dontAck = true;
+							continue;
+						}
+					} else {
+						synchronized(receiveBufferSizeLock) {
+							if((receiveBufferUsed + fragment.fragmentLength) > MAX_RECEIVE_BUFFER_SIZE) {
+								if(logMINOR) Logger.minor(this, "Could not create buffer, would excede max size");
+								dontAck = true;
+								continue;
+							}
+						}
 					}
+
+					recvMap = new SparseBitmap();
+					receiveBuffers.put(fragment.messageID, recvBuffer);
+					receiveMaps.put(fragment.messageID, recvMap);
 				} else {
-					synchronized(receiveBufferSizeLock) {
-						if((receiveBufferUsed + fragment.fragmentLength) > MAX_RECEIVE_BUFFER_SIZE) {
-							if(logMINOR) Logger.minor(this, "Could not create buffer, would excede max size");
+					if(fragment.firstFragment) {
+						if(!recvBuffer.setMessageLength(fragment.messageLength)) {
 							dontAck = true;
 							continue;
 						}
 					}
 				}
 
-				recvMap = new SparseBitmap();
-				receiveBuffers.put(fragment.messageID, recvBuffer);
-				receiveMaps.put(fragment.messageID, recvMap);
-			} else {
-				if(fragment.firstFragment) {
-					if(!recvBuffer.setMessageLength(fragment.messageLength)) {
-						dontAck = true;
-						continue;
-					}
+				if(!recvBuffer.add(fragment.fragmentData, fragment.dataOffset, fragment.fragmentLength, fragment.fragmentOffset)) {
+					dontAck = true;
+					continue;
 				}
-			}
-
-			if(!recvBuffer.add(fragment.fragmentData, fragment.fragmentOffset)) {
-				dontAck = true;
-				continue;
-			}
-			if(fragment.fragmentLength == 0) {
-				Logger.warning(this, "Received fragment of length 0");
-				continue;
-			}
-			recvMap.add(fragment.fragmentOffset, fragment.fragmentOffset + fragment.fragmentLength - 1);
-			if((recvBuffer.messageLength != -1) && recvMap.contains(0, recvBuffer.messageLength - 1)) {
-				receiveBuffers.remove(fragment.messageID);
-				receiveMaps.remove(fragment.messageID);
-
-				synchronized(receivedMessages) {
-					if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
-					receivedMessages.add(fragment.messageID, fragment.messageID);
+				if(fragment.fragmentLength == 0) {
+					Logger.warning(this, "Received fragment of length 0");
+					continue;
+				}
+				recvMap.add(fragment.fragmentOffset, fragment.fragmentOffset + fragment.fragmentLength - 1);
+				if((recvBuffer.messageLength != -1) && recvMap.contains(0, recvBuffer.messageLength - 1)) {
+					receiveBuffers.remove(fragment.messageID);
+					receiveMaps.remove(fragment.messageID);
+
+					synchronized(receivedMessages) {
+						if(receivedMessages.contains(fragment.messageID, fragment.messageID)) continue;
+						receivedMessages.add(fragment.messageID, fragment.messageID);
+
+						int oldWindow = messageWindowPtrReceived;
+						while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
+							messageWindowPtrReceived++;
+							if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
+						}
 
-					int oldWindow = messageWindowPtrReceived;
-					while(receivedMessages.contains(messageWindowPtrReceived, messageWindowPtrReceived)) {
-						messageWindowPtrReceived++;
-						if(messageWindowPtrReceived == NUM_MESSAGE_IDS) messageWindowPtrReceived = 0;
+						if(messageWindowPtrReceived < oldWindow) {
+							receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
+							receivedMessages.remove(0, messageWindowPtrReceived);
+						} else {
+							receivedMessages.remove(oldWindow, messageWindowPtrReceived);
+						}
 					}
 
-					if(messageWindowPtrReceived < oldWindow) {
-						receivedMessages.remove(oldWindow, NUM_MESSAGE_IDS - 1);
-						receivedMessages.remove(0, messageWindowPtrReceived);
-					} else {
-						receivedMessages.remove(oldWindow, messageWindowPtrReceived);
+					synchronized(receiveBufferSizeLock) {
+						receiveBufferUsed -= recvBuffer.messageLength;
+						if(logDEBUG) Logger.debug(this, "Removed " + recvBuffer.messageLength + " from buffer. Total is now " + receiveBufferUsed);
 					}
-				}
 
-				synchronized(receiveBufferSizeLock) {
-					receiveBufferUsed -= recvBuffer.messageLength;
-					if(logDEBUG) Logger.debug(this, "Removed " + recvBuffer.messageLength + " from buffer. Total is now " + receiveBufferUsed);
+					fullyReceived.add(recvBuffer.buffer);
+					
+					if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
+				} else {
+					if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvMap);
 				}
-
-				fullyReceived.add(recvBuffer.buffer);
-				
-				if(logMINOR) Logger.minor(this, "Message id " + fragment.messageID + ": Completed");
-			} else {
-				if(logDEBUG) Logger.debug(this, "Message id " + fragment.messageID + ": " + recvMap);
 			}
 		}
 
@@ -382,23 +419,13 @@ public class NewPacketFormat implements PacketFormat {
 		return null;
 	}
 
-	/** Must NOT modify buf contents. */
+	/**
+	 * Check the HMAC and if it matches, decrypt and parse the packet in place. Must NOT modify
+	 * buf contents unless the HMAC matches: the caller may try other keys and other peers. If it
+	 * does match, the returned packet refers to buf, so must be handled before buf is reused.
+	 */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
-
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
+		if(!sessionKey.packetDecrypter().decrypt(buf, offset, length, HMAC_LENGTH, sequenceNumber)) {
 			if (logMINOR) {
 				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
 			}
@@ -406,10 +433,7 @@ public class NewPacketFormat implements PacketFormat {
 			return null;
 		}
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
-
-		NPFPacket p = NPFPacket.create(payload, pn);
+		NPFPacket p = NPFPacket.create(buf, offset + HMAC_LENGTH, offset + length, pn);
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
@@ -471,6 +495,26 @@ public class NewPacketFormat implements PacketFormat {
 	}
 	
 	boolean maybeSendPacket(boolean ackOnly, SessionKey sessionKey)
+	throws BlockedTooLongException {
+		SendBuffer buffer = sendBuffers.get();
+		if(!ThreadAllocation.isSupported() || (buffer.attempts++ & (ALLOCATION_SAMPLE_INTERVAL - 1)) != 0)
+			return maybeSendPacket(ackOnly, sessionKey, buffer);
+		long start = ThreadAllocation.allocatedBytes();
+		boolean sent = maybeSendPacket(ackOnly, sessionKey, buffer);
+		if(sent) {
+			// Don't count logging, which allocates a lot but is normally off.
+			if(!logMINOR) {
+				sampledPacketsAllocated.add(ThreadAllocation.allocatedSince(start));
+				sampledPackets.increment();
+			}
+		} else {
+			// Try again next time.
+			buffer.attempts--;
+		}
+		return sent;
+	}
+
+	private boolean maybeSendPacket(boolean ackOnly, SessionKey sessionKey, SendBuffer buffer)
 	throws BlockedTooLongException {
 		int maxPacketSize = pn.getMaxPacketSize();
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
@@ -495,27 +539,10 @@ public class NewPacketFormat implements PacketFormat {
 			}
 		}
 
-		byte[] data = new byte[paddedLen];
-		packet.toBytes(data, HMAC_LENGTH, pn.paddingGen());
-
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
-
-		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		// Serialise, encrypt and MAC the packet in place, and send it from the same buffer.
+		byte[] data = buffer.get(paddedLen);
+		packet.toBytes(data, HMAC_LENGTH, paddedLen, pn.paddingGen());
+		sessionKey.packetEncrypter().encrypt(data, 0, paddedLen, HMAC_LENGTH);
 
 		try {
 			if(logMINOR) {
@@ -527,16 +554,16 @@ public class NewPacketFormat implements PacketFormat {
 				}
 
 				Logger.minor(this, "Sending packet " + packet.getSequenceNumber() + " ("
-				                + data.length + " bytes) with fragments " + fragments + " and "
+				                + paddedLen + " bytes) with fragments " + fragments + " and "
 				                + packet.getAcks().size() + " acks on "+this);
 			}
-			pn.sendEncryptedPacket(data);
+			pn.sendEncryptedPacket(data, 0, paddedLen);
 		} catch (LocalAddressException e) {
 			Logger.error(this, "Caught exception while sending packet", e);
 			return false;
 		}
 		
-		packet.onSent(data.length, pn);
+		packet.onSent(paddedLen, pn);
 
 		if(!packet.getFragments().isEmpty()) {
 			keyContext.sent(packet.getSequenceNumber(), packet.getLength());
@@ -544,12 +571,12 @@ public class NewPacketFormat implements PacketFormat {
 
 		long now = System.currentTimeMillis();
 		pn.sentPacket();
-		pn.reportOutgoingBytes(data.length);
+		pn.reportOutgoingBytes(paddedLen);
 		if(pn.shouldThrottle()) {
-			pn.sentThrottledBytes(data.length);
+			pn.sentThrottledBytes(paddedLen);
 		}
 		if(packet.getFragments().isEmpty()) {
-			pn.onNotificationOnlyPacketSent(data.length);
+			pn.onNotificationOnlyPacketSent(paddedLen);
 		}
 		
 		synchronized(this) {
@@ -774,6 +801,14 @@ public class NewPacketFormat implements PacketFormat {
 	
 	private int pingCounter;
 
+	/** @return The average number of bytes allocated to send a packet, measured on a sample of
+	 * packets, or -1 if the JVM can't measure it or none have been sampled yet. */
+	public static double averageSendAllocation() {
+		long count = sampledPackets.sum();
+		if(count == 0) return -1;
+		return (double) sampledPacketsAllocated.sum() / count;
+	}
+
 	/**
 	 * Maximum message size in bytes.
 	 */
@@ -1110,12 +1145,13 @@ public class NewPacketFormat implements PacketFormat {
 			this.npf = npf;
 		}
 
-		private boolean add(byte[] data, int dataOffset) {
-			if(buffer.length < (dataOffset + data.length)) {
-				if(!resize(dataOffset + data.length)) return false;
+		/** Copy length bytes from data, starting at start, to messageOffset in the message. */
+		private boolean add(byte[] data, int start, int length, int messageOffset) {
+			if(buffer.length < (messageOffset + length)) {
+				if(!resize(messageOffset + length)) return false;
 			}
 
-			System.arraycopy(data, 0, buffer, dataOffset, data.length);
+			System.arraycopy(data, start, buffer, messageOffset, length);
 			return true;
 		}
 
@@ -28,6 +28,8 @@ public class NewPacketFormatKeyContext {
 	/** Index of the packet with the lowest sequence number */
 	public int watchListPointer = 0;
 	public int watchListOffset = 0;
+	/** The watchListOffset when SessionKeyIndex last indexed the watch list, or -1. */
+	int hintedWatchListOffset = -1;
 	
 	private final TreeMap<Integer, Long> acks = new TreeMap<Integer, Long>();
 	private final HashMap<Integer, SentPacket> sentPackets = new HashMap<Integer, SentPacket>();
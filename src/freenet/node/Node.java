@@ -138,7 +138,9 @@ import freenet.support.PrioritizedTicker;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
+import freenet.support.TimerWheelTicker;
 import freenet.support.TokenBucket;
+import freenet.support.VirtualThreadExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -371,6 +373,72 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	private class StoreMmapCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			synchronized(Node.this) {
+				return storeMmap;
+			}
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+			boolean found = false;
+			for (String p : getPossibleValues()) {
+				if (p.equals(val)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found)
+				throw new InvalidConfigValueException("Invalid value for storeMmap");
+			synchronized(Node.this) {
+				if(val.equals(storeMmap)) return;
+				storeMmap = val;
+			}
+			throw new NodeNeedRestartException("Memory mapping of the store cannot be changed on the fly");
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return new String[] { "none", "metadata", "all" };
+		}
+	}
+
+	private class TickerTypeCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			synchronized(Node.this) {
+				return tickerType;
+			}
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+			boolean found = false;
+			for (String p : getPossibleValues()) {
+				if (p.equals(val)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found)
+				throw new InvalidConfigValueException("Invalid value for ticker");
+			synchronized(Node.this) {
+				if(val.equals(tickerType)) return;
+				tickerType = val;
+			}
+			throw new NodeNeedRestartException("The ticker cannot be changed on the fly");
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return new String[] { "prioritized", "wheel" };
+		}
+	}
+
 	private class ClientCacheTypeCallback extends StringCallback implements EnumerableOptionCallback {
 
 		@Override
@@ -780,7 +848,12 @@ public class Node implements TimeSkewDetectorCallback {
 	 */
 	@Deprecated
 	/* It’s not the field that is deprecated but accessing it directly is. */
-	public final PrioritizedTicker ticker;
+	public final Ticker ticker;
+	private String tickerType;
+	/** Runs the blocking per-request flows: the same as executor unless virtual threads are
+	 * enabled. */
+	private final Executor requestExecutor;
+	private boolean virtualThreads;
 
 	/**
 	 * @deprecated Use {@link #getDNSRequester()} instead of accessing this directly.
@@ -844,6 +917,9 @@ public class Node implements TimeSkewDetectorCallback {
 	/* It’s not the field that is deprecated but accessing it directly is. */
 	final boolean enableULPRDataPropagation;
 
+	/** Memory budget for the FailureTable's entries, in bytes. */
+	private volatile long failureTableSize;
+
 	/**
 	 * @deprecated Use {@link #isEnableSwapping()} instead of accessing this directly.
 	 */
@@ -866,6 +942,10 @@ public class Node implements TimeSkewDetectorCallback {
 	@Deprecated
 	/* It’s not the field that is deprecated but accessing it directly is. */
 	boolean enablePacketCoalescing;
+	/** Number of threads sending packets. If more than one, peers are divided between them. */
+	private int packetSenderThreads;
+	/** Number of threads decrypting incoming packets per port. If more than one, receives are batched. */
+	private int packetReceiverThreads;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -1012,6 +1092,9 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean isPRNGReady = false;
 
 	private boolean storePreallocate;
+	/** Which salt-hash store files to memory map: none, metadata or all */
+	private String storeMmap;
+	private long storeMmapWindowSize;
 	
 	private boolean enableRoutedPing;
 
@@ -1641,6 +1724,23 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enableULPRDataPropagation = nodeConfig.getBoolean("enableULPRDataPropagation");
 
+		nodeConfig.register("failureTableSize", "8MiB", sortOrder++, true, false, "Node.failureTableSize", "Node.failureTableSizeLong",
+			new LongCallback() {
+				@Override
+				public Long get() {
+					return failureTableSize;
+				}
+
+				@Override
+				public void set(Long val) throws InvalidConfigValueException {
+					if(val <= 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+					failureTableSize = val;
+					if(failureTable != null)
+						failureTable.setMemoryLimit(val);
+				}
+		}, true);
+		failureTableSize = nodeConfig.getLong("failureTableSize");
+
 		nodeConfig.register("enableSwapping", true, sortOrder++, true, false, "Node.enableSwapping", "Node.enableSwappingLong", new BooleanCallback() {
 
 			@Override
@@ -1726,6 +1826,46 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("packetSenderThreads", "1", sortOrder++, true, false, "Node.packetSenderThreads", "Node.packetSenderThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetSenderThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				if(val < 1)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				synchronized(Node.this) {
+					packetSenderThreads = val;
+				}
+				throw new NodeNeedRestartException("Number of packet sender threads cannot be changed on the fly");
+			}
+		}, Dimension.NOT);
+		packetSenderThreads = nodeConfig.getInt("packetSenderThreads");
+		if(packetSenderThreads < 1) packetSenderThreads = 1;
+
+		nodeConfig.register("packetReceiverThreads", "1", sortOrder++, true, false, "Node.packetReceiverThreads", "Node.packetReceiverThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetReceiverThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(get().equals(val)) return;
+				if(val < 1)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				synchronized(Node.this) {
+					packetReceiverThreads = val;
+				}
+				throw new NodeNeedRestartException("Number of packet receiver threads cannot be changed on the fly");
+			}
+		}, Dimension.NOT);
+		packetReceiverThreads = nodeConfig.getInt("packetReceiverThreads");
+		if(packetReceiverThreads < 1) packetReceiverThreads = 1;
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1738,10 +1878,42 @@ public class Node implements TimeSkewDetectorCallback {
 		// Must be created after darknetCrypto
 		dnsr = new DNSRequester(this);
 		ps = new PacketSender(this);
-		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+		nodeConfig.register("ticker", "prioritized", sortOrder++, true, false, "Node.ticker", "Node.tickerLong", new TickerTypeCallback());
+		tickerType = nodeConfig.getString("ticker");
+		if(tickerType.equals("wheel"))
+			ticker = new TimerWheelTicker(executor, getDarknetPortNumber());
+		else
+			ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
 
+		nodeConfig.register("virtualThreads", false, sortOrder++, true, false, "Node.virtualThreads", "Node.virtualThreadsLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				synchronized(Node.this) {
+					return virtualThreads;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				synchronized(Node.this) {
+					if(val == virtualThreads) return;
+					virtualThreads = val;
+				}
+				throw new NodeNeedRestartException("Virtual threads cannot be enabled or disabled on the fly");
+			}
+		});
+		virtualThreads = nodeConfig.getBoolean("virtualThreads");
+		if(virtualThreads && VirtualThreadExecutor.isSupported()) {
+			requestExecutor = new VirtualThreadExecutor();
+			Logger.normal(this, "Running requests on virtual threads");
+		} else {
+			if(virtualThreads)
+				Logger.normal(this, "Virtual threads are not supported by this JVM, running requests on the executor");
+			requestExecutor = executor;
+		}
+
 		Logger.normal(Node.class, "Creating node...");
 
 		shutdownHook.addEarlyJob(new Thread() {
@@ -2369,6 +2541,30 @@ public class Node implements TimeSkewDetectorCallback {
 		);
 		storePreallocate = nodeConfig.getBoolean("storePreallocate");
 
+		nodeConfig.register("storeMmap", "none", sortOrder++, true, false, "Node.storeMmap", "Node.storeMmapLong", new StoreMmapCallback());
+		storeMmap = nodeConfig.getString("storeMmap");
+
+		nodeConfig.register("storeMmapWindowSize", "256MiB", sortOrder++, true, false, "Node.storeMmapWindowSize", "Node.storeMmapWindowSizeLong",
+			new LongCallback() {
+				@Override
+				public Long get() {
+					synchronized(Node.this) {
+						return storeMmapWindowSize;
+					}
+				}
+
+				@Override
+				public void set(Long val) throws InvalidConfigValueException, NodeNeedRestartException {
+					if(val <= 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+					synchronized(Node.this) {
+						if(val == storeMmapWindowSize) return;
+						storeMmapWindowSize = val;
+					}
+					throw new NodeNeedRestartException("Memory mapping window size cannot be changed on the fly");
+				}
+		}, true);
+		storeMmapWindowSize = nodeConfig.getLong("storeMmapWindowSize");
+
 		if(File.separatorChar == '/' && !System.getProperty("os.name").toLowerCase().contains("mac os")) {
 			securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<SecurityLevels.PHYSICAL_THREAT_LEVEL>() {
 
@@ -3337,6 +3533,8 @@ public class Node implements TimeSkewDetectorCallback {
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
 		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		if(!storeMmap.equals("none"))
+			fs.setMemoryMapped(storeMmap.equals("all"), storeMmapWindowSize);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
@@ -3362,7 +3560,10 @@ public class Node implements TimeSkewDetectorCallback {
 		if(opennet != null)
 			opennet.start();
 		ps.start(nodeStats);
-		ticker.start();
+		if(ticker instanceof TimerWheelTicker)
+			((TimerWheelTicker)ticker).start();
+		else
+			((PrioritizedTicker)ticker).start();
 		usm.start(ticker);
 
 		if(isUsingWrapper()) {
@@ -3637,6 +3838,19 @@ public class Node implements TimeSkewDetectorCallback {
 		else throw new IllegalArgumentException();
 	}
 
+	/**
+	 * @return The slot the key would be in in the datastore, so many keys can be checked in the
+	 * order they are in the store file, or -1 if the datastore isn't a salted hash store.
+	 */
+	public long getStoreSlot(Key key) {
+		StoreCallback<?> store = key instanceof NodeSSK ? sskDatastore : chkDatastore;
+		if(store == null || store.getStore() == null) return -1;
+		FreenetStore<?> fs = store.getStore().getUnderlyingStore();
+		if(fs instanceof SaltedHashFreenetStore)
+			return ((SaltedHashFreenetStore<?>) fs).slotOf(key.getRoutingKey());
+		return -1;
+	}
+
 	public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
@@ -5100,6 +5314,11 @@ public class Node implements TimeSkewDetectorCallback {
         return tracker;
     }
 
+    /** @return The memory budget for the FailureTable in bytes. */
+    public long getFailureTableSize() {
+        return failureTableSize;
+    }
+
     public PeerManager getPeers() {
         return peers;
     }
@@ -5124,6 +5343,15 @@ public class Node implements TimeSkewDetectorCallback {
         return executor;
     }
 
+    /**
+     * @return The executor for request senders and handlers, which spend most of their time
+     * blocked waiting for other nodes. Runs them on virtual threads if enabled and supported,
+     * otherwise the same as getExecutor().
+     */
+    public Executor getRequestExecutor() {
+        return requestExecutor;
+    }
+
     public PacketSender getPacketSender() {
         return ps;
     }
@@ -5172,6 +5400,14 @@ public class Node implements TimeSkewDetectorCallback {
         return enablePacketCoalescing;
     }
 
+    public int getPacketSenderThreads() {
+        return packetSenderThreads;
+    }
+
+    public int getPacketReceiverThreads() {
+        return packetReceiverThreads;
+    }
+
     public IOStatisticCollector getCollector() {
         return collector;
     }
@@ -270,6 +270,7 @@ public class NodeClientCore implements Persistable {
 	private boolean alwaysCommit;
 	private final PluginStores pluginStores;
 	private boolean lazyStartDatastoreChecker;
+	private int datastoreCheckerThreads;
 
 	private boolean finishedInitStorage;
 	private boolean finishingInitStorage;
@@ -309,9 +310,40 @@ public class NodeClientCore implements Persistable {
 				    });
 		lazyStartDatastoreChecker = nodeConfig.getBoolean("lazyStartDatastoreChecker");
 
+		nodeConfig.register("datastoreCheckerThreads", 2, sortOrder++, true, false,
+				    "NodeClientCore.datastoreCheckerThreads",
+				    "NodeClientCore.datastoreCheckerThreadsLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    synchronized (NodeClientCore.this) {
+							    return datastoreCheckerThreads;
+						    }
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException,
+								   NodeNeedRestartException {
+						    if (val < 1)
+							    throw new InvalidConfigValueException(
+									    l10n("datastoreCheckerThreadsMustBe1Plus"));
+						    synchronized (NodeClientCore.this) {
+							    if (val != datastoreCheckerThreads) {
+								    datastoreCheckerThreads = val;
+								    throw new NodeNeedRestartException(
+										    l10n("datastoreCheckerThreadsMustRestartNode"));
+							    }
+						    }
+					    }
+
+				    }, false);
+		datastoreCheckerThreads = Math.max(1, nodeConfig.getInt("datastoreCheckerThreads"));
+
 		storeChecker =
-				new DatastoreChecker(node, lazyStartDatastoreChecker, node.getExecutor(),
-						     "Datastore checker");
+				new DatastoreChecker(node, lazyStartDatastoreChecker, datastoreCheckerThreads,
+						     node.getExecutor(), "Datastore checker");
 		byte[] pwdBuf = new byte[16];
 		random.nextBytes(pwdBuf);
 		compressor = new RealCompressor();
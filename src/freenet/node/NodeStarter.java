@@ -11,8 +11,10 @@ import java.security.SecureRandom;
 import java.util.Properties;
 import java.util.UUID;
 
+import freenet.config.EnumerableOptionCallback;
 import freenet.config.FreenetFilePersistentConfig;
 import freenet.config.InvalidConfigValueException;
+import freenet.config.NodeNeedRestartException;
 import freenet.config.PersistentConfig;
 import freenet.config.SubConfig;
 import freenet.crypt.JceLoader;
@@ -27,6 +29,9 @@ import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.ProcessPriority;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
+import freenet.support.api.IntCallback;
+import freenet.support.api.StringCallback;
 import freenet.support.io.NativeThread;
 import org.tanukisoftware.wrapper.WrapperListener;
 import org.tanukisoftware.wrapper.WrapperManager;
@@ -55,6 +60,8 @@ public class NodeStarter implements WrapperListener {
 	}
 
 	private FreenetFilePersistentConfig cfg;
+	private String executorType;
+	private int executorThreads;
 
 	// experimental osgi support
 	private static NodeStarter nodestarter_osgi = null;
@@ -82,6 +89,68 @@ public class NodeStarter implements WrapperListener {
 		return this;
 	}
 
+	/** Create the executor chosen in the config. It can only be changed on restart. */
+	private Executor createExecutor(SubConfig executorConfig) {
+		int sortOrder = 0;
+		executorConfig.register("type", "pooled", sortOrder++, true, true, "NodeStarter.executorType", "NodeStarter.executorTypeLong",
+				new ExecutorTypeCallback());
+		executorType = executorConfig.getString("type");
+		executorConfig.register("threads", 0, sortOrder++, true, true, "NodeStarter.executorThreads", "NodeStarter.executorThreadsLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return executorThreads;
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0)
+							throw new InvalidConfigValueException("Number of threads cannot be negative");
+						if(val == executorThreads) return;
+						executorThreads = val;
+						throw new NodeNeedRestartException("The number of executor threads cannot be changed on the fly");
+					}
+
+				}, false);
+		executorThreads = executorConfig.getInt("threads");
+		executorConfig.finishedInitialization();
+		if(executorType.equals("workstealing")) {
+			int threads = executorThreads == 0 ? WorkStealingExecutor.defaultCoreThreads() : executorThreads;
+			return new WorkStealingExecutor(threads, Math.max(threads, WorkStealingExecutor.MAX_THREADS));
+		}
+		return new PooledExecutor();
+	}
+
+	private class ExecutorTypeCallback extends StringCallback implements EnumerableOptionCallback {
+
+		@Override
+		public String get() {
+			return executorType;
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+			boolean found = false;
+			for (String p : getPossibleValues()) {
+				if (p.equals(val)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found)
+				throw new InvalidConfigValueException("Invalid value for executor type");
+			if(val.equals(executorType)) return;
+			executorType = val;
+			throw new NodeNeedRestartException("The executor cannot be changed on the fly");
+		}
+
+		@Override
+		public String[] getPossibleValues() {
+			return new String[] { "pooled", "workstealing" };
+		}
+	}
+
 	/*---------------------------------------------------------------
 	 * WrapperListener Methods
 	 *-------------------------------------------------------------*/
@@ -132,7 +201,8 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		SubConfig executorConfig = cfg.createSubConfig("executor");
+		Executor executor = createExecutor(executorConfig);
 
 		try {
 			System.out.println("Creating logger...");
@@ -149,7 +219,10 @@ public class NodeStarter implements WrapperListener {
 
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).start();
+		else
+			((PooledExecutor)executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
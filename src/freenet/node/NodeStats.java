@@ -31,6 +31,7 @@ import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreLocationStats;
 import freenet.store.StoreCallback;
+import freenet.support.Executor;
 import freenet.support.HTMLNode;
 import freenet.support.Histogram2;
 import freenet.support.LogThresholdCallback;
@@ -39,6 +40,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -1679,6 +1681,24 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return node.getExecutor().waitingThreads();
 	}
 
+	/** @return The number of jobs queued but not started by priority, or null if the executor
+	 * doesn't queue jobs. */
+	public int[] getQueuedJobsByPriority() {
+		Executor executor = node.getExecutor();
+		if(executor instanceof WorkStealingExecutor)
+			return ((WorkStealingExecutor)executor).queuedJobs();
+		return null;
+	}
+
+	/** @return The average time in milliseconds jobs wait before starting by priority, or null
+	 * if the executor doesn't queue jobs. */
+	public double[] getAverageJobWaitByPriority() {
+		Executor executor = node.getExecutor();
+		if(executor instanceof WorkStealingExecutor)
+			return ((WorkStealingExecutor)executor).averageWaitTime();
+		return null;
+	}
+
 	public int getThreadLimit() {
 		return threadLimit;
 	}
@@ -1735,6 +1755,10 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("backedOffPercent", backedOffPercent.currentValue());
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.getUSM().getUnclaimedFIFOSize());
+		fs.put("messageFilterCount", node.getUSM().getFilterCount());
+		fs.put("messageFilterUnindexedCount", node.getUSM().getUnindexedFilterCount());
+		fs.put("messageFilterMatchTimeMicros", node.getUSM().getFilterMatchTimeAverage());
+		fs.put("messageFiltersCheckedPerMessage", node.getUSM().getFiltersCheckedAverage());
 		fs.put("RAMBucketPoolSize", node.getClientCore().getTempBucketFactory().getRamUsed());
 
 		/* gather connection statistics */
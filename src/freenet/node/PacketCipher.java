@@ -0,0 +1,95 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+
+/**
+ * Encrypts and MACs, or checks and decrypts, new packet format packets in place, for one
+ * direction of one SessionKey.
+ * Keeps the Mac, the PCFB mode and the buffers for the IV and the hash, which would otherwise be
+ * created for every packet.
+ *
+ * Packets are laid out as the truncated HMAC, then the payload, starting with the sequence
+ * number. The IV is the IV nonce with the sequence number in the last 4 bytes, encrypted.
+ */
+final class PacketCipher {
+
+	private final BlockCipher ivCipher;
+	private final byte[] ivNonce;
+	private final Mac mac;
+	private final byte[] iv;
+	private final PCFBMode payloadCipher;
+	private final byte[] hash;
+
+	PacketCipher(BlockCipher ivCipher, byte[] ivNonce, BlockCipher payloadCipher, byte[] hmacKey) {
+		this.ivCipher = ivCipher;
+		this.ivNonce = ivNonce;
+		this.mac = HMAC.newMac(HMAC.SHA2_256, hmacKey);
+		this.iv = new byte[ivCipher.getBlockSize() / 8];
+		this.payloadCipher = PCFBMode.create(payloadCipher, iv);
+		this.hash = new byte[mac.getMacLength()];
+	}
+
+	/**
+	 * Encrypt the payload in place and write the HMAC in front of it.
+	 * @param buf Contains the packet, with macLength bytes free at offset for the HMAC and the
+	 * plaintext payload after that.
+	 * @param length The length of the whole packet including the HMAC.
+	 */
+	synchronized void encrypt(byte[] buf, int offset, int length, int macLength) {
+		int payloadOffset = offset + macLength;
+		int payloadLength = length - macLength;
+		System.arraycopy(ivNonce, 0, iv, 0, iv.length);
+		System.arraycopy(buf, payloadOffset, iv, iv.length - 4, 4);
+		ivCipher.encipher(iv, iv);
+		payloadCipher.reset(iv);
+		payloadCipher.blockEncipher(buf, payloadOffset, payloadLength);
+		mac.update(buf, payloadOffset, payloadLength);
+		finishMac();
+		System.arraycopy(hash, 0, buf, offset, macLength);
+	}
+
+	/**
+	 * Check the HMAC of a received packet, and if it matches, decrypt the payload in place.
+	 * @param buf Contains the packet: the truncated HMAC, then the encrypted payload.
+	 * @param length The length of the whole packet including the HMAC.
+	 * @param sequenceNumber The sequence number the packet is thought to have.
+	 * @return False if the HMAC doesn't match, in which case buf is not modified.
+	 */
+	synchronized boolean decrypt(byte[] buf, int offset, int length, int macLength, int sequenceNumber) {
+		int payloadOffset = offset + macLength;
+		int payloadLength = length - macLength;
+		mac.update(buf, payloadOffset, payloadLength);
+		finishMac();
+		// Constant time comparison, like MessageDigest.isEqual().
+		int diff = 0;
+		for(int i=0;i<macLength;i++)
+			diff |= hash[i] ^ buf[offset + i];
+		if(diff != 0) return false;
+		System.arraycopy(ivNonce, 0, iv, 0, iv.length);
+		iv[iv.length - 4] = (byte) (sequenceNumber >>> 24);
+		iv[iv.length - 3] = (byte) (sequenceNumber >>> 16);
+		iv[iv.length - 2] = (byte) (sequenceNumber >>> 8);
+		iv[iv.length - 1] = (byte) (sequenceNumber);
+		ivCipher.encipher(iv, iv);
+		payloadCipher.reset(iv);
+		payloadCipher.blockDecipher(buf, payloadOffset, payloadLength);
+		return true;
+	}
+
+	private void finishMac() {
+		try {
+			mac.doFinal(hash, 0);
+		} catch (ShortBufferException e) {
+			throw new Error(e); // Impossible
+		}
+	}
+
+}
@@ -65,12 +65,23 @@ public class PacketSender implements Runnable {
 	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
+	/** Threads which send data packets, each for a share of the peers, if there is more than
+	 * one packet sender thread. Otherwise null, and our own thread sends everything. */
+	private final PacketSenderWorker[] workers;
 
 	PacketSender(Node node) {
 		this.node = node;
 		myThread = new NativeThread(this, "PacketSender thread for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
 		myThread.setDaemon(true);
 		localRandom = node.createRandom();
+		int threads = node.getPacketSenderThreads();
+		if(threads > 1) {
+			workers = new PacketSenderWorker[threads];
+			for(int i=0;i<threads;i++)
+				workers[i] = new PacketSenderWorker(node, i, threads);
+		} else {
+			workers = null;
+		}
 	}
 
 	void start(NodeStats stats) {
@@ -78,6 +89,11 @@ public class PacketSender implements Runnable {
 		Logger.normal(this, "Starting PacketSender");
 		System.out.println("Starting PacketSender");
 		myThread.start();
+		if(workers != null) {
+			Logger.normal(this, "Starting "+workers.length+" PacketSender workers");
+			for(PacketSenderWorker worker : workers)
+				worker.start();
+		}
 	}
 
 	private void schedulePeriodicJob() {
@@ -143,6 +159,9 @@ public class PacketSender implements Runnable {
 	 * It does not attempt to ensure fairness, it attempts to minimise latency. Fairness is best
 	 * dealt with at a higher level e.g. requests, although some transfers are not part of requests,
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
+	 * 
+	 * If there are PacketSenderWorker's, they send the data packets and acks, and this loop only
+	 * does peer maintenance and handshakes.
 	 */
 	private void realRun() {
 		long now = System.currentTimeMillis();
@@ -155,11 +174,12 @@ public class PacketSender implements Runnable {
 		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
+		final boolean sendPackets = workers == null;
 		final boolean canSendThrottled;
 
 		int MAX_PACKET_SIZE = node.getDarknetCrypto().getSocket().getMaxPacketSize();
 		long count = node.getOutputThrottle().getCount();
-		if(count > MAX_PACKET_SIZE)
+		if(count > MAX_PACKET_SIZE || !sendPackets)
 			canSendThrottled = true;
 		else {
 			long canSendAt = node.getOutputThrottle().getNanosPerTick() * (MAX_PACKET_SIZE - count);
@@ -211,7 +231,10 @@ public class PacketSender implements Runnable {
 				
 				boolean shouldThrottle = pn.shouldThrottle();
 				
-				pn.checkForLostPackets();
+				// With workers, the worker owning the peer does this, so it is never done for a
+				// peer on two threads at once.
+				if(sendPackets)
+					pn.checkForLostPackets();
 
 				// Is the node dead?
 				// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
@@ -242,7 +265,9 @@ public class PacketSender implements Runnable {
 
 				// The peer is connected.
 				
-				if(canSendThrottled || !shouldThrottle) {
+				if(!sendPackets) {
+					// A worker sends for this peer, and checks for lost packets.
+				} else if(canSendThrottled || !shouldThrottle) {
 					// We can send to this peer.
 					long sendTime = pn.getNextUrgentTime(now);
 					if(sendTime != Long.MAX_VALUE) {
@@ -286,7 +311,9 @@ public class PacketSender implements Runnable {
 					}
 				}
 				
-				if(canSendThrottled || !shouldThrottle) {
+				if(!sendPackets) {
+					// Already done above.
+				} else if(canSendThrottled || !shouldThrottle) {
 					long urgentTime = pn.getNextUrgentTime(now);
 					// Should spam the logs, unless there is a deadlock
 					if(urgentTime < Long.MAX_VALUE && logMINOR)
@@ -482,6 +509,18 @@ public class PacketSender implements Runnable {
 		synchronized(this) {
 			notifyAll();
 		}
+		if(workers != null) {
+			for(PacketSenderWorker worker : workers)
+				worker.wakeUp();
+		}
+	}
+
+	/** Wake up whichever thread sends to the given peer, and send its queued packets. */
+	void wakeUp(PeerNode pn) {
+		if(workers == null)
+			wakeUp();
+		else
+			workers[PacketSenderWorker.workerFor(pn, workers.length)].wakeUp();
 	}
 
 	protected String l10n(String key, String[] patterns, String[] values) {
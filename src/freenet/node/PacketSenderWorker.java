@@ -0,0 +1,219 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+
+import freenet.support.Logger;
+import freenet.support.TimeUtil;
+import freenet.support.TokenBucket;
+import freenet.support.io.NativeThread;
+import freenet.support.math.MersenneTwister;
+
+/**
+ * One of several threads which send packets on behalf of PacketSender, used when there is more
+ * than one packet sender thread. Each worker owns the peers whose hash code maps to it, so packets
+ * for different peers are built and encrypted in parallel, while any one peer is only ever sent
+ * to by one thread. PacketSender's own thread still does peer maintenance and handshakes.
+ *
+ * Lost packets are also detected by the worker which owns the peer, not by PacketSender, so
+ * everything which changes a peer's sent packets and retransmit queue (checkForLostPackets() and
+ * maybeSendPacket()) runs on one thread, as in the single-threaded loop. Only acks, which the
+ * receiving thread processes, can happen in parallel, just as they always could.
+ *
+ * A worker scans its peers once per wakeup, puts everything which has something to send on a heap
+ * ordered the same way the single-threaded loop chooses (urgent messages by deadline, then full
+ * packets by deadline, then acks), and sends from the heap until nothing is due. So sending
+ * several packets doesn't need a scan per packet.
+ *
+ * All the workers share the node's output TokenBucket and check it before each throttled
+ * packet, just like the single-threaded loop. The limit can therefore be overshot by at most
+ * one packet per worker, after which the bucket is negative and everyone waits for it.
+ */
+final class PacketSenderWorker implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(PacketSenderWorker.class);
+	}
+
+	private static final int URGENT = 0;
+	private static final int FULL_PACKET = 1;
+	private static final int ACK_ONLY = 2;
+
+	private static final class Candidate implements Comparable<Candidate> {
+		final PeerNode pn;
+		final int kind;
+		final long time;
+		/** Random tie-break, so that peers with the same deadline get a fair share. */
+		final int order;
+
+		Candidate(PeerNode pn, int kind, long time, int order) {
+			this.pn = pn;
+			this.kind = kind;
+			this.time = time;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Candidate c) {
+			if(kind != c.kind) return kind < c.kind ? -1 : 1;
+			if(time != c.time) return time < c.time ? -1 : 1;
+			if(order != c.order) return order < c.order ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final Node node;
+	private final int index;
+	private final int count;
+	private final NativeThread thread;
+	private final MersenneTwister random;
+	private final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+	/** The PeerManager snapshot myPeers was computed from */
+	private PeerNode[] allPeers;
+	private PeerNode[] myPeers = new PeerNode[0];
+	private boolean woken;
+
+	PacketSenderWorker(Node node, int index, int count) {
+		this.node = node;
+		this.index = index;
+		this.count = count;
+		this.random = node.createRandom();
+		thread = new NativeThread(this, "PacketSender worker "+index+" for " + node.getDarknetPortNumber(), NativeThread.MAX_PRIORITY, false);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/** @return The index of the worker which sends packets to the given peer. */
+	static int workerFor(PeerNode pn, int count) {
+		return (pn.hashCode() & Integer.MAX_VALUE) % count;
+	}
+
+	/** Wake up, and send any queued packets. */
+	synchronized void wakeUp() {
+		woken = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in PacketSender worker " + index + ": " + t, t);
+			}
+		}
+	}
+
+	private void realRun() {
+		long now = System.currentTimeMillis();
+		PeerNode[] peers = updatePeers();
+		long nextActionTime = Long.MAX_VALUE;
+		TokenBucket throttle = node.getOutputThrottle();
+		int maxPacketSize = node.getDarknetCrypto().getSocket().getMaxPacketSize();
+		long throttledWait = throttledWait(throttle, maxPacketSize);
+		boolean canSendThrottled = throttledWait == 0;
+		if(!canSendThrottled)
+			nextActionTime = Math.min(nextActionTime, now + throttledWait);
+
+		for(PeerNode pn : peers) {
+			if(!pn.isConnected()) continue;
+			pn.checkForLostPackets();
+			nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
+			if(canSendThrottled || !pn.shouldThrottle()) {
+				long sendTime = pn.getNextUrgentTime(now);
+				if(sendTime == Long.MAX_VALUE) continue;
+				if(sendTime <= now)
+					queue.add(new Candidate(pn, URGENT, sendTime, random.nextInt()));
+				else if(pn.fullPacketQueued())
+					queue.add(new Candidate(pn, FULL_PACKET, sendTime, random.nextInt()));
+				nextActionTime = Math.min(nextActionTime, sendTime);
+			} else {
+				long ackTime = pn.timeSendAcks();
+				if(ackTime == Long.MAX_VALUE) continue;
+				if(ackTime <= now)
+					queue.add(new Candidate(pn, ACK_ONLY, ackTime, random.nextInt()));
+				nextActionTime = Math.min(nextActionTime, ackTime);
+			}
+		}
+
+		boolean sentAny = false;
+		Candidate c;
+		while((c = queue.poll()) != null) {
+			PeerNode pn = c.pn;
+			boolean ackOnly = c.kind == ACK_ONLY;
+			if(!ackOnly && pn.shouldThrottle() && throttledWait(throttle, maxPacketSize) != 0) {
+				// Ran out of bandwidth while sending. Acks don't count against the limit.
+				if(pn.timeSendAcks() > now) continue;
+				ackOnly = true;
+			}
+			try {
+				if(!pn.maybeSendPacket(now, ackOnly)) continue;
+			} catch (BlockedTooLongException e) {
+				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+pn+" : "+("(new packet format)")+" (version "+pn.getVersionNumber()+") - DISCONNECTING!");
+				pn.forceDisconnect();
+				continue;
+			}
+			sentAny = true;
+			now = System.currentTimeMillis();
+			if(ackOnly) continue;
+			// It may have more to send; if so it goes back in its place.
+			long sendTime = pn.getNextUrgentTime(now);
+			if(sendTime <= now)
+				queue.add(new Candidate(pn, URGENT, sendTime, c.order));
+			else if(sendTime != Long.MAX_VALUE && pn.fullPacketQueued())
+				queue.add(new Candidate(pn, FULL_PACKET, sendTime, c.order));
+		}
+		if(sentAny) {
+			// Acks and urgent times have changed, rescan straight away.
+			return;
+		}
+
+		long sleepTime = Math.min(nextActionTime - System.currentTimeMillis(), PacketSender.MAX_COALESCING_DELAY);
+		synchronized(this) {
+			if(!woken && sleepTime > 0) {
+				if(logMINOR)
+					Logger.minor(this, "Sleeping for " + sleepTime);
+				try {
+					wait(sleepTime);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			woken = false;
+		}
+	}
+
+	/** @return 0 if a full throttled packet can be sent now, otherwise how long until it can. */
+	private long throttledWait(TokenBucket throttle, int maxPacketSize) {
+		long tokens = throttle.getCount();
+		if(tokens > maxPacketSize) return 0;
+		long canSendAt = throttle.getNanosPerTick() * (maxPacketSize - tokens);
+		return Math.max(1, MILLISECONDS.convert(canSendAt + MILLISECONDS.toNanos(1) - 1, NANOSECONDS));
+	}
+
+	/** Recompute our share of the peers if the PeerManager's list has changed. */
+	private PeerNode[] updatePeers() {
+		PeerNode[] peers = node.getPeers().myPeers();
+		if(peers != allPeers) {
+			ArrayList<PeerNode> mine = new ArrayList<PeerNode>(peers.length / count + 1);
+			for(PeerNode pn : peers)
+				if(workerFor(pn, count) == index) mine.add(pn);
+			myPeers = mine.toArray(new PeerNode[mine.size()]);
+			allPeers = peers;
+		}
+		return myPeers;
+	}
+
+}
@@ -12,13 +12,16 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.lang.ref.WeakReference;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
@@ -66,6 +69,35 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** Index of connectedPeers and their peers by location, for closerPeer() */
+	private volatile RoutingIndex routingIndex;
+	/** Incremented whenever a peer's location or its peers' locations change */
+	private final AtomicInteger locationsVersion = new AtomicInteger();
+	/** Lock for changing the peer index table. Do not take any other locks while holding it. */
+	private final Object peerIndexLock = new Object();
+	/** The peer index table, see getPeerIndex(). Copied on write, so getPeerByIndex() can read
+	 * it without locking. LOCKING: Only changed under peerIndexLock. */
+	private volatile PeerSlot[] peerSlots = new PeerSlot[0];
+
+	/** An entry in the peer index table. Immutable. */
+	private static final class PeerSlot {
+		/** The index currently given out for the slot, i.e. the slot number plus its generation. */
+		final int index;
+		/** Weak so that an index does not keep a peer in memory. Null if the index has been
+		 * released. */
+		final WeakReference<PeerNode> peer;
+
+		PeerSlot(int index, WeakReference<PeerNode> peer) {
+			this.index = index;
+			this.peer = peer;
+		}
+
+		boolean isFree() {
+			return peer == null || peer.get() == null;
+		}
+	}
+	/** Peer indexes have the slot in the bottom 16 bits and a generation number above it. */
+	static final int MAX_PEER_SLOTS = 1 << 16;
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -442,6 +474,7 @@ public class PeerManager {
 			}
 		}
 		pn.onRemove();
+		releasePeerIndex(pn);
 		if(isInPeers && !pn.isSeed())
 			updatePMUserAlert();
 		notifyPeerStatusChangeListeners();
@@ -459,6 +492,8 @@ public class PeerManager {
 		}
 		for(PeerNode oldPeer: oldPeers)
 			oldPeer.onRemove();
+		for(PeerNode oldPeer: oldPeers)
+			releasePeerIndex(oldPeer);
 		notifyPeerStatusChangeListeners();
 		return true;
 	}
@@ -910,13 +945,231 @@ public class PeerManager {
 	public PeerNode closerPeer(PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf,
 	        boolean calculateMisrouting, int minVersion, List<Double> addUnpickedLocsTo, double maxDistance, Key key, short outgoingHTL, long ignoreBackoffUnder, boolean isLocal, boolean realTime,
 	        RecentlyFailedReturn recentlyFailed, boolean ignoreTimeout, long now, boolean newLoadManagement) {
+		PeerNode[] peers = connectedPeers();
+		if(!node.isEnablePerNodeFailureTables())
+			key = null;
+		// The common case: no per-node failure table timeouts for the key, so the closest peer
+		// which is not backed off wins, and we can find it by walking the routing index.
+		if(addUnpickedLocsTo == null && (ignoreTimeout || key == null || node.getFailureTable().getTimedOutNodesList(key) == null)) {
+			PeerNode best = closestNotBackedOff(peers, pn, routedTo, target, ignoreSelf, minVersion, maxDistance, outgoingHTL, ignoreBackoffUnder, realTime, now, newLoadManagement);
+			if(best != null) {
+				if(calculateMisrouting)
+					reportMisrouting();
+				return best;
+			}
+		}
+		// Everything is backed off or timed out, or the caller wants the unpicked locations.
+		return closerPeerScan(peers, pn, routedTo, target, ignoreSelf, calculateMisrouting, minVersion, addUnpickedLocsTo, maxDistance, key, outgoingHTL, ignoreBackoffUnder, isLocal, realTime, recentlyFailed, ignoreTimeout, now, newLoadManagement);
+	}
+
+	/** Get the routing index for the given connected peers, rebuilding it if the peers or their
+	 * locations have changed since it was built. */
+	private RoutingIndex getRoutingIndex(PeerNode[] peers) {
+		// Read the counter before the locations, so a change while building forces another rebuild.
+		int version = locationsVersion.get();
+		RoutingIndex index = routingIndex;
+		if(index != null && index.isFor(peers, version))
+			return index;
+		index = new RoutingIndex(peers, version);
+		routingIndex = index;
+		return index;
+	}
+
+	/**
+	 * Get a small integer which identifies the peer, for structures which need to refer to a lot
+	 * of peers compactly, such as the FailureTable. An index is only reused for a different peer
+	 * after a very large number of peers have used the same slot, so a stale index will almost
+	 * always resolve to null rather than to the wrong peer.
+	 * @return The peer's index, which is always positive, or -1 if we have run out of slots.
+	 */
+	int getPeerIndex(PeerNode pn) {
+		synchronized(peerIndexLock) {
+			if(pn.peerIndex != 0) return pn.peerIndex;
+			PeerSlot[] slots = peerSlots;
+			int slot = -1;
+			for(int i=0;i<slots.length;i++) {
+				if(slots[i].isFree()) {
+					slot = i;
+					break;
+				}
+			}
+			int oldIndex = 0;
+			if(slot == -1) {
+				if(slots.length == MAX_PEER_SLOTS) return -1;
+				slot = slots.length;
+				slots = Arrays.copyOf(slots, slot + 1);
+			} else {
+				oldIndex = slots[slot].index;
+				slots = slots.clone();
+			}
+			// Generation 0 is never used, so that 0 can mean no index.
+			int generation = (oldIndex >>> 16) % 0x7FFF + 1;
+			int index = (generation << 16) | slot;
+			slots[slot] = new PeerSlot(index, pn.myRef);
+			pn.peerIndex = index;
+			peerSlots = slots;
+			return index;
+		}
+	}
+
+	/** @return The peer with the given index, or null if the index is invalid, the peer has been
+	 * removed, or it has been garbage collected. */
+	PeerNode getPeerByIndex(int index) {
+		if(index <= 0) return null;
+		int slot = index & (MAX_PEER_SLOTS - 1);
+		PeerSlot[] slots = peerSlots;
+		if(slot >= slots.length) return null;
+		PeerSlot entry = slots[slot];
+		if(entry.index != index || entry.peer == null) return null;
+		return entry.peer.get();
+	}
+
+	/** Free the peer's index when it is removed, so references to it by index no longer work. */
+	void releasePeerIndex(PeerNode pn) {
+		synchronized(peerIndexLock) {
+			int index = pn.peerIndex;
+			if(index == 0) return;
+			PeerSlot[] slots = peerSlots.clone();
+			// Keep the index, so the next peer in the slot gets the next generation.
+			slots[index & (MAX_PEER_SLOTS - 1)] = new PeerSlot(index, null);
+			peerSlots = slots;
+			pn.peerIndex = 0;
+		}
+	}
+
+	/** Called when the location of a peer, or of one of its peers, changes. */
+	void locationsChanged() {
+		locationsVersion.incrementAndGet();
+	}
+
+	/**
+	 * Find the closest peer to the target which is neither backed off nor excluded for any other
+	 * reason, using the routing index. This gives the same answer as closerPeerScan() does when
+	 * there are no failure table timeouts, by applying the same rules to each peer, but only to
+	 * those peers whose own location or one of whose peers' locations is at least as close to the
+	 * target as the one chosen.
+	 * @return The peer, or null if there is no such peer.
+	 */
+	PeerNode closestNotBackedOff(PeerNode[] peers, PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf,
+			int minVersion, double maxDistance, short outgoingHTL, long ignoreBackoffUnder, boolean realTime, long now, boolean newLoadManagement) {
+		RoutingIndex index = getRoutingIndex(peers);
+		double myLoc = node.getLocation();
+		double maxDiff = maxDistance;
+		if(!ignoreSelf)
+			maxDiff = Math.min(maxDiff, Location.distance(myLoc, target));
+		double prevLoc = -1.0;
+		if(pn != null) prevLoc = pn.getLocation();
+
+		double[] selectionRates = new double[peers.length];
+		double totalSelectionRate = 0.0;
+		for(int i=0;i<peers.length;i++) {
+			selectionRates[i] = peers[i].selectionRate();
+			totalSelectionRate += selectionRates[i];
+		}
+		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
+
+		Set<Double> excludeLocations = new HashSet<Double>();
+		excludeLocations.add(myLoc);
+		excludeLocations.add(prevLoc);
+		for (PeerNode routedToNode : routedTo) {
+			excludeLocations.add(routedToNode.getLocation());
+		}
+
+		// What we know about each peer so far, by position in peers.
+		byte[] status = new byte[peers.length];
+		// Peers at the closest distance found, which closerPeerScan() would choose between in order.
+		BitSet closest = new BitSet(peers.length);
+		double[] distances = null;
+		double closestDistance = Double.MAX_VALUE;
+
+		RoutingIndex.Cursor cursor = index.cursor(target);
+		while(cursor.next()) {
+			double diff = cursor.distance();
+			if(diff > maxDiff)
+				break;
+			if(distances != null && !(diff - closestDistance < Double.MIN_VALUE*2))
+				break;
+			int i = cursor.peer();
+			if(status[i] == PEER_UNKNOWN)
+				status[i] = checkPeer(peers[i], pn, routedTo, minVersion, outgoingHTL, ignoreBackoffUnder, realTime, now, newLoadManagement,
+						enableFOAFMitigationHack ? 100.0 * selectionRates[i] / totalSelectionRate : 0.0);
+			if(status[i] == PEER_SKIP)
+				continue;
+			if(cursor.isPeersPeer() && (status[i] != PEER_USABLE_FOAF || excludeLocations.contains(cursor.location())))
+				continue;
+			// The closest usable location for this peer.
+			status[i] = PEER_SKIP;
+			if(distances == null) {
+				distances = new double[peers.length];
+				closestDistance = diff;
+			}
+			distances[i] = diff;
+			closest.set(i);
+		}
+		if(distances == null)
+			return null;
+
+		// Break ties the same way the full scan does.
+		PeerNode best = null;
+		closestDistance = Double.MAX_VALUE;
+		double closestRealDistance = Double.MAX_VALUE;
+		for(int i = closest.nextSetBit(0); i >= 0; i = closest.nextSetBit(i+1)) {
+			double diff = distances[i];
+			double realDiff = Location.distance(index.peerLocation(i), target);
+			boolean direct = !(diff < realDiff);
+			if(diff < closestDistance || (Math.abs(diff - closestDistance) < Double.MIN_VALUE*2 && (direct || realDiff < closestRealDistance))) {
+				closestDistance = diff;
+				closestRealDistance = realDiff;
+				best = peers[i];
+			}
+		}
+		if(logMINOR)
+			Logger.minor(this, "Closest not backed off peer from routing index: " + best.getPeer() + " distance " + closestDistance);
+		return best;
+	}
+
+	private static final byte PEER_UNKNOWN = 0;
+	private static final byte PEER_SKIP = 1;
+	private static final byte PEER_USABLE = 2;
+	private static final byte PEER_USABLE_FOAF = 3;
+
+	/** Apply the same checks to a peer as closerPeerScan(), other than the distance checks.
+	 * @return PEER_SKIP if we can't route to it or it is backed off, otherwise PEER_USABLE, or
+	 * PEER_USABLE_FOAF if we can also route to it according to its peers' locations. */
+	private byte checkPeer(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion, short outgoingHTL, long ignoreBackoffUnder,
+			boolean realTime, long now, boolean newLoadManagement, double selectionPercentage) {
+		if(routedTo.contains(p) || p == pn || !p.isRoutable() || p.isDisconnecting())
+			return PEER_SKIP;
+		if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null)
+			return PEER_SKIP;
+		if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion)
+			return PEER_SKIP;
+		if(selectionPercentage > PeerNode.SELECTION_PERCENTAGE_WARNING)
+			return PEER_SKIP;
+		if(newLoadManagement && p.isInMandatoryBackoff(now, realTime))
+			return PEER_SKIP;
+		if(p.isRoutingBackedOff(ignoreBackoffUnder, realTime))
+			return PEER_SKIP;
+		return p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL) ? PEER_USABLE_FOAF : PEER_USABLE;
+	}
+
+	private void reportMisrouting() {
+		int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
+		int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
+		if(numberOfRoutingBackedOff + numberOfConnected > 0)
+			node.getNodeStats().backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
+	}
+
+	/** The original closerPeer(), looking at every connected peer. Used when there are failure
+	 * table timeouts, when all the closer peers are backed off, and when the caller wants
+	 * addUnpickedLocsTo filled in. */
+	PeerNode closerPeerScan(PeerNode[] peers, PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf,
+	        boolean calculateMisrouting, int minVersion, List<Double> addUnpickedLocsTo, double maxDistance, Key key, short outgoingHTL, long ignoreBackoffUnder, boolean isLocal, boolean realTime,
+	        RecentlyFailedReturn recentlyFailed, boolean ignoreTimeout, long now, boolean newLoadManagement) {
 		
 		int countWaiting = 0;
 		long soonestTimeoutWakeup = Long.MAX_VALUE;
 		
-		PeerNode[] peers = connectedPeers();
-		if(!node.isEnablePerNodeFailureTables())
-			key = null;
 		if(logMINOR)
 			Logger.minor(this, "Choosing closest peer: connectedPeers=" + peers.length+" key "+key);
 		
@@ -1228,12 +1481,8 @@ public class PeerManager {
 		// DO NOT PUT A ELSE HERE: we need to re-check the value!
 		if(best != null) {
 			//racy... getLocation() could have changed
-			if(calculateMisrouting) {
-				int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
-				int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
-				if(numberOfRoutingBackedOff + numberOfConnected > 0)
-					node.getNodeStats().backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
-			}
+			if(calculateMisrouting)
+				reportMisrouting();
 			//racy... getLocation() could have changed
 			if(addUnpickedLocsTo != null)
 				//Add the location which we did not pick, if it exists.
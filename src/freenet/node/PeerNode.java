@@ -80,6 +80,7 @@ import freenet.support.IllegalBase64Exception;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.ParkingWaiters;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
 import freenet.support.WeakHashSet;
@@ -345,6 +346,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	/** A WeakReference to this object. Can be taken whenever a node object needs to refer to this object for a
 	 * long time, but without preventing it from being GC'ed. */
 	final WeakReference<PeerNode> myRef;
+	/** Our index in PeerManager's table of peers, or 0 if we haven't been given one yet.
+	 * LOCKING: Written with PeerManager's index lock held. */
+	volatile int peerIndex;
 	/** The node is being disconnected, but it may take a while. */
 	private boolean disconnecting;
 	/** When did we last disconnect? Not Disconnected because a discrete event */
@@ -1086,7 +1090,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.getPacketSender().wakeUp();
+		node.getPacketSender().wakeUp(this);
 	}
 
 	@Override
@@ -1660,22 +1664,22 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		private boolean done = false;
 		private boolean disconnected = false;
 		private boolean sent = false;
+		/** LOCKING: Woken with (this) held. */
+		private final ParkingWaiters waiters = new ParkingWaiters();
 
-		public synchronized void waitForSend(long maxWaitInterval) throws NotConnectedException {
+		public void waitForSend(long maxWaitInterval) throws NotConnectedException {
 			long now = System.currentTimeMillis();
 			long end = now + maxWaitInterval;
 			while((now = System.currentTimeMillis()) < end) {
-				if(done) {
-					if(disconnected)
-						throw new NotConnectedException();
-					return;
-				}
-				int waitTime = (int) (Math.min(end - now, Integer.MAX_VALUE));
-				try {
-					wait(waitTime);
-				} catch(InterruptedException e) {
-				// Ignore
+				synchronized(this) {
+					if(done) {
+						if(disconnected)
+							throw new NotConnectedException();
+						return;
+					}
+					waiters.register();
 				}
+				waiters.await(end - now);
 			}
 		}
 
@@ -1690,7 +1694,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				} else
 					return;
 				done = true;
-				notifyAll();
+				waiters.wakeAll();
 			}
 		}
 
@@ -1699,7 +1703,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			synchronized(this) {
 				done = true;
 				disconnected = true;
-				notifyAll();
+				waiters.wakeAll();
 			}
 		}
 
@@ -1707,7 +1711,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		public void fatalError() {
 			synchronized(this) {
 				done = true;
-				notifyAll();
+				waiters.wakeAll();
 			}
 		}
 
@@ -1731,8 +1735,10 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
 		node.getPeers().updatePMUserAlert();
-		if(anythingChanged)
+		if(anythingChanged) {
+		    node.getPeers().locationsChanged();
 		    writePeers();
+		}
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2494,6 +2500,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				if(!Location.equals(oldLoc, newLoc)) {
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
+					node.getPeers().locationsChanged();
 					changedAnything = true;
 				}
 			}
@@ -3918,6 +3925,13 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return myRef;
 	}
 
+	@Override
+	public int getPeerIndex() {
+		int index = peerIndex;
+		if(index != 0) return index;
+		return node.getPeers().getPeerIndex(this);
+	}
+
 	/**
 	 * Get a single address to send a handshake to.
 	 * The current code doesn't work well with multiple simulataneous handshakes.
@@ -4374,6 +4388,9 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		private boolean failed;
 		private SlotWaiterFailedException fe;
 		final boolean realTime;
+		/** The thread in waitForAny(). It parks rather than waiting on the monitor, so that
+		 * requests can run on virtual threads. LOCKING: Woken with (this) held. */
+		private final ParkingWaiters waiters = new ParkingWaiters();
 		
 		// FIXME the counter is a quick hack to ensure that the original ordering is preserved
 		// even after failures (transfer failures, backoffs).
@@ -4465,7 +4482,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			if(!tag.addRoutedTo(peer, offeredKey)) {
 				Logger.normal(this, "onWaited for "+this+" added on "+tag+" but already added - race condition?");
 			}
-			notifyAll();
+			waiters.wakeAll();
 			// Because we are no longer in the slot queue we must remove it.
 			// If we want to wait for it again it must be re-queued.
 			PeerNode[] toUnreg = waitingFor.toArray(new PeerNode[waitingFor.size()]);
@@ -4501,7 +4518,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				failed = true;
 				fe = new SlotWaiterFailedException(peer, reallyFailed);
 				tag.clearWaitingForSlot();
-				notifyAll();
+				waiters.wakeAll();
 			}
 		}
 		
@@ -4619,38 +4636,34 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 				tag.clearWaitingForSlot();
 				return ret;
 			}
-			synchronized(this) {
-				if(logMINOR) Logger.minor(this, "Waiting for any node to wake up "+this+" : "+Arrays.toString(waitingFor.toArray())+" (for up to "+maxWait+"ms)");
-				long waitStart = System.currentTimeMillis();
-				long deadline = waitStart + maxWait;
-				boolean timedOut = false;
-				while(acceptedBy == null && (!waitingFor.isEmpty()) && !failed) {
-					try {
-						if(maxWait == Long.MAX_VALUE)
-							wait();
-						else {
-							int wait = (int)Math.min(Integer.MAX_VALUE, deadline - System.currentTimeMillis());
-							if(wait > 0) wait(wait);
+			if(logMINOR) Logger.minor(this, "Waiting for any node to wake up "+this+" : "+Arrays.toString(waitingFor.toArray())+" (for up to "+maxWait+"ms)");
+			long waitStart = System.currentTimeMillis();
+			long deadline = waitStart + maxWait;
+			boolean timedOut = false;
+			while(true) {
+				long wait;
+				synchronized(this) {
+					if(shouldGrab()) break;
+					if(maxWait == Long.MAX_VALUE)
+						wait = Long.MAX_VALUE;
+					else {
+						wait = deadline - System.currentTimeMillis();
+						if(wait <= 0) {
 							if(logMINOR) Logger.minor(this, "Maximum wait time exceeded on "+this);
-							if(shouldGrab()) {
-								// Race condition resulting in stalling
-								// All we have to do is break.
-								break;
-							} else {
-								// Bigger problem.
-								// No external entity called us, so waitingFor have not been unregistered.
-								timedOut = true;
-								all = waitingFor.toArray(new PeerNode[waitingFor.size()]);
-								waitingFor.clear();
-								break;
-								// Now no callers will succeed.
-								// But we still need to unregister the waitingFor's or they will stick around until they are matched, and then, if we are unlucky, will lock a slot on the RequestTag forever and thus cause a catastrophic stall of the whole peer.
-							}
+							// No external entity called us, so waitingFor have not been unregistered.
+							timedOut = true;
+							all = waitingFor.toArray(new PeerNode[waitingFor.size()]);
+							waitingFor.clear();
+							break;
+							// Now no callers will succeed.
+							// But we still need to unregister the waitingFor's or they will stick around until they are matched, and then, if we are unlucky, will lock a slot on the RequestTag forever and thus cause a catastrophic stall of the whole peer.
 						}
-					} catch (InterruptedException e) {
-						// Ignore
 					}
+					waiters.register();
 				}
+				waiters.await(wait);
+			}
+			synchronized(this) {
 				if(!timedOut) {
 					long waitEnd = System.currentTimeMillis();
 					if(waitEnd - waitStart > (realTime ? 6000 : 60000)) {
@@ -5242,6 +5255,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void sendEncryptedPacket(byte[] data) throws LocalAddressException {
 		crypto.getSocket().sendPacket(data, getPeer(), allowLocalAddresses());
 	}
+
+	@Override
+	public void sendEncryptedPacket(byte[] data, int offset, int length) throws LocalAddressException {
+		crypto.getSocket().sendPacket(data, offset, length, getPeer(), allowLocalAddresses());
+	}
 	
 	@Override
 	public int getMaxPacketSize() {
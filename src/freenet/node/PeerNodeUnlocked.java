@@ -15,6 +15,10 @@ interface PeerNodeUnlocked {
 	void offer(Key key);
 
 	WeakReference<? extends PeerNodeUnlocked> getWeakRef();
+
+	/** @return A small integer which identifies this peer, see PeerManager.getPeerIndex(), or -1
+	 * if there are too many peers to give it one. */
+	int getPeerIndex();
 	
 	public String shortToString();
 
@@ -40,6 +40,7 @@ import freenet.store.KeyCollisionException;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.ParkingWaiters;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.TimeUtil;
@@ -180,7 +181,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     }
 
     public void start() {
-    	node.getExecutor().execute(this, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
+    	node.getRequestExecutor().execute(this, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
     }
     
     @Override
@@ -838,7 +839,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
         		// FIXME we are also plotting to get rid of transfer cancels so maybe not?
         		synchronized(this) {
         			transferringFrom = pn;
-        			notifyAll();
+        			waiters.wakeAll();
         		}
         		fireCHKTransferBegins();
 				
@@ -1086,7 +1087,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     			failNow = true;
     		if((!wasFork) && (this.prb == null || !this.prb.allReceivedAndNotAborted())) 
     			this.prb = prb;
-    		notifyAll();
+    		waiters.wakeAll();
     	}
     	if(!wasFork)
     		// Don't fire transfer begins on a fork since we have not set headers or prb.
@@ -1467,7 +1468,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 		synchronized (this) {
 			if(hasForwardedRejectedOverload) return;
 			hasForwardedRejectedOverload = true;
-			notifyAll();
+			waiters.wakeAll();
 		}
 		fireReceivedRejectOverload();
 	}
@@ -1500,7 +1501,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
      * @return Bitmask indicating present situation. Can be fed back to this function,
      * if nonzero.
      */
-    public synchronized short waitUntilStatusChange(short mask) {
+    public short waitUntilStatusChange(short mask) {
     	if(mask == WAIT_ALL) throw new IllegalArgumentException("Cannot ignore all!");
     	while(true) {
     	long now = System.currentTimeMillis();
@@ -1508,36 +1509,35 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
         while(true) {
         	short current = mask; // If any bits are set already, we ignore those states.
         	
-       		if(hasForwardedRejectedOverload)
-       			current |= WAIT_REJECTED_OVERLOAD;
-        	
-       		if(prb != null)
-       			current |= WAIT_TRANSFERRING_DATA;
-        	
-        	if(status != NOT_FINISHED)
-        		current |= WAIT_FINISHED;
+        	synchronized(this) {
+        		if(hasForwardedRejectedOverload)
+        			current |= WAIT_REJECTED_OVERLOAD;
+
+        		if(prb != null)
+        			current |= WAIT_TRANSFERRING_DATA;
+
+        		if(status != NOT_FINISHED)
+        			current |= WAIT_FINISHED;
+
+        		if(current != mask) return current;
+
+        		if(now >= deadline) {
+        			Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + " and there was no change.");
+        			break;
+        		}
+
+        		if(logMINOR) Logger.minor(this, "Waiting for status change on "+this+" current is "+current+" status is "+status);
+        		waiters.register();
+        	}
+        	waiters.await(deadline - now);
+        	now = System.currentTimeMillis(); // Is used in the next iteration so needed even without the logging
         	
-        	if(current != mask) return current;
-			
-            try {
-            	if(now >= deadline) {
-            		Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + " and there was no change.");
-            		break;
-            	}
-            	
-            	if(logMINOR) Logger.minor(this, "Waiting for status change on "+this+" current is "+current+" status is "+status);
-                wait(deadline - now);
-                now = System.currentTimeMillis(); // Is used in the next iteration so needed even without the logging
-                
-                if(now >= deadline) {
-                    Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + ", maybe nobody called notify()");
-                    // Normally we would break; here, but we give the function a change to succeed
-                    // in the next iteration and break in the above if(now >= deadline) if it
-                    // did not succeed. This makes the function work if notify() is not called.
-                }
-            } catch (InterruptedException e) {
-                // Ignore
-            }
+        	if(now >= deadline) {
+        		Logger.error(this, "Waited more than 5 minutes for status change on " + this + " current = " + current + ", maybe nobody called notify()");
+        		// Normally we would break; here, but we give the function a change to succeed
+        		// in the next iteration and break in the above if(now >= deadline) if it
+        		// did not succeed. This makes the function work if notify() is not called.
+        	}
         }
     	}
     }
@@ -1575,7 +1575,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
             status = code;
             if(status == SUCCESS)
             	successFrom = next;
-            notifyAll();
+            waiters.wakeAll();
         }
         
     	boolean shouldUnlock = doOpennet && next != null;
@@ -1610,7 +1610,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 		
 		synchronized(this) {
 			opennetFinished = true;
-			notifyAll();
+			waiters.wakeAll();
 		}
 		
     }
@@ -1800,7 +1800,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 					}
 					origTag.finishedWaitingForOpennet(next);
 				}
-				notifyAll();
+				waiters.wakeAll();
 			}
 			// We need to wait.
 			try {
@@ -1816,7 +1816,7 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
 		} finally {
     		synchronized(this) {
     			opennetFinished = true;
-    			notifyAll();
+    			waiters.wakeAll();
     		}
     	}
 		return false;
@@ -1826,6 +1826,9 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     
     /** Have we finished all opennet-related activities? */
     private boolean opennetFinished;
+    /** Threads waiting for the status or the opennet noderef. They park rather than waiting on the
+     * monitor, so that request handlers can run on virtual threads. LOCKING: Woken with (this) held. */
+    private final ParkingWaiters waiters = new ParkingWaiters();
     
     /** Did we timeout waiting for opennet noderef? */
     private boolean opennetTimedOut;
@@ -1834,9 +1837,10 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     private byte[] opennetNoderef;
     
     public byte[] waitForOpennetNoderef() throws WaitedTooLongForOpennetNoderefException {
-    	synchronized(this) {
-    		long startTime = System.currentTimeMillis();
-    		while(true) {
+    	long startTime = System.currentTimeMillis();
+    	while(true) {
+    		long waitTime;
+    		synchronized(this) {
     			if(opennetFinished) {
     				if(opennetTimedOut)
     					throw new WaitedTooLongForOpennetNoderefException();
@@ -1847,19 +1851,14 @@ public final class RequestSender extends BaseSender implements PrioRunnable {
     				opennetNoderef = null;
     				return ref;
     			}
-    			try {
-    				int waitTime = (int) Math.min(Integer.MAX_VALUE, OPENNET_TIMEOUT + startTime - System.currentTimeMillis());
-    				if(waitTime > 0) {
-    					wait(waitTime);
-    					continue;
-    				}
-				} catch (InterruptedException e) {
-					// Ignore
-					continue;
-				}
-				if(logMINOR) Logger.minor(this, "Took too long waiting for opennet ref on "+this);
-				return null;
+    			waitTime = OPENNET_TIMEOUT + startTime - System.currentTimeMillis();
+    			if(waitTime <= 0) {
+    				if(logMINOR) Logger.minor(this, "Took too long waiting for opennet ref on "+this);
+    				return null;
+    			}
+    			waiters.register();
     		}
+    		waiters.await(waitTime);
     	}
     }
 
@@ -180,6 +180,7 @@ public class RequestTag extends UIDTag {
 
 	public synchronized void completedDownstreamTransfers() {
 		this.completedDownstreamTransfers = true;
+		countsChanged();
 	}
 
 	@Override
@@ -3,6 +3,7 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -93,22 +94,23 @@ public class RequestTracker {
 
 	public boolean lockUID(long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag, UIDTag tag) {
 		// If these are switched around, we must remember to remove from both.
+		TagGroup group = getGroup(ssk, insert, offerReply, realTimeFlag);
 		if(offerReply) {
 			// local irrelevant for OfferReplyTag's.
 			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			return innerLock(map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
+			return innerLock(group, map, null, (OfferReplyTag)tag, uid, ssk, insert, offerReply, false);
 		} else if(insert) {
 			HashMap<Long,InsertTag> overallMap = getInsertTracker(ssk, false, realTimeFlag);
 			HashMap<Long,InsertTag> localMap = local ? getInsertTracker(ssk, local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(group, overallMap, localMap, (InsertTag)tag, uid, ssk, insert, offerReply, local);
 		} else {
 			HashMap<Long,RequestTag> overallMap = getRequestTracker(ssk,false, realTimeFlag);
 			HashMap<Long,RequestTag> localMap = local ? getRequestTracker(ssk,local, realTimeFlag) : null;
-			return innerLock(overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
+			return innerLock(group, overallMap, localMap, (RequestTag)tag, uid, ssk, insert, offerReply, local);
 		}
 	}
 
-	private<T extends UIDTag> boolean innerLock(HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
+	private<T extends UIDTag> boolean innerLock(TagGroup group, HashMap<Long, T> overallMap, HashMap<Long, T> localMap, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
 		synchronized(overallMap) {
 			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size(), new Exception("debug"));
 			T oldTag = overallMap.get(uid);
@@ -137,6 +139,7 @@ public class RequestTracker {
 				localMap.put(uid, tag);
 				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
 			}
+			startCounting(group, tag, local);
 		}
 		return true;
 	}
@@ -189,8 +192,10 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				stopCounting(tag);
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -222,6 +227,194 @@ public class RequestTracker {
 		public int expectedTransfersIn() {
 			return expectedTransfersIn;
 		}
+		private void add(CountedRequests counts) {
+			total += counts.total;
+			expectedTransfersOut += counts.expectedTransfersOut;
+			expectedTransfersIn += counts.expectedTransfersIn;
+		}
+		private boolean sameAs(CountedRequests counts) {
+			return total == counts.total && expectedTransfersOut == counts.expectedTransfersOut &&
+				expectedTransfersIn == counts.expectedTransfersIn;
+		}
+		@Override
+		public String toString() {
+			return "total="+total+" in="+expectedTransfersIn+" out="+expectedTransfersOut;
+		}
+	}
+
+	/** What a single tag adds to the counters, as of the last time it changed. The expected
+	 * transfers are linear in transfersPerInsert, and ignoreLocalVsRemote can only add to them,
+	 * so these are enough to work out the count for any parameters. forAccept is always true: we
+	 * only keep counters for requests running on this node, not for those routed to a peer. */
+	static final class TagCounts {
+		final int in;
+		final int inIgnoreLocal;
+		final int out;
+		final int outIgnoreLocal;
+		final int outPerInsert;
+		final boolean sourceRestarted;
+		final boolean wasLocal;
+		/** Whether the tag is also on the local map. Normally the same as wasLocal. */
+		final boolean inLocalMap;
+		/** The source's reference, or null if local or reassigned to us. */
+		final WeakReference<PeerNode> source;
+		final TagGroup group;
+
+		/** Caller must hold the lock on the tag. */
+		TagCounts(UIDTag tag, TagGroup group, boolean inLocalMap) {
+			in = tag.expectedTransfersIn(false, 0, true);
+			inIgnoreLocal = tag.expectedTransfersIn(true, 0, true) - in;
+			out = tag.expectedTransfersOut(false, 0, true);
+			outIgnoreLocal = tag.expectedTransfersOut(true, 0, true) - out;
+			outPerInsert = tag.expectedTransfersOut(false, 1, true) - out;
+			sourceRestarted = tag.countAsSourceRestarted();
+			wasLocal = tag.wasLocal;
+			source = tag.getSourceRef();
+			this.group = group;
+			this.inLocalMap = inLocalMap;
+		}
+	}
+
+	/** Running totals for some set of tags. */
+	private static final class RunningCounts {
+		private int total;
+		private int in;
+		private int inIgnoreLocal;
+		private int out;
+		private int outIgnoreLocal;
+		private int outPerInsert;
+		/** The same again, for the requests which countAsSourceRestarted(). */
+		private int totalSR;
+		private int inSR;
+		private int inIgnoreLocalSR;
+		private int outSR;
+		private int outIgnoreLocalSR;
+		private int outPerInsertSR;
+
+		void add(TagCounts counts, int sign) {
+			total += sign;
+			in += sign * counts.in;
+			inIgnoreLocal += sign * counts.inIgnoreLocal;
+			out += sign * counts.out;
+			outIgnoreLocal += sign * counts.outIgnoreLocal;
+			outPerInsert += sign * counts.outPerInsert;
+			if(counts.sourceRestarted) {
+				totalSR += sign;
+				inSR += sign * counts.in;
+				inIgnoreLocalSR += sign * counts.inIgnoreLocal;
+				outSR += sign * counts.out;
+				outIgnoreLocalSR += sign * counts.outIgnoreLocal;
+				outPerInsertSR += sign * counts.outPerInsert;
+			}
+		}
+
+		boolean isEmpty() {
+			return total == 0;
+		}
+
+		void addTo(CountedRequests counter, CountedRequests counterSR, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			counter.total += total;
+			counter.expectedTransfersIn += in + (ignoreLocalVsRemote ? inIgnoreLocal : 0);
+			counter.expectedTransfersOut += out + (ignoreLocalVsRemote ? outIgnoreLocal : 0) + outPerInsert * transfersPerInsert;
+			if(counterSR != null) {
+				counterSR.total += totalSR;
+				counterSR.expectedTransfersIn += inSR + (ignoreLocalVsRemote ? inIgnoreLocalSR : 0);
+				counterSR.expectedTransfersOut += outSR + (ignoreLocalVsRemote ? outIgnoreLocalSR : 0) + outPerInsertSR * transfersPerInsert;
+			}
+		}
+	}
+
+	/** The counters for the tags on one of the running* maps and its local map, so that load
+	 * management doesn't have to go through every running request each time it decides whether
+	 * to accept one. They are updated when a tag is locked or unlocked, and whenever it changes
+	 * in a way that affects what it counts for (see UIDTag.countsChanged()). LOCKING: Synchronize
+	 * on the TagGroup. This is taken after the lock on the map and the tag, and nothing is locked
+	 * inside it. */
+	static final class TagGroup {
+		/** Tags on the local map. */
+		private final RunningCounts local = new RunningCounts();
+		/** Tags on the overall map which were originated locally. */
+		private final RunningCounts wasLocal = new RunningCounts();
+		/** Tags on the overall map which were not originated locally. */
+		private final RunningCounts remote = new RunningCounts();
+		/** Tags on the overall map which were not originated locally, by their source's
+		 * reference, or null if they have been reassigned to us. */
+		private final HashMap<WeakReference<PeerNode>, RunningCounts> remoteBySource =
+			new HashMap<WeakReference<PeerNode>, RunningCounts>();
+
+		synchronized void add(TagCounts counts, int sign) {
+			if(counts.inLocalMap)
+				local.add(counts, sign);
+			if(counts.wasLocal) {
+				wasLocal.add(counts, sign);
+			} else {
+				remote.add(counts, sign);
+				RunningCounts bySource = remoteBySource.get(counts.source);
+				if(bySource == null) {
+					bySource = new RunningCounts();
+					remoteBySource.put(counts.source, bySource);
+				}
+				bySource.add(counts, sign);
+				if(bySource.isEmpty())
+					remoteBySource.remove(counts.source);
+			}
+		}
+
+		/** Add the counts from a source, or from all the sources which are null or have been
+		 * garbage collected. */
+		private void addRemote(PeerNode source, CountedRequests counter, CountedRequests counterSR, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+			if(source != null) {
+				RunningCounts bySource = remoteBySource.get(source.myRef);
+				if(bySource != null)
+					bySource.addTo(counter, counterSR, ignoreLocalVsRemote, transfersPerInsert);
+				return;
+			}
+			for(Map.Entry<WeakReference<PeerNode>, RunningCounts> entry : remoteBySource.entrySet()) {
+				if(entry.getKey() == null || entry.getKey().get() == null)
+					entry.getValue().addTo(counter, counterSR, ignoreLocalVsRemote, transfersPerInsert);
+			}
+		}
+	}
+
+	private final TagGroup[] groups = new TagGroup[12];
+	{
+		for(int i=0;i<groups.length;i++)
+			groups[i] = new TagGroup();
+	}
+
+	private TagGroup getGroup(boolean ssk, boolean insert, boolean offer, boolean realTimeFlag) {
+		int type = offer ? 2 : (insert ? 1 : 0);
+		return groups[type * 4 + (ssk ? 2 : 0) + (realTimeFlag ? 1 : 0)];
+	}
+
+	private void startCounting(TagGroup group, UIDTag tag, boolean local) {
+		synchronized(tag) {
+			if(tag.counted != null) return; // Already locked, error logged by caller.
+			tag.counted = new TagCounts(tag, group, local);
+			group.add(tag.counted, 1);
+		}
+	}
+
+	private void stopCounting(UIDTag tag) {
+		synchronized(tag) {
+			if(tag.counted == null) return;
+			tag.counted.group.add(tag.counted, -1);
+			tag.counted = null;
+		}
+	}
+
+	/** Called by the tag when something changes which might affect the counts. */
+	void tagChanged(UIDTag tag) {
+		synchronized(tag) {
+			TagCounts old = tag.counted;
+			if(old == null) return; // Not locked yet, or already unlocked.
+			TagCounts counts = new TagCounts(tag, old.group, old.inLocalMap);
+			synchronized(old.group) {
+				old.group.add(old, -1);
+				old.group.add(counts, 1);
+			}
+			tag.counted = counts;
+		}
 	}
 
 	/** Count all requests running globally which match particular parameters.
@@ -238,6 +431,42 @@ public class RequestTracker {
 	 * @param counterSourceRestarted Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
+		TagGroup group = getGroup(ssk, insert, offer, realTimeFlag);
+		CountedRequests count = new CountedRequests();
+		CountedRequests countSR = new CountedRequests();
+		synchronized(group) {
+			if(!local) {
+				group.remote.addTo(count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+			} else if(!offer) {
+				group.local.addTo(count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+			} else {
+				// There is no local map for offers, so we count everything.
+				group.remote.addTo(count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+				group.wasLocal.addTo(count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+			}
+		}
+		if(logDEBUG) {
+			CountedRequests scanned = new CountedRequests();
+			CountedRequests scannedSR = new CountedRequests();
+			scanRequests(local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			checkCounts(count, countSR, scanned, scannedSR, "local="+local+" ssk="+ssk+" insert="+insert+" offer="+offer+" realTime="+realTimeFlag);
+		}
+		counter.add(count);
+		if(counterSourceRestarted != null)
+			counterSourceRestarted.add(countSR);
+	}
+
+	/** The counters can legitimately be out of step with a scan briefly, if a tag changes while
+	 * we are counting, so this is only a warning. */
+	private void checkCounts(CountedRequests count, CountedRequests countSR, CountedRequests scanned, CountedRequests scannedSR, String what) {
+		if(count.sameAs(scanned) && countSR.sameAs(scannedSR)) return;
+		Logger.warning(RequestTracker.class, "Request counters don't match running requests for "+what+
+				": counted "+count+" (source restarted "+countSR+") but found "+scanned+" (source restarted "+scannedSR+")");
+	}
+
+	/** Count the requests the slow way, to check the counters. Same parameters as 
+	 * countRequests(). */
+	void scanRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSourceRestarted) {
 		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
 		HashMap<Long, ? extends UIDTag> mapLock = map;
@@ -279,11 +508,9 @@ public class RequestTracker {
 
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
-	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * PERFORMANCE: Requests accepted from a peer are kept count of by source, so counting them is
+	 * cheap. Requests routed to a peer are not, so we have to go through all the requests of the
+	 * given type (local, ssk, etc).
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -300,6 +527,43 @@ public class RequestTracker {
 	 * @param counterSR Transfer counts for requests whose source restarted (and so 
 	 * are counted as local) will be added to this counter object. */
 	public void countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		if(requestsToNode) {
+			countRequestsTo(source, local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter);
+			return;
+		}
+		// If a request is adopted by us as a result of a timeout, it can be in the
+		// remote map despite having source == null. However, if a request is in the
+		// local map it will always have source == null.
+		if(source != null && local) return;
+		TagGroup group = getGroup(ssk, insert, offer, realTimeFlag);
+		CountedRequests count = new CountedRequests();
+		CountedRequests countSR = new CountedRequests();
+		synchronized(group) {
+			if(!local) {
+				group.addRemote(source, count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+			} else if(!offer) {
+				group.local.addTo(count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+			} else {
+				// There is no local map for offers, so we count everything with a null source.
+				group.wasLocal.addTo(count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+				group.addRemote(null, count, countSR, ignoreLocalVsRemote, transfersPerInsert);
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Returning count: "+count+" for "+source);
+		if(logDEBUG) {
+			CountedRequests scanned = new CountedRequests();
+			CountedRequests scannedSR = new CountedRequests();
+			scanRequestsFrom(source, local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			checkCounts(count, countSR, scanned, scannedSR, "source="+source+" local="+local+" ssk="+ssk+" insert="+insert+" offer="+offer+" realTime="+realTimeFlag);
+		}
+		counter.add(count);
+		if(counterSR != null)
+			counterSR.add(countSR);
+	}
+
+	/** Count the requests from a peer the slow way, to check the counters. Same parameters as
+	 * countRequests(). */
+	void scanRequestsFrom(PeerNode source, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
 		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
 		// Map is locked by the non-local version, although we're counting from the local version.
 		HashMap<Long, ? extends UIDTag> mapLock = map;
@@ -312,64 +576,73 @@ public class RequestTracker {
 			int countSR = 0;
 			int transfersOutSR = 0;
 			int transfersInSR = 0;
-			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				if(source != null && local) return;
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					if(tag.getSource() == source) {
-						int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-						int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-						count++;
-						transfersOut += out;
-						transfersIn += in;
-						if(counterSR != null && tag.countAsSourceRestarted()) {
-							countSR++;
-							transfersOutSR += out;
-							transfersInSR += in;
-						}
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
-				if(counterSR != null) {
-					counterSR.total += countSR;
-					counterSR.expectedTransfersIn += transfersInSR;
-					counterSR.expectedTransfersOut += transfersOutSR;
-				}
-			} else {
-				// hasSourceRestarted is irrelevant for requests *to* a node.
-				// FIXME improve efficiency!
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					// Ordinary requests can be routed to an offered key.
-					// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
-					if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(tag.currentlyRoutingTo(source)) {
-						if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
-						transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
-						transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
-						count++;
-					} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-				}
-				if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
-				counter.total += count;
-				counter.expectedTransfersIn += transfersIn;
-				counter.expectedTransfersOut += transfersOut;
+			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
+				UIDTag tag = entry.getValue();
+				// The overall running* map can include local. But the local map can't include non-local.
+				if((!local) && tag.wasLocal) continue;
+				if(tag.getSource() == source) {
+					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
+					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
+					count++;
+					transfersOut += out;
+					transfersIn += in;
+					if(counterSR != null && tag.countAsSourceRestarted()) {
+						countSR++;
+						transfersOutSR += out;
+						transfersInSR += in;
+					}
+					if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source+" count now "+count+" out now "+transfersOut+" in now "+transfersIn);
+				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+			}
+			if(logMINOR) Logger.minor(this, "Returning count: "+count+" in: "+transfersIn+" out: "+transfersOut);
+			counter.total += count;
+			counter.expectedTransfersIn += transfersIn;
+			counter.expectedTransfersOut += transfersOut;
+			if(counterSR != null) {
+				counterSR.total += countSR;
+				counterSR.expectedTransfersIn += transfersInSR;
+				counterSR.expectedTransfersOut += transfersOutSR;
+			}
+		}
+	}
+
+	/** Count the requests currently routed to a peer. We don't keep counters for these, as they
+	 * depend on which peers each request is routed to, and they are only needed when sending a
+	 * request, not when deciding whether to accept one. FIXME improve efficiency!
+	 * Same parameters as countRequests(), except for counterSR, which is irrelevant here. */
+	private void countRequestsTo(PeerNode source, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter) {
+		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
+		// Map is locked by the non-local version, although we're counting from the local version.
+		HashMap<Long, ? extends UIDTag> mapLock = map;
+		if(local)
+			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
+		synchronized(mapLock) {
+			int count = 0;
+			int transfersOut = 0;
+			int transfersIn = 0;
+			// hasSourceRestarted is irrelevant for requests *to* a node.
+			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
+				UIDTag tag = entry.getValue();
+				// The overall running* map can include local. But the local map can't include non-local.
+				if((!local) && tag.wasLocal) continue;
+				// Ordinary requests can be routed to an offered key.
+				// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
+				if(tag.currentlyFetchingOfferedKeyFrom(source)) {
+					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
+					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
+					count++;
+				} else if(tag.currentlyRoutingTo(source)) {
+					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, false);
+					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, false);
+					count++;
+				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
 			}
+			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
+			counter.total += count;
+			counter.expectedTransfersIn += transfersIn;
+			counter.expectedTransfersOut += transfersOut;
 		}
 	}
 	
@@ -390,35 +663,36 @@ public class RequestTracker {
 	 * restarted, requests where the originator PeerNode has been removed from the routing table
 	 * etc. */
 	public void countAllRequestsByIncomingPeer(boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, Map<PeerNode, CountedRequests> counterMap) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		// Map is locked by the non-local version, although we're counting from the local version.
-		HashMap<Long, ? extends UIDTag> mapLock = map;
-		if(local)
-			mapLock = getTracker(false, ssk, insert, offer, realTimeFlag);
-		synchronized(mapLock) {
-			if(!requestsToNode) {
-				// If a request is adopted by us as a result of a timeout, it can be in the
-				// remote map despite having source == null. However, if a request is in the
-				// local map it will always have source == null.
-				for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-					UIDTag tag = entry.getValue();
-					// The overall running* map can include local. But the local map can't include non-local.
-					if((!local) && tag.wasLocal) continue;
-					PeerNode source = tag.getSource(); // Can be null in various cases
-					CountedRequests counter = counterMap.get(source);
-					if(counter == null) {
-						counter = new CountedRequests();
-						counterMap.put(source, counter);
-					}
-					int out = tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert, true);
-					int in = tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert, true);
-					counter.total++;
-					counter.expectedTransfersIn += in;
-					counter.expectedTransfersOut += out;
-				}
+		if(requestsToNode) return;
+		TagGroup group = getGroup(ssk, insert, offer, realTimeFlag);
+		synchronized(group) {
+			if(local && !offer) {
+				// If a request is in the local map it will always have source == null.
+				addTo(counterMap, null, group.local, ignoreLocalVsRemote, transfersPerInsert);
+				return;
+			}
+			if(local) {
+				// There is no local map for offers, so we count everything.
+				addTo(counterMap, null, group.wasLocal, ignoreLocalVsRemote, transfersPerInsert);
+			}
+			// If a request is adopted by us as a result of a timeout, it can be in the
+			// remote map despite having source == null.
+			for(Map.Entry<WeakReference<PeerNode>, RunningCounts> entry : group.remoteBySource.entrySet()) {
+				PeerNode source = entry.getKey() == null ? null : entry.getKey().get();
+				addTo(counterMap, source, entry.getValue(), ignoreLocalVsRemote, transfersPerInsert);
 			}
 		}
 	}
+
+	private static void addTo(Map<PeerNode, CountedRequests> counterMap, PeerNode source, RunningCounts counts, boolean ignoreLocalVsRemote, int transfersPerInsert) {
+		if(counts.isEmpty()) return;
+		CountedRequests counter = counterMap.get(source);
+		if(counter == null) {
+			counter = new CountedRequests();
+			counterMap.put(source, counter);
+		}
+		counts.addTo(counter, null, ignoreLocalVsRemote, transfersPerInsert);
+	}
 	
 	public class WaitingForSlots {
 		int local;
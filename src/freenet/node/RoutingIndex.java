@@ -0,0 +1,171 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Immutable snapshot of every location we could route towards: the locations of our connected
+ * peers, and the locations of their peers (for FOAF routing), sorted around the keyspace circle.
+ * Walking outwards from a target visits the locations in order of distance, so the closest
+ * usable peer is usually found after looking at only a handful of entries rather than all of
+ * them. Which peers are usable depends on backoff, the request and so on, so that is decided
+ * by the caller as the walk goes, see PeerManager.closerPeer().
+ *
+ * An index is only valid for the connected peers array it was built from, and for the value of
+ * PeerManager's location counter at the time; PeerManager rebuilds it when either changes.
+ */
+final class RoutingIndex {
+
+	private final PeerNode[] peers;
+	private final int version;
+	/** The peers' own locations when the index was built, by position in peers. */
+	private final double[] peerLocations;
+	/** All the locations, sorted. */
+	private final double[] locations;
+	/** Position in peers of the peer each location belongs to. */
+	private final int[] owners;
+	/** True if the location is one of the peer's peers rather than its own. */
+	private final boolean[] peersPeer;
+
+	RoutingIndex(PeerNode[] peers, int version) {
+		this.peers = peers;
+		this.version = version;
+		peerLocations = new double[peers.length];
+		int count = 0;
+		double[][] peersLocations = new double[peers.length][];
+		for(int i=0;i<peers.length;i++) {
+			peerLocations[i] = peers[i].getLocation();
+			if(Location.isValid(peerLocations[i])) count++;
+			peersLocations[i] = peers[i].getPeersLocationArray();
+			if(peersLocations[i] != null) count += peersLocations[i].length;
+		}
+		Entry[] entries = new Entry[count];
+		int x = 0;
+		for(int i=0;i<peers.length;i++) {
+			if(Location.isValid(peerLocations[i]))
+				entries[x++] = new Entry(peerLocations[i], i, false);
+			if(peersLocations[i] != null)
+				for(double loc : peersLocations[i])
+					entries[x++] = new Entry(loc, i, true);
+		}
+		Arrays.sort(entries, new Comparator<Entry>() {
+
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				return Double.compare(e1.location, e2.location);
+			}
+
+		});
+		locations = new double[count];
+		owners = new int[count];
+		peersPeer = new boolean[count];
+		for(int i=0;i<count;i++) {
+			locations[i] = entries[i].location;
+			owners[i] = entries[i].owner;
+			peersPeer[i] = entries[i].peersPeer;
+		}
+	}
+
+	private static class Entry {
+		final double location;
+		final int owner;
+		final boolean peersPeer;
+
+		Entry(double location, int owner, boolean peersPeer) {
+			this.location = location;
+			this.owner = owner;
+			this.peersPeer = peersPeer;
+		}
+	}
+
+	boolean isFor(PeerNode[] peers, int version) {
+		return this.peers == peers && this.version == version;
+	}
+
+	int size() {
+		return locations.length;
+	}
+
+	/** @return The location of the peer at the given position when the index was built. */
+	double peerLocation(int peer) {
+		return peerLocations[peer];
+	}
+
+	/** Start walking outwards from the target. */
+	Cursor cursor(double target) {
+		return new Cursor(target);
+	}
+
+	/**
+	 * Visits every location in the index once, closest to the target first.
+	 */
+	final class Cursor {
+
+		private final double target;
+		private int left;
+		private int right;
+		private int remaining;
+		private int current = -1;
+		private double currentDistance;
+
+		private Cursor(double target) {
+			this.target = target;
+			remaining = locations.length;
+			if(remaining == 0) return;
+			// First location greater than or equal to the target, wrapping round.
+			int low = 0;
+			int high = locations.length;
+			while(low != high) {
+				int mid = low + (high - low) / 2;
+				if(locations[mid] < target)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			right = low == locations.length ? 0 : low;
+			left = right == 0 ? locations.length - 1 : right - 1;
+		}
+
+		/** Move to the next closest location.
+		 * @return False if all the locations have been visited. */
+		boolean next() {
+			if(remaining == 0) return false;
+			remaining--;
+			double leftDistance = Location.distance(locations[left], target);
+			double rightDistance = Location.distance(locations[right], target);
+			if(leftDistance <= rightDistance) {
+				current = left;
+				currentDistance = leftDistance;
+				left = left == 0 ? locations.length - 1 : left - 1;
+			} else {
+				current = right;
+				currentDistance = rightDistance;
+				right = right == locations.length - 1 ? 0 : right + 1;
+			}
+			return true;
+		}
+
+		double location() {
+			return locations[current];
+		}
+
+		double distance() {
+			return currentDistance;
+		}
+
+		/** @return The position in the peers array of the peer the current location belongs to. */
+		int peer() {
+			return owners[current];
+		}
+
+		/** @return True if the current location is one of the peer's peers. */
+		boolean isPeersPeer() {
+			return peersPeer[current];
+		}
+
+	}
+
+}
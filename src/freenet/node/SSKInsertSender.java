@@ -20,6 +20,7 @@ import freenet.keys.NodeSSK;
 import freenet.keys.SSKBlock;
 import freenet.keys.SSKVerifyException;
 import freenet.support.Logger;
+import freenet.support.ParkingWaiters;
 import freenet.support.ShortBuffer;
 import freenet.support.io.NativeThread;
 
@@ -64,6 +65,9 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     private InsertTag forkedRequestTag;
     
     private int status = -1;
+    /** Threads waiting for the status to change. They park rather than waiting on the monitor, so
+     * that insert handlers can run on virtual threads. LOCKING: Woken with (this) held. */
+    private final ParkingWaiters waiters = new ParkingWaiters();
     /** Still running */
     static final int NOT_FINISHED = -1;
     /** Successful insert */
@@ -102,7 +106,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     }
 
     void start() {
-    	node.getExecutor().execute(this, "SSKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
+    	node.getRequestExecutor().execute(this, "SSKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber()+" at "+System.currentTimeMillis());
     }
     
 	@Override
@@ -477,7 +481,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
 			synchronized(this) {
 				hasRecentlyCollided = true;
 				hasCollided = true;
-				notifyAll();
+				notifyWaiters();
 			}
 			
 			// The node will now propagate the new data. There is no need to move to the next node yet.
@@ -519,7 +523,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     protected synchronized void forwardRejectedOverload() {
     	if(hasForwardedRejectedOverload) return;
     	hasForwardedRejectedOverload = true;
-   		notifyAll();
+   		notifyWaiters();
 	}
     
     private void finish(int code, PeerNode next) {
@@ -539,7 +543,7 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     		
     		if(status != TIMED_OUT) {
     			status = code;
-    			notifyAll();
+    			notifyWaiters();
     		}
         }
 
@@ -554,6 +558,23 @@ public class SSKInsertSender extends BaseSender implements PrioRunnable, AnyInse
     public synchronized int getStatus() {
         return status;
     }
+
+    /** Wait until the status is set or anything else changes, e.g. a collision, or until the
+     * timeout passes. Returns at once if the status is already set. */
+    void waitForStatusChange(long timeout) {
+        synchronized(this) {
+            if(status != NOT_FINISHED) return;
+            waiters.register();
+        }
+        waiters.await(timeout);
+    }
+
+    /** Wake up everything waiting for the status to change. Some callers still wait on the
+     * monitor, so notifyAll() as well. Call with (this) held. */
+    private void notifyWaiters() {
+        notifyAll();
+        waiters.wakeAll();
+    }
     
     @Override
     public synchronized short getHTL() {
@@ -30,6 +30,10 @@ public class SessionKey {
 	final long trackerID;
 	
 	public final NewPacketFormatKeyContext packetContext;
+	/** Created when first needed. LOCKING: this */
+	private PacketCipher packetEncrypter;
+	/** Created when first needed. LOCKING: this */
+	private PacketCipher packetDecrypter;
 
 	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
 	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
@@ -46,6 +50,20 @@ public class SessionKey {
 		this.trackerID = trackerID;
 	}
 	
+	/** @return The state for encrypting outgoing packets in place with this key. */
+	synchronized PacketCipher packetEncrypter() {
+		if(packetEncrypter == null)
+			packetEncrypter = new PacketCipher(ivCipher, ivNonce, outgoingCipher, hmacKey);
+		return packetEncrypter;
+	}
+
+	/** @return The state for checking and decrypting incoming packets in place with this key. */
+	synchronized PacketCipher packetDecrypter() {
+		if(packetDecrypter == null)
+			packetDecrypter = new PacketCipher(ivCipher, ivNonce, incommingCipher, hmacKey);
+		return packetDecrypter;
+	}
+
 	public void disconnected() {
 		packetContext.disconnected();
 	}
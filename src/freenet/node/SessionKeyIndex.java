@@ -0,0 +1,112 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.io.comm.Peer;
+
+/**
+ * Finds which peer an incoming packet is probably from, so we don't have to try to decrypt it
+ * with every peer's keys. Two indexes, both bounded, and both only hints - the caller must still
+ * try the packet against the peer, and fall back to trying everyone:
+ * <ul>
+ * <li>By sequence number: the encrypted sequence number follows the HMAC in the clear, and we
+ * know the encrypted forms of the next few sequence numbers we expect from each peer (they are in
+ * its watch list).</li>
+ * <li>By address: the peer we last decoded a packet from this address and port for. This catches
+ * peers whose NAT has moved them to a new port, since we don't update their address until they
+ * reconnect.</li>
+ * </ul>
+ * Only used on the thread receiving packets for one socket, which is also the thread which moves
+ * the watch lists, but synchronized anyway as it is cheap.
+ */
+public final class SessionKeyIndex {
+
+	/** Index this many sequence numbers after the highest received for each peer. */
+	static final int HINT_WINDOW = 64;
+	/** Enough for the windows of a thousand peers. */
+	static final int MAX_HINTS = 65536;
+	static final int MAX_ADDRESSES = 4096;
+
+	private final LinkedHashMap<Integer, SessionKey> byHint =
+		new LinkedHashMap<Integer, SessionKey>(1024, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, SessionKey> eldest) {
+				return size() > MAX_HINTS;
+			}
+		};
+
+	private final LinkedHashMap<Peer, PeerNode> byAddress =
+		new LinkedHashMap<Peer, PeerNode>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Peer, PeerNode> eldest) {
+				return size() > MAX_ADDRESSES;
+			}
+		};
+
+	/**
+	 * @return The peer whose current key we expect a packet with this encrypted sequence number
+	 * on, or null.
+	 */
+	public synchronized PeerNode getByHint(byte[] buf, int offset, int length) {
+		if(length < NewPacketFormat.HMAC_LENGTH + 4) return null;
+		Integer hint = readHint(buf, offset + NewPacketFormat.HMAC_LENGTH);
+		SessionKey key = byHint.get(hint);
+		if(key == null) return null;
+		PeerNode pn = key.pn;
+		if(pn.getCurrentKeyTracker() != key && pn.getPreviousKeyTracker() != key) {
+			// Rekeyed or disconnected since.
+			byHint.remove(hint);
+			return null;
+		}
+		return pn;
+	}
+
+	/** @return The peer we last received a packet from this address from, or null. */
+	public synchronized PeerNode getByAddress(Peer peer) {
+		return byAddress.get(peer);
+	}
+
+	/**
+	 * Called when a packet from this address has been decoded by the peer. Remembers the address,
+	 * and indexes the next sequence numbers we expect from the peer, once it has moved on far
+	 * enough since we last did that.
+	 */
+	public synchronized void decoded(Peer peer, PeerNode pn) {
+		if(byAddress.get(peer) != pn)
+			byAddress.put(peer, pn);
+		SessionKey key = pn.getCurrentKeyTracker();
+		if(key == null) return;
+		NewPacketFormatKeyContext context = key.packetContext;
+		byte[][] watchList = context.seqNumWatchList;
+		if(watchList == null) return;
+		if(context.hintedWatchListOffset != -1 &&
+				((context.watchListOffset - context.hintedWatchListOffset) & 0x7FFFFFFF) < HINT_WINDOW / 2)
+			return;
+		// The highest received sequence number is kept in the middle of the watch list.
+		int start = context.watchListPointer + watchList.length / 2 + 1;
+		for(int i = 0; i < HINT_WINDOW && i < watchList.length / 2 - 1; i++)
+			byHint.put(readHint(watchList[(start + i) % watchList.length], 0), key);
+		context.hintedWatchListOffset = context.watchListOffset;
+	}
+
+	/** @return The number of sequence numbers indexed. */
+	public synchronized int hints() {
+		return byHint.size();
+	}
+
+	private static Integer readHint(byte[] buf, int offset) {
+		return ((buf[offset] & 0xFF) << 24)
+			| ((buf[offset + 1] & 0xFF) << 16)
+			| ((buf[offset + 2] & 0xFF) << 8)
+			| (buf[offset + 3] & 0xFF);
+	}
+
+}
@@ -55,6 +55,10 @@ public abstract class UIDTag {
 	private boolean hasUnlocked;
 	
 	private boolean waitingForSlot;
+
+	/** What this tag has added to the RequestTracker's counters, or null if it is not being
+	 * counted. LOCKING: Only used by the RequestTracker, with the lock on the tag held. */
+	RequestTracker.TagCounts counted;
 	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
 		createdTime = System.currentTimeMillis();
@@ -199,7 +203,8 @@ public abstract class UIDTag {
 				p.postUnlock(this);
 	}
 
-	/** Add up the expected transfers in.
+	/** Add up the expected transfers in. The RequestTracker keeps running totals of these, so
+	 * anything which can change the result must call countsChanged().
 	 * @param ignoreLocalVsRemote If true, pretend that the request is remote even if it's local.
 	 * @param outwardTransfersPerInsert Expected number of outward transfers for an insert.
 	 * @param forAccept If true, we are deciding whether to accept a request.
@@ -221,6 +226,14 @@ public abstract class UIDTag {
 	
 	public synchronized void setNotRoutedOnwards() {
 		this.notRoutedOnwards = true;
+		countsChanged();
+	}
+
+	/** Tell the RequestTracker to update its counters, because something which affects
+	 * expectedTransfersIn(), expectedTransfersOut(), getSource() or countAsSourceRestarted() has
+	 * changed. Can be called with or without the lock on the tag held. */
+	protected void countsChanged() {
+		tracker.tagChanged(this);
 	}
 
 	private boolean reassigned;
@@ -237,6 +250,15 @@ public abstract class UIDTag {
 	public synchronized void reassignToSelf() {
 		if(wasLocal) return;
 		reassigned = true;
+		countsChanged();
+	}
+	
+	/** @return The reference to the effective source node, as for getSource(), but even if the
+	 * node has been garbage collected since. */
+	synchronized WeakReference<PeerNode> getSourceRef() {
+		if(reassigned) return null;
+		if(wasLocal) return null;
+		return sourceRef;
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -329,6 +351,7 @@ public abstract class UIDTag {
 			if(unlockedHandler) return;
 			noRecordUnlock = noRecord;
 			unlockedHandler = true;
+			countsChanged();
 			canUnlock = mustUnlock();
 		}
 		if(canUnlock)
@@ -401,6 +424,7 @@ public abstract class UIDTag {
 
 	public synchronized void setAccepted() {
 		accepted = true;
+		countsChanged();
 	}
 	
 	private boolean timedOutButContinued;
@@ -411,11 +435,13 @@ public abstract class UIDTag {
 	 * messages to the request source. */
 	public synchronized void timedOutToHandlerButContinued() {
 		timedOutButContinued = true;
+		countsChanged();
 	}
 	
 	/** The handler disconnected or restarted. */
 	public synchronized void onRestartOrDisconnectSource() {
 		sourceRestarted = true;
+		countsChanged();
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
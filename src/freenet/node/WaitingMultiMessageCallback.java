@@ -1,21 +1,25 @@
 package freenet.node;
 
+import freenet.support.ParkingWaiters;
+
 public class WaitingMultiMessageCallback extends MultiMessageCallback {
 
-	
+	/** Parks rather than waiting on the monitor, so that requests can run on virtual threads.
+	 * LOCKING: Woken with (this) held. */
+	private final ParkingWaiters waiters = new ParkingWaiters();
 	
 	@Override
 	synchronized void finish(boolean success) {
-		notifyAll();
+		waiters.wakeAll();
 	}
 
-	public synchronized void waitFor() {
-		while(!finished()) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-				// Ignore
+	public void waitFor() {
+		while(true) {
+			synchronized(this) {
+				if(finished()) return;
+				waiters.register();
 			}
+			waiters.await(Long.MAX_VALUE);
 		}
 	}
 
@@ -0,0 +1,81 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of operation latencies, with power of two buckets in microseconds. Bucket 0
+ * is for anything under a microsecond, bucket i for [2^(i-1), 2^i) microseconds, and the last
+ * bucket for everything slower. Percentiles are the upper bound of the bucket they fall in, so
+ * they are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+
+	public static final int BUCKETS = 32;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	/** Record an operation which took the given number of nanoseconds. */
+	public void report(long nanos) {
+		if(nanos < 0) nanos = 0;
+		counts.incrementAndGet(bucketFor(nanos / 1000));
+		totalNanos.addAndGet(nanos);
+	}
+
+	static int bucketFor(long micros) {
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/** @return The number of operations in the given bucket. */
+	public long count(int bucket) {
+		return counts.get(bucket);
+	}
+
+	/** @return The number of operations recorded. */
+	public long count() {
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	/** @return The total time taken by all the operations recorded, in nanoseconds. */
+	public long totalNanos() {
+		return totalNanos.get();
+	}
+
+	/** @return The mean latency in microseconds, or 0 if nothing has been recorded. */
+	public double meanMicros() {
+		long count = count();
+		if(count == 0) return 0;
+		return totalNanos.get() / 1000.0 / count;
+	}
+
+	/**
+	 * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile.
+	 * @return The upper bound of the bucket containing the given percentile, in microseconds, or
+	 * 0 if nothing has been recorded. Long.MAX_VALUE if it is in the last bucket.
+	 */
+	public long percentileMicros(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0) return 0;
+		long wanted = (long) Math.ceil(total * fraction);
+		if(wanted < 1) wanted = 1;
+		long seen = 0;
+		for(int i = 0; i < BUCKETS - 1; i++) {
+			seen += snapshot[i];
+			if(seen >= wanted) return 1L << i;
+		}
+		return Long.MAX_VALUE;
+	}
+
+}
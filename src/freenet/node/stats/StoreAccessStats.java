@@ -36,6 +36,22 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** @return How long reads took, or null if the store doesn't record it. */
+	public LatencyHistogram readLatency() {
+		return null;
+	}
+
+	/** @return How long writes took, or null if the store doesn't record it. */
+	public LatencyHistogram writeLatency() {
+		return null;
+	}
+
+	/** @return How long reads and writes waited to lock their slots, or null if the store
+	 * doesn't record it. */
+	public LatencyHistogram lockWaitLatency() {
+		return null;
+	}
+
 
 
 
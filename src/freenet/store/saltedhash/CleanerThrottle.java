@@ -0,0 +1,67 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Decides how long the store cleaner should pause after each region it resizes or rebuilds, so
+ * that it goes as fast as the disk allows while the store is idle, and backs off while the node
+ * is using it.
+ *
+ * The pause is the time the region took, multiplied by the rate of live store operations divided
+ * by BUSY_OPS_PER_SECOND. So at that rate the cleaner spends half its time sleeping, and the busier
+ * the store the less of the disk it takes. If live reads are slow on average, the disk is already
+ * saturated and the pause is doubled. The rates are measured over at least a second, since
+ * several cleaner threads may ask after every region.
+ */
+final class CleanerThrottle {
+
+	/** Live operations (hits, misses and writes) per second at which the cleaner runs half the time */
+	static final int BUSY_OPS_PER_SECOND = 20;
+	/** Mean live read time above which we assume the disk is saturated */
+	static final long SLOW_READ_NANOS = MILLISECONDS.toNanos(20);
+	static final long MAX_DELAY = SECONDS.toMillis(2);
+	private static final long MEASURE_PERIOD = SECONDS.toMillis(1);
+
+	private long lastTime = -1;
+	private long lastOps;
+	private long lastReads;
+	private long lastReadNanos;
+	/** Live operations per second, as of the last measurement */
+	private double opsPerSecond;
+	private boolean slowReads;
+
+	/**
+	 * @param now The current time in milliseconds.
+	 * @param workTime How long the cleaner spent on the last region, in milliseconds.
+	 * @param liveOps The total number of live operations on the store so far.
+	 * @param reads The total number of reads from the store so far.
+	 * @param readNanos The total time spent on those reads.
+	 * @return How long to sleep for, in milliseconds.
+	 */
+	synchronized long delay(long now, long workTime, long liveOps, long reads, long readNanos) {
+		if(lastTime == -1) {
+			// Nothing to compare with yet.
+			lastTime = now;
+			lastOps = liveOps;
+			lastReads = reads;
+			lastReadNanos = readNanos;
+		} else if(now - lastTime >= MEASURE_PERIOD) {
+			opsPerSecond = (liveOps - lastOps) * 1000.0 / (now - lastTime);
+			long readCount = reads - lastReads;
+			slowReads = readCount > 0 && (readNanos - lastReadNanos) / readCount > SLOW_READ_NANOS;
+			lastTime = now;
+			lastOps = liveOps;
+			lastReads = reads;
+			lastReadNanos = readNanos;
+		}
+		double delay = Math.max(0, workTime) * opsPerSecond / BUSY_OPS_PER_SECOND;
+		if(slowReads)
+			delay = Math.max(delay, workTime) * 2;
+		return Math.min(MAX_DELAY, (long) delay);
+	}
+
+}
@@ -3,70 +3,104 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import freenet.node.stats.LatencyHistogram;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * The offsets are divided between a fixed number of stripes, each with its own lock and list of
+ * locked offsets, so threads locking different slots rarely contend with each other. Locking an
+ * unlocked slot doesn't allocate anything, unless its stripe has more slots locked at once than
+ * ever before.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+
+	/** Must be a power of 2 */
+	static final int STRIPES = 1024;
+
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		/** Signalled whenever an offset in this stripe is unlocked */
+		final Condition unlocked = lock.newCondition();
+		/** Locked offsets, the first count are valid */
+		long[] locked = new long[4];
+		int count;
+
+		int indexOf(long offset) {
+			for (int i = 0; i < count; i++)
+				if (locked[i] == offset)
+					return i;
+			return -1;
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	/** Time spent in lockEntry(), including the uncontended case */
+	private final LatencyHistogram lockWait = new LatencyHistogram();
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe stripeFor(long offset) {
+		return stripes[(int) (offset ^ (offset >>> 32)) & (STRIPES - 1)];
 	}
 
 	/**
 	 * Lock the entry
-	 * 
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
 	 * then one lock at a time (or deadlock may occur).
+	 *
+	 * @return A token to pass to unlockEntry(), or null if shutting down or interrupted.
 	 */
 	Condition lockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
-		Condition condition;
+		long startTime = System.nanoTime();
+		Stripe stripe = stripeFor(offset);
 		try {
-			entryLock.lock();
+			stripe.lock.lock();
 			try {
-				do {
+				while (stripe.indexOf(offset) != -1) {
 					if (shutdown)
 						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+					stripe.unlocked.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
+				}
+				if (shutdown)
+					return null;
+				if (stripe.count == stripe.locked.length)
+					stripe.locked = Arrays.copyOf(stripe.locked, stripe.count * 2);
+				stripe.locked[stripe.count++] = offset;
 			} finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
 			return null;
+		} finally {
+			lockWait.report(System.nanoTime() - startTime);
 		}
 
 		if (logDEBUG)
 			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		return stripe.unlocked;
 	}
 
 	/**
@@ -76,29 +110,40 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripeFor(offset);
+		assert condition == stripe.unlocked;
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
+			int i = stripe.indexOf(offset);
+			assert i != -1;
+			if (i == -1)
+				return;
+			stripe.locked[i] = stripe.locked[--stripe.count];
+			// Other offsets in the stripe may have waiters too, and they must all re-check.
+			stripe.unlocked.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
+	/** @return How long it took to lock entries, whether or not they were already locked. */
+	LatencyHistogram getLockWait() {
+		return lockWait;
+	}
+
 	/**
 	 * Shutdown and wait for all entries unlocked
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				while (stripe.count != 0)
+					stripe.unlocked.awaitUninterruptibly();
+			} finally {
+				stripe.lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
@@ -0,0 +1,220 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+
+/**
+ * Memory mapped view of one of the store files, made of fixed size records (entries). The file is
+ * mapped lazily, one window at a time, and a window always holds a whole number of records, so
+ * reading or writing a slot is a memory copy rather than a system call once its window is mapped.
+ *
+ * Records beyond the known length of the file aren't mapped, and read() and write() return false
+ * so that the caller can use the FileChannel as before. The batch operations of the cleaner still
+ * use the FileChannel directly; this relies on the mapping and the channel sharing the operating
+ * system's page cache, which is the case for local files on all the platforms we run on.
+ *
+ * The store must tell us before it makes the file shorter, because touching a mapping beyond the
+ * end of the file crashes the thread (or worse). Accesses hold a read lock, and setLength() takes
+ * the write lock to drop the windows past the new end.
+ */
+final class MappedStoreFile {
+
+	private final FileChannel channel;
+	private final int recordLength;
+	private final long recordsPerWindow;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/** Replaced under the write lock. Readers may map a window into an empty slot, but the write
+	 * lock is needed to drop one. */
+	private AtomicReferenceArray<MappedByteBuffer> windows = new AtomicReferenceArray<MappedByteBuffer>(0);
+	/** Length of the file in bytes, as far as we know. Changed under the write lock. */
+	private long length;
+	private boolean closed;
+
+	/**
+	 * @param windowSize The size of a window in bytes. Rounded down to a whole number of records,
+	 * but at least one record, and at most 2GB.
+	 */
+	MappedStoreFile(FileChannel channel, int recordLength, long windowSize) throws IOException {
+		this.channel = channel;
+		this.recordLength = recordLength;
+		windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+		recordsPerWindow = Math.max(1, windowSize / recordLength);
+		setLength(channel.size());
+	}
+
+	/**
+	 * Read a record into the buffer, filling it.
+	 * @return False if the record isn't mapped, in which case nothing has been read.
+	 */
+	boolean read(long record, ByteBuffer buf) throws IOException {
+		lock.readLock().lock();
+		try {
+			ByteBuffer window = getWindow(record);
+			if(window == null) return false;
+			window.position((int) ((record % recordsPerWindow) * recordLength));
+			window.limit(window.position() + buf.remaining());
+			buf.put(window);
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Write the buffer to a record.
+	 * @return False if the record isn't mapped, in which case nothing has been written.
+	 */
+	boolean write(long record, ByteBuffer buf) throws IOException {
+		lock.readLock().lock();
+		try {
+			ByteBuffer window = getWindow(record);
+			if(window == null) return false;
+			window.position((int) ((record % recordsPerWindow) * recordLength));
+			window.put(buf);
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return A private view of the window containing the record, mapping it if necessary, or
+	 * null if the record isn't (wholly) within the file. Caller must hold the read lock. */
+	private ByteBuffer getWindow(long record) throws IOException {
+		if(closed || (record + 1) * recordLength > length) return null;
+		int index = (int) (record / recordsPerWindow);
+		long start = index * recordsPerWindow * recordLength;
+		long end = Math.min(start + recordsPerWindow * recordLength, length / recordLength * recordLength);
+		MappedByteBuffer window = windows.get(index);
+		if(window == null || start + window.capacity() < end) {
+			synchronized(this) {
+				window = windows.get(index);
+				if(window == null || start + window.capacity() < end) {
+					// Not mapped yet, or the file has grown since, and the last window with it.
+					window = channel.map(FileChannel.MapMode.READ_WRITE, start, end - start);
+					windows.set(index, window);
+				}
+			}
+		}
+		return window.duplicate();
+	}
+
+	/**
+	 * Tell us the file is about to get shorter, or has got longer. Must be called before
+	 * truncating the file.
+	 */
+	void setLength(long newLength) {
+		lock.writeLock().lock();
+		try {
+			if(newLength < length) {
+				for(int i = 0; i < windows.length(); i++) {
+					MappedByteBuffer window = windows.get(i);
+					if(window == null) continue;
+					long end = i * recordsPerWindow * recordLength + window.capacity();
+					if(end > newLength) {
+						unmap(window);
+						windows.set(i, null);
+					}
+				}
+			}
+			int count = (int) ((newLength / recordLength + recordsPerWindow - 1) / recordsPerWindow);
+			if(count != windows.length()) {
+				AtomicReferenceArray<MappedByteBuffer> newWindows = new AtomicReferenceArray<MappedByteBuffer>(count);
+				for(int i = 0; i < Math.min(count, windows.length()); i++)
+					newWindows.set(i, windows.get(i));
+				windows = newWindows;
+			}
+			length = newLength;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** @return The number of bytes currently mapped. */
+	long mappedBytes() {
+		lock.readLock().lock();
+		try {
+			long total = 0;
+			for(int i = 0; i < windows.length(); i++) {
+				MappedByteBuffer window = windows.get(i);
+				if(window != null) total += window.capacity();
+			}
+			return total;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Write any changes to disk. */
+	void force() {
+		lock.readLock().lock();
+		try {
+			for(int i = 0; i < windows.length(); i++) {
+				MappedByteBuffer window = windows.get(i);
+				if(window != null) window.force();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Write any changes to disk and drop all the windows. Further accesses return false. */
+	void close() {
+		lock.writeLock().lock();
+		try {
+			for(int i = 0; i < windows.length(); i++) {
+				MappedByteBuffer window = windows.get(i);
+				if(window == null) continue;
+				window.force();
+				unmap(window);
+			}
+			windows = new AtomicReferenceArray<MappedByteBuffer>(0);
+			closed = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static {
+		Object u = null;
+		Method m = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			m = c.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			u = f.get(null);
+		} catch (Throwable t) {
+			// Java 8, the buffer will be unmapped when it is garbage collected.
+			m = null;
+		}
+		unsafe = u;
+		invokeCleaner = m;
+	}
+
+	/** Unmap a window now rather than when it is garbage collected, if the JVM lets us. It must
+	 * not be used afterwards. */
+	private static void unmap(MappedByteBuffer window) {
+		if(invokeCleaner == null) return;
+		try {
+			invokeCleaner.invoke(unsafe, window);
+		} catch (Throwable t) {
+			Logger.normal(MappedStoreFile.class, "Unable to unmap store window: " + t, t);
+		}
+	}
+
+}
@@ -12,17 +12,22 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -41,6 +46,7 @@ import freenet.keys.SSKBlock;
 import freenet.l10n.NodeL10n;
 import freenet.node.FastRunnable;
 import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.stats.LatencyHistogram;
 import freenet.node.stats.StoreAccessStats;
 import freenet.node.useralerts.AbstractUserAlert;
 import freenet.node.useralerts.UserAlert;
@@ -56,6 +62,7 @@ import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.Ticker;
+import freenet.support.TimeUtil;
 import freenet.support.WrapperKeepalive;
 import freenet.support.io.Closer;
 import freenet.support.io.Fallocate;
@@ -247,6 +254,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		
 		if(((!slotFilterDisabled) && slotFilter.isNew()) && !newStore) {
 			flags |= FLAG_REBUILD_BLOOM;
+			if(prevStoreSize == 0)
+				cleanerCheckpoint = 0;
 			System.out.println("Rebuilding slot filter because new");
 		} else if((flags & FLAG_REBUILD_BLOOM) != 0)
 			System.out.println("Slot filter still needs rebuilding");
@@ -312,6 +321,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	@Override
 	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
+		long startTime = System.nanoTime();
+		try {
+			return innerFetch(routingKey, fullKey, canReadClientCache, canReadSlashdotCache, ignoreOldBlocks, meta);
+		} finally {
+			readLatency.report(System.nanoTime() - startTime);
+		}
+	}
+
+	private T innerFetch(byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
@@ -419,6 +437,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
+		long startTime = System.nanoTime();
+		try {
+			return innerPut(block, data, header, overwrite, isOldBlock, wrongStore);
+		} finally {
+			writeLatency.report(System.nanoTime() - startTime);
+		}
+	}
+
+	private boolean innerPut(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 
@@ -576,6 +603,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	/** If not null, slot metadata is read and written through a memory mapping of metaFile. */
+	private MappedStoreFile metaMap;
+	/** If not null, headers and data are read and written through a memory mapping of hdFile. */
+	private MappedStoreFile hdMap;
 
 	/**
 	 * Data entry
@@ -883,13 +914,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
+		MappedStoreFile map = metaMap;
+		if(map == null || !map.read(offset, mbf)) {
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+		}
 		mbf.flip();
 
 		Entry entry = new Entry(mbf, null);
@@ -953,12 +987,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private ByteBuffer readHD(long offset) throws IOException {
 		ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
 
-		long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-		do {
-			int status = hdFC.read(buf, pos + buf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (buf.hasRemaining());
+		MappedStoreFile map = hdMap;
+		if(map == null || !map.read(offset, buf)) {
+			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+			do {
+				int status = hdFC.read(buf, pos + buf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (buf.hasRemaining());
+		}
 		buf.flip();
 
 		return buf;
@@ -1017,14 +1054,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		MappedStoreFile map = metaMap;
+		if(map == null || !map.write(offset, bf)) {
+			do {
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (bf.hasRemaining());
+		}
 
 		bf = entry.toHDBuffer();
-		if (bf != null) {
+		map = hdMap;
+		if (bf != null && (map == null || !map.write(offset, bf))) {
 			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 			do {
 				int status = hdFC.write(bf, pos + bf.position());
@@ -1038,6 +1079,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if(metaMap != null)
+			metaMap.close();
+		if(hdMap != null)
+			hdMap.close();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1066,6 +1111,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.preallocate = preallocate;
 	}
 
+	/**
+	 * Read and write slots through memory mappings of the store files rather than a system call
+	 * per access. Must be called before start(). Uses address space (but not necessarily memory)
+	 * equal to the size of the mapped files, so only sensible on a 64-bit JVM.
+	 * @param mapData If true, map the header/data file as well as the metadata file.
+	 * @param windowSize The size of each mapping in bytes. The files are mapped a window at a time
+	 * as they are accessed.
+	 */
+	public void setMemoryMapped(boolean mapData, long windowSize) throws IOException {
+		metaMap = new MappedStoreFile(metaFC, Entry.METADATA_LENGTH, windowSize);
+		if(mapData)
+			hdMap = new MappedStoreFile(hdFC, headerBlockLength + dataBlockLength + hdPadding, windowSize);
+	}
+
 	/**
 	 * Change on disk store file size
 	 *
@@ -1079,6 +1138,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			final long newMetaLen = Entry.METADATA_LENGTH * storeMaxEntries;
 			final long newHdLen = (headerBlockLength + dataBlockLength + hdPadding) * storeMaxEntries;
 
+			// Drop any mappings past the new end before truncating.
+			if(metaMap != null)
+				metaMap.setLength(Math.min(oldMetaLen, newMetaLen));
+			if(hdMap != null)
+				hdMap.setLength(Math.min(currentHdLen, newHdLen));
+
 			if (preallocate) {
 				try (WrapperKeepalive wrapperKeepalive = new WrapperKeepalive())
 				{
@@ -1096,6 +1161,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
+			if(metaMap != null)
+				metaMap.setLength(newMetaLen);
+			if(hdMap != null)
+				hdMap.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
@@ -1115,7 +1184,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |      (reserved)       |
+	 *  |0030|   K   |(rsvd) |  Checkpoint   |
 	 *  +----+-------+-------+---------------+
 	 *  |0040|    writes     |     hits      |
 	 *  +----+---------------+---------------+
@@ -1124,6 +1193,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *    Checkpoint = Progress of an interrupted resize or slot filter rebuild, see
+	 *                 {@link Cleaner#batchProcessEntries(BatchProcessor, long, boolean, boolean, int)}
 	 * </pre>
 	 */
 	private final File configFile;
@@ -1191,16 +1262,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					generation = raf.readInt();
 					flags = raf.readInt();
 
+					boolean restartRebuild = false;
 					if (((flags & FLAG_DIRTY) != 0) && 
 							// FIXME figure out a way to do this consistently!
 							// Not critical as a few blocks wrong is something we can handle.
-							ResizablePersistentIntBuffer.getPersistenceTime() != -1)
+							ResizablePersistentIntBuffer.getPersistenceTime() != -1) {
 						flags |= FLAG_REBUILD_BLOOM;
+						restartRebuild = true;
+					}
 
 					try {
 						raf.readInt(); // bloomFilterK
 						raf.readInt(); // reserved
-						raf.readLong(); // reserved
+						cleanerCheckpoint = raf.readLong();
+						// Changes to the slot filter since it was last written may have been lost,
+						// including in the part which had already been rebuilt. A resize only
+						// depends on the metadata so can carry on.
+						if (restartRebuild && prevStoreSize == 0)
+							cleanerCheckpoint = 0;
 						long w = raf.readLong();
 						writes.set(w);
 						initialWrites = w;
@@ -1256,7 +1335,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				raf.writeInt(flags);
 				raf.writeInt(0); // bloomFilterK
 				raf.writeInt(0);
-				raf.writeLong(0);
+				raf.writeLong(cleanerCheckpoint);
 				raf.writeLong(writes.get());
 				raf.writeLong(hits.get());
 				raf.writeLong(misses.get());
@@ -1276,8 +1355,23 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 	// ------------- Store resizing
 	private long prevStoreSize = 0;
-	private Lock cleanerLock = new ReentrantLock(); // local to this datastore
-	private Condition cleanerCondition = cleanerLock.newCondition();
+	/** Progress of the resize, or of the slot filter rebuild if there is no resize, or 0 */
+	private volatile long cleanerCheckpoint = 0;
+
+	/** Only for testing: told about each region the cleaner has processed. */
+	interface CleanerListener {
+		/** @return false to stop the pass there, as if the node was shutting down. */
+		boolean regionDone(long start, long end, long checkpoint);
+	}
+
+	volatile CleanerListener testingCleanerListener;
+
+	/** Number of threads resizing the store or rebuilding the slot filter */
+	private static final int CLEANER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private Lock cleanerLock = new ReentrantLock(); // local to this datastore, held while the cleaner is working
+	/** Released to wake the cleaner early. Unlike signalling a Condition, this isn't lost if the
+	 * cleaner isn't waiting yet. */
+	private final Semaphore cleanerWakeup = new Semaphore(0);
 	private static Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
 	private Cleaner cleanerThread;
 	private CleanerStatusUserAlert cleanerStatusUserAlert;
@@ -1285,12 +1379,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private final Entry NOT_MODIFIED = new Entry();
 
 	private interface BatchProcessor<T extends StorableBlock> {
-		// initialize
-		void init();
+		// initialize, resuming is true if carrying on from a checkpoint
+		void init(boolean resuming);
 
-		// call this after reading RESIZE_MEMORY_ENTRIES entries
+		// call this after processing each region, possibly from several threads at once
+		// checkpoint is the boundary of the regions which have all been processed
 		// return false to abort
-		boolean batch(long entriesLeft);
+		boolean batch(long checkpoint);
 
 		// call this on abort (e.g. node shutdown)
 		void abort();
@@ -1313,6 +1408,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		private volatile boolean isRebuilding;
 		private volatile boolean isResizing;
+		/** The pass in progress, if any */
+		private volatile CleanerPass pass;
 
 		public Cleaner() {
 			super("Store-" + name + "-Cleaner", NativeThread.LOW_PRIORITY, false);
@@ -1335,6 +1432,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			while (!shutdown) {
 				cleanerLock.lock();
 				try {
+					if (shutdown)
+						return;
+
 					long _prevStoreSize;
 					configLock.readLock().lock();
 					try {
@@ -1371,19 +1471,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 
 					writeConfigFile();
-
-					try {
-						cleanerCondition.await(CLEANER_PERIOD, TimeUnit.MILLISECONDS);
-					} catch (InterruptedException e) {
-						Logger.debug(this, "interrupted", e);
-					}
 				} finally {
 					cleanerLock.unlock();
 				}
+
+				try {
+					cleanerWakeup.tryAcquire(CLEANER_PERIOD, TimeUnit.MILLISECONDS);
+					cleanerWakeup.drainPermits();
+				} catch (InterruptedException e) {
+					Logger.debug(this, "interrupted", e);
+				}
 			}
 		}
 
 		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
+		/** Entries read at once when rebuilding the slot filter, which only needs the metadata */
+		private static final int REBUILD_REGION_ENTRIES = 4096;
 
 		/**
 		 * Move old entries to new location and resize store
@@ -1393,19 +1496,32 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			System.out.println("Resizing datastore "+name);
 
 			BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
-				Deque<Entry> oldEntryList = new LinkedList<Entry>();
+				/** Each thread relocates the entries it has removed itself */
+				ThreadLocal<Deque<Entry>> oldEntryLists = new ThreadLocal<Deque<Entry>>() {
+					@Override
+					protected Deque<Entry> initialValue() {
+						return new LinkedList<Entry>();
+					}
+				};
+				/** How far the data file has been shrunk */
+				long truncatedTo = _prevStoreSize;
 
 				@Override
-				public void init() {
+				public void init(boolean resuming) {
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (resuming) {
+						// Everything past the checkpoint is already in the current generation.
+						Logger.normal(this, "Resuming datastore resize at " + cleanerCheckpoint);
+					} else {
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
@@ -1438,6 +1554,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
+						Deque<Entry> oldEntryList = oldEntryLists.get();
 						oldEntryList.add(entry);
 						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
 							oldEntryList.poll();
@@ -1447,20 +1564,28 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 
-				int i = 0;
+				AtomicInteger i = new AtomicInteger();
 				@Override
-				public boolean batch(long entriesLeft) {
+				public boolean batch(long checkpoint) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
+					if (i.getAndIncrement() % 16 == 0)
 						writeConfigFile();
 
 					// shrink data file to current size
-					if (storeSize < _prevStoreSize)
-						setStoreFileSize(Math.max(storeSize, entriesLeft));
+					if (storeSize < _prevStoreSize) {
+						synchronized (this) {
+							// Another thread may have truncated further already.
+							long newSize = Math.max(storeSize, checkpoint);
+							if (newSize < truncatedTo) {
+								setStoreFileSize(newSize);
+								truncatedTo = newSize;
+							}
+						}
+					}
 
 					// try to resolve the list
-					Iterator<Entry> it = oldEntryList.iterator();
+					Iterator<Entry> it = oldEntryLists.get().iterator();
 					while (it.hasNext())
 						if (resolveOldEntry(it.next()))
 							it.remove();
@@ -1480,6 +1605,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						if (_prevStoreSize != prevStoreSize)
 							return;
 						prevStoreSize = 0;
+						cleanerCheckpoint = 0;
 						if(!slotFilterDisabled) {
 							if(slotFilter.size() != (int)storeSize)
 								slotFilter.resize((int)storeSize);
@@ -1501,7 +1627,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, RESIZE_MEMORY_ENTRIES);
 		}
 		
 		/**
@@ -1513,12 +1639,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			
 			BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
 				@Override
-				public void init() {
-					configLock.writeLock().lock();
-					try {
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+				public void init(boolean resuming) {
+					if (resuming) {
+						Logger.normal(this, "Resuming slot filter rebuild at " + cleanerCheckpoint);
+					} else {
+						configLock.writeLock().lock();
+						try {
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
@@ -1545,14 +1675,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return NOT_MODIFIED;
 				}
 				
-				int i = 0;
+				AtomicInteger i = new AtomicInteger();
 				@Override
-				public boolean batch(long entriesLeft) {
+				public boolean batch(long checkpoint) {
 					WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
 
-					if (i++ % 16 == 0)
+					int batches = i.getAndIncrement();
+					if (batches % 16 == 0)
 						writeConfigFile();
-					if (i++ % 1024 == 0) {
+					if (batches % 64 == 0) {
 						if(!slotFilterDisabled)
 							slotFilter.forceWrite();
 					}
@@ -1571,6 +1702,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					configLock.writeLock().lock();
 					try {
 						flags &= ~FLAG_REBUILD_BLOOM;
+						cleanerCheckpoint = 0;
 						writeConfigFile();
 					} finally {
 						configLock.writeLock().unlock();
@@ -1584,59 +1716,219 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 			
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, REBUILD_REGION_ENTRIES);
 		}
 
 
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		/** When the current pass started, and how many entries had already been processed then */
+		private volatile long passStartTime;
+		private volatile long passStartDone;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			
-			entriesLeft = entriesTotal = storeSize;
-
-			long startOffset, step;
-			if (!reverse) {
-				startOffset = 0;
-				step = RESIZE_MEMORY_ENTRIES;
-			} else {
-				startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-				step = -RESIZE_MEMORY_ENTRIES;
+		/**
+		 * Run a batch processor over the whole store, a region at a time. Regions are handed out in
+		 * order to CLEANER_THREADS threads, this one and some helpers, so several are read and
+		 * processed at once. If sleep is set, each thread pauses after each region for as long as
+		 * the CleanerThrottle says, depending on how busy the store is.
+		 *
+		 * cleanerCheckpoint is kept at the boundary of the regions which have all been processed,
+		 * from the start of the store, or from the end if reverse. It is saved with the config
+		 * file, and if it is set when we start, we carry on from there rather than starting over.
+		 */
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep, int regionEntries) {
+			long checkpoint = cleanerCheckpoint;
+			boolean resuming = checkpoint > 0 && checkpoint < storeSize;
+			if (!resuming)
+				checkpoint = reverse ? storeSize : 0;
+
+			CleanerPass pass = new CleanerPass(processor, storeSize, reverse, sleep, regionEntries, checkpoint);
+			entriesTotal = storeSize;
+			passStartDone = reverse ? storeSize - checkpoint : checkpoint;
+			entriesLeft = storeSize - passStartDone;
+			passStartTime = System.currentTimeMillis();
+			cleanerCheckpoint = checkpoint;
+
+			processor.init(resuming);
+			this.pass = pass;
+			try {
+				pass.execute();
+			} catch (Exception e) {
+				Logger.error(this, "Caught: "+e+" while shrinking", e);
+				pass.abort();
+			} finally {
+				this.pass = null;
 			}
+			if (pass.isComplete())
+				processor.finish();
+			else
+				processor.abort();
+		}
 
-			int i = 0;
-			processor.init();
-			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-					if (shutdown) {
-						processor.abort();
-						return;
+		/** Stop the pass in progress, if any, once the regions being processed now are finished. */
+		void abortPass() {
+			CleanerPass p = pass;
+			if (p != null)
+				p.abort();
+		}
+
+		/** @return Roughly how long the current pass will take to finish, or -1 if we don't know yet. */
+		long estimateTimeLeft() {
+			long done = entriesTotal - entriesLeft - passStartDone;
+			long elapsed = System.currentTimeMillis() - passStartTime;
+			if (done <= 0 || elapsed <= 0)
+				return -1;
+			return (long) ((double) entriesLeft * elapsed / done);
+		}
+
+		/** One pass of a batch processor over the store, shared by the threads working on it. */
+		private final class CleanerPass implements Runnable {
+			private final BatchProcessor<T> processor;
+			private final long size;
+			private final boolean reverse;
+			private final boolean sleep;
+			private final int regionEntries;
+			private final CleanerThrottle throttle = new CleanerThrottle();
+			private final List<Thread> helpers = new ArrayList<Thread>();
+			/** The start of the next region to hand out, or its end if reverse */
+			private long next;
+			private long checkpoint;
+			/** Processed regions past the checkpoint, by the boundary nearer to it */
+			private final Map<Long, Long> processed = new HashMap<Long, Long>();
+			private long entriesDone;
+			private int regions;
+			private boolean aborted;
+
+			CleanerPass(BatchProcessor<T> processor, long size, boolean reverse, boolean sleep, int regionEntries, long checkpoint) {
+				this.processor = processor;
+				this.size = size;
+				this.reverse = reverse;
+				this.sleep = sleep;
+				this.regionEntries = regionEntries;
+				this.next = checkpoint;
+				this.checkpoint = checkpoint;
+				this.entriesDone = reverse ? size - checkpoint : checkpoint;
+			}
+
+			void execute() {
+				synchronized (this) {
+					for (int i = 1; i < CLEANER_THREADS; i++) {
+						NativeThread helper = new NativeThread(this, "Store-" + name + "-Cleaner-" + i, NativeThread.LOW_PRIORITY, false);
+						helper.setDaemon(true);
+						helpers.add(helper);
 					}
+					for (Thread helper : helpers)
+						helper.start();
+				}
+				run();
+				for (Thread helper : helpers) {
+					while (true) {
+						try {
+							helper.join();
+							break;
+						} catch (InterruptedException e) {
+							abort();
+						}
+					}
+				}
+			}
 
-					if (i++ % 64 == 0)
-						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
+			/** @return The next region to process as { start, end }, or null if there are none left. */
+			private synchronized long[] nextRegion() {
+				if (aborted || shutdown)
+					return null;
+				long start, end;
+				if (reverse) {
+					if (next <= 0)
+						return null;
+					end = next;
+					start = Math.max(0, end - regionEntries);
+					next = start;
+				} else {
+					if (next >= size)
+						return null;
+					start = next;
+					end = Math.min(size, start + regionEntries);
+					next = end;
+				}
+				return new long[] { start, end };
+			}
 
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-					if (!processor.batch(entriesLeft)) {
-						processor.abort();
-						return;
-					}
+			/** Record that a region has been processed, and move the checkpoint on if possible. */
+			private synchronized long processed(long start, long end) {
+				if (reverse)
+					processed.put(end, start);
+				else
+					processed.put(start, end);
+				Long far;
+				while ((far = processed.remove(checkpoint)) != null)
+					checkpoint = far;
+				cleanerCheckpoint = checkpoint;
+
+				entriesDone += end - start;
+				entriesLeft = size - entriesDone;
+				if (regions++ % 64 == 0)
+					System.err.println(name + " cleaner in progress: " + entriesDone + "/" + size);
+				return checkpoint;
+			}
 
-					try {
-						if (sleep)
-							Thread.sleep(100);
-					} catch (InterruptedException e) {
-						processor.abort();
-						return;
+			/** Stop handing out regions. Don't interrupt the helpers: an interrupt during a read or
+			 * write would close the store's FileChannels. */
+			synchronized void abort() {
+				if (aborted)
+					return;
+				aborted = true;
+				notifyAll();
+			}
+
+			/** Wait between regions, unless or until the pass is aborted. */
+			private synchronized void pause(long delay) throws InterruptedException {
+				long end = System.currentTimeMillis() + delay;
+				long now;
+				while (!aborted && (now = System.currentTimeMillis()) < end)
+					wait(end - now);
+			}
+
+			synchronized boolean isComplete() {
+				return !aborted && checkpoint == (reverse ? 0 : size);
+			}
+
+			@Override
+			public void run() {
+				try {
+					long[] region;
+					while ((region = nextRegion()) != null) {
+						long startTime = System.currentTimeMillis();
+						if (!batchProcessEntries(region[0], (int) (region[1] - region[0]), processor)) {
+							abort();
+							return;
+						}
+						long checkpoint = processed(region[0], region[1]);
+						if (!processor.batch(checkpoint)) {
+							abort();
+							return;
+						}
+						CleanerListener listener = testingCleanerListener;
+						if (listener != null && !listener.regionDone(region[0], region[1], checkpoint)) {
+							abort();
+							return;
+						}
+
+						if (sleep) {
+							long now = System.currentTimeMillis();
+							long delay = throttle.delay(now, now - startTime, hits.get() + misses.get() + writes.get(),
+							        readLatency.count(), readLatency.totalNanos());
+							if (delay > 0)
+								pause(delay);
+						}
 					}
+				} catch (InterruptedException e) {
+					abort();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught: "+t+" while processing store", t);
+					abort();
 				}
-				processor.finish();
-			} catch (Exception e) {
-				Logger.error(this, "Caught: "+e+" while shrinking", e);
-				processor.abort();
 			}
 		}
 
@@ -1684,7 +1976,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				buf.flip();
 
 				try {
-					for (int j = 0; !shutdown && buf.limit() > j * Entry.METADATA_LENGTH; j++) {
+					// Always finish the region once we have it, even if shutting down: the
+					// processor may have taken entries out of it, and not be able to put them
+					// back unless it knows the region is done.
+					for (int j = 0; buf.limit() > j * Entry.METADATA_LENGTH; j++) {
 						buf.position(j * Entry.METADATA_LENGTH);
 						if (buf.remaining() < Entry.METADATA_LENGTH) // EOF
 							break;
@@ -1835,29 +2130,27 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		@Override
 		public String getShortText() {
 			if (cleaner.isResizing)
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortResizeProgress", //
-				        new String[] { "name", "processed", "total" },//
-				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				return getProgress("SaltedHashFreenetStore.shortResizeProgress");
 			else
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortRebuildProgress" + (slotFilter.isNew() ? "New" : ""), 
-				        new String[] { "name", "processed", "total" },//
-				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				return getProgress("SaltedHashFreenetStore.shortRebuildProgress" + (slotFilter.isNew() ? "New" : ""));
 		}
 
 		@Override
 		public String getText() {
 			if (cleaner.isResizing)
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
-				        new String[] { "name", "processed", "total" },//
-				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				return getProgress("SaltedHashFreenetStore.longResizeProgress");
 			else
-				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
-				        new String[] { "name", "processed", "total" },
-				        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
-				                String.valueOf(cleaner.entriesTotal)  });
+				return getProgress("SaltedHashFreenetStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""));
+		}
+
+		private String getProgress(String key) {
+			long timeLeft = cleaner.estimateTimeLeft();
+			String eta = timeLeft < 0 ? NodeL10n.getBase().getString("SaltedHashFreenetStore.etaUnknown")
+			        : TimeUtil.formatTime(timeLeft);
+			return NodeL10n.getBase().getString(key, //
+			        new String[] { "name", "processed", "total", "eta" },//
+			        new String[] { name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft) ,
+			                String.valueOf(cleaner.entriesTotal), eta });
 		}
 
 		@Override
@@ -1924,6 +2217,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			old = storeSize;
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			cleanerCheckpoint = 0;
 			if(!slotFilterDisabled)
 				slotFilter.resize((int)Math.max(storeSize, prevStoreSize));
 			writeConfigFile();
@@ -1931,10 +2225,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			configLock.writeLock().unlock();
 		}
 
-		if (cleanerLock.tryLock()) {
-			cleanerCondition.signal();
-			cleanerLock.unlock();
-		}
+		cleanerWakeup.release();
 		
 		if(shrinkNow) {
 			configLock.writeLock().lock();
@@ -2033,6 +2324,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return getOffsetFromDigestedKey(cipherManager.getDigestedKey(plainKey), storeSize);
 	}
 
+	/**
+	 * Get the first slot a key would be stored in, so that callers checking many keys can read
+	 * them in the order they are in the store file. Only a hint: the key may be in a later slot,
+	 * and the store may be resized at any time.
+	 *
+	 * @param routingKey The plain routing key.
+	 */
+	public long slotOf(byte[] routingKey) {
+		return getOffsetFromPlainKey(routingKey, storeSize)[0];
+	}
+
 	public void close() {
 		close(false);
 	}
@@ -2040,20 +2342,25 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public void close(boolean abort) {
 		if (closeCalled.compareAndSet(false, true)) {
 			shutdown = true;
-			lockManager.shutdown();
+			// Let the cleaner finish the regions it is working on, and put back any entries it
+			// has taken out of them, before we stop locking entries.
+			cleanerThread.abortPass();
 
 			cleanerLock.lock();
 			try {
-				cleanerCondition.signalAll();
+				cleanerWakeup.release();
 				cleanerThread.interrupt();
 			} finally {
 				cleanerLock.unlock();
 			}
+			lockManager.shutdown();
 
 			configLock.writeLock().lock();
 			try {
 				flushAndClose(abort);
 				flags &= ~FLAG_DIRTY; // clean shutdown
+				if (abort && prevStoreSize == 0)
+					cleanerCheckpoint = 0; // slot filter wasn't written
 				writeConfigFile();
 			} finally {
 				configLock.writeLock().unlock();
@@ -2102,6 +2409,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private AtomicLong writes = new AtomicLong();
 	private AtomicLong keyCount = new AtomicLong();
 	private AtomicLong bloomFalsePos = new AtomicLong();
+	/** Time taken by fetch(), this session only */
+	private final LatencyHistogram readLatency = new LatencyHistogram();
+	/** Time taken by put(), this session only */
+	private final LatencyHistogram writeLatency = new LatencyHistogram();
 	
 	private long initialHits;
 	private long initialMisses;
@@ -2229,6 +2540,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public LatencyHistogram readLatency() {
+				return readLatency;
+			}
+
+			@Override
+			public LatencyHistogram writeLatency() {
+				return writeLatency;
+			}
+
+			@Override
+			public LatencyHistogram lockWaitLatency() {
+				return lockManager.getLockWait();
+			}
 			
 		};
 	}
@@ -2277,7 +2603,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		for(int i=0;i<count;i++) {
 			configLock.readLock().lock();
 			try {
-				if((flags & FLAG_REBUILD_BLOOM) == 0) return;
+				if((flags & FLAG_REBUILD_BLOOM) == 0 && prevStoreSize == 0) return;
 			} finally {
 				configLock.readLock().unlock();
 			}
@@ -0,0 +1,51 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Threads waiting for a change to some state which is protected by an object's monitor. They
+ * park outside the monitor rather than calling Object.wait(), because on Java 21 to 23 a virtual
+ * thread in Object.wait() is pinned to its carrier thread (see VirtualThreadExecutor).
+ *
+ * A waiter checks its condition and calls register() while holding the monitor, then releases it
+ * and calls await(). Whoever changes the state calls wakeAll() with the monitor held, where it
+ * would have called notifyAll(). Because the waiter registers before releasing the monitor, a
+ * change made after it checked the condition always wakes it. A waiter may also be woken
+ * spuriously, so it must check its condition again.
+ */
+public final class ParkingWaiters {
+
+	private final Set<Thread> waiters = ConcurrentHashMap.newKeySet();
+
+	/** Register the current thread to be woken by wakeAll(). Call with the monitor held. */
+	public void register() {
+		waiters.add(Thread.currentThread());
+	}
+
+	/** Wait until woken, interrupted, or until the timeout passes. Call after register(), without
+	 * holding the monitor. The interrupt flag is cleared, just as Object.wait() clears it when it
+	 * throws InterruptedException.
+	 * @param timeout The maximum time to wait in milliseconds. */
+	public void await(long timeout) {
+		try {
+			if(timeout > 0)
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+			Thread.interrupted();
+		} finally {
+			waiters.remove(Thread.currentThread());
+		}
+	}
+
+	/** Wake up every registered thread. */
+	public void wakeAll() {
+		for(Thread t : waiters)
+			LockSupport.unpark(t);
+	}
+
+}
@@ -197,6 +197,8 @@ public class Serializer {
 			return 2;
 		} else if (type.equals(Double.class)) {
 			return 8;
+		} else if (type.equals(Float.class)) {
+			return 4;
 		} else if (WritableToDataOutputStream.class.isAssignableFrom(type)) {
 			throw new IllegalArgumentException("Unknown length for "+type);
 		} else if (type.equals(String.class)) {
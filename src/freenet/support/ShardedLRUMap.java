@@ -0,0 +1,283 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * A size limited map split into independent segments by the hash of the key, each with its own
+ * LRU list and lock. Lookups do not take any lock at all. push() and removeKey() only lock the
+ * segment the key belongs to, so unrelated keys don't contend. Eviction is approximately LRU:
+ * when a segment is full, its own least recently pushed entry is dropped, which is not
+ * necessarily the least recently pushed entry in the whole map.
+ *
+ * The size limit is either a number of entries, or a total weight, e.g. an estimate of the
+ * memory used, with a function giving the weight of each value. The weight of a value is taken
+ * when it is pushed, so if a value changes size, push it again afterwards.
+ *
+ * Like LRUMap, get() does not change the order, only push() does. Does not support null keys or
+ * values. Keys must be Comparable so that ConcurrentHashMap can keep colliding keys in a tree,
+ * and the segment is chosen with a random seed, so that keys chosen by an attacker cannot cause
+ * much harm.
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class ShardedLRUMap<K extends Comparable<K>, V> {
+
+	private final Segment<K, V>[] segments;
+	private final int mask;
+	private final int seed;
+	private final ToIntFunction<V> weigher;
+	private volatile long maxSegmentWeight;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param segments The number of segments. Will be rounded up to a power of 2.
+	 * @param maxSize The maximum number of entries. Each segment holds up to maxSize/segments,
+	 * rounded up.
+	 * @param random Used to choose the seed for picking segments.
+	 */
+	public ShardedLRUMap(int segments, int maxSize, Random random) {
+		this(segments, maxSize, null, random);
+	}
+
+	/**
+	 * @param segments The number of segments. Will be rounded up to a power of 2.
+	 * @param maxWeight The maximum total weight. Each segment holds up to maxWeight/segments,
+	 * rounded up.
+	 * @param weigher Gives the weight of a value. If null, every value weighs 1.
+	 * @param random Used to choose the seed for picking segments.
+	 */
+	@SuppressWarnings("unchecked")
+	public ShardedLRUMap(int segments, long maxWeight, ToIntFunction<V> weigher, Random random) {
+		if(segments < 1 || maxWeight < 1) throw new IllegalArgumentException();
+		int count = Integer.highestOneBit(segments);
+		if(count < segments) count <<= 1;
+		this.segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+		for(int i=0;i<count;i++)
+			this.segments[i] = new Segment<K, V>();
+		mask = count - 1;
+		seed = random.nextInt();
+		this.weigher = weigher;
+		setMaxWeight(maxWeight);
+	}
+
+	/** Change the size limit. If it is reduced, segments are trimmed as they are pushed to. */
+	public void setMaxWeight(long maxWeight) {
+		if(maxWeight < 1) throw new IllegalArgumentException();
+		maxSegmentWeight = (maxWeight + segments.length - 1) / segments.length;
+	}
+
+	/** @return The maximum total weight, or number of entries if there is no weigher. */
+	public long maxWeight() {
+		return maxSegmentWeight * segments.length;
+	}
+
+	private static final class Item<K, V> {
+		final K key;
+		volatile V value;
+		/** LOCKING: Segment. */
+		int weight;
+		Item<K, V> prev;
+		Item<K, V> next;
+
+		Item(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static final class Segment<K, V> {
+		final ConcurrentHashMap<K, Item<K, V>> map = new ConcurrentHashMap<K, Item<K, V>>();
+		/** Least recently pushed. LOCKING: Segment. */
+		Item<K, V> head;
+		/** Most recently pushed. LOCKING: Segment. */
+		Item<K, V> tail;
+		/** Total weight of the items. Written with the segment lock held. */
+		volatile long weight;
+
+		void unlink(Item<K, V> item) {
+			if(item.prev == null) head = item.next; else item.prev.next = item.next;
+			if(item.next == null) tail = item.prev; else item.next.prev = item.prev;
+			item.prev = null;
+			item.next = null;
+		}
+
+		void append(Item<K, V> item) {
+			item.prev = tail;
+			if(tail == null) head = item; else tail.next = item;
+			tail = item;
+		}
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int h = key.hashCode() ^ seed;
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return segments[h & mask];
+	}
+
+	/** Get the value for a key without locking. Counts as a hit or a miss. Does not change the
+	 * LRU order. */
+	public V get(K key) {
+		Item<K, V> item = segmentFor(key).map.get(key);
+		if(item == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return item.value;
+	}
+
+	/** Add or replace the value for a key, and make it the most recently pushed in its segment.
+	 * Evicts the least recently pushed entries in the segment if it is now too big.
+	 * @return The old value, or null. */
+	public V push(K key, V value) {
+		if(key == null || value == null) throw new NullPointerException();
+		Segment<K, V> segment = segmentFor(key);
+		synchronized(segment) {
+			Item<K, V> item = segment.map.get(key);
+			V old = null;
+			if(item == null) {
+				item = new Item<K, V>(key, value);
+				segment.map.put(key, item);
+			} else {
+				old = item.value;
+				item.value = value;
+				segment.unlink(item);
+			}
+			segment.weight -= item.weight;
+			item.weight = weigher == null ? 1 : weigher.applyAsInt(value);
+			segment.weight += item.weight;
+			segment.append(item);
+			// Always keep the value just pushed.
+			while(segment.weight > maxSegmentWeight && segment.head != item) {
+				Item<K, V> eldest = segment.head;
+				segment.unlink(eldest);
+				segment.map.remove(eldest.key);
+				segment.weight -= eldest.weight;
+				evictions.increment();
+			}
+			return old;
+		}
+	}
+
+	/** @return True if the key was present and has been removed. */
+	public boolean removeKey(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized(segment) {
+			Item<K, V> item = segment.map.remove(key);
+			if(item == null) return false;
+			segment.unlink(item);
+			segment.weight -= item.weight;
+			return true;
+		}
+	}
+
+	/**
+	 * Remove the least recently pushed entries in the segment the key belongs to, for as long as
+	 * they match. Used for expiring entries a segment at a time as they are added.
+	 * @return The number of entries removed.
+	 */
+	public int removeEldestWhile(K key, Predicate<V> expired) {
+		Segment<K, V> segment = segmentFor(key);
+		int removed = 0;
+		synchronized(segment) {
+			while(segment.head != null && expired.test(segment.head.value)) {
+				Item<K, V> eldest = segment.head;
+				segment.unlink(eldest);
+				segment.map.remove(eldest.key);
+				segment.weight -= eldest.weight;
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Get the lock for the segment the key belongs to. Callers can hold it to make a get(),
+	 * an update of the value and a push() or removeKey() atomic with respect to other callers
+	 * doing the same for any key in that segment. Do not take other locks which might be held
+	 * while calling into this map while holding it.
+	 */
+	public Object lockFor(K key) {
+		return segmentFor(key);
+	}
+
+	/** @return The number of entries. Not atomic over all the segments. */
+	public int size() {
+		int size = 0;
+		for(Segment<K, V> segment : segments)
+			size += segment.map.size();
+		return size;
+	}
+
+	/** @return The total weight of the entries, as of when they were pushed. Not atomic over
+	 * all the segments. */
+	public long weight() {
+		long weight = 0;
+		for(Segment<K, V> segment : segments)
+			weight += segment.weight;
+		return weight;
+	}
+
+	public boolean isEmpty() {
+		for(Segment<K, V> segment : segments)
+			if(!segment.map.isEmpty()) return false;
+		return true;
+	}
+
+	/** @return A copy of the values, each segment in LRU order. Not atomic over all the
+	 * segments. */
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(size());
+		for(Segment<K, V> segment : segments) {
+			synchronized(segment) {
+				for(Item<K, V> item = segment.head; item != null; item = item.next)
+					values.add(item.value);
+			}
+		}
+		return values;
+	}
+
+	public void clear() {
+		for(Segment<K, V> segment : segments) {
+			synchronized(segment) {
+				segment.map.clear();
+				segment.head = null;
+				segment.tail = null;
+				segment.weight = 0;
+			}
+		}
+	}
+
+	public int segments() {
+		return segments.length;
+	}
+
+	/** @return The number of calls to get() which found a value. */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/** @return The number of calls to get() which did not find a value. */
+	public long misses() {
+		return misses.sum();
+	}
+
+	/** @return The number of entries dropped because their segment was full. */
+	public long evictions() {
+		return evictions.sum();
+	}
+
+}
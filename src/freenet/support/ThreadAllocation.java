@@ -0,0 +1,73 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures how much memory the current thread has allocated, for checking that hot paths don't
+ * allocate. Only works on JVMs which support it (HotSpot and OpenJ9 do). Reading the counter
+ * may itself allocate a little on older JVMs, so the cost of one measurement is subtracted.
+ */
+public final class ThreadAllocation {
+
+	private static final com.sun.management.ThreadMXBean bean;
+	/** Bytes allocated by measuring nothing. */
+	private static final long overhead;
+
+	static {
+		com.sun.management.ThreadMXBean b = null;
+		long o = 0;
+		try {
+			ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+			if(mx instanceof com.sun.management.ThreadMXBean) {
+				b = (com.sun.management.ThreadMXBean) mx;
+				if(!b.isThreadAllocatedMemorySupported())
+					b = null;
+				else if(!b.isThreadAllocatedMemoryEnabled())
+					b.setThreadAllocatedMemoryEnabled(true);
+			}
+			if(b != null) {
+				long id = Thread.currentThread().getId();
+				o = Long.MAX_VALUE;
+				for(int i=0;i<16;i++) {
+					long start = b.getThreadAllocatedBytes(id);
+					long end = b.getThreadAllocatedBytes(id);
+					o = Math.min(o, end - start);
+				}
+			}
+		} catch (Throwable t) {
+			// Not supported.
+			b = null;
+			o = 0;
+		}
+		bean = b;
+		overhead = o;
+	}
+
+	private ThreadAllocation() {
+		// Static methods only.
+	}
+
+	/** @return True if allocatedBytes() works on this JVM. */
+	public static boolean isSupported() {
+		return bean != null;
+	}
+
+	/** @return The number of bytes the current thread has allocated so far, or -1 if not
+	 * supported. */
+	public static long allocatedBytes() {
+		if(bean == null) return -1;
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/** @return The number of bytes allocated since start, which was returned by
+	 * allocatedBytes(), not counting the measurement itself. */
+	public static long allocatedSince(long start) {
+		if(bean == null || start < 0) return -1;
+		return Math.max(0, allocatedBytes() - start - overhead);
+	}
+
+}
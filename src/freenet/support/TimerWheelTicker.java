@@ -0,0 +1,398 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import freenet.node.FastRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * A Ticker using a hierarchical hashed timer wheel rather than a sorted map. Most of the jobs
+ * queued on the node's Ticker are timeouts which are cancelled long before they are due, so
+ * adding and removing a job must be cheap: here both are O(1), whereas PrioritizedTicker pays
+ * O(log n) in a TreeMap for each.
+ *
+ * The wheel has LEVELS levels of SLOTS slots each. A slot on level 0 holds the jobs due in one
+ * particular millisecond; a slot on level n covers SLOTS^n milliseconds, and when the wheel
+ * reaches it, its jobs are moved down to the lower levels ("cascaded"). Each slot is an intrusive
+ * doubly linked list so a job can be unlinked without searching. Jobs too far in the future for
+ * the top level are kept in its furthest slot and placed again whenever they are cascaded.
+ *
+ * All due jobs found on one pass are collected under the lock and then started outside it,
+ * FastRunnable's on the ticker thread and everything else on the Executor, just like
+ * PrioritizedTicker.
+ */
+public class TimerWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int SLOT_BITS = 8;
+	static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	static final int LEVELS = 4;
+	/** Jobs further ahead than this are parked in the top level until they are closer. */
+	private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+	/** If the clock jumps forward by more than this, rebuild the wheel rather than stepping
+	 * through every millisecond in between. */
+	private static final long MAX_CATCH_UP = 1 << 16;
+	static final int MAX_SLEEP_TIME = 200;
+
+	private static final class Job {
+		final Runnable job;
+		final String name;
+		/** The time at which to run it. Moved if the clock goes backwards. LOCKING: TimerWheelTicker */
+		long time;
+		/** The slot list the job is in. LOCKING: TimerWheelTicker */
+		Job prev;
+		Job next;
+		Job[] slot;
+		int slotIndex;
+		/** Other queued copies of the same Runnable. LOCKING: TimerWheelTicker */
+		Job nextSame;
+
+		Job(Runnable job, String name, long time) {
+			this.job = job;
+			this.name = name;
+			this.time = time;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/** wheel[level][slot] is the first job in the slot. LOCKING: this */
+	private final Job[][] wheel;
+	/** Queued jobs by Runnable, for removeQueuedJob() and noDupes. If a Runnable is queued more
+	 * than once, the copies are chained through nextSame. LOCKING: this */
+	private final IdentityHashMap<Runnable, Job> jobsByRunnable;
+	/** The next millisecond whose level 0 slot has not been run yet. LOCKING: this */
+	private long tick;
+	/** When the ticker thread will wake up if nothing is queued before then. LOCKING: this */
+	private long wakeAt;
+	/** LOCKING: this */
+	private int queued;
+	final NativeThread myThread;
+	final Executor executor;
+
+	public TimerWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		wheel = new Job[LEVELS][SLOTS];
+		jobsByRunnable = new IdentityHashMap<Runnable, Job>();
+		tick = currentTimeMillis();
+		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
+		myThread.setDaemon(true);
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker (timer wheel)");
+		System.out.println("Starting Ticker");
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In TimerWheelTicker.run()");
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in TimerWheelTicker: " + t, t);
+				System.err.println("Caught in TimerWheelTicker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	void realRun() {
+		List<Job> jobsToRun = null;
+		synchronized(this) {
+			long now = currentTimeMillis();
+			if(now - tick > MAX_CATCH_UP)
+				rebuild(now);
+			else
+				checkClockWentBack(now);
+			while(tick <= now) {
+				cascade(tick);
+				Job[] slot = wheel[0];
+				int index = (int) (tick & SLOT_MASK);
+				if(slot[index] != null) {
+					if(jobsToRun == null)
+						jobsToRun = new ArrayList<Job>();
+					for(Job job = slot[index]; job != null; job = job.next) {
+						jobsToRun.add(job);
+						forget(job);
+						queued--;
+					}
+					slot[index] = null;
+				}
+				tick++;
+			}
+			if(jobsToRun == null) {
+				long sleepTime = Math.min(nextDue() - now, MAX_SLEEP_TIME);
+				if(sleepTime > 0) {
+					wakeAt = now + sleepTime;
+					try {
+						sleep(sleepTime);
+					} catch(InterruptedException e) {
+						// Ignore, just wake up.
+					}
+				}
+				wakeAt = 0;
+				return;
+			}
+		}
+
+		for(Job r : jobsToRun) {
+			if(logMINOR)
+				Logger.minor(this, "Running " + r);
+			if(r.job instanceof FastRunnable)
+				// Run in-line
+				try {
+					r.job.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running " + r, t);
+				}
+			else
+				try {
+					executor.execute(r.job, r.name, true);
+				} catch(Throwable t) {
+					Logger.error(this, "Caught in TimerWheelTicker: " + t, t);
+					System.err.println("Caught in TimerWheelTicker: " + t);
+					t.printStackTrace();
+					System.err.println("Will retry above failed operation...");
+					queueTimedJob(r.job, r.name, 200, true, false);
+				}
+		}
+	}
+
+	/** Wait for a job to be queued or for the time to pass. Called with the lock held. */
+	protected void sleep(long sleepTime) throws InterruptedException {
+		if(logMINOR)
+			Logger.minor(this, "Sleeping for " + sleepTime);
+		wait(sleepTime);
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	/** Move the jobs in the higher level slots which start at this millisecond down the wheel.
+	 * Highest level first, so jobs can fall through several levels at once. */
+	private void cascade(long time) {
+		int level = 0;
+		while(level < LEVELS - 1 && (time & ((1L << (SLOT_BITS * (level + 1))) - 1)) == 0)
+			level++;
+		for(;level>0;level--) {
+			int index = (int) ((time >>> (SLOT_BITS * level)) & SLOT_MASK);
+			Job job = wheel[level][index];
+			wheel[level][index] = null;
+			while(job != null) {
+				Job next = job.next;
+				job.prev = null;
+				job.next = null;
+				place(job);
+				job = next;
+			}
+		}
+	}
+
+	/** The clock has jumped a long way forward. Take every job off the wheel and put it back
+	 * relative to the new time; anything overdue will run on this pass. */
+	private void rebuild(long now) {
+		Logger.normal(this, "Clock jumped forward by "+(now - tick)+"ms, rebuilding timer wheel");
+		rebuild(now, 0);
+	}
+
+	/** If the clock has gone backwards, the wheel would not move until it caught up again, so
+	 * nothing would run. Move the wheel back to the new time, and the queued jobs back by the
+	 * same amount, so they still run after the delay they were queued with. */
+	private void checkClockWentBack(long now) {
+		// tick is normally one ahead of the clock.
+		long step = now - (tick - 1);
+		if(step >= 0) return;
+		Logger.normal(this, "Clock went back by "+(-step)+"ms, rebuilding timer wheel");
+		rebuild(now, step);
+	}
+
+	/** Take every job off the wheel, add shift to its time, and put it back relative to now. */
+	private void rebuild(long now, long shift) {
+		List<Job> jobs = new ArrayList<Job>(queued);
+		for(Job[] slots : wheel) {
+			for(int i=0;i<SLOTS;i++) {
+				for(Job job = slots[i]; job != null; job = job.next)
+					jobs.add(job);
+				slots[i] = null;
+			}
+		}
+		tick = now;
+		for(Job job : jobs) {
+			job.prev = null;
+			job.next = null;
+			job.time += shift;
+			place(job);
+		}
+	}
+
+	/** Put the job in the right slot for its time, relative to the current tick. Overdue jobs
+	 * go in the current slot, so they run on the next pass. */
+	private void place(Job job) {
+		long delta = job.time - tick;
+		if(delta < 0) delta = 0;
+		if(delta > MAX_DELTA) delta = MAX_DELTA;
+		long time = tick + delta;
+		int level = 0;
+		while(level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+		int index = (int) ((time >>> (SLOT_BITS * level)) & SLOT_MASK);
+		Job[] slots = wheel[level];
+		job.slot = slots;
+		job.slotIndex = index;
+		job.prev = null;
+		job.next = slots[index];
+		if(job.next != null) job.next.prev = job;
+		slots[index] = job;
+	}
+
+	private void unlink(Job job) {
+		if(job.prev == null)
+			job.slot[job.slotIndex] = job.next;
+		else
+			job.prev.next = job.next;
+		if(job.next != null) job.next.prev = job.prev;
+		job.prev = null;
+		job.next = null;
+		job.slot = null;
+	}
+
+	/** Remove the job from jobsByRunnable, but not from the wheel. */
+	private void forget(Job job) {
+		Job first = jobsByRunnable.get(job.job);
+		if(first == job) {
+			if(job.nextSame == null)
+				jobsByRunnable.remove(job.job);
+			else
+				jobsByRunnable.put(job.job, job.nextSame);
+		} else {
+			while(first != null && first.nextSame != job)
+				first = first.nextSame;
+			if(first != null) first.nextSame = job.nextSame;
+		}
+		job.nextSame = null;
+	}
+
+	/** @return When the ticker thread needs to wake up next. Looks at most MAX_SLEEP_TIME
+	 * milliseconds ahead, and stops at the next cascade, which may bring jobs into level 0. */
+	private long nextDue() {
+		long time = tick;
+		long limit = tick + MAX_SLEEP_TIME;
+		Job[] slots = wheel[0];
+		while(time < limit) {
+			if(slots[(int) (time & SLOT_MASK)] != null) return time;
+			time++;
+			if((time & SLOT_MASK) == 0) return time;
+		}
+		return limit;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		long now = currentTimeMillis();
+		if(offset < 0) offset = 0;
+		queueTimedJobInner(runner, name, now+offset, offset, runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		long now = currentTimeMillis();
+		queueTimedJobInner(runner, name, time, time-now, runOnTickerAnyway, noDupes);
+	}
+
+	private void queueTimedJobInner(Runnable runner, String name, long runJobAt, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) runOnTickerAnyway = true;
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		Job job = new Job(runner, name, runJobAt);
+		synchronized(this) {
+			// Otherwise the job would be placed relative to the old time.
+			checkClockWentBack(currentTimeMillis());
+			Job first = jobsByRunnable.get(runner);
+			if(noDupes && first != null) {
+				long alreadyQueuedAt = Long.MAX_VALUE;
+				for(Job j = first; j != null; j = j.nextSame)
+					alreadyQueuedAt = Math.min(alreadyQueuedAt, j.time);
+				if(alreadyQueuedAt <= runJobAt) {
+					Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+					return;
+				}
+				// Delete the existing job because the new job will run first.
+				removeAll(first);
+				first = null;
+			}
+			place(job);
+			job.nextSame = first;
+			jobsByRunnable.put(runner, job);
+			queued++;
+			if(wakeAt != 0 && runJobAt < wakeAt)
+				notifyAll();
+		}
+	}
+
+	/** Remove all the queued copies of a Runnable, starting with the first in its chain. */
+	private void removeAll(Job first) {
+		jobsByRunnable.remove(first.job);
+		for(Job j = first; j != null;) {
+			Job next = j.nextSame;
+			unlink(j);
+			j.nextSame = null;
+			queued--;
+			j = next;
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/** Remove a queued job. If it has been queued more than once, all the copies are removed.
+	 * Does nothing if the job is not queued. */
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		synchronized(this) {
+			Job first = jobsByRunnable.get(runnable);
+			if(first != null)
+				removeAll(first);
+		}
+	}
+
+	synchronized int queuedJobs() {
+		return queued;
+	}
+
+}
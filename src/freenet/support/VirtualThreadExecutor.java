@@ -0,0 +1,114 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor which runs each job on a new virtual thread, for jobs which spend most of their time
+ * blocked, e.g. waiting for replies from other nodes. Virtual threads are only available from
+ * Java 21, so they are found by reflection at runtime and we still build for Java 8: check
+ * isSupported() first.
+ *
+ * Virtual threads cannot have a priority, so PrioRunnable priorities are only used to count
+ * running jobs. Jobs should not block while holding a monitor (in Object.wait() or in
+ * I/O inside a synchronized block), because on older JDKs that pins the carrier thread.
+ */
+public class VirtualThreadExecutor implements Executor {
+
+	private static final Method startVirtualThread;
+
+	static {
+		Method m = null;
+		try {
+			m = Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (Throwable t) {
+			// Older than Java 21.
+			m = null;
+		}
+		startVirtualThread = m;
+	}
+
+	/** @return True if the JVM has virtual threads. */
+	public static boolean isSupported() {
+		return startVirtualThread != null;
+	}
+
+	private final AtomicInteger[] running;
+
+	public VirtualThreadExecutor() {
+		if(!isSupported()) throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+		running = new AtomicInteger[NativeThread.JAVA_PRIORITY_RANGE + 1];
+		for(int i=0;i<running.length;i++)
+			running[i] = new AtomicInteger();
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(final Runnable job, final String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(job instanceof PrioRunnable)
+			prio = ((PrioRunnable) job).getPriority();
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+		final AtomicInteger counter = running[prio - 1];
+		counter.incrementAndGet();
+		Runnable wrapper = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.currentThread().setName(jobName);
+					job.run();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + jobName, t);
+				} finally {
+					counter.decrementAndGet();
+				}
+			}
+
+		};
+		try {
+			startVirtualThread.invoke(null, wrapper);
+		} catch (Throwable t) {
+			counter.decrementAndGet();
+			Logger.error(this, "Unable to start virtual thread for " + jobName + ": " + t, t);
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/** Virtual threads are not pooled, so none are waiting. */
+	@Override
+	public int[] waitingThreads() {
+		return new int[running.length];
+	}
+
+	/** @return The number of jobs running at each priority. */
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[running.length];
+		for(int i=0;i<running.length;i++)
+			result[i] = running[i].get();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return 0;
+	}
+
+}
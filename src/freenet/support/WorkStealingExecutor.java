@@ -0,0 +1,405 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor running jobs on a bounded set of carrier threads, instead of a thread per concurrent
+ * job like PooledExecutor. Each priority has a shared queue for jobs submitted from outside, and
+ * each carrier has its own deque per priority for jobs submitted by the jobs it runs; idle
+ * carriers steal from the other carriers' deques. A carrier always takes the highest priority
+ * job available anywhere, so priorities are honoured by the order jobs start in, rather than by
+ * renicing threads: all the carriers run at the same native priority.
+ *
+ * Many jobs block, on network I/O or on each other. If every carrier is busy and jobs have been
+ * waiting for a while, a monitor thread starts another carrier, up to maxThreads. Carriers above
+ * the core number exit after being idle for a while.
+ *
+ * Keeps the queue depth, and the time jobs wait before starting, for each priority.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final int PRIORITIES = NativeThread.JAVA_PRIORITY_RANGE + 1;
+	/** Default limit on carriers, including those started because the others were blocked */
+	public static final int MAX_THREADS = 512;
+	/** Maximum time a carrier above the core number will wait for a job */
+	static final long TIMEOUT = MINUTES.toMillis(1);
+	/** Start another carrier if every carrier is busy and a job has waited this long */
+	static final long STALL_TIME = MILLISECONDS.toNanos(100);
+	/** How often the monitor checks for stalls */
+	static final long MONITOR_INTERVAL = 50;
+
+	private final int coreThreads;
+	private final int maxThreads;
+	/** Jobs submitted from outside the carriers, by priority - 1 */
+	private final ConcurrentLinkedQueue<Job>[] shared;
+	private final CopyOnWriteArrayList<Carrier> carriers = new CopyOnWriteArrayList<Carrier>();
+	/** Carriers waiting for work, most recently idle first */
+	private final ConcurrentLinkedDeque<Carrier> idle = new ConcurrentLinkedDeque<Carrier>();
+	private final AtomicInteger threads = new AtomicInteger();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicInteger threadCounter = new AtomicInteger();
+	private final AtomicBoolean monitorStarted = new AtomicBoolean();
+	/** Jobs queued but not started, by priority - 1. May briefly be out by one. */
+	private final AtomicInteger[] queued;
+	/** Jobs running, by priority - 1 */
+	private final AtomicInteger[] running;
+	/** Total time jobs waited before starting, by priority - 1 */
+	private final LongAdder[] waitNanos;
+	private final LongAdder[] jobsStarted;
+
+	/**
+	 * @param coreThreads The number of carriers to keep even when idle.
+	 * @param maxThreads The maximum number of carriers, including those started because the
+	 * others were all blocked.
+	 */
+	@SuppressWarnings("unchecked")
+	public WorkStealingExecutor(int coreThreads, int maxThreads) {
+		if(coreThreads < 1 || maxThreads < coreThreads) throw new IllegalArgumentException();
+		this.coreThreads = coreThreads;
+		this.maxThreads = maxThreads;
+		shared = (ConcurrentLinkedQueue<Job>[]) new ConcurrentLinkedQueue<?>[PRIORITIES];
+		queued = new AtomicInteger[PRIORITIES];
+		running = new AtomicInteger[PRIORITIES];
+		waitNanos = new LongAdder[PRIORITIES];
+		jobsStarted = new LongAdder[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++) {
+			shared[i] = new ConcurrentLinkedQueue<Job>();
+			queued[i] = new AtomicInteger();
+			running[i] = new AtomicInteger();
+			waitNanos[i] = new LongAdder();
+			jobsStarted[i] = new LongAdder();
+		}
+	}
+
+	/** @return A reasonable number of core carriers for this machine. */
+	public static int defaultCoreThreads() {
+		return Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	public void start() {
+		startMonitor();
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	/** fromTicker is ignored: we never need to create a thread at a particular priority. */
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+		Job job = new Job(runnable, jobName, prio);
+		Thread current = Thread.currentThread();
+		if(current instanceof Carrier && ((Carrier) current).executor() == this)
+			// Likely to be related to the job that is running, so keep it local.
+			((Carrier) current).local[prio - 1].addFirst(job);
+		else
+			shared[prio - 1].add(job);
+		queued[prio - 1].incrementAndGet();
+		Carrier carrier = idle.pollFirst();
+		if(carrier != null)
+			LockSupport.unpark(carrier);
+		else if(threads.get() < coreThreads)
+			startCarrier(coreThreads);
+		if(!monitorStarted.get())
+			startMonitor();
+	}
+
+	/** Start a carrier if there are fewer than limit. */
+	private boolean startCarrier(int limit) {
+		while(true) {
+			int count = threads.get();
+			if(count >= limit) return false;
+			if(threads.compareAndSet(count, count + 1)) break;
+		}
+		Carrier carrier = new Carrier(threadCounter.getAndIncrement());
+		carriers.add(carrier);
+		carrier.start();
+		return true;
+	}
+
+	private void startMonitor() {
+		if(!monitorStarted.compareAndSet(false, true)) return;
+		NativeThread monitor = new NativeThread(new Runnable() {
+
+			@Override
+			public void run() {
+				while(true) {
+					try {
+						Thread.sleep(MONITOR_INTERVAL);
+						checkStalled();
+					} catch (InterruptedException e) {
+						// Ignore
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" checking executor", t);
+					}
+				}
+			}
+
+		}, "Executor monitor", NativeThread.MAX_PRIORITY, false);
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	/** If all the carriers are busy and the oldest job has waited too long, start another. */
+	void checkStalled() {
+		if(idleCount.get() > 0) return;
+		long oldest = oldestQueuedTime();
+		if(oldest == Long.MAX_VALUE) return;
+		if(System.nanoTime() - oldest < STALL_TIME) return;
+		if(startCarrier(maxThreads)) {
+			if(logMINOR) Logger.minor(this, "All carriers busy, started another: "+threads.get());
+		} else {
+			if(logMINOR) Logger.minor(this, "All carriers busy and at the limit of "+maxThreads);
+		}
+	}
+
+	private long oldestQueuedTime() {
+		long oldest = Long.MAX_VALUE;
+		for(int i=0;i<PRIORITIES;i++) {
+			if(queued[i].get() <= 0) continue;
+			Job job = shared[i].peek();
+			if(job != null) oldest = Math.min(oldest, job.queuedAt);
+			for(Carrier carrier : carriers) {
+				job = carrier.local[i].peekLast();
+				if(job != null) oldest = Math.min(oldest, job.queuedAt);
+			}
+		}
+		return oldest;
+	}
+
+	/** Take the highest priority job available: our own newest first, then the shared queue,
+	 * then steal the oldest from another carrier. */
+	private Job findJob(Carrier self) {
+		for(int i=PRIORITIES-1;i>=0;i--) {
+			if(queued[i].get() <= 0) continue;
+			Job job = self.local[i].pollFirst();
+			if(job == null)
+				job = shared[i].poll();
+			if(job == null) {
+				int size = carriers.size();
+				int start = size == 0 ? 0 : ThreadLocalRandom.current().nextInt(size);
+				for(int j=0;j<size && job == null;j++) {
+					Carrier victim;
+					try {
+						victim = carriers.get((start + j) % size);
+					} catch (IndexOutOfBoundsException e) {
+						// A carrier exited.
+						break;
+					}
+					if(victim != self)
+						job = victim.local[i].pollLast();
+				}
+			}
+			if(job != null) {
+				queued[i].decrementAndGet();
+				waitNanos[i].add(System.nanoTime() - job.queuedAt);
+				jobsStarted[i].increment();
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private static final class Job {
+		final Runnable runnable;
+		final String name;
+		final int priority;
+		final long queuedAt;
+
+		Job(Runnable runnable, String name, int priority) {
+			this.runnable = runnable;
+			this.name = name;
+			this.priority = priority;
+			this.queuedAt = System.nanoTime();
+		}
+	}
+
+	private final class Carrier extends NativeThread {
+
+		final String defaultName;
+		final int threadNo;
+		/** Jobs submitted by jobs running on this carrier, by priority - 1. We take from the
+		 * front, others steal from the back. */
+		final ConcurrentLinkedDeque<Job>[] local;
+
+		@SuppressWarnings("unchecked")
+		Carrier(int threadNo) {
+			super("Carrier thread awaiting work @" + threadNo, NativeThread.MAX_PRIORITY, true);
+			this.defaultName = getName();
+			this.threadNo = threadNo;
+			setDaemon(true);
+			local = (ConcurrentLinkedDeque<Job>[]) new ConcurrentLinkedDeque<?>[PRIORITIES];
+			for(int i=0;i<PRIORITIES;i++)
+				local[i] = new ConcurrentLinkedDeque<Job>();
+		}
+
+		WorkStealingExecutor executor() {
+			return WorkStealingExecutor.this;
+		}
+
+		@Override
+		public void realRun() {
+			long ranJobs = 0;
+			try {
+				while(true) {
+					Job job = findJob(this);
+					if(job == null) {
+						idleCount.incrementAndGet();
+						idle.addFirst(this);
+						// Check again in case a job was queued before we were on the idle list.
+						job = findJob(this);
+						if(job == null)
+							LockSupport.parkNanos(this, MILLISECONDS.toNanos(TIMEOUT));
+						idle.remove(this);
+						idleCount.decrementAndGet();
+						if(job == null) {
+							job = findJob(this);
+							if(job == null) {
+								if(exitIfSpare()) {
+									if(logMINOR)
+										Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+									return;
+								}
+								continue;
+							}
+						}
+					}
+					run(job);
+					ranJobs++;
+				}
+			} finally {
+				// Hand back anything still queued locally.
+				for(int i=0;i<PRIORITIES;i++) {
+					Job job;
+					while((job = local[i].pollLast()) != null)
+						shared[i].add(job);
+				}
+			}
+		}
+
+		/** @return True if there are more carriers than the core number, in which case this one
+		 * has been removed and must exit. */
+		private boolean exitIfSpare() {
+			while(true) {
+				int count = threads.get();
+				if(count <= coreThreads) return false;
+				if(threads.compareAndSet(count, count - 1)) {
+					carriers.remove(this);
+					return true;
+				}
+			}
+		}
+
+		private void run(Job job) {
+			int prio = job.priority - 1;
+			running[prio].incrementAndGet();
+			try {
+				setName(job.name + "(" + threadNo + ")");
+				job.runnable.run();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught " + t + " running job " + job.name, t);
+			} finally {
+				running[prio].decrementAndGet();
+				setName(defaultName);
+			}
+		}
+	}
+
+	/** Carriers aren't tied to a priority, so idle carriers are counted as running at theirs,
+	 * the maximum. */
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[PRIORITIES];
+		result[NativeThread.MAX_PRIORITY - 1] = idleCount.get();
+		return result;
+	}
+
+	/** @return The number of jobs running at each priority. */
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++)
+			result[i] = running[i].get();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return idleCount.get();
+	}
+
+	/** @return The number of jobs waiting to start at each priority. */
+	public int[] queuedJobs() {
+		int[] result = new int[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++)
+			result[i] = Math.max(0, queued[i].get());
+		return result;
+	}
+
+	/** @return The average time in milliseconds that jobs have waited before starting, at
+	 * each priority, or 0 if none have been started. */
+	public double[] averageWaitTime() {
+		double[] result = new double[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++) {
+			long count = jobsStarted[i].sum();
+			if(count > 0)
+				result[i] = waitNanos[i].sum() / (count * 1000000.0);
+		}
+		return result;
+	}
+
+	/** @return The number of jobs started at each priority. */
+	public long[] jobsStarted() {
+		long[] result = new long[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++)
+			result[i] = jobsStarted[i].sum();
+		return result;
+	}
+
+	/** @return The number of carrier threads. */
+	public int carrierThreads() {
+		return threads.get();
+	}
+
+}
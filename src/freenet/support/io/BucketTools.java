@@ -7,8 +7,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
@@ -329,6 +331,44 @@ public class BucketTools {
 		}
 	}
 
+	/** Copy part of a bucket to the given OutputStream, without copying the data before it. Plain
+	 * files are sent with FileChannel.transferTo() from the offset. Anything else is skipped to the
+	 * offset, which seeks rather than reads for ArrayBucket's, files and RandomAccessBuffer's, but
+	 * has to decrypt for encrypted buckets.
+	 * @throws IOException If there was an error reading from the bucket or writing to the stream,
+	 * or the bucket is shorter than offset + length. */
+	public static void copyTo(Bucket bucket, OutputStream os, long offset, long length) throws IOException {
+		if(offset < 0 || length < 0)
+			throw new IllegalArgumentException("offset="+offset+", length="+length);
+		while(bucket instanceof NoFreeBucket)
+			bucket = ((NoFreeBucket) bucket).proxy;
+		if(bucket instanceof BaseFileBucket) {
+			FileChannel channel = FileChannel.open(((BaseFileBucket) bucket).getFile().toPath(), StandardOpenOption.READ);
+			try {
+				WritableByteChannel out = Channels.newChannel(os);
+				long moved = 0;
+				while(moved < length) {
+					long bytes = channel.transferTo(offset + moved, length - moved, out);
+					if(bytes <= 0)
+						throw new EOFException("Could not move required quantity of data in copyTo: moved "+moved+" of "+length+" from "+offset+" in "+bucket);
+					moved += bytes;
+				}
+			} finally {
+				channel.close();
+				os.flush();
+			}
+			return;
+		}
+		InputStream is = bucket.getInputStreamUnbuffered();
+		try {
+			FileUtil.skipFully(is, offset);
+			FileUtil.copy(is, os, length);
+		} finally {
+			is.close();
+			os.flush();
+		}
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
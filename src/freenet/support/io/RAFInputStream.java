@@ -43,4 +43,13 @@ public class RAFInputStream extends InputStream {
         return length;
     }
 
+    /** Skipping is just moving the position, we don't need to read anything. */
+    @Override
+    public long skip(long n) throws IOException {
+        if(n <= 0) return 0;
+        n = Math.min(n, Math.max(0, rafLength - rafOffset));
+        rafOffset += n;
+        return n;
+    }
+
 }
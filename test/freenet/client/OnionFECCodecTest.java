@@ -17,7 +17,7 @@ public class OnionFECCodecTest {
 
     private static final int BLOCK_SIZE = 4096;
 
-    private final OnionFECCodec codec = new OnionFECCodec();
+    protected final FECCodec codec = createCodec();
     private byte[][] originalDataBlocks;
     private byte[][] dataBlocks;
     private byte[][] originalCheckBlocks;
@@ -26,6 +26,10 @@ public class OnionFECCodecTest {
     private boolean[] dataBlocksPresent;
     private Random random;
 
+    protected FECCodec createCodec() {
+        return new OnionFECCodec();
+    }
+
     @Before
     public void setUp() throws Exception {
         random = new Random(21482106);
@@ -0,0 +1,85 @@
+package freenet.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Runs the OnionFECCodec tests against PureJavaFECCodec, and checks that the two codecs are
+ * interchangeable.
+ */
+public class PureJavaFECCodecTest extends OnionFECCodecTest {
+
+    @Override
+    protected FECCodec createCodec() {
+        return new PureJavaFECCodec();
+    }
+
+    @Test
+    public void testParityMatrixSmall() {
+        // Vandermonde rows on 0, 1, a, a^2 are [1,0], [1,1], [1,2], [1,4]. The top is its own
+        // inverse, so the check rows are [1^2, 2] and [1^4, 4].
+        byte[][] parity = PureJavaFECCodec.getParityMatrix(2, 4);
+        assertArrayEquals(new byte[] { 3, 2 }, parity[0]);
+        assertArrayEquals(new byte[] { 5, 4 }, parity[1]);
+    }
+
+    @Test
+    public void testMultiplyInverse() {
+        for (int a = 1; a < 256; a++) {
+            assertEquals(1, PureJavaFECCodec.mul(a, PureJavaFECCodec.inverse(a)));
+        }
+        // x^8 = x^4 + x^3 + x^2 + 1
+        assertEquals(0x1d, PureJavaFECCodec.mul(0x80, 2));
+    }
+
+    @Test
+    public void testOddBlockLength() {
+        int length = PureJavaFECCodec.TILE * 2 + 17;
+        Random r = new Random(1);
+        byte[][] data = new byte[128][length];
+        for (byte[] block : data) {
+            r.nextBytes(block);
+        }
+        byte[][] check = new byte[128][length];
+        codec.encode(data, check, new boolean[128], length);
+        byte[][] original = new byte[128][];
+        for (int i = 0; i < 128; i++) {
+            original[i] = data[i].clone();
+        }
+        boolean[] dataPresent = new boolean[128];
+        boolean[] checkPresent = new boolean[128];
+        for (int i = 0; i < 128; i += 2) {
+            dataPresent[i] = true;
+            checkPresent[i + 1] = true;
+            Arrays.fill(data[i + 1], (byte) 0);
+        }
+        codec.decode(data, check, dataPresent, checkPresent, length);
+        for (int i = 0; i < 128; i++) {
+            assertArrayEquals(original[i], data[i]);
+        }
+    }
+
+    @Test
+    public void testSameAsOnion() {
+        Random r = new Random(2);
+        int[][] sizes = { { 128, 128 }, { 2, 3 }, { 100, 101 }, { 200, 56 } };
+        for (int[] size : sizes) {
+            byte[][] data = new byte[size[0]][1024];
+            for (byte[] block : data) {
+                r.nextBytes(block);
+            }
+            byte[][] check = new byte[size[1]][1024];
+            byte[][] onionCheck = new byte[size[1]][1024];
+            codec.encode(data, check, new boolean[size[1]], 1024);
+            new OnionFECCodec().encode(data, onionCheck, new boolean[size[1]], 1024);
+            for (int i = 0; i < size[1]; i++) {
+                assertArrayEquals(onionCheck[i], check[i]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,340 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.clients.fcp.ClientRequest;
+import freenet.clients.fcp.RequestIdentifier;
+import freenet.clients.fcp.PersistentRequestRoot;
+import freenet.clients.fcp.TrivialClientRequest;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
+import freenet.io.comm.IOStatisticCollector;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.node.RequestStarter;
+import freenet.node.RequestStarterGroup;
+import freenet.support.CheatingTicker;
+import freenet.support.PooledExecutor;
+import freenet.support.Ticker;
+import freenet.support.WaitableExecutor;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.PrependLengthOutputStream;
+import freenet.support.io.ResumeFailedException;
+import freenet.support.io.TempBucketFactory;
+
+public class ClientLayerPersisterTest {
+
+    private static final String BASE_NAME = "client.dat";
+    /** ClientLayerPersister.MAGIC */
+    private static final long MAGIC = 0xd332925f3caf4aedL;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final WaitableExecutor exec = new WaitableExecutor(new PooledExecutor());
+    private final Ticker ticker = new CheatingTicker(exec);
+    private final Random random = new Random(1234);
+
+    /** The client layer as it is after the node has started and loaded client.dat. */
+    private class ClientLayer {
+        final PersistentRequestRoot root = new PersistentRequestRoot();
+        final ClientLayerPersister persister;
+        final ClientContext context;
+
+        ClientLayer() throws Exception {
+            NodeClientCore core = mock(NodeClientCore.class);
+            when(core.getPersistentRequests()).thenAnswer(new Answer<ClientRequest[]>() {
+
+                @Override
+                public ClientRequest[] answer(InvocationOnMock invocation) {
+                    return root.getPersistentRequests();
+                }
+
+            });
+            Node node = mock(Node.class);
+            when(node.getCollector()).thenReturn(new IOStatisticCollector());
+            PersistentTempBucketFactory persistentTempFactory = mock(PersistentTempBucketFactory.class);
+            TempBucketFactory tempFactory = mock(TempBucketFactory.class);
+            when(tempFactory.makeBucket(anyLong())).thenAnswer(new Answer<ArrayBucket>() {
+
+                @Override
+                public ArrayBucket answer(InvocationOnMock invocation) {
+                    return new ArrayBucket();
+                }
+
+            });
+            persister = new ClientLayerPersister(exec, ticker, node, core, persistentTempFactory,
+                    tempFactory, new PersistentStatsPutter());
+            context = new ClientContext(0, persister, exec, null, persistentTempFactory, tempFactory,
+                    persistentTempFactory, null, null, null, random, ticker, null, null, null, null,
+                    null, null, null, null, null, root, null, null, null, null, null);
+            persister.start(context);
+            persister.setFilesAndLoad(folder.getRoot(), BASE_NAME, false, false, null, context,
+                    mock(RequestStarterGroup.class), random);
+            // Wait for the checkpoints after starting.
+            exec.waitForIdle();
+        }
+
+        /** Add a new request, as if it had been started via FCP. */
+        TrivialClientRequest addRequest(String identifier, short priorityClass) throws Exception {
+            TrivialClientRequest request = new TrivialClientRequest(identifier, priorityClass,
+                    identifier, root);
+            // Registers it with the PersistentRequestRoot.
+            request.onResume(context);
+            return request;
+        }
+
+        Map<String, ClientRequest> requests() {
+            Map<String, ClientRequest> requests = new HashMap<String, ClientRequest>();
+            for(ClientRequest request : root.getPersistentRequests())
+                requests.put(request.getIdentifier(), request);
+            return requests;
+        }
+
+        void checkpoint() {
+            persister.innerCheckpoint(false);
+        }
+    }
+
+    private static void assertRequest(ClientRequest request, short priorityClass, String clientToken) {
+        assertNotNull(request);
+        assertTrue(request.isPersistentForever());
+        assertTrue(request.getClient().isGlobalQueue);
+        assertEquals(priorityClass, request.getPriority());
+        assertEquals(clientToken, ((TrivialClientRequest) request).getClientToken());
+    }
+
+    /** @return True if client.dat was written by ObjectOutputStream, i.e. in the old format. */
+    private boolean isSerialized() throws Exception {
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(new File(folder.getRoot(), BASE_NAME)))) {
+            return dis.readShort() == ObjectStreamConstants.STREAM_MAGIC;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        TrivialClientRequest.resumeCallback = null;
+    }
+
+    @Test
+    public void testParallelResume() throws Exception {
+        final int count = 40;
+        ClientLayer layer = new ClientLayer();
+        for(int i=0;i<count;i++)
+            layer.addRequest("request"+i, (short) (i % RequestStarter.NUMBER_OF_PRIORITY_CLASSES));
+        layer.checkpoint();
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger resumed = new AtomicInteger();
+        TrivialClientRequest.resumeCallback = new TrivialClientRequest.ResumeCallback() {
+
+            @Override
+            public void onResume(TrivialClientRequest request) throws ResumeFailedException {
+                int now = running.incrementAndGet();
+                while(true) {
+                    int max = maxRunning.get();
+                    if(now <= max || maxRunning.compareAndSet(max, now)) break;
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+                resumed.incrementAndGet();
+                running.decrementAndGet();
+            }
+
+        };
+        layer = new ClientLayer();
+        assertEquals(count, resumed.get());
+        assertEquals(count, layer.requests().size());
+        PersistentStartupStats stats = layer.persister.getStartupStats();
+        assertEquals(count, stats.getResumed());
+        assertEquals(0, stats.getRestoredFully());
+        assertEquals(0, stats.getRestarted());
+        assertEquals(0, stats.getFailed());
+        int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+        assertEquals(threads, stats.getThreads());
+        assertTrue(maxRunning.get() <= threads);
+        // Each request took at least 20ms.
+        assertTrue(stats.getResumeWorkTime() >= count * 20);
+        if(threads > 1) {
+            assertTrue("Resumed on one thread", maxRunning.get() > 1);
+            assertTrue(stats.getResumeTime() < stats.getResumeWorkTime());
+        }
+        assertTrue(stats.getLoadTime() >= stats.getDeserializeTime());
+    }
+
+    @Test
+    public void testResumeFailed() throws Exception {
+        ClientLayer layer = new ClientLayer();
+        for(int i=0;i<10;i++)
+            layer.addRequest("request"+i, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        layer.checkpoint();
+
+        TrivialClientRequest.resumeCallback = new TrivialClientRequest.ResumeCallback() {
+
+            @Override
+            public void onResume(TrivialClientRequest request) throws ResumeFailedException {
+                if(request.getIdentifier().equals("request3"))
+                    throw new ResumeFailedException("Test");
+            }
+
+        };
+        layer = new ClientLayer();
+        Map<String, ClientRequest> requests = layer.requests();
+        assertEquals(9, requests.size());
+        assertFalse(requests.containsKey("request3"));
+        PersistentStartupStats stats = layer.persister.getStartupStats();
+        // It can't be restarted from the recovery data either.
+        assertEquals(9, stats.getResumed());
+        assertEquals(1, stats.getFailed());
+    }
+
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ClientLayer layer = new ClientLayer();
+        layer.addRequest("interactive", RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+        layer.addRequest("bulk", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        layer.addRequest("paused", RequestStarter.PAUSED_PRIORITY_CLASS).setClientToken("token");
+        layer.checkpoint();
+        assertFalse(isSerialized());
+
+        layer = new ClientLayer();
+        Map<String, ClientRequest> requests = layer.requests();
+        assertEquals(3, requests.size());
+        assertRequest(requests.get("interactive"), RequestStarter.INTERACTIVE_PRIORITY_CLASS, "interactive");
+        assertRequest(requests.get("bulk"), RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "bulk");
+        assertRequest(requests.get("paused"), RequestStarter.PAUSED_PRIORITY_CLASS, "token");
+        assertEquals(3, layer.persister.getStartupStats().getResumed());
+
+        // And again, from a file written by a persister which loaded its requests.
+        layer.checkpoint();
+        layer = new ClientLayer();
+        assertEquals(3, layer.requests().size());
+    }
+
+    @Test
+    public void testIncrementalCheckpoint() throws Exception {
+        ClientLayer layer = new ClientLayer();
+        TrivialClientRequest unchanged = layer.addRequest("unchanged", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        TrivialClientRequest changed = layer.addRequest("changed", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        layer.checkpoint();
+        assertEquals(1, unchanged.timesSerialized());
+        assertEquals(1, changed.timesSerialized());
+
+        // Only requests which have called markChanged() since the last checkpoint, and new
+        // requests, are serialized again. The rest are copied from the previous file.
+        changed.setClientToken("new token");
+        TrivialClientRequest added = layer.addRequest("added", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        layer.checkpoint();
+        assertEquals(1, unchanged.timesSerialized());
+        assertEquals(2, changed.timesSerialized());
+        assertEquals(1, added.timesSerialized());
+        layer.checkpoint();
+        assertEquals(1, unchanged.timesSerialized());
+        assertEquals(2, changed.timesSerialized());
+        assertEquals(1, added.timesSerialized());
+
+        ClientLayer loaded = new ClientLayer();
+        Map<String, ClientRequest> requests = loaded.requests();
+        assertEquals(3, requests.size());
+        assertRequest(requests.get("unchanged"), RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "unchanged");
+        assertRequest(requests.get("changed"), RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "new token");
+        assertRequest(requests.get("added"), RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "added");
+
+        // Everything is serialized again on shutdown.
+        layer.persister.innerCheckpoint(true);
+        assertEquals(2, unchanged.timesSerialized());
+        assertEquals(3, changed.timesSerialized());
+        assertEquals(2, added.timesSerialized());
+    }
+
+    /** Write client.dat in the format used before the requests were stored separately: the whole
+     * file is written by one ObjectOutputStream. */
+    private void writeVersion1(ClientRequest[] requests) throws Exception {
+        ChecksumChecker checker = new CRCChecksumChecker();
+        ArrayBucketFactory bf = new ArrayBucketFactory();
+        byte[] salt = new byte[32];
+        random.nextBytes(salt);
+        try (OutputStream os = new FileOutputStream(new File(folder.getRoot(), BASE_NAME))) {
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(os));
+            oos.writeLong(MAGIC);
+            oos.writeInt(1);
+            checker.writeAndChecksum(oos, salt);
+            oos.writeInt(requests.length);
+            for(ClientRequest request : requests) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(checker.checksumWriter(baos));
+                request.getRequestIdentifier().writeTo(dos);
+                dos.close();
+                byte[] buf = baos.toByteArray();
+                oos.writeShort(buf.length - checker.checksumLength());
+                oos.write(buf);
+                PrependLengthOutputStream plos = checker.checksumWriterWithLength(oos, bf);
+                ObjectOutputStream inner = new ObjectOutputStream(plos);
+                inner.writeObject(request);
+                inner.close();
+                plos = checker.checksumWriterWithLength(oos, bf);
+                dos = new DataOutputStream(plos);
+                request.getClientDetail(dos, checker);
+                dos.close();
+            }
+            oos.writeObject(new PersistentStatsPutter());
+            oos.writeInt(0);
+            oos.close();
+        }
+    }
+
+    @Test
+    public void testLoadVersion1() throws Exception {
+        PersistentRequestRoot root = new PersistentRequestRoot();
+        writeVersion1(new ClientRequest[] {
+                new TrivialClientRequest("first", RequestStarter.INTERACTIVE_PRIORITY_CLASS, "one", root),
+                new TrivialClientRequest("second", RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "two", root)
+        });
+        assertTrue(isSerialized());
+
+        ClientLayer layer = new ClientLayer();
+        Map<String, ClientRequest> requests = layer.requests();
+        assertEquals(2, requests.size());
+        assertRequest(requests.get("first"), RequestStarter.INTERACTIVE_PRIORITY_CLASS, "one");
+        assertRequest(requests.get("second"), RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, "two");
+        // Written in the new format after loading.
+        assertFalse(isSerialized());
+
+        layer = new ClientLayer();
+        assertEquals(2, layer.requests().size());
+        RequestIdentifier id = layer.requests().get("first").getRequestIdentifier();
+        assertEquals(requests.get("first").getRequestIdentifier(), id);
+    }
+
+}
@@ -0,0 +1,109 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.Node;
+import freenet.node.RequestStarter;
+import freenet.node.SendableGet;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.WaitableExecutor;
+
+public class DatastoreCheckerTest {
+
+	private final Random random = new Random(1234);
+
+	private NodeCHK randomKey() {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		return new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	/** Slot order is just the first byte of the routing key. */
+	private static long slot(Key key) {
+		return key.getRoutingKey()[0] & 0xFF;
+	}
+
+	@Test
+	public void testBatchesInSlotOrder() throws Exception {
+		Node node = mock(Node.class);
+		final List<Key> fetched = Collections.synchronizedList(new ArrayList<Key>());
+		when(node.getStoreSlot(any(Key.class))).thenAnswer(new Answer<Long>() {
+
+			@Override
+			public Long answer(InvocationOnMock invocation) {
+				return slot((Key) invocation.getArguments()[0]);
+			}
+
+		});
+		when(node.fetch(any(Key.class), anyBoolean(), anyBoolean(), anyBoolean(), anyBoolean(), any(freenet.store.BlockMetadata.class))).thenAnswer(new Answer<Object>() {
+
+			@Override
+			public Object answer(InvocationOnMock invocation) {
+				fetched.add((Key) invocation.getArguments()[0]);
+				return null;
+			}
+
+		});
+		ClientRequestScheduler sched = mock(ClientRequestScheduler.class);
+		WaitableExecutor executor = new WaitableExecutor(new PooledExecutor());
+		DatastoreChecker checker = new DatastoreChecker(node, true, 1, executor, "test");
+		int requests = 10;
+		int keysPerRequest = 20;
+		SendableGet[] getters = new SendableGet[requests];
+		// Queue them all before the checker starts, so they go in one batch.
+		synchronized(checker) {
+			for(int i=0;i<requests;i++) {
+				Key[] keys = new Key[keysPerRequest];
+				for(int j=0;j<keys.length;j++)
+					keys[j] = randomKey();
+				getters[i] = mock(SendableGet.class);
+				when(getters[i].listKeys()).thenReturn(keys);
+				when(getters[i].getPriorityClass()).thenReturn(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+				when(getters[i].getScheduler(any(ClientContext.class))).thenReturn(sched);
+				checker.queueRequest(getters[i], null);
+			}
+			assertEquals(requests, checker.queuedRequests());
+			assertEquals(requests * keysPerRequest, checker.queuedKeys());
+		}
+		executor.waitForIdle();
+		assertEquals(requests * keysPerRequest, fetched.size());
+		for(int i=1;i<fetched.size();i++)
+			assertTrue(slot(fetched.get(i-1)) <= slot(fetched.get(i)));
+		for(SendableGet getter : getters)
+			verify(sched).finishRegister(new SendableGet[] { getter }, false, true);
+		assertEquals(0, checker.queuedRequests());
+		assertEquals(0, checker.queuedKeys());
+		assertEquals(requests * keysPerRequest, checker.keysChecked());
+		assertEquals(requests, checker.requestsChecked());
+	}
+
+	@Test
+	public void testRemoveRequest() {
+		Node node = mock(Node.class);
+		Executor executor = mock(Executor.class);
+		DatastoreChecker checker = new DatastoreChecker(node, false, 2, executor, "test");
+		SendableGet getter = mock(SendableGet.class);
+		when(getter.listKeys()).thenReturn(new Key[] { randomKey(), randomKey() });
+		when(getter.getPriorityClass()).thenReturn(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+		checker.queueRequest(getter, null);
+		assertEquals(2, checker.queuedKeys());
+		checker.removeRequest(getter, false, null, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+		assertEquals(0, checker.queuedRequests());
+		assertEquals(0, checker.queuedKeys());
+	}
+
+}
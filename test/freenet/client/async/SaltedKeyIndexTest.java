@@ -0,0 +1,203 @@
+package freenet.client.async;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SaltedKeyIndexTest {
+
+	private final Random random = new Random(1234);
+
+	private byte[][] randomKeys(int count) {
+		byte[][] keys = new byte[count][32];
+		for(byte[] key : keys)
+			random.nextBytes(key);
+		return keys;
+	}
+
+	private static long[] prefixes(byte[][] keys) {
+		long[] prefixes = new long[keys.length];
+		for(int i=0;i<keys.length;i++)
+			prefixes[i] = SaltedKeyIndex.prefix(keys[i]);
+		return prefixes;
+	}
+
+	@Test
+	public void testAddGetRemove() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener a = mock(KeyListener.class);
+		KeyListener b = mock(KeyListener.class);
+		// Enough to resize the table a few times.
+		byte[][] keysA = randomKeys(5000);
+		byte[][] keysB = randomKeys(3000);
+		assertTrue(index.add(a, prefixes(keysA)));
+		assertTrue(index.add(b, prefixes(keysB)));
+		assertFalse(index.add(a, prefixes(keysA)));
+		assertEquals(8000, index.countKeys());
+		assertEquals(2, index.countListeners());
+		for(byte[] key : keysA)
+			assertEquals(1, index.get(key).size());
+		for(byte[] key : keysB)
+			assertSame(b, index.get(key).get(0));
+		for(byte[] key : randomKeys(100))
+			assertNull(index.get(key));
+
+		assertTrue(index.remove(a));
+		assertFalse(index.remove(a));
+		assertFalse(index.contains(a));
+		assertEquals(3000, index.countKeys());
+		for(byte[] key : keysA)
+			assertNull(index.get(key));
+		for(byte[] key : keysB)
+			assertSame(b, index.get(key).get(0));
+	}
+
+	@Test
+	public void testRemoveMany() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener[] listeners = new KeyListener[40];
+		byte[][][] keys = new byte[listeners.length][][];
+		for(int i=0;i<listeners.length;i++) {
+			listeners[i] = mock(KeyListener.class);
+			keys[i] = randomKeys(500);
+			assertTrue(index.add(listeners[i], prefixes(keys[i])));
+		}
+		int slots = index.countSlots();
+		// Remove every other listener, in a random order.
+		boolean[] removed = new boolean[listeners.length];
+		int left = listeners.length;
+		while(left > listeners.length / 2) {
+			int i = random.nextInt(listeners.length / 2) * 2;
+			if(removed[i]) continue;
+			assertTrue(index.remove(listeners[i]));
+			removed[i] = true;
+			left--;
+		}
+		assertEquals(slots, index.countSlots());
+		assertEquals(left * 500, index.countKeys());
+		for(int i=0;i<listeners.length;i++) {
+			for(byte[] key : keys[i]) {
+				List<KeyListener> matches = index.get(key);
+				if(removed[i])
+					assertNull(matches);
+				else
+					assertSame(listeners[i], matches.get(0));
+			}
+		}
+		// The table shrinks once it is mostly empty.
+		for(int i=0;i<listeners.length;i++)
+			if(!removed[i]) index.remove(listeners[i]);
+		assertEquals(0, index.countKeys());
+		assertTrue(index.countSlots() < slots);
+	}
+
+	/** Keys which all start in the last slot of the smallest table, so the cluster wraps around. */
+	@Test
+	public void testRemoveFromCluster() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener[] listeners = new KeyListener[3];
+		long[][] keys = new long[listeners.length][100];
+		for(int i=0;i<listeners.length;i++) {
+			listeners[i] = mock(KeyListener.class);
+			for(int j=0;j<keys[i].length;j++) {
+				long high = i * keys[i].length + j + 1;
+				keys[i][j] = (high << 32) | (high ^ 1023);
+			}
+		}
+		for(int i=0;i<listeners.length;i++)
+			assertTrue(index.add(listeners[i], keys[i]));
+		assertEquals(1024, index.countSlots());
+		// The keys after the removed ones must be moved back to where they will be found.
+		assertTrue(index.remove(listeners[1]));
+		assertEquals(200, index.countKeys());
+		checkCluster(index, listeners, keys, 1);
+		assertTrue(index.remove(listeners[0]));
+		assertEquals(100, index.countKeys());
+		checkCluster(index, listeners, keys, 0, 1);
+	}
+
+	private static void checkCluster(SaltedKeyIndex index, KeyListener[] listeners, long[][] keys, int... removed) {
+		for(int i=0;i<listeners.length;i++) {
+			boolean gone = false;
+			for(int r : removed)
+				if(r == i) gone = true;
+			for(long key : keys[i]) {
+				List<KeyListener> matches = index.get(bytes(key));
+				if(gone)
+					assertNull(matches);
+				else
+					assertSame(listeners[i], matches.get(0));
+			}
+		}
+	}
+
+	private static byte[] bytes(long prefix) {
+		byte[] key = new byte[32];
+		for(int i=0;i<8;i++)
+			key[i] = (byte) (prefix >>> (56 - i * 8));
+		return key;
+	}
+
+	@Test
+	public void testSharedKeys() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener a = mock(KeyListener.class);
+		KeyListener b = mock(KeyListener.class);
+		byte[][] keys = randomKeys(10);
+		assertTrue(index.add(a, prefixes(keys)));
+		assertTrue(index.add(b, prefixes(keys)));
+		// Duplicates within one listener are only stored once.
+		KeyListener c = mock(KeyListener.class);
+		assertTrue(index.add(c, new long[] { prefixes(keys)[0], prefixes(keys)[0] }));
+		List<KeyListener> matches = index.get(keys[0]);
+		assertEquals(3, matches.size());
+		assertTrue(matches.contains(a));
+		assertTrue(matches.contains(b));
+		assertTrue(matches.contains(c));
+		assertEquals(2, index.get(keys[1]).size());
+		index.remove(b);
+		assertEquals(2, index.get(keys[0]).size());
+		assertEquals(1, index.get(keys[1]).size());
+	}
+
+	@Test
+	public void testReuseIDs() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener a = mock(KeyListener.class);
+		KeyListener b = mock(KeyListener.class);
+		KeyListener c = mock(KeyListener.class);
+		byte[][] keysA = randomKeys(10);
+		byte[][] keysB = randomKeys(10);
+		byte[][] keysC = randomKeys(10);
+		index.add(a, prefixes(keysA));
+		index.add(b, prefixes(keysB));
+		index.remove(a);
+		index.add(c, prefixes(keysC));
+		assertSame(c, index.get(keysC[0]).get(0));
+		assertSame(b, index.get(keysB[0]).get(0));
+		assertNull(index.get(keysA[0]));
+	}
+
+	@Test
+	public void testFull() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener a = mock(KeyListener.class);
+		assertFalse(index.add(a, new long[SaltedKeyIndex.MAX_KEYS + 1]));
+		assertFalse(index.contains(a));
+		assertEquals(0, index.countKeys());
+	}
+
+	@Test
+	public void testZeroPrefix() {
+		SaltedKeyIndex index = new SaltedKeyIndex();
+		KeyListener a = mock(KeyListener.class);
+		byte[] key = new byte[32];
+		index.add(a, new long[] { SaltedKeyIndex.prefix(key) });
+		assertSame(a, index.get(key).get(0));
+	}
+
+}
@@ -0,0 +1,161 @@
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequester;
+import freenet.clients.fcp.RequestIdentifier.RequestType;
+import freenet.support.io.ResumeFailedException;
+
+/** A persistent request on the global queue which doesn't fetch or insert anything, for testing
+ * ClientLayerPersister. It can be serialized, but can't be restarted from recovery data. */
+public class TrivialClientRequest extends ClientRequest {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Called by every TrivialClientRequest's onResume(), if set. */
+    public static volatile ResumeCallback resumeCallback;
+
+    public interface ResumeCallback {
+        void onResume(TrivialClientRequest request) throws ResumeFailedException;
+    }
+
+    /** Number of times this instance has been serialized. */
+    private transient int serialized;
+
+    public TrivialClientRequest(String identifier, short priorityClass, String clientToken,
+            PersistentRequestRoot root) {
+        super(null, identifier, 0, null, null, root.getGlobalForeverClient(), priorityClass,
+                Persistence.FOREVER, false, clientToken, true);
+    }
+
+    /** Change something which is saved with the request. */
+    public void setClientToken(String clientToken) {
+        this.clientToken = clientToken;
+        markChanged();
+    }
+
+    public String getClientToken() {
+        return clientToken;
+    }
+
+    public synchronized int timesSerialized() {
+        return serialized;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        synchronized(this) {
+            serialized++;
+        }
+        out.defaultWriteObject();
+    }
+
+    @Override
+    protected void innerResume(ClientContext context) throws ResumeFailedException {
+        ResumeCallback cb = resumeCallback;
+        if(cb != null) cb.onResume(this);
+    }
+
+    @Override
+    RequestType getType() {
+        return RequestType.PUT;
+    }
+
+    @Override
+    public boolean fullyResumed() {
+        return false;
+    }
+
+    @Override
+    public void onLostConnection(ClientContext context) {
+        // Persistent.
+    }
+
+    @Override
+    public void sendPendingMessages(FCPConnectionOutputHandler handler, String listRequestIdentifier,
+            boolean includeData, boolean onlyData) {
+        // Nothing to send.
+    }
+
+    @Override
+    void register(boolean noTags) {
+        // Not registered via FCP.
+    }
+
+    @Override
+    protected ClientRequester getClientRequest() {
+        return null;
+    }
+
+    @Override
+    protected void freeData() {
+        // No data.
+    }
+
+    @Override
+    public double getSuccessFraction() {
+        return 0;
+    }
+
+    @Override
+    public double getTotalBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getMinBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFetchedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFatalyFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public String getFailureReason(boolean longDescription) {
+        return null;
+    }
+
+    @Override
+    public boolean isTotalFinalized() {
+        return true;
+    }
+
+    @Override
+    public void start(ClientContext context) {
+        started = true;
+    }
+
+    @Override
+    public boolean hasSucceeded() {
+        return false;
+    }
+
+    @Override
+    public boolean canRestart() {
+        return false;
+    }
+
+    @Override
+    public boolean restart(ClientContext context, boolean disableFilterData) {
+        return false;
+    }
+
+    @Override
+    RequestStatus getStatus() {
+        return null;
+    }
+
+}
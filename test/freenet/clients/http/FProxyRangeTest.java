@@ -0,0 +1,69 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test cases for the Range and If-None-Match handling in FProxyToadlet.
+ */
+public class FProxyRangeTest {
+
+	@Test
+	public void singleRange() throws HTTPRangeException {
+		List<long[]> ranges = FProxyToadlet.parseRange("bytes=100-199");
+		assertEquals(1, ranges.size());
+		assertArrayEquals(new long[] { 100, 199 }, ranges.get(0));
+		assertArrayEquals(new long[] { 100, -1 }, FProxyToadlet.parseRange("bytes=100-").get(0));
+		assertArrayEquals(new long[] { -1, 500 }, FProxyToadlet.parseRange("bytes=-500").get(0));
+	}
+
+	@Test
+	public void multipleRanges() throws HTTPRangeException {
+		List<long[]> ranges = FProxyToadlet.parseRange("bytes=0-99, 200-299,-10");
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] { 0, 99 }, ranges.get(0));
+		assertArrayEquals(new long[] { 200, 299 }, ranges.get(1));
+		assertArrayEquals(new long[] { -1, 10 }, ranges.get(2));
+	}
+
+	@Test
+	public void invalidRanges() {
+		for (String range : new String[] { "lines=0-10", "bytes=10-5", "bytes=-0", "bytes=a-b", "bytes=5",
+				"bytes=0-1,2-3,4-5,6-7,8-9,10-11,12-13,14-15,16-17,18-19,20-21,22-23,24-25,26-27,28-29,30-31,32-33" }) {
+			try {
+				FProxyToadlet.parseRange(range);
+				fail("Accepted " + range);
+			} catch (HTTPRangeException e) {
+				// Expected.
+			}
+		}
+	}
+
+	@Test
+	public void satisfiableRanges() throws HTTPRangeException {
+		List<long[]> ranges = FProxyToadlet.satisfiableRanges(
+				FProxyToadlet.parseRange("bytes=900-2000,-100,1000-,5-9"), 1000);
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] { 900, 999 }, ranges.get(0));
+		assertArrayEquals(new long[] { 900, 999 }, ranges.get(1));
+		assertArrayEquals(new long[] { 5, 9 }, ranges.get(2));
+		// A suffix longer than the data is the whole of it.
+		assertArrayEquals(new long[] { 0, 9 },
+				FProxyToadlet.satisfiableRanges(FProxyToadlet.parseRange("bytes=-100"), 10).get(0));
+		assertTrue(FProxyToadlet.satisfiableRanges(FProxyToadlet.parseRange("bytes=0-"), 0).isEmpty());
+	}
+
+	@Test
+	public void etagMatches() {
+		String etag = "\"0123456789abcdef\"";
+		assertTrue(FProxyToadlet.etagMatches(etag, etag));
+		assertTrue(FProxyToadlet.etagMatches("\"other\", W/" + etag, etag));
+		assertFalse(FProxyToadlet.etagMatches("\"other\"", etag));
+		assertFalse(FProxyToadlet.etagMatches("*", etag));
+		assertFalse(FProxyToadlet.etagMatches(null, etag));
+	}
+
+}
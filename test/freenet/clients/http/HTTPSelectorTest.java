@@ -0,0 +1,160 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.clients.http.updateableelements.PushDataManager;
+import freenet.support.PooledExecutor;
+import freenet.support.io.LineReadingInputStream;
+
+public class HTTPSelectorTest {
+
+	private ServerSocketChannel serverChannel;
+	private HTTPSelector.Server server;
+	private HTTPSelector selector;
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private static long requestLength(String s) {
+		byte[] buf = bytes(s);
+		return HTTPSelector.requestLength(buf, buf.length);
+	}
+
+	private static String pollRequestId(String s) {
+		byte[] buf = bytes(s);
+		return HTTPSelector.pollRequestId(buf, buf.length);
+	}
+
+	@Test
+	public void testRequestLength() {
+		String get = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+		assertEquals(get.length(), requestLength(get));
+		assertEquals(get.length(), requestLength(get + "GET /next HTTP/1.1\r\n"));
+		assertEquals(-1, requestLength("GET / HTTP/1.1\r\nHost: localhost\r\n"));
+		assertEquals(-1, requestLength(""));
+		// Leading empty lines are skipped.
+		assertEquals(get.length() + 2, requestLength("\r\n" + get));
+		// Bare newlines.
+		assertEquals(16, requestLength("GET / HTTP/1.0\n\n"));
+		String post = "POST /upload HTTP/1.1\r\ncontent-LENGTH: 1000000\r\n\r\n";
+		assertEquals(post.length() + 1000000, requestLength(post + "abc"));
+		// Invalid lengths are rejected when handled.
+		post = "POST /upload HTTP/1.1\r\nContent-Length: lots\r\n\r\n";
+		assertEquals(post.length(), requestLength(post));
+	}
+
+	@Test
+	public void testPollRequestId() {
+		assertEquals("abc", pollRequestId("GET /pushnotifications/?requestId=abc HTTP/1.1\r\n\r\n"));
+		assertEquals("a b", pollRequestId("\r\nGET /pushnotifications/?requestId=a+b&x=1 HTTP/1.1\r\n\r\n"));
+		assertNull(pollRequestId("GET /pushnotifications/?requestId=abc HTTP/1.1"));
+		assertNull(pollRequestId("POST /pushnotifications/?requestId=abc HTTP/1.1\r\n\r\n"));
+		assertNull(pollRequestId("GET /queue/?requestId=abc HTTP/1.1\r\n\r\n"));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		server = mock(HTTPSelector.Server.class);
+		when(server.maxWorkers()).thenReturn(2);
+		when(server.finishedStartup()).thenReturn(true);
+		// Reply with the request line.
+		when(server.handle(any(Socket.class), any(LineReadingInputStream.class))).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) throws Throwable {
+				Socket sock = (Socket) invocation.getArguments()[0];
+				LineReadingInputStream lis = (LineReadingInputStream) invocation.getArguments()[1];
+				String firstLine = lis.readLine(1024, 128, false);
+				while(!lis.readLine(1024, 128, false).isEmpty());
+				sock.getOutputStream().write(bytes(firstLine + "\n"));
+				return true;
+			}
+
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		serverChannel.close();
+	}
+
+	private Socket connect() throws Exception {
+		Socket client = new Socket(InetAddress.getLoopbackAddress(), serverChannel.socket().getLocalPort());
+		client.setSoTimeout(10000);
+		selector.add(serverChannel.accept().socket());
+		return client;
+	}
+
+	@Test
+	public void testPersistentConnection() throws Exception {
+		selector = new HTTPSelector(server, new PooledExecutor());
+		selector.start();
+		try (Socket client = connect()) {
+			OutputStream os = client.getOutputStream();
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+			// Pipelined, and split across writes.
+			os.write(bytes("GET /one HTTP/1.1\r\n\r\nGET /two HTTP/1.1\r\n"));
+			os.flush();
+			Thread.sleep(100);
+			os.write(bytes("\r\n"));
+			assertEquals("GET /one HTTP/1.1", in.readLine());
+			assertEquals("GET /two HTTP/1.1", in.readLine());
+			// After being idle.
+			Thread.sleep(100);
+			os.write(bytes("GET /three HTTP/1.1\r\n\r\n"));
+			assertEquals("GET /three HTTP/1.1", in.readLine());
+		}
+		verify(server, times(3)).handle(any(Socket.class), any(LineReadingInputStream.class));
+	}
+
+	@Test
+	public void testPollWaitsForNotification() throws Exception {
+		PushDataManager pushDataManager = mock(PushDataManager.class);
+		final AtomicReference<Runnable> listener = new AtomicReference<Runnable>();
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				listener.set((Runnable) invocation.getArguments()[0]);
+				return null;
+			}
+
+		}).when(pushDataManager).setNotificationListener(any(Runnable.class));
+		when(server.getPushDataManager()).thenReturn(pushDataManager);
+		when(pushDataManager.hasNextNotification("page")).thenReturn(false);
+		selector = new HTTPSelector(server, new PooledExecutor());
+		selector.start();
+		try (Socket client = connect()) {
+			OutputStream os = client.getOutputStream();
+			BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+			os.write(bytes("GET /pushnotifications/?requestId=page HTTP/1.1\r\n\r\n"));
+			Thread.sleep(500);
+			verify(server, never()).handle(any(Socket.class), any(LineReadingInputStream.class));
+			when(pushDataManager.hasNextNotification("page")).thenReturn(true);
+			listener.get().run();
+			assertEquals("GET /pushnotifications/?requestId=page HTTP/1.1", in.readLine());
+		}
+	}
+
+}
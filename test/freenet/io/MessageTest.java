@@ -1,11 +1,18 @@
 package freenet.io;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
 
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncorrectTypeException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.io.comm.PeerContext;
+import freenet.support.ShortBuffer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 
 import org.junit.Test;
@@ -24,6 +31,7 @@ public class MessageTest {
 	private static final String FLOAT = "float";
 	private static final String DOUBLE_ARRAY = "double[]";
 	private static final String FLOAT_ARRAY = "float[]";
+	private static final String BUFFER = "buffer";
 
 	private static final MessageType test = new MessageType("test", DMT.PRIORITY_LOW) {{
 		addField(BOOLEAN, Boolean.class);
@@ -37,6 +45,20 @@ public class MessageTest {
 		addField(FLOAT_ARRAY, float[].class);
 	}};
 
+	private static final MessageType primitives = new MessageType("testPrimitives", DMT.PRIORITY_LOW) {{
+		addField(LONG, Long.class);
+		addField(BOOLEAN, Boolean.class);
+		addField(SHORT, Short.class);
+		addField(DOUBLE, Double.class);
+		addField(BYTE, Byte.class);
+	}};
+
+	private static final MessageType mixed = new MessageType("testMixed", DMT.PRIORITY_LOW) {{
+		addField(INT, Integer.class);
+		addField(BUFFER, ShortBuffer.class);
+		addField(FLOAT, Float.class);
+	}};
+
 	/**
 	 * Test that different types can be set and retrieved to and from a Message.
 	 */
@@ -77,4 +99,98 @@ public class MessageTest {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	/**
+	 * Test that a message with only primitive fields is encoded as it always has been, and
+	 * decodes back to the same values.
+	 */
+	@Test
+	public void testEncodePrimitives() throws IOException {
+		Message msg = new Message(primitives);
+		msg.set(LONG, -1234567891234L);
+		msg.set(BOOLEAN, true);
+		msg.set(SHORT, (short)-2);
+		msg.set(DOUBLE, -Math.E);
+		msg.set(BYTE, (byte)-100);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt("testPrimitives".hashCode());
+		dos.writeLong(-1234567891234L);
+		dos.writeBoolean(true);
+		dos.writeShort(-2);
+		dos.writeDouble(-Math.E);
+		dos.writeByte(-100);
+		byte[] encoded = msg.encodeToPacket();
+		assertArrayEquals(baos.toByteArray(), encoded);
+
+		Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+		assertSame(primitives, decoded.getSpec());
+		assertEquals(-1234567891234L, decoded.getLong(LONG));
+		assertTrue(decoded.getBoolean(BOOLEAN));
+		assertEquals((short)-2, decoded.getShort(SHORT));
+		assertEquals(-Math.E, decoded.getDouble(DOUBLE), 0);
+		assertEquals((byte)-100, decoded.getByte(BYTE));
+	}
+
+	/**
+	 * Test a message with both primitive and object fields, at an offset in the packet.
+	 */
+	@Test
+	public void testEncodeMixed() {
+		Message msg = new Message(mixed);
+		msg.set(INT, -5);
+		msg.set(BUFFER, new ShortBuffer(new byte[] { 1, 2, 3 }));
+		msg.set(FLOAT, 1.5f);
+		byte[] encoded = msg.encodeToPacket();
+		byte[] buf = new byte[encoded.length + 20];
+		System.arraycopy(encoded, 0, buf, 10, encoded.length);
+
+		Message decoded = Message.decodeMessageFromPacket(buf, 10, encoded.length, null, 0);
+		assertEquals(-5, decoded.getInt(INT));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, decoded.getShortBufferBytes(BUFFER));
+		assertEquals(1.5f, decoded.getFloat(FLOAT), 0);
+		// Too short.
+		assertNull(Message.decodeMessageLax(Arrays.copyOf(encoded, encoded.length - 1), mock(PeerContext.class), 0));
+	}
+
+	/**
+	 * Test getObject(), isSet() and the errors for the wrong types.
+	 */
+	@Test
+	public void testGetObject() {
+		Message msg = new Message(mixed);
+		assertFalse(msg.isSet(INT));
+		assertNull(msg.getObject(INT));
+		assertNull(msg.getObject("nonexistent"));
+		msg.set(INT, 7);
+		assertTrue(msg.isSet(INT));
+		assertEquals(Integer.valueOf(7), msg.getObject(INT));
+		msg.set(INT, Integer.valueOf(8));
+		assertEquals(8, msg.getInt(INT));
+		assertEquals("testMixed {", msg.toString().substring(0, 11));
+		try {
+			msg.set(INT, 1L);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			msg.getLong(INT);
+			fail();
+		} catch (ClassCastException e) {
+			// Expected.
+		}
+		try {
+			msg.encodeToPacket();
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected, the buffer isn't set.
+		}
+
+		Message clone = msg.cloneAndDropSubMessages();
+		msg.set(INT, 9);
+		assertEquals(8, clone.getInt(INT));
+		assertFalse(clone.isSet(BUFFER));
+	}
 }
@@ -0,0 +1,206 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.support.PooledExecutor;
+
+/**
+ * Tests that the indexed filter matching in MessageCore gives messages to the same filters the
+ * old linear list did.
+ */
+public class MessageCoreTest {
+
+	private static final MessageType typeA = new MessageType("MessageCoreTestA", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private static final MessageType typeB = new MessageType("MessageCoreTestB", DMT.PRIORITY_LOW) {{
+		addField(DMT.UID, Long.class);
+	}};
+
+	private MessageCore core;
+
+	@Before
+	public void setUp() {
+		core = new MessageCore(new PooledExecutor());
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+
+		final List<Message> matched = new ArrayList<Message>();
+		boolean shouldTimeout;
+		int timedOut;
+
+		@Override
+		public void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public void onTimeout() {
+			timedOut++;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+			fail();
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+			fail();
+		}
+
+	}
+
+	private static Message message(MessageType type, long uid) {
+		Message m = new Message(type);
+		m.set(DMT.UID, uid);
+		return m;
+	}
+
+	private Callback addFilter(MessageFilter filter) throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	@Test
+	public void testMatchByUID() throws DisconnectedException {
+		Callback cb1 = addFilter(MessageFilter.create().setType(typeA).setField(DMT.UID, 1L).setTimeout(10000));
+		Callback cb2 = addFilter(MessageFilter.create().setType(typeA).setField(DMT.UID, 2L).setTimeout(10000));
+		assertEquals(2, core.getFilterCount());
+		assertEquals(0, core.getUnindexedFilterCount());
+		Message m = message(typeA, 2);
+		core.checkFilters(m, null);
+		assertTrue(cb1.matched.isEmpty());
+		assertEquals(1, cb2.matched.size());
+		assertSame(m, cb2.matched.get(0));
+		assertEquals(1, core.getFilterCount());
+		// Wrong type, so nobody gets it.
+		core.checkFilters(message(typeB, 1), null);
+		assertTrue(cb1.matched.isEmpty());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testEarliestTimeoutWins() throws DisconnectedException {
+		Callback late = addFilter(MessageFilter.create().setType(typeA).setTimeout(20000));
+		Callback early = addFilter(MessageFilter.create().setType(typeA).setField(DMT.UID, 5L).setTimeout(10000));
+		Callback any = addFilter(MessageFilter.create().setField(DMT.UID, 5L).setTimeout(15000));
+		assertEquals(1, core.getUnindexedFilterCount());
+		core.checkFilters(message(typeA, 5), null);
+		assertEquals(1, early.matched.size());
+		core.checkFilters(message(typeA, 5), null);
+		assertEquals(1, any.matched.size());
+		core.checkFilters(message(typeA, 5), null);
+		assertEquals(1, late.matched.size());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	@Test
+	public void testOr() throws DisconnectedException {
+		Callback cb = addFilter(MessageFilter.create().setType(typeA).setField(DMT.UID, 7L).setTimeout(10000)
+				.or(MessageFilter.create().setType(typeB).setField(DMT.UID, 7L).setTimeout(10000)));
+		core.checkFilters(message(typeB, 7), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(typeB, cb.matched.get(0).getSpec());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	@Test
+	public void testUnclaimed() throws DisconnectedException {
+		Message first = message(typeB, 9);
+		core.checkFilters(message(typeA, 9), null);
+		core.checkFilters(first, null);
+		core.checkFilters(message(typeB, 9), null);
+		assertEquals(3, core.getUnclaimedFIFOSize());
+		Callback cb = addFilter(MessageFilter.create().setType(typeB).setField(DMT.UID, 9L).setTimeout(10000));
+		assertEquals(1, cb.matched.size());
+		assertSame(first, cb.matched.get(0));
+		assertEquals(2, core.getUnclaimedFIFOSize());
+		assertEquals(0, core.getFilterCount());
+	}
+
+	@Test
+	public void testTimeout() throws DisconnectedException {
+		Callback cb1 = addFilter(MessageFilter.create().setType(typeA).setField(DMT.UID, 1L).setTimeout(10000));
+		Callback cb2 = addFilter(MessageFilter.create().setType(typeA).setField(DMT.UID, 2L).setTimeout(10000));
+		cb2.shouldTimeout = true;
+		core.removeTimedOutFilters(Long.MAX_VALUE);
+		assertEquals(0, cb1.timedOut);
+		assertEquals(1, cb2.timedOut);
+		assertEquals(1, core.getFilterCount());
+		core.checkFilters(message(typeA, 2), null);
+		assertTrue(cb2.matched.isEmpty());
+	}
+
+	@Test
+	public void testWaitForWokenByMatch() throws DisconnectedException {
+		final Message m = message(typeA, 11);
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+				core.checkFilters(m, null);
+			}
+		};
+		sender.start();
+		long start = System.currentTimeMillis();
+		Message ret = core.waitFor(MessageFilter.create().setType(typeA).setField(DMT.UID, 11L).setTimeout(10000), null);
+		assertSame(m, ret);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(0, core.getFilterCount());
+	}
+
+	@Test
+	public void testWaitForTimesOut() throws DisconnectedException {
+		long start = System.currentTimeMillis();
+		assertNull(core.waitFor(MessageFilter.create().setType(typeA).setField(DMT.UID, 12L).setTimeout(100), null));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertEquals(0, core.getFilterCount());
+	}
+
+	@Test
+	public void testTimeoutWheel() {
+		long now = System.currentTimeMillis();
+		MessageFilterIndex index = new MessageFilterIndex(now);
+		MessageFilter soon = MessageFilter.create().setType(typeA).setTimeout(1000);
+		MessageFilter later = MessageFilter.create().setType(typeA).setTimeout(60000);
+		MessageFilter never = MessageFilter.create().setType(typeA).setNoTimeout();
+		index.add(soon);
+		index.add(later);
+		index.add(never);
+		index.removeTimedOut(now, Long.MAX_VALUE);
+		assertNull(index.takeTimedOut());
+		index.removeTimedOut(now + 5000, Long.MAX_VALUE);
+		List<MessageFilter> timedOut = index.takeTimedOut();
+		assertEquals(1, timedOut.size());
+		assertSame(soon, timedOut.get(0));
+		// More than one revolution of the wheel later.
+		index.removeTimedOut(now + MessageFilterIndex.WHEEL_TICK * MessageFilterIndex.WHEEL_SLOTS * 3, Long.MAX_VALUE);
+		timedOut = index.takeTimedOut();
+		assertEquals(1, timedOut.size());
+		assertSame(later, timedOut.get(0));
+		assertEquals(1, index.size());
+		assertTrue(index.remove(never));
+		assertEquals(0, index.size());
+		assertEquals(0, index.bucketCount());
+	}
+
+}
@@ -0,0 +1,176 @@
+package freenet.io.comm;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.io.comm.IncomingPacketFilter.DECODED;
+import freenet.node.Node;
+import freenet.node.ProgramDirectory;
+import freenet.support.PooledExecutor;
+import freenet.support.math.MersenneTwister;
+
+public class UdpSocketHandlerTest {
+
+	private static final int THREADS = 4;
+	private static final int SENDERS = 8;
+	private static final int ROUNDS = 100;
+	private static final int PACKETS_PER_ROUND = 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private UdpSocketHandler handler;
+	private final List<DatagramChannel> senders = new ArrayList<DatagramChannel>();
+
+	/** What was received from one address. */
+	private static class SenderRecord {
+		final AtomicInteger received = new AtomicInteger();
+		volatile int lastSeqno = -1;
+		volatile boolean outOfOrder;
+		volatile Thread thread;
+		volatile boolean severalThreads;
+	}
+
+	private final Map<Peer, SenderRecord> records = new ConcurrentHashMap<Peer, SenderRecord>();
+	private final AtomicInteger received = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		final File dir = folder.getRoot();
+		ProgramDirectory runDir = mock(ProgramDirectory.class);
+		when(runDir.file(anyString())).thenAnswer(new Answer<File>() {
+
+			@Override
+			public File answer(InvocationOnMock invocation) {
+				return new File(dir, (String) invocation.getArguments()[0]);
+			}
+
+		});
+		Node node = mock(Node.class);
+		when(node.getPacketReceiverThreads()).thenReturn(THREADS);
+		when(node.getTrafficClass()).thenReturn(TrafficClass.getDefault());
+		when(node.getFastWeakRandom()).thenReturn(new MersenneTwister(1234));
+		when(node.runDir()).thenReturn(runDir);
+		when(node.getExecutor()).thenReturn(new PooledExecutor());
+		int port;
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			probe.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+		}
+		handler = new UdpSocketHandler(port, InetAddress.getLoopbackAddress(), node, System.currentTimeMillis(),
+				"test", new IOStatisticCollector());
+		IncomingPacketFilter filter = mock(IncomingPacketFilter.class);
+		when(filter.process(any(byte[].class), anyInt(), anyInt(), any(Peer.class), anyLong())).thenAnswer(new Answer<DECODED>() {
+
+			@Override
+			public DECODED answer(InvocationOnMock invocation) {
+				byte[] buf = (byte[]) invocation.getArguments()[0];
+				Peer peer = (Peer) invocation.getArguments()[3];
+				SenderRecord record = records.get(peer);
+				int seqno = ByteBuffer.wrap(buf).getInt();
+				if(seqno != record.lastSeqno + 1) record.outOfOrder = true;
+				record.lastSeqno = seqno;
+				if(record.thread == null) record.thread = Thread.currentThread();
+				else if(record.thread != Thread.currentThread()) record.severalThreads = true;
+				record.received.incrementAndGet();
+				received.incrementAndGet();
+				return DECODED.DECODED;
+			}
+
+		});
+		handler.setLowLevelFilter(filter);
+		handler.start();
+		for(int i=0;i<SENDERS;i++) {
+			DatagramChannel sender = DatagramChannel.open();
+			sender.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			senders.add(sender);
+			InetSocketAddress address = (InetSocketAddress) sender.getLocalAddress();
+			records.put(new Peer(address.getAddress(), address.getPort()), new SenderRecord());
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for(DatagramChannel sender : senders)
+			sender.close();
+		handler.close();
+	}
+
+	private void waitForReceived(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(received.get() < count && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(count, received.get());
+	}
+
+	@Test
+	public void testBatchedReceive() throws Exception {
+		InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), handler.getPortNumber());
+		ByteBuffer packet = ByteBuffer.allocate(100);
+		int sent = 0;
+		// Send in rounds so the kernel doesn't drop anything.
+		for(int round=0;round<ROUNDS;round++) {
+			for(int i=0;i<PACKETS_PER_ROUND;i++) {
+				for(DatagramChannel sender : senders) {
+					packet.clear();
+					packet.putInt(round * PACKETS_PER_ROUND + i);
+					packet.position(0);
+					sender.send(packet, target);
+					sent++;
+				}
+			}
+			waitForReceived(sent);
+		}
+		for(SenderRecord record : records.values()) {
+			assertEquals(ROUNDS * PACKETS_PER_ROUND, record.received.get());
+			assertFalse("Packets processed out of order", record.outOfOrder);
+			assertFalse("Packets from one address processed by several threads", record.severalThreads);
+		}
+		// Buffers are reused rather than allocated for every packet, and all returned to the pool.
+		// A worker may not have released the previous round's buffers yet.
+		int allocated = handler.allocatedPackets();
+		assertTrue("Allocated " + allocated + " buffers", allocated > 0 && allocated <= 2 * SENDERS * PACKETS_PER_ROUND);
+		long deadline = System.currentTimeMillis() + 10000;
+		while(handler.freePackets() < allocated && System.currentTimeMillis() < deadline)
+			Thread.sleep(1);
+		assertEquals(allocated, handler.freePackets());
+	}
+
+	@Test
+	public void testSendBatched() throws Exception {
+		DatagramChannel receiver = senders.get(0);
+		InetSocketAddress address = (InetSocketAddress) receiver.getLocalAddress();
+		Peer peer = new Peer(address.getAddress(), address.getPort());
+		// The channel is non-blocking in batched mode.
+		byte[] data = new byte[1000];
+		for(int i=0;i<10;i++)
+			handler.sendPacket(data, peer, true);
+		ByteBuffer buf = ByteBuffer.allocate(1500);
+		for(int i=0;i<10;i++) {
+			buf.clear();
+			assertNotNull(receiver.receive(buf));
+			assertEquals(data.length, buf.position());
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+public class FailureTableEntryTest {
+
+	private PeerManager peerManager;
+	private PeerNode[] peers;
+	private Key key;
+
+	@Before
+	public void setUp() throws Exception {
+		Node node = mock(Node.class);
+		peerManager = new PeerManager(node, mock(SemiOrderedShutdownHook.class));
+		Field myRef = PeerNode.class.getDeclaredField("myRef");
+		myRef.setAccessible(true);
+		peers = new PeerNode[3];
+		for(int i=0;i<peers.length;i++) {
+			PeerNode peer = mock(PeerNode.class);
+			myRef.set(peer, new WeakReference<PeerNode>(peer));
+			when(peer.getPeerIndex()).thenReturn(peerManager.getPeerIndex(peer));
+			when(peer.getBootID()).thenReturn(100L + i);
+			when(peer.getLocation()).thenReturn(0.1 * i);
+			when(peer.isConnected()).thenReturn(true);
+			when(peer.shortToString()).thenReturn("peer"+i);
+			peers[i] = peer;
+		}
+		byte[] routingKey = new byte[32];
+		routingKey[0] = 1;
+		key = new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	@Test
+	public void testPeerIndexes() {
+		int index = peerManager.getPeerIndex(peers[0]);
+		assertTrue(index > 0);
+		assertEquals(index, peerManager.getPeerIndex(peers[0]));
+		assertSame(peers[0], peerManager.getPeerByIndex(index));
+		assertNull(peerManager.getPeerByIndex(0));
+		assertNull(peerManager.getPeerByIndex(-1));
+		peerManager.releasePeerIndex(peers[0]);
+		assertNull(peerManager.getPeerByIndex(index));
+		// The slot is reused with a different index.
+		int newIndex = peerManager.getPeerIndex(peers[0]);
+		assertTrue(newIndex > 0);
+		assertFalse(newIndex == index);
+		assertSame(peers[0], peerManager.getPeerByIndex(newIndex));
+	}
+
+	@Test
+	public void testRequestors() {
+		FailureTableEntry entry = new FailureTableEntry(key, peerManager);
+		assertTrue(entry.isEmpty());
+		int size = entry.estimatedSize();
+		long now = System.currentTimeMillis();
+		assertEquals(0, entry.addRequestor(peers[0], now, (short) 10));
+		assertEquals(1, entry.addRequestor(peers[1], now, (short) 5));
+		assertEquals(0, entry.addRequestor(peers[0], now, (short) 8));
+		assertFalse(entry.isEmpty());
+		assertTrue(entry.estimatedSize() > size);
+		assertEquals(5, entry.minRequestorHTL((short) 18));
+		assertTrue(entry.askedByPeer(peers[0], now));
+		assertFalse(entry.askedByPeer(peers[2], now));
+		assertTrue(entry.othersWant(null));
+		// A restarted peer no longer counts.
+		when(peers[1].getBootID()).thenReturn(999L);
+		assertEquals(8, entry.minRequestorHTL((short) 18));
+		assertFalse(entry.askedByPeer(peers[1], now));
+		entry.offer();
+		verify(peers[0]).offer(key);
+		verify(peers[1], never()).offer(key);
+	}
+
+	@Test
+	public void testFailedTo() {
+		FailureTableEntry entry = new FailureTableEntry(key, peerManager);
+		long now = System.currentTimeMillis();
+		entry.failedTo(peers[0], 1000, 2000, now, (short) 10);
+		entry.failedTo(peers[1], 0, 0, now, (short) 10);
+		assertEquals(now + 1000, entry.getTimeoutTime(peers[0], (short) 10, now, false));
+		assertEquals(now + 2000, entry.getTimeoutTime(peers[0], (short) 9, now, true));
+		// Timeouts only apply at the same or a lower HTL.
+		assertEquals(-1, entry.getTimeoutTime(peers[0], (short) 11, now, true));
+		assertEquals(-1, entry.getTimeoutTime(peers[1], (short) 10, now, true));
+		assertEquals(-1, entry.getTimeoutTime(peers[2], (short) 10, now, true));
+		assertTrue(entry.askedFromPeer(peers[1], now));
+		assertFalse(entry.askedFromPeer(peers[2], now));
+		// Removing a peer forgets about it.
+		peerManager.releasePeerIndex(peers[0]);
+		assertEquals(-1, entry.getTimeoutTime(peers[0], (short) 10, now, false));
+		assertFalse(entry.askedFromPeer(peers[0], now));
+		assertFalse(entry.cleanup());
+		assertEquals(FailureTableEntry.BASE_SIZE + 8 * FailureTableEntry.REQUESTED_FIELDS, entry.estimatedSize());
+		when(peers[1].isConnected()).thenReturn(false);
+		assertTrue(entry.cleanup());
+		assertTrue(entry.isEmpty());
+	}
+
+}
@@ -90,7 +90,7 @@ public class NPFPacketTest {
 		assertEquals(8, frag.fragmentLength);
 		assertEquals(0, frag.fragmentOffset);
 		assertEquals(8, frag.messageLength);
-		assertTrue(Arrays.equals(frag.fragmentData, new byte[] { (byte)0x01, (byte)0x23, (byte)0x45,
+		assertTrue(Arrays.equals(fragmentData(frag), new byte[] { (byte)0x01, (byte)0x23, (byte)0x45,
 		                (byte)0x67, (byte)0x89, (byte)0xAB, (byte)0xCD, (byte)0xEF }));
 
 		assertFalse(r.getError());
@@ -121,7 +121,7 @@ public class NPFPacketTest {
 		assertEquals(8, frag.fragmentLength);
 		assertEquals(0, frag.fragmentOffset);
 		assertEquals(8, frag.messageLength);
-		assertTrue(Arrays.equals(frag.fragmentData, new byte[] { (byte)0x01, (byte)0x23, (byte)0x45, (byte)0x67, (byte)0x89,
+		assertTrue(Arrays.equals(fragmentData(frag), new byte[] { (byte)0x01, (byte)0x23, (byte)0x45, (byte)0x67, (byte)0x89,
 		                (byte)0xAB, (byte)0xCD, (byte)0xEF }));
 
 		// Check second fragment
@@ -133,7 +133,7 @@ public class NPFPacketTest {
 		assertEquals(8, frag.fragmentLength);
 		assertEquals(0, frag.fragmentOffset);
 		assertEquals(8, frag.messageLength);
-		assertTrue(Arrays.equals(frag.fragmentData, new byte[] { (byte)0x01, (byte)0x23, (byte)0x45, (byte)0x67, (byte)0x89,
+		assertTrue(Arrays.equals(fragmentData(frag), new byte[] { (byte)0x01, (byte)0x23, (byte)0x45, (byte)0x67, (byte)0x89,
 		                (byte)0xAB, (byte)0xCD, (byte)0xEF }));
 
 		assertFalse(r.getError());
@@ -246,7 +246,7 @@ public class NPFPacketTest {
 
 		MessageFragment f = r.getFragments().get(0);
 		assertEquals(0, f.fragmentLength);
-		assertEquals(0, f.fragmentData.length);
+		assertEquals(0, fragmentData(f).length);
 		assertEquals(0, f.messageID);
 	}
 
@@ -435,7 +435,7 @@ public class NPFPacketTest {
 		assertEquals(0, received.countAcks());
 		assertEquals(1, received.getLossyMessages().size());
 		assertEquals(encoded.length, received.getLength());
-		byte[] decodedFragData = received.getFragments().get(0).fragmentData;
+		byte[] decodedFragData = fragmentData(received.getFragments().get(0));
 		checkEquals(fragData, decodedFragData);
 		byte[] decodedLossyMessage = received.getLossyMessages().get(0);
 		checkEquals(lossyFragment, decodedLossyMessage);
@@ -458,7 +458,7 @@ public class NPFPacketTest {
 		assertEquals(0, received.countAcks());
 		assertEquals(2, received.getLossyMessages().size());
 		assertEquals(encoded.length, received.getLength());
-		byte[] decodedFragData = received.getFragments().get(0).fragmentData;
+		byte[] decodedFragData = fragmentData(received.getFragments().get(0));
 		checkEquals(fragData, decodedFragData);
 		byte[] decodedLossyMessage = received.getLossyMessages().get(0);
 		checkEquals(lossyFragment, decodedLossyMessage);
@@ -485,7 +485,7 @@ public class NPFPacketTest {
 		assertEquals("Seed was "+randomSeed, 2, received.getLossyMessages().size());
 		assertEquals(p.getLength(), received.getLength());
 		assertEquals(encoded.length - 20, received.getLength());
-		byte[] decodedFragData = received.getFragments().get(0).fragmentData;
+		byte[] decodedFragData = fragmentData(received.getFragments().get(0));
 		checkEquals(fragData, decodedFragData);
 		byte[] decodedLossyMessage = received.getLossyMessages().get(0);
 		checkEquals(lossyFragment, decodedLossyMessage);
@@ -510,4 +510,9 @@ public class NPFPacketTest {
 			}
 		}
 	}
+
+	/** Received fragments refer to the packet buffer, so copy out just the fragment. */
+	private static byte[] fragmentData(MessageFragment f) {
+		return Arrays.copyOfRange(f.fragmentData, f.dataOffset, f.dataOffset + f.fragmentLength);
+	}
 }
@@ -2,6 +2,7 @@ package freenet.node;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 import freenet.io.comm.AsyncMessageCallback;
@@ -188,6 +189,12 @@ public class NullBasePeerNode implements BasePeerNode {
 	    sentEncryptedPacket = data;
 	}
 
+	@Override
+	public void sendEncryptedPacket(byte[] data, int offset, int length) throws LocalAddressException {
+	    // The buffer is reused.
+	    sentEncryptedPacket = Arrays.copyOfRange(data, offset, offset + length);
+	}
+
 	@Override
 	public void sentPacket() {
 		// Do nothing
@@ -0,0 +1,99 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.HMAC;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.ciphers.Rijndael;
+
+public class PacketCipherTest {
+
+	private static final int HMAC_LENGTH = 10;
+
+	private final Random random = new Random(1234);
+
+	private BlockCipher cipher() throws Exception {
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		BlockCipher cipher = new Rijndael();
+		cipher.initialize(key);
+		return cipher;
+	}
+
+	/** Encrypts the way NewPacketFormat did before, creating everything for each packet. */
+	private static byte[] reference(byte[] plaintext, BlockCipher ivCipher, byte[] ivNonce, BlockCipher payloadCipher, byte[] hmacKey) {
+		byte[] data = new byte[plaintext.length + HMAC_LENGTH];
+		System.arraycopy(plaintext, 0, data, HMAC_LENGTH, plaintext.length);
+		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
+		System.arraycopy(ivNonce, 0, IV, 0, IV.length);
+		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
+		ivCipher.encipher(IV, IV);
+		PCFBMode pcfb = PCFBMode.create(payloadCipher, IV);
+		pcfb.blockEncipher(data, HMAC_LENGTH, plaintext.length);
+		byte[] text = Arrays.copyOfRange(data, HMAC_LENGTH, data.length);
+		byte[] hash = HMAC.macWithSHA256(hmacKey, text);
+		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
+		return data;
+	}
+
+	@Test
+	public void testSameAsReference() throws Exception {
+		BlockCipher ivCipher = cipher();
+		BlockCipher payloadCipher = cipher();
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+		PacketCipher packetCipher = new PacketCipher(ivCipher, ivNonce, payloadCipher, hmacKey);
+		byte[] buf = new byte[1500];
+		// Reusing the same state and buffer for each packet.
+		for(int i=0;i<20;i++) {
+			byte[] plaintext = new byte[5 + random.nextInt(1400)];
+			random.nextBytes(plaintext);
+			int offset = random.nextInt(buf.length - plaintext.length - HMAC_LENGTH);
+			System.arraycopy(plaintext, 0, buf, offset + HMAC_LENGTH, plaintext.length);
+			packetCipher.encrypt(buf, offset, plaintext.length + HMAC_LENGTH, HMAC_LENGTH);
+			byte[] expected = reference(plaintext, ivCipher, ivNonce, payloadCipher, hmacKey);
+			assertArrayEquals(expected, Arrays.copyOfRange(buf, offset, offset + expected.length));
+		}
+	}
+
+	@Test
+	public void testDecryptInPlace() throws Exception {
+		BlockCipher ivCipher = cipher();
+		BlockCipher payloadCipher = cipher();
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+		PacketCipher encrypter = new PacketCipher(ivCipher, ivNonce, payloadCipher, hmacKey);
+		PacketCipher decrypter = new PacketCipher(ivCipher, ivNonce, payloadCipher, hmacKey);
+		byte[] buf = new byte[1500];
+		for(int i=0;i<20;i++) {
+			byte[] plaintext = new byte[5 + random.nextInt(1400)];
+			random.nextBytes(plaintext);
+			int sequenceNumber = ((plaintext[0] & 0xFF) << 24) | ((plaintext[1] & 0xFF) << 16)
+					| ((plaintext[2] & 0xFF) << 8) | (plaintext[3] & 0xFF);
+			int length = plaintext.length + HMAC_LENGTH;
+			int offset = random.nextInt(buf.length - length);
+			System.arraycopy(plaintext, 0, buf, offset + HMAC_LENGTH, plaintext.length);
+			encrypter.encrypt(buf, offset, length, HMAC_LENGTH);
+			byte[] encrypted = Arrays.copyOfRange(buf, offset, offset + length);
+			// Wrong HMAC: rejected and left alone.
+			buf[offset + random.nextInt(length)] ^= 1;
+			byte[] tampered = buf.clone();
+			assertFalse(decrypter.decrypt(buf, offset, length, HMAC_LENGTH, sequenceNumber));
+			assertArrayEquals(tampered, buf);
+			System.arraycopy(encrypted, 0, buf, offset, length);
+			assertTrue(decrypter.decrypt(buf, offset, length, HMAC_LENGTH, sequenceNumber));
+			assertArrayEquals(plaintext, Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length));
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.io.comm.UdpSocketHandler;
+import freenet.support.TokenBucket;
+import freenet.support.math.MersenneTwister;
+
+public class PacketSenderWorkerTest {
+
+	private static final int WORKERS = 4;
+	private static final int PEERS = 40;
+	private static final int PACKETS = 20;
+
+	/** What happened to one peer. */
+	private static class PeerRecord {
+		final AtomicInteger remaining = new AtomicInteger(PACKETS);
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger lostChecks = new AtomicInteger();
+		final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+		volatile boolean overlapped;
+
+		void enter() {
+			threads.add(Thread.currentThread());
+			if(inside.incrementAndGet() != 1) overlapped = true;
+			Thread.yield();
+			inside.decrementAndGet();
+		}
+	}
+
+	private static PeerNode mockPeer(final PeerRecord record) throws Exception {
+		PeerNode pn = mock(PeerNode.class);
+		when(pn.isConnected()).thenReturn(true);
+		when(pn.shouldThrottle()).thenReturn(false);
+		when(pn.fullPacketQueued()).thenReturn(false);
+		when(pn.timeSendAcks()).thenReturn(Long.MAX_VALUE);
+		when(pn.timeCheckForLostPackets()).thenReturn(Long.MAX_VALUE);
+		when(pn.getNextUrgentTime(anyLong())).thenAnswer(new Answer<Long>() {
+
+			@Override
+			public Long answer(InvocationOnMock invocation) {
+				return record.remaining.get() > 0 ? 0 : Long.MAX_VALUE;
+			}
+
+		});
+		doAnswer(new Answer<Void>() {
+
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				record.lostChecks.incrementAndGet();
+				record.enter();
+				return null;
+			}
+
+		}).when(pn).checkForLostPackets();
+		when(pn.maybeSendPacket(anyLong(), anyBoolean())).thenAnswer(new Answer<Boolean>() {
+
+			@Override
+			public Boolean answer(InvocationOnMock invocation) {
+				record.enter();
+				return record.remaining.decrementAndGet() >= 0;
+			}
+
+		});
+		return pn;
+	}
+
+	@Test
+	public void testPeersOwnedByOneWorker() throws Exception {
+		PeerRecord[] records = new PeerRecord[PEERS];
+		PeerNode[] peers = new PeerNode[PEERS];
+		for(int i=0;i<PEERS;i++) {
+			records[i] = new PeerRecord();
+			peers[i] = mockPeer(records[i]);
+		}
+		Node node = mock(Node.class);
+		PeerManager peerManager = mock(PeerManager.class);
+		when(peerManager.myPeers()).thenReturn(peers);
+		when(node.getPeers()).thenReturn(peerManager);
+		when(node.createRandom()).thenAnswer(new Answer<MersenneTwister>() {
+
+			@Override
+			public MersenneTwister answer(InvocationOnMock invocation) {
+				return new MersenneTwister(1234);
+			}
+
+		});
+		// Plenty of bandwidth.
+		when(node.getOutputThrottle()).thenReturn(new TokenBucket(Long.MAX_VALUE / 2, 1, Long.MAX_VALUE / 2));
+		NodeCrypto crypto = mock(NodeCrypto.class);
+		UdpSocketHandler socket = mock(UdpSocketHandler.class);
+		when(socket.getMaxPacketSize()).thenReturn(1280);
+		when(crypto.getSocket()).thenReturn(socket);
+		when(node.getDarknetCrypto()).thenReturn(crypto);
+
+		PacketSenderWorker[] workers = new PacketSenderWorker[WORKERS];
+		for(int i=0;i<WORKERS;i++) {
+			workers[i] = new PacketSenderWorker(node, i, WORKERS);
+			workers[i].start();
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		for(PeerRecord record : records) {
+			while(record.remaining.get() > 0 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		}
+		for(int i=0;i<PEERS;i++) {
+			PeerRecord record = records[i];
+			assertTrue("Peer "+i+" still has packets to send", record.remaining.get() <= 0);
+			assertTrue("Peer "+i+" was never checked for lost packets", record.lostChecks.get() > 0);
+			assertFalse("Peer "+i+" was used by two threads at once", record.overlapped);
+			assertEquals("Peer "+i+" was used by more than one worker", 1, record.threads.size());
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.node.RequestTracker.CountedRequests;
+import freenet.support.Ticker;
+
+/**
+ * Checks the RequestTracker's running counters against counting the running requests the slow way.
+ */
+public class RequestTrackerTest {
+
+	private final Random random = new Random(1234);
+	private RequestTracker tracker;
+	private Node node;
+	private PeerNode[] peers;
+	private long nextUID;
+
+	@Before
+	public void setUp() throws Exception {
+		PeerManager peerManager = mock(PeerManager.class);
+		when(peerManager.myPeers()).thenReturn(new PeerNode[0]);
+		tracker = new RequestTracker(peerManager, mock(Ticker.class));
+		node = mock(Node.class);
+		when(node.getTracker()).thenReturn(tracker);
+		Field myRef = PeerNode.class.getDeclaredField("myRef");
+		myRef.setAccessible(true);
+		peers = new PeerNode[4];
+		for(int i=0;i<peers.length;i++) {
+			peers[i] = mock(PeerNode.class);
+			myRef.set(peers[i], new WeakReference<PeerNode>(peers[i]));
+		}
+	}
+
+	@Test
+	public void testSimple() {
+		RequestTag tag = new RequestTag(false, RequestTag.START.REMOTE, peers[0], false, nextUID++, node);
+		assertTrue(tracker.lockUID(tag));
+		CountedRequests counted = countFrom(peers[0], false, false, false, false, false, 2, false);
+		assertEquals(1, counted.total());
+		assertEquals(0, counted.expectedTransfersIn());
+		tag.setAccepted();
+		counted = countFrom(peers[0], false, false, false, false, false, 2, false);
+		assertEquals(1, counted.expectedTransfersIn());
+		assertEquals(1, counted.expectedTransfersOut());
+		assertEquals(0, countFrom(peers[1], false, false, false, false, false, 2, false).total());
+		tag.reassignToSelf();
+		assertEquals(0, countFrom(peers[0], false, false, false, false, false, 2, false).total());
+		assertEquals(1, countFrom(null, false, false, false, false, false, 2, false).total());
+		tracker.unlockUID(tag, false, true);
+		assertEquals(0, countFrom(null, false, false, false, false, false, 2, false).total());
+		assertEquals(0, count(false, false, false, false, false, 2, false).total());
+	}
+
+	@Test
+	public void testRandom() {
+		List<UIDTag> tags = new ArrayList<UIDTag>();
+		for(int i=0;i<2000;i++) {
+			int op = random.nextInt(10);
+			if(op < 3 || tags.isEmpty()) {
+				UIDTag tag = createTag();
+				if(tracker.lockUID(tag))
+					tags.add(tag);
+			} else if(op == 3) {
+				UIDTag tag = tags.remove(random.nextInt(tags.size()));
+				tracker.unlockUID(tag, true, true);
+			} else if(op == 4) {
+				tracker.onRestartOrDisconnect(peers[random.nextInt(peers.length)]);
+			} else {
+				changeTag(tags.get(random.nextInt(tags.size())));
+			}
+			if(i % 20 == 0)
+				checkCounts();
+		}
+		checkCounts();
+		for(UIDTag tag : tags)
+			tracker.unlockUID(tag, true, true);
+		checkCounts();
+		assertEquals(0, count(false, false, false, false, false, 0, true).total());
+		assertEquals(0, countFrom(null, false, false, false, false, false, 0, true).total());
+	}
+
+	private UIDTag createTag() {
+		PeerNode source = random.nextInt(4) == 0 ? null : peers[random.nextInt(peers.length)];
+		boolean ssk = random.nextBoolean();
+		boolean realTime = random.nextBoolean();
+		switch(random.nextInt(3)) {
+		case 0:
+			return new RequestTag(ssk, source == null ? RequestTag.START.LOCAL : RequestTag.START.REMOTE, source, realTime, nextUID++, node);
+		case 1:
+			return new InsertTag(ssk, source == null ? InsertTag.START.LOCAL : InsertTag.START.REMOTE, source, realTime, nextUID++, node);
+		default:
+			return new OfferReplyTag(ssk, source, realTime, nextUID++, node);
+		}
+	}
+
+	private void changeTag(UIDTag tag) {
+		PeerNode peer = peers[random.nextInt(peers.length)];
+		switch(random.nextInt(10)) {
+		case 0:
+			tag.setAccepted();
+			break;
+		case 1:
+			tag.setNotRoutedOnwards();
+			break;
+		case 2:
+			tag.reassignToSelf();
+			break;
+		case 3:
+			tag.timedOutToHandlerButContinued();
+			break;
+		case 4:
+			tag.onRestartOrDisconnectSource();
+			break;
+		case 5:
+			if(tag instanceof RequestTag)
+				((RequestTag)tag).completedDownstreamTransfers();
+			break;
+		case 6:
+			tag.addRoutedTo(peer, random.nextBoolean());
+			break;
+		case 7:
+			tag.handlingTimeout(peer);
+			break;
+		case 8:
+			tag.removeRoutingTo(peer);
+			break;
+		default:
+			// May unlock the tag, or reassign it to us via mustUnlock().
+			tag.unlockHandler(true);
+		}
+	}
+
+	private void checkCounts() {
+		for(int flags=0;flags<32;flags++) {
+			boolean local = (flags & 1) != 0;
+			boolean ssk = (flags & 2) != 0;
+			boolean insert = (flags & 4) != 0;
+			boolean offer = (flags & 8) != 0;
+			boolean realTime = (flags & 16) != 0;
+			for(int transfersPerInsert : new int[] { 0, 3 }) {
+				for(boolean ignoreLocalVsRemote : new boolean[] { false, true }) {
+					CountedRequests counted = new CountedRequests();
+					CountedRequests countedSR = new CountedRequests();
+					tracker.countRequests(local, ssk, insert, offer, realTime, transfersPerInsert, ignoreLocalVsRemote, counted, countedSR);
+					CountedRequests scanned = new CountedRequests();
+					CountedRequests scannedSR = new CountedRequests();
+					tracker.scanRequests(local, ssk, insert, offer, realTime, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+					assertSame(scanned, counted);
+					assertSame(scannedSR, countedSR);
+					Map<PeerNode, CountedRequests> byPeer = new HashMap<PeerNode, CountedRequests>();
+					tracker.countAllRequestsByIncomingPeer(false, local, ssk, insert, offer, realTime, transfersPerInsert, ignoreLocalVsRemote, byPeer);
+					for(PeerNode source : new PeerNode[] { null, peers[0], peers[1], peers[2], peers[3] }) {
+						counted = new CountedRequests();
+						countedSR = new CountedRequests();
+						tracker.countRequests(source, false, local, ssk, insert, offer, realTime, transfersPerInsert, ignoreLocalVsRemote, counted, countedSR);
+						scanned = new CountedRequests();
+						scannedSR = new CountedRequests();
+						if(!(source != null && local))
+							tracker.scanRequestsFrom(source, local, ssk, insert, offer, realTime, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+						assertSame(scanned, counted);
+						assertSame(scannedSR, countedSR);
+						if(!local) {
+							CountedRequests fromMap = byPeer.get(source);
+							if(fromMap == null) fromMap = new CountedRequests();
+							assertSame(scanned, fromMap);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static void assertSame(CountedRequests expected, CountedRequests actual) {
+		assertEquals(expected.toString(), actual.toString());
+	}
+
+	private CountedRequests count(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTime, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+		CountedRequests counted = new CountedRequests();
+		tracker.countRequests(local, ssk, insert, offer, realTime, transfersPerInsert, ignoreLocalVsRemote, counted, null);
+		return counted;
+	}
+
+	private CountedRequests countFrom(PeerNode source, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTime, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+		CountedRequests counted = new CountedRequests();
+		tracker.countRequests(source, false, local, ssk, insert, offer, realTime, transfersPerInsert, ignoreLocalVsRemote, counted, null);
+		return counted;
+	}
+
+}
@@ -0,0 +1,155 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that PeerManager.closerPeer() using the routing index chooses the same peers as the
+ * full scan over all the connected peers.
+ */
+public class RoutingIndexTest {
+
+	private final Random random = new Random(4321);
+	private Field connectedPeers;
+	private Field location;
+
+	@Before
+	public void setUp() throws Exception {
+		connectedPeers = PeerManager.class.getDeclaredField("connectedPeers");
+		connectedPeers.setAccessible(true);
+		location = PeerNode.class.getDeclaredField("location");
+		location.setAccessible(true);
+	}
+
+	@Test
+	public void testCursor() throws Exception {
+		PeerNode[] peers = new PeerNode[] { createPeer(0.1, 0.5, 0.95), createPeer(0.3) };
+		RoutingIndex index = new RoutingIndex(peers, 0);
+		assertEquals(4, index.size());
+		RoutingIndex.Cursor cursor = index.cursor(0.02);
+		double[] expected = { 0.95, 0.1, 0.3, 0.5 };
+		for(double loc : expected) {
+			assertTrue(cursor.next());
+			assertEquals(loc, cursor.location(), 0.0);
+			assertEquals(Location.distance(loc, 0.02), cursor.distance(), 0.0);
+		}
+		assertFalse(cursor.next());
+		assertEquals(0.1, index.peerLocation(0), 0.0);
+		assertEquals(0.3, index.peerLocation(1), 0.0);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		PeerManager pm = createPeerManager(0.5);
+		setConnectedPeers(pm, new PeerNode[0]);
+		assertNull(pm.closerPeer(null, new HashSet<PeerNode>(), 0.3, true, false, 0, null, 2.0, null, (short) 10, 0, false, false, null, false, System.currentTimeMillis(), false));
+	}
+
+	@Test
+	public void testRandom() throws Exception {
+		int fromIndex = 0;
+		for(int trial=0;trial<1000;trial++) {
+			boolean quantise = random.nextBoolean();
+			PeerManager pm = createPeerManager(randomLocation(quantise));
+			PeerNode[] peers = new PeerNode[random.nextInt(25)];
+			for(int i=0;i<peers.length;i++)
+				peers[i] = createRandomPeer(quantise);
+			setConnectedPeers(pm, peers);
+			for(int round=0;round<5;round++) {
+				if(compare(pm, peers, quantise))
+					fromIndex++;
+				if(peers.length == 0) break;
+				// Move some peers, which must invalidate the index.
+				PeerNode moved = peers[random.nextInt(peers.length)];
+				moved.location.updateLocation(randomLocation(quantise), randomLocations(quantise));
+				pm.locationsChanged();
+				if(random.nextInt(3) == 0) {
+					peers = Arrays.copyOf(peers, peers.length - 1);
+					setConnectedPeers(pm, peers);
+				}
+			}
+		}
+		// Most of the time the index should be enough.
+		assertTrue("Only used the index " + fromIndex + " times", fromIndex > 2000);
+	}
+
+	/** @return True if the index found the peer. */
+	private boolean compare(PeerManager pm, PeerNode[] peers, boolean quantise) {
+		Set<PeerNode> routedTo = new HashSet<PeerNode>();
+		PeerNode source = null;
+		if(peers.length > 0) {
+			for(int i=random.nextInt(3);i>0;i--)
+				routedTo.add(peers[random.nextInt(peers.length)]);
+			if(random.nextBoolean())
+				source = peers[random.nextInt(peers.length)];
+		}
+		double target = randomLocation(quantise);
+		boolean ignoreSelf = random.nextBoolean();
+		double maxDistance = random.nextInt(4) == 0 ? random.nextDouble() * 0.5 : 2.0;
+		short htl = (short) random.nextInt(19);
+		long now = System.currentTimeMillis();
+		PeerNode expected = pm.closerPeerScan(peers, source, routedTo, target, ignoreSelf, false, 0, null, maxDistance, null, htl, 0, false, false, null, false, now, false);
+		PeerNode indexed = pm.closestNotBackedOff(peers, source, routedTo, target, ignoreSelf, 0, maxDistance, htl, 0, false, now, false);
+		if(indexed != null)
+			assertSame(expected, indexed);
+		else if(expected != null)
+			assertTrue(expected.isRoutingBackedOff(0, false));
+		assertSame(expected, pm.closerPeer(source, routedTo, target, ignoreSelf, false, 0, null, maxDistance, null, htl, 0, false, false, null, false, now, false));
+		return indexed != null;
+	}
+
+	private PeerManager createPeerManager(double myLoc) {
+		Node node = mock(Node.class);
+		when(node.getLocation()).thenReturn(myLoc);
+		when(node.isEnablePerNodeFailureTables()).thenReturn(true);
+		return new PeerManager(node, mock(SemiOrderedShutdownHook.class));
+	}
+
+	private void setConnectedPeers(PeerManager pm, PeerNode[] peers) throws IllegalAccessException {
+		connectedPeers.set(pm, peers);
+	}
+
+	private PeerNode createPeer(double loc, double... peersLocs) throws IllegalAccessException {
+		PeerNode peer = mock(PeerNode.class);
+		PeerLocation peerLocation = new PeerLocation(Double.toString(loc));
+		if(peersLocs.length > 0)
+			peerLocation.updateLocation(loc, peersLocs);
+		location.set(peer, peerLocation);
+		when(peer.getLocation()).thenCallRealMethod();
+		when(peer.getPeersLocationArray()).thenCallRealMethod();
+		when(peer.getClosestPeerLocation(anyDouble(), anySetOf(Double.class))).thenCallRealMethod();
+		return peer;
+	}
+
+	private PeerNode createRandomPeer(boolean quantise) throws IllegalAccessException {
+		PeerNode peer = createPeer(randomLocation(quantise), randomLocations(quantise));
+		when(peer.isRoutable()).thenReturn(random.nextInt(10) != 0);
+		when(peer.isDisconnecting()).thenReturn(random.nextInt(20) == 0);
+		when(peer.isRoutingBackedOff(anyLong(), anyBoolean())).thenReturn(random.nextInt(5) < 2);
+		when(peer.shallWeRouteAccordingToOurPeersLocation(anyInt())).thenReturn(random.nextInt(10) < 7);
+		when(peer.selectionRate()).thenReturn(random.nextInt(20) == 0 ? 50.0 : random.nextDouble());
+		return peer;
+	}
+
+	private double randomLocation(boolean quantise) {
+		return quantise ? random.nextInt(64) / 64.0 : random.nextDouble();
+	}
+
+	private double[] randomLocations(boolean quantise) {
+		double[] locs = new double[random.nextInt(10)];
+		for(int i=0;i<locs.length;i++)
+			locs[i] = randomLocation(quantise);
+		return locs;
+	}
+
+}
@@ -0,0 +1,106 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.io.comm.Peer;
+
+public class SessionKeyIndexTest {
+
+	private static final int WATCH_LIST_LENGTH = 1024;
+
+	private final Random random = new Random(1234);
+	private SessionKeyIndex index;
+	private PeerNode pn;
+	private SessionKey key;
+	private Peer peer;
+
+	@Before
+	public void setUp() throws Exception {
+		index = new SessionKeyIndex();
+		pn = mock(PeerNode.class);
+		key = new SessionKey(pn, null, null, null, null, null, null, null, new NewPacketFormatKeyContext(0, 0), 1);
+		when(pn.getCurrentKeyTracker()).thenReturn(key);
+		NewPacketFormatKeyContext context = key.packetContext;
+		context.seqNumWatchList = new byte[WATCH_LIST_LENGTH][4];
+		for(byte[] encrypted : context.seqNumWatchList)
+			random.nextBytes(encrypted);
+		peer = new Peer(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 1234);
+	}
+
+	/** A packet with the encrypted sequence number at this position in the watch list. */
+	private byte[] packet(int watchListIndex) {
+		byte[] buf = new byte[100];
+		random.nextBytes(buf);
+		byte[][] watchList = key.packetContext.seqNumWatchList;
+		int i = (key.packetContext.watchListPointer + watchListIndex) % watchList.length;
+		System.arraycopy(watchList[i], 0, buf, NewPacketFormat.HMAC_LENGTH, 4);
+		return buf;
+	}
+
+	@Test
+	public void testByHint() {
+		assertNull(index.getByHint(packet(WATCH_LIST_LENGTH / 2 + 1), 0, 100));
+		index.decoded(peer, pn);
+		assertEquals(SessionKeyIndex.HINT_WINDOW, index.hints());
+		// The next sequence numbers are indexed, the ones already received are not.
+		assertSame(pn, index.getByHint(packet(WATCH_LIST_LENGTH / 2 + 1), 0, 100));
+		assertSame(pn, index.getByHint(packet(WATCH_LIST_LENGTH / 2 + SessionKeyIndex.HINT_WINDOW), 0, 100));
+		assertNull(index.getByHint(packet(WATCH_LIST_LENGTH / 2), 0, 100));
+		assertNull(index.getByHint(packet(WATCH_LIST_LENGTH / 2 + SessionKeyIndex.HINT_WINDOW + 1), 0, 100));
+		// Too short.
+		assertNull(index.getByHint(packet(WATCH_LIST_LENGTH / 2 + 1), 0, NewPacketFormat.HMAC_LENGTH + 3));
+	}
+
+	@Test
+	public void testHintAtOffset() {
+		index.decoded(peer, pn);
+		byte[] packet = packet(WATCH_LIST_LENGTH / 2 + 2);
+		byte[] buf = new byte[200];
+		System.arraycopy(packet, 0, buf, 50, packet.length);
+		assertSame(pn, index.getByHint(buf, 50, packet.length));
+	}
+
+	@Test
+	public void testOnlyReindexedWhenMoved() {
+		index.decoded(peer, pn);
+		NewPacketFormatKeyContext context = key.packetContext;
+		context.watchListPointer = 1;
+		context.watchListOffset = 1;
+		index.decoded(peer, pn);
+		assertEquals(SessionKeyIndex.HINT_WINDOW, index.hints());
+		context.watchListPointer = SessionKeyIndex.HINT_WINDOW / 2;
+		context.watchListOffset = SessionKeyIndex.HINT_WINDOW / 2;
+		index.decoded(peer, pn);
+		assertEquals(SessionKeyIndex.HINT_WINDOW * 3 / 2, index.hints());
+		assertSame(pn, index.getByHint(packet(WATCH_LIST_LENGTH / 2 + SessionKeyIndex.HINT_WINDOW), 0, 100));
+	}
+
+	@Test
+	public void testRekeyed() {
+		index.decoded(peer, pn);
+		byte[] packet = packet(WATCH_LIST_LENGTH / 2 + 1);
+		when(pn.getCurrentKeyTracker()).thenReturn(null);
+		assertNull(index.getByHint(packet, 0, packet.length));
+		assertEquals(SessionKeyIndex.HINT_WINDOW - 1, index.hints());
+	}
+
+	@Test
+	public void testByAddress() throws Exception {
+		assertNull(index.getByAddress(peer));
+		index.decoded(peer, pn);
+		assertSame(pn, index.getByAddress(peer));
+		Peer other = new Peer(InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 1235);
+		assertNull(index.getByAddress(other));
+		PeerNode pn2 = mock(PeerNode.class);
+		index.decoded(peer, pn2);
+		assertSame(pn2, index.getByAddress(peer));
+	}
+
+}
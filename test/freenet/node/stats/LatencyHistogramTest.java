@@ -0,0 +1,45 @@
+package freenet.node.stats;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.count());
+		assertEquals(0, h.percentileMicros(0.5));
+		assertEquals(0.0, h.meanMicros(), 0.0);
+	}
+
+	@Test
+	public void testBuckets() {
+		assertEquals(0, LatencyHistogram.bucketFor(0));
+		assertEquals(1, LatencyHistogram.bucketFor(1));
+		assertEquals(2, LatencyHistogram.bucketFor(2));
+		assertEquals(2, LatencyHistogram.bucketFor(3));
+		assertEquals(3, LatencyHistogram.bucketFor(4));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		for(int i = 0; i < 98; i++)
+			h.report(MICROSECONDS.toNanos(100));
+		h.report(MICROSECONDS.toNanos(5000));
+		h.report(SECONDS.toNanos(100000));
+		assertEquals(100, h.count());
+		// 100us is in [64, 128)
+		assertEquals(128, h.percentileMicros(0.5));
+		assertEquals(128, h.percentileMicros(0.98));
+		// 5000us is in [4096, 8192)
+		assertEquals(8192, h.percentileMicros(0.99));
+		assertEquals(Long.MAX_VALUE, h.percentileMicros(1.0));
+	}
+
+}
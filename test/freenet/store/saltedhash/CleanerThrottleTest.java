@@ -0,0 +1,44 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CleanerThrottleTest {
+
+	@Test
+	public void testIdle() {
+		CleanerThrottle throttle = new CleanerThrottle();
+		assertEquals(0, throttle.delay(0, 100, 0, 0, 0));
+		assertEquals(0, throttle.delay(5000, 100, 0, 0, 0));
+		assertEquals(0, throttle.delay(10000, 100, 0, 0, 0));
+	}
+
+	@Test
+	public void testBusy() {
+		CleanerThrottle throttle = new CleanerThrottle();
+		throttle.delay(0, 100, 0, 0, 0);
+		// BUSY_OPS_PER_SECOND: sleep as long as we worked.
+		assertEquals(100, throttle.delay(1000, 100, CleanerThrottle.BUSY_OPS_PER_SECOND, 0, 0));
+		// Not measured again within the second.
+		assertEquals(50, throttle.delay(1500, 50, CleanerThrottle.BUSY_OPS_PER_SECOND * 100, 0, 0));
+		// Twice as busy.
+		long ops = 3 * CleanerThrottle.BUSY_OPS_PER_SECOND;
+		assertEquals(200, throttle.delay(2000, 100, ops, 0, 0));
+		// Very busy, capped.
+		ops += CleanerThrottle.BUSY_OPS_PER_SECOND * 1000;
+		assertEquals(CleanerThrottle.MAX_DELAY, throttle.delay(3000, 100, ops, 0, 0));
+	}
+
+	@Test
+	public void testSlowReads() {
+		CleanerThrottle throttle = new CleanerThrottle();
+		throttle.delay(0, 100, 0, 0, 0);
+		// Few operations, but they are slow.
+		assertEquals(200, throttle.delay(1000, 100, 1, 1, CleanerThrottle.SLOW_READ_NANOS * 2));
+		// Fast again.
+		long nanos = CleanerThrottle.SLOW_READ_NANOS * 2 + 10;
+		assertEquals(0, throttle.delay(2000, 100, 1, 11, nanos));
+	}
+
+}
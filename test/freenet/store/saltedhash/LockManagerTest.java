@@ -0,0 +1,59 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+
+import org.junit.Test;
+
+public class LockManagerTest {
+
+	@Test
+	public void testSameStripe() {
+		LockManager manager = new LockManager();
+		// Different offsets in the same stripe don't block each other.
+		Condition a = manager.lockEntry(1);
+		Condition b = manager.lockEntry(1 + LockManager.STRIPES);
+		Condition c = manager.lockEntry(1 + 2 * LockManager.STRIPES);
+		assertNotNull(a);
+		assertNotNull(b);
+		assertNotNull(c);
+		manager.unlockEntry(1 + LockManager.STRIPES, b);
+		manager.unlockEntry(1, a);
+		manager.unlockEntry(1 + 2 * LockManager.STRIPES, c);
+		assertEquals(3, manager.getLockWait().count());
+		manager.shutdown();
+		assertNull(manager.lockEntry(1));
+	}
+
+	@Test
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager manager = new LockManager();
+		final AtomicInteger holders = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						long offset = 5;
+						Condition c = manager.lockEntry(offset);
+						if (c == null || holders.incrementAndGet() != 1)
+							failures.incrementAndGet();
+						holders.decrementAndGet();
+						manager.unlockEntry(offset, c);
+					}
+				}
+			};
+		}
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, failures.get());
+		assertEquals(threads.length * 1000, manager.getLockWait().count());
+	}
+
+}
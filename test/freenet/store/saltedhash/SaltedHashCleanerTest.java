@@ -0,0 +1,279 @@
+package freenet.store.saltedhash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.CHKStore;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.Ticker;
+import freenet.support.TrivialTicker;
+import freenet.support.api.Bucket;
+import freenet.support.compress.Compressor;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/** Test that a resize or slot filter rebuild which is stopped part way carries on from where it
+ * got to when the store is opened again, and that no keys are lost either way. */
+public class SaltedHashCleanerTest {
+
+	/** Entries per region in a resize, and in a slot filter rebuild, see the Cleaner */
+	private static final int RESIZE_REGION = 128;
+	private static final int REBUILD_REGION = 4096;
+
+	private static final String NAME = "testSaltedHashCleaner";
+
+	private Random weakPRNG = new Random(12340);
+	private PooledExecutor exec = new PooledExecutor();
+	private Ticker ticker = new TrivialTicker(exec);
+
+	@Before
+	public void setUp() {
+		ResizablePersistentIntBuffer.setPersistenceTime(-1);
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		exec.start();
+	}
+
+	@After
+	public void tearDown() {
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
+	}
+
+	@Test
+	public void testResizeResumes() throws Exception {
+		checkResize(8 * RESIZE_REGION, 16 * RESIZE_REGION, false);
+	}
+
+	@Test
+	public void testShrinkResumes() throws Exception {
+		checkResize(16 * RESIZE_REGION, 8 * RESIZE_REGION, false);
+	}
+
+	@Test
+	public void testResizeResumesAfterAbort() throws Exception {
+		checkResize(8 * RESIZE_REGION, 16 * RESIZE_REGION, true);
+	}
+
+	@Test
+	public void testRebuildResumes() throws Exception {
+		checkRebuild(false);
+	}
+
+	@Test
+	public void testRebuildRestartsAfterAbort() throws Exception {
+		checkRebuild(true);
+	}
+
+	/* The stores are several times as many regions long as there are cleaner threads, so the
+	 * other threads can't finish the pass after the first one stops. */
+
+	/** Resize a store, stopping after the first region and closing it, then open it again.
+	 * The resize only depends on the metadata, so carries on even if the slot filter wasn't
+	 * written. */
+	private void checkResize(int size, int newSize, boolean abort) throws Exception {
+		File f = temporaryFolder.newFolder();
+		List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>();
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = construct(f, store, size);
+		saltStore.start(null, true);
+		for(int i=0;i<size/16;i++)
+			blocks.add(put(store, "test" + i));
+		saltStore.close();
+
+		// Opening it with a different size starts the resize.
+		store = new CHKStore();
+		saltStore = construct(f, store, newSize);
+		Recorder first = new Recorder(1);
+		saltStore.testingCleanerListener = first;
+		saltStore.start(null, true);
+		first.awaitStopped();
+		// Waits for the other cleaner threads to stop too.
+		saltStore.close(abort);
+		long checkpoint = first.checkpoint(true);
+		assertTrue(checkpoint > 0 && checkpoint < size);
+
+		store = new CHKStore();
+		saltStore = construct(f, store, newSize);
+		Recorder second = new Recorder(-1);
+		saltStore.testingCleanerListener = second;
+		saltStore.start(null, true);
+		saltStore.testingWaitForCleanerDone(50, 200);
+		// Carried on backwards from the checkpoint, rather than starting again at the end.
+		assertEquals(checkpoint, second.entries());
+		for(long[] region : second.regions())
+			assertTrue(region[1] <= checkpoint);
+		assertEquals(0, second.checkpoint(true));
+		assertEquals(newSize, saltStore.getMaxKeys());
+		checkStore(store, blocks);
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = construct(f, store, newSize);
+		saltStore.start(null, true);
+		checkStore(store, blocks);
+		saltStore.close();
+	}
+
+	/** Rebuild the slot filter of a store several regions long, stopping after the first region
+	 * and closing it, then open it again. If we closed it cleanly, the slot filter we have built
+	 * so far was written, so carry on from there, otherwise start again. */
+	private void checkRebuild(boolean abort) throws Exception {
+		int size = 8 * REBUILD_REGION;
+		File f = temporaryFolder.newFolder();
+		List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>();
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = construct(f, store, size);
+		saltStore.start(null, true);
+		for(int i=0;i<200;i++)
+			blocks.add(put(store, "test" + i));
+		saltStore.close();
+		assertTrue(new File(f, NAME + ".slotfilter").delete());
+
+		store = new CHKStore();
+		saltStore = construct(f, store, size);
+		Recorder first = new Recorder(1);
+		saltStore.testingCleanerListener = first;
+		saltStore.start(null, true);
+		first.awaitStopped();
+		// Waits for the other cleaner threads to stop too.
+		saltStore.close(abort);
+		long checkpoint = first.checkpoint(false);
+		assertTrue(checkpoint > 0 && checkpoint < size);
+
+		store = new CHKStore();
+		saltStore = construct(f, store, size);
+		Recorder second = new Recorder(-1);
+		saltStore.testingCleanerListener = second;
+		saltStore.start(null, true);
+		saltStore.testingWaitForCleanerDone(50, 200);
+		long resumedAt = abort ? 0 : checkpoint;
+		assertEquals(size - resumedAt, second.entries());
+		for(long[] region : second.regions())
+			assertTrue(region[0] >= resumedAt);
+		assertEquals(size, second.checkpoint(false));
+		checkStore(store, blocks);
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = construct(f, store, size);
+		saltStore.start(null, true);
+		checkStore(store, blocks);
+		saltStore.close();
+	}
+
+	private SaltedHashFreenetStore<CHKBlock> construct(File f, CHKStore store, long size) throws IOException {
+		// Not preallocated, so the larger stores are sparse files.
+		return SaltedHashFreenetStore.construct(f, NAME, store, weakPRNG, size, true, SemiOrderedShutdownHook.get(), false, false, ticker, null);
+	}
+
+	/** Records the regions the cleaner has processed, and stops it after a given number. */
+	private static class Recorder implements SaltedHashFreenetStore.CleanerListener {
+
+		private final int stopAfter;
+		private final CountDownLatch stopped = new CountDownLatch(1);
+		private final List<long[]> regions = new ArrayList<long[]>();
+		private final List<Long> checkpoints = new ArrayList<Long>();
+
+		/** @param stopAfter Number of regions to process before stopping, or -1 to carry on. */
+		Recorder(int stopAfter) {
+			this.stopAfter = stopAfter;
+		}
+
+		@Override
+		public synchronized boolean regionDone(long start, long end, long checkpoint) {
+			regions.add(new long[] { start, end });
+			checkpoints.add(checkpoint);
+			if(stopAfter < 0 || regions.size() < stopAfter)
+				return true;
+			stopped.countDown();
+			return false;
+		}
+
+		void awaitStopped() throws InterruptedException {
+			assertTrue(stopped.await(60, TimeUnit.SECONDS));
+		}
+
+		synchronized List<long[]> regions() {
+			return new ArrayList<long[]>(regions);
+		}
+
+		/** @return The number of entries in the regions processed. */
+		synchronized long entries() {
+			long entries = 0;
+			for(long[] region : regions)
+				entries += region[1] - region[0];
+			return entries;
+		}
+
+		/** @return How far the cleaner got, and would carry on from. Other cleaner threads may
+		 * have finished regions after we stopped, so not necessarily the last one. */
+		synchronized long checkpoint(boolean reverse) {
+			assertTrue(!checkpoints.isEmpty());
+			long checkpoint = checkpoints.get(0);
+			for(long c : checkpoints)
+				checkpoint = reverse ? Math.min(checkpoint, c) : Math.max(checkpoint, c);
+			return checkpoint;
+		}
+
+	}
+
+	private ClientCHKBlock put(CHKStore store, String test) throws CHKEncodeException, IOException {
+		ClientCHKBlock block = encodeBlockCHK(test);
+		store.put(block.getBlock(), false);
+		return block;
+	}
+
+	private void checkStore(CHKStore store, List<ClientCHKBlock> blocks)
+			throws IOException, CHKVerifyException, CHKDecodeException {
+		for(int i=0;i<blocks.size();i++) {
+			ClientCHK key = blocks.get(i).getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull("Lost key " + i, verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+	}
+
+	private String decodeBlockCHK(CHKBlock verify, ClientCHK key)
+			throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, StandardCharsets.UTF_8);
+	}
+
+	private ClientCHKBlock encodeBlockCHK(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes(StandardCharsets.UTF_8);
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short) -1, bucket.size(),
+				Compressor.DEFAULT_COMPRESSORDESCRIPTOR, null, (byte) 0);
+	}
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+}
@@ -93,6 +93,40 @@ public class SaltedHashFreenetStoreTest {
 		saltStore.close();
 	}
 
+	/* Memory mapped store, with windows smaller than the files, must be readable without mapping */
+	@Test
+	public void testMemoryMappedCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = temporaryFolder.newFolder();
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmapCHK", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.setMemoryMapped(true, 1024);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[5];
+		for(int i=0;i<blocks.length;i++) {
+			String test = "test" + i;
+			blocks[i] = encodeBlockCHK(test);
+			store.put(blocks[i].getBlock(), false);
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals(test, decodeBlockCHK(verify, key));
+		}
+		assertEquals(blocks.length, saltStore.getSessionAccessStats().readLatency().count());
+		assertEquals(blocks.length, saltStore.getSessionAccessStats().writeLatency().count());
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMmapCHK", store, weakPRNG, 20, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+		saltStore.close();
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	@Test
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
@@ -0,0 +1,84 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ParkingWaitersTest {
+
+	private final ParkingWaiters waiters = new ParkingWaiters();
+	/** LOCKING: this */
+	private boolean ready;
+
+	/** Wait for ready the way callers do: check and register under the lock, park outside it. */
+	private boolean waitForReady(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(true) {
+			long wait;
+			synchronized(this) {
+				if(ready) return true;
+				wait = deadline - System.currentTimeMillis();
+				if(wait <= 0) return false;
+				waiters.register();
+			}
+			waiters.await(wait);
+		}
+	}
+
+	private synchronized void setReady() {
+		ready = true;
+		waiters.wakeAll();
+	}
+
+	@Test
+	public void testWakeAll() throws InterruptedException {
+		final int threads = 4;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int i=0;i<threads;i++) {
+			new Thread() {
+
+				@Override
+				public void run() {
+					if(waitForReady(60000)) done.countDown();
+				}
+
+			}.start();
+		}
+		Thread.sleep(100);
+		long start = System.currentTimeMillis();
+		setReady();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	@Test
+	public void testTimeout() {
+		long start = System.currentTimeMillis();
+		assertFalse(waitForReady(100));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+	}
+
+	@Test
+	public void testWokenBeforeParking() {
+		// Woken after registering but before parking, so await() returns at once.
+		waiters.register();
+		waiters.wakeAll();
+		long start = System.currentTimeMillis();
+		waiters.await(60000);
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	@Test
+	public void testInterruptCleared() {
+		Thread.currentThread().interrupt();
+		waiters.register();
+		waiters.await(60000);
+		assertFalse(Thread.interrupted());
+		// So the next wait isn't cut short.
+		assertFalse(waitForReady(100));
+	}
+
+}
@@ -0,0 +1,168 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import org.junit.Test;
+
+public class ShardedLRUMapTest {
+
+	@Test
+	public void testPushGetRemove() {
+		ShardedLRUMap<Integer, String> map = new ShardedLRUMap<Integer, String>(3, 100, new Random(1));
+		assertEquals(4, map.segments());
+		assertTrue(map.isEmpty());
+		assertNull(map.push(1, "a"));
+		assertEquals("a", map.push(1, "b"));
+		assertEquals("b", map.get(1));
+		assertNull(map.get(2));
+		assertEquals(1, map.size());
+		assertEquals(1, map.hits());
+		assertEquals(1, map.misses());
+		assertFalse(map.removeKey(2));
+		assertTrue(map.removeKey(1));
+		assertNull(map.get(1));
+		assertTrue(map.isEmpty());
+		assertTrue(map.values().isEmpty());
+	}
+
+	@Test
+	public void testEvictionIsLRUWithinSegment() {
+		// One segment, so eviction is exact LRU.
+		ShardedLRUMap<Integer, Integer> map = new ShardedLRUMap<Integer, Integer>(1, 3, new Random(1));
+		map.push(1, 1);
+		map.push(2, 2);
+		map.push(3, 3);
+		map.push(1, 1); // Now the most recently pushed.
+		map.get(2); // Does not change the order.
+		map.push(4, 4);
+		assertNull(map.get(2));
+		assertEquals(Integer.valueOf(1), map.get(1));
+		assertEquals(1, map.evictions());
+		List<Integer> values = map.values();
+		assertEquals(3, values.size());
+		assertEquals(Integer.valueOf(3), values.get(0));
+		assertEquals(Integer.valueOf(1), values.get(1));
+		assertEquals(Integer.valueOf(4), values.get(2));
+	}
+
+	@Test
+	public void testSizeLimit() {
+		ShardedLRUMap<Integer, Integer> map = new ShardedLRUMap<Integer, Integer>(8, 800, new Random(1));
+		for(int i=0;i<10000;i++)
+			map.push(i, i);
+		assertTrue(map.size() <= 800);
+		// The segments are not perfectly even, but none should be very empty.
+		assertTrue(map.size() > 700);
+		assertEquals(10000 - map.size(), map.evictions());
+		// The most recent keys are all still there.
+		for(int i=9990;i<10000;i++)
+			assertEquals(Integer.valueOf(i), map.get(i));
+	}
+
+	@Test
+	public void testWeight() {
+		ShardedLRUMap<Integer, String> map = new ShardedLRUMap<Integer, String>(1, 10, new ToIntFunction<String>() {
+
+			@Override
+			public int applyAsInt(String value) {
+				return value.length();
+			}
+
+		}, new Random(1));
+		map.push(1, "aaaa");
+		map.push(2, "bbb");
+		assertEquals(7, map.weight());
+		map.push(1, "a"); // Reweighed, and now the most recently pushed.
+		assertEquals(4, map.weight());
+		map.push(3, "ccccccc");
+		assertEquals(1, map.evictions());
+		assertNull(map.get(2));
+		assertEquals(8, map.weight());
+		// Always keeps the value just pushed even if it is too big on its own.
+		map.push(4, "dddddddddddd");
+		assertEquals(1, map.size());
+		assertEquals(12, map.weight());
+		map.setMaxWeight(20);
+		map.push(5, "ee");
+		assertEquals(2, map.size());
+		assertTrue(map.removeKey(4));
+		assertEquals(2, map.weight());
+		map.clear();
+		assertEquals(0, map.weight());
+	}
+
+	@Test
+	public void testRemoveEldestWhile() {
+		ShardedLRUMap<Integer, Integer> map = new ShardedLRUMap<Integer, Integer>(1, 10, new Random(1));
+		for(int i=0;i<5;i++)
+			map.push(i, i);
+		map.push(0, 0);
+		assertEquals(2, map.removeEldestWhile(1, new Predicate<Integer>() {
+
+			@Override
+			public boolean test(Integer value) {
+				return value < 3;
+			}
+
+		}));
+		assertNull(map.get(1));
+		assertNull(map.get(2));
+		assertEquals(Integer.valueOf(0), map.get(0));
+		assertEquals(3, map.size());
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		final ShardedLRUMap<Integer, Integer> map = new ShardedLRUMap<Integer, Integer>(4, 500, new Random(1));
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[4];
+		for(int t=0;t<threads.length;t++) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Random random = new Random(seed);
+						for(int i=0;i<20000;i++) {
+							int key = random.nextInt(2000);
+							switch(random.nextInt(3)) {
+							case 0:
+								map.push(key, key);
+								break;
+							case 1:
+								map.removeKey(key);
+								break;
+							default:
+								Integer value = map.get(key);
+								if(value != null && value != key)
+									throw new AssertionError("Wrong value for "+key);
+							}
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertNull(failure.get());
+		assertTrue(map.size() <= 500);
+		List<Integer> values = map.values();
+		assertEquals(map.size(), values.size());
+		Set<Integer> unique = new HashSet<Integer>(values);
+		assertEquals(values.size(), unique.size());
+		for(Integer value : values)
+			assertEquals(value, map.get(value));
+	}
+
+}
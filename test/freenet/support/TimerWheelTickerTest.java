@@ -0,0 +1,272 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.node.FastRunnable;
+
+public class TimerWheelTickerTest {
+
+	private final Random random = new Random(1234);
+	/** The fake clock. */
+	private long now;
+	/** The clock at the previous pass. */
+	private long lastRun;
+	private MyTicker ticker;
+	private String failure;
+
+	/** Uses the fake clock, and is driven by calling realRun() rather than by its thread. */
+	private class MyTicker extends TimerWheelTicker {
+
+		MyTicker() {
+			super(new PooledExecutor(), 0);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return now;
+		}
+
+		@Override
+		protected void sleep(long sleepTime) {
+			// Don't wait, the test moves the clock.
+		}
+
+	}
+
+	private class TestJob implements FastRunnable {
+
+		/** When it is due. Moved by the test if the clock goes backwards. */
+		long time;
+		long queuedAt;
+		long ranAt = -1;
+		int runs;
+
+		TestJob(long time) {
+			this.time = time;
+		}
+
+		@Override
+		public void run() {
+			ranAt = now;
+			runs++;
+			// Must run on the first pass after it is due. The ticker catches exceptions, so
+			// remember the failure rather than throwing.
+			if(now < time)
+				failure = "Ran early: due "+time+" ran "+now;
+			else if(lastRun >= time && time > queuedAt)
+				failure = "Ran late: due "+time+" ran "+now+" last pass "+lastRun;
+		}
+
+	}
+
+	@Before
+	public void setUp() {
+		now = 1000000000000L + random.nextInt(1000000);
+		lastRun = now - 1;
+		ticker = new MyTicker();
+	}
+
+	private void runAt(long time) {
+		now = time;
+		ticker.realRun();
+		// Run again in case there was anything to run, since then it doesn't run the next tick.
+		ticker.realRun();
+		lastRun = now;
+		assertNull(failure);
+	}
+
+	@Test
+	public void testSimple() {
+		TestJob job = new TestJob(now + 10);
+		job.queuedAt = now;
+		ticker.queueTimedJob(job, "test", 10, true, false);
+		assertEquals(1, ticker.queuedJobs());
+		runAt(now + 9);
+		assertEquals(0, job.runs);
+		runAt(now + 1);
+		assertEquals(1, job.runs);
+		assertEquals(0, ticker.queuedJobs());
+		runAt(now + 1000);
+		assertEquals(1, job.runs);
+	}
+
+	@Test
+	public void testRemove() {
+		TestJob job = new TestJob(now + 300);
+		TestJob other = new TestJob(now + 300);
+		ticker.queueTimedJob(job, "test", 300, true, false);
+		ticker.queueTimedJob(job, "test", 100000, true, false);
+		ticker.queueTimedJob(other, "other", 300, true, false);
+		assertEquals(3, ticker.queuedJobs());
+		ticker.removeQueuedJob(job);
+		assertEquals(1, ticker.queuedJobs());
+		// Removing again does nothing.
+		ticker.removeQueuedJob(job);
+		assertEquals(1, ticker.queuedJobs());
+		runAt(now + 200000);
+		assertEquals(0, job.runs);
+		assertEquals(1, other.runs);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	@Test
+	public void testDeduping() {
+		TestJob job = new TestJob(now + 100);
+		ticker.queueTimedJobAbsolute(job, "test", now + 100, true, true);
+		// Later, so ignored.
+		ticker.queueTimedJobAbsolute(job, "test", now + 101, true, true);
+		assertEquals(1, ticker.queuedJobs());
+		runAt(now + 200);
+		assertEquals(1, job.runs);
+		assertEquals(now, job.ranAt);
+		job = new TestJob(now + 50);
+		ticker.queueTimedJobAbsolute(job, "test", now + 100, false, true);
+		// Earlier, so replaces the first one.
+		ticker.queueTimedJobAbsolute(job, "test", now + 50, false, true);
+		assertEquals(1, ticker.queuedJobs());
+		runAt(now + 60);
+		runAt(now + 60);
+		assertEquals(1, job.runs);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	@Test
+	public void testClockGoesBackwards() {
+		long start = now;
+		TestJob job = new TestJob(now + 500);
+		job.queuedAt = now;
+		ticker.queueTimedJob(job, "test", 500, true, false);
+		TestJob later = new TestJob(now + 100000);
+		later.queuedAt = now;
+		ticker.queueTimedJob(later, "later", 100000, true, false);
+		runAt(now + 100);
+		// Back an hour. The jobs keep the rest of their delay.
+		now -= 3600 * 1000;
+		lastRun = now - 1;
+		job.time = now + 400;
+		job.queuedAt = now;
+		later.time = now + 99900;
+		later.queuedAt = now;
+		runAt(now);
+		assertEquals(0, job.runs);
+		// Queued after the step, before the ticker has noticed it.
+		now -= 1000;
+		lastRun = now - 1;
+		job.time -= 1000;
+		later.time -= 1000;
+		TestJob after = new TestJob(now + 50);
+		after.queuedAt = now;
+		ticker.queueTimedJob(after, "after", 50, true, false);
+		runAt(now + 49);
+		assertEquals(0, after.runs);
+		runAt(now + 1);
+		assertEquals(1, after.runs);
+		runAt(now + 349);
+		assertEquals(0, job.runs);
+		runAt(now + 1);
+		assertEquals(1, job.runs);
+		assertEquals(0, later.runs);
+		assertTrue(now < start);
+		// And forward a long way, which rebuilds the wheel the other way.
+		runAt(now + (1L << 20));
+		assertEquals(1, later.runs);
+		assertEquals(0, ticker.queuedJobs());
+	}
+
+	@Test
+	public void testRandom() {
+		randomRun(3000, true);
+	}
+
+	/** Without clock jumps, so jobs are moved down through every level by cascading rather
+	 * than by rebuilding the wheel. */
+	@Test
+	public void testCascade() {
+		randomRun(3000, false);
+	}
+
+	private void randomRun(int steps, boolean clockJumps) {
+		List<TestJob> jobs = new ArrayList<TestJob>();
+		List<TestJob> removed = new ArrayList<TestJob>();
+		for(int step=0;step<steps;step++) {
+			for(int i=random.nextInt(20);i>0;i--) {
+				// Spread over all the levels, and beyond the top level.
+				long offset = (long) Math.pow(2, random.nextDouble() * 34) - 1;
+				if(random.nextInt(20) == 0) offset = -random.nextInt(1000);
+				TestJob job = new TestJob(now + offset);
+				job.queuedAt = now;
+				if(random.nextBoolean())
+					ticker.queueTimedJobAbsolute(job, "test", now + offset, true, false);
+				else
+					ticker.queueTimedJob(job, "test", offset, true, false);
+				jobs.add(job);
+			}
+			if(!jobs.isEmpty() && random.nextInt(4) == 0) {
+				TestJob job = jobs.remove(random.nextInt(jobs.size()));
+				ticker.removeQueuedJob(job);
+				if(job.runs == 0) removed.add(job);
+			}
+			long advance;
+			int choice = random.nextInt(10);
+			if(choice == 0 && clockJumps)
+				// Clock jump, rebuilds the wheel.
+				advance = random.nextInt(1 << 30);
+			else if(choice < (clockJumps ? 3 : 6))
+				advance = random.nextInt(65000);
+			else
+				advance = random.nextInt(300);
+			runAt(now + advance);
+		}
+		if(clockJumps) {
+			runAt(now + (1L << 35));
+		} else {
+			// Only check the jobs which should have run by now.
+			for(TestJob job : jobs)
+				if(job.time > now) removed.add(job);
+			jobs.removeAll(removed);
+			for(TestJob job : removed)
+				ticker.removeQueuedJob(job);
+		}
+		assertEquals(0, ticker.queuedJobs());
+		for(TestJob job : jobs)
+			assertEquals(1, job.runs);
+		for(TestJob job : removed)
+			assertEquals(0, job.runs);
+	}
+
+	@Test
+	public void testRealThread() throws InterruptedException {
+		WaitableExecutor executor = new WaitableExecutor(new PooledExecutor());
+		TimerWheelTicker realTicker = new TimerWheelTicker(executor, 0);
+		realTicker.start();
+		final int[] count = new int[1];
+		Runnable job = new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized(count) {
+					count[0]++;
+					count.notifyAll();
+				}
+			}
+
+		};
+		for(int i=0;i<5;i++)
+			realTicker.queueTimedJob(job, "test", i * 100, true, false);
+		long deadline = System.currentTimeMillis() + 10000;
+		synchronized(count) {
+			while(count[0] < 5 && System.currentTimeMillis() < deadline)
+				count.wait(100);
+		}
+		assertEquals(5, count[0]);
+		assertEquals(0, realTicker.queuedJobs());
+	}
+
+}
@@ -0,0 +1,63 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class VirtualThreadExecutorTest {
+
+	@Test
+	public void testRunsJobs() throws InterruptedException {
+		assumeTrue(VirtualThreadExecutor.isSupported());
+		VirtualThreadExecutor executor = new VirtualThreadExecutor();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1000);
+		final String[] name = new String[1];
+		for(int i=0;i<1000;i++) {
+			final int job = i;
+			executor.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					if(job == 0) name[0] = Thread.currentThread().getName();
+					try {
+						// All blocked at once, which would need a thread each otherwise.
+						release.await();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+					done.countDown();
+				}
+
+				@Override
+				public int getPriority() {
+					return NativeThread.HIGH_PRIORITY;
+				}
+
+			}, "job " + i);
+		}
+		assertEquals(1000, executor.runningThreads()[NativeThread.HIGH_PRIORITY - 1]);
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("job 0", name[0]);
+	}
+
+	@Test
+	public void testUnsupported() {
+		assumeTrue(!VirtualThreadExecutor.isSupported());
+		try {
+			new VirtualThreadExecutor();
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// Expected.
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+package freenet.support;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class WorkStealingExecutorTest {
+
+	private static class Job implements PrioRunnable {
+
+		final int prio;
+		final List<Integer> ran;
+		final CountDownLatch done;
+
+		Job(int prio, List<Integer> ran, CountDownLatch done) {
+			this.prio = prio;
+			this.ran = ran;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			ran.add(prio);
+			done.countDown();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+
+	}
+
+	/** Blocks the carrier it runs on until released. */
+	private static class Blocker implements Runnable {
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+
+	}
+
+	@Test
+	public void testRunsEverything() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(4, 4);
+		final CountDownLatch done = new CountDownLatch(1000);
+		final AtomicInteger count = new AtomicInteger();
+		for(int i=0;i<1000;i++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					count.incrementAndGet();
+					done.countDown();
+				}
+
+			}, "test");
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1000, count.get());
+		assertTrue(executor.carrierThreads() <= 4);
+	}
+
+	@Test
+	public void testJobsFromCarriers() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor(4, 4);
+		final CountDownLatch done = new CountDownLatch(100 * 10);
+		for(int i=0;i<100;i++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					// Queued on this carrier's own deque, may be stolen by others.
+					for(int j=0;j<10;j++) {
+						executor.execute(new Runnable() {
+
+							@Override
+							public void run() {
+								done.countDown();
+							}
+
+						}, "child");
+					}
+				}
+
+			}, "parent");
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(1, 1);
+		Blocker blocker = new Blocker();
+		executor.execute(blocker, "blocker");
+		assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+		List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(NativeThread.MAX_PRIORITY * 3);
+		for(int i=0;i<3;i++)
+			for(int prio=NativeThread.MIN_PRIORITY;prio<=NativeThread.MAX_PRIORITY;prio++)
+				executor.execute(new Job(prio, ran, done), "test");
+		int[] queued = executor.queuedJobs();
+		for(int i=0;i<queued.length;i++)
+			assertEquals(3, queued[i]);
+		blocker.release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		List<Integer> expected = new ArrayList<Integer>();
+		for(int prio=NativeThread.MAX_PRIORITY;prio>=NativeThread.MIN_PRIORITY;prio--)
+			for(int i=0;i<3;i++)
+				expected.add(prio);
+		assertEquals(expected, ran);
+		queued = executor.queuedJobs();
+		for(int i=0;i<queued.length;i++)
+			assertEquals(0, queued[i]);
+	}
+
+	@Test
+	public void testWaitMetrics() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(1, 1);
+		Blocker blocker = new Blocker();
+		executor.execute(blocker, "blocker");
+		assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+		List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Job(NativeThread.HIGH_PRIORITY, ran, done), "test");
+		assertEquals(1, executor.runningThreads()[NativeThread.NORM_PRIORITY - 1]);
+		Thread.sleep(100);
+		blocker.release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(1, executor.jobsStarted()[NativeThread.HIGH_PRIORITY - 1]);
+		assertEquals(1, executor.jobsStarted()[NativeThread.NORM_PRIORITY - 1]);
+		assertTrue(executor.averageWaitTime()[NativeThread.HIGH_PRIORITY - 1] >= 90);
+		assertEquals(0.0, executor.averageWaitTime()[NativeThread.MIN_PRIORITY - 1], 0.0);
+	}
+
+	/** If the only carrier is blocked, the monitor starts another. */
+	@Test
+	public void testBlockedCarriers() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(1, 2);
+		Blocker blocker = new Blocker();
+		executor.execute(blocker, "blocker");
+		assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+		List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch done = new CountDownLatch(1);
+		executor.execute(new Job(NativeThread.NORM_PRIORITY, ran, done), "test");
+		try {
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(2, executor.carrierThreads());
+		} finally {
+			blocker.release.countDown();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPriority() {
+		new WorkStealingExecutor(1, 1).execute(new Job(NativeThread.MAX_PRIORITY + 1, null, null), "test");
+	}
+
+}
@@ -0,0 +1,64 @@
+package freenet.support.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import freenet.support.api.Bucket;
+
+public class BucketToolsTest {
+
+	private static final int LENGTH = 100000;
+
+	private final byte[] data;
+
+	public BucketToolsTest() {
+		data = new byte[LENGTH];
+		new Random(1234).nextBytes(data);
+	}
+
+	private void checkRanges(Bucket bucket) throws IOException {
+		long[][] ranges = { { 0, LENGTH }, { 0, 10 }, { 12345, 54321 }, { LENGTH - 1, 1 }, { 500, 0 } };
+		for (long[] range : ranges) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			BucketTools.copyTo(bucket, os, range[0], range[1]);
+			assertArrayEquals(Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1])), os.toByteArray());
+		}
+		try {
+			BucketTools.copyTo(bucket, new ByteArrayOutputStream(), LENGTH - 10, 20);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testCopyRangeArrayBucket() throws IOException {
+		checkRanges(new ArrayBucket(data));
+	}
+
+	@Test
+	public void testCopyRangeFileBucket() throws IOException {
+		File file = File.createTempFile("buckettoolstest", ".tmp");
+		try {
+			FileBucket bucket = new FileBucket(file, false, false, false, false);
+			BucketTools.copyFrom(bucket, new ByteArrayInputStream(data), data.length);
+			checkRanges(new NoFreeBucket(bucket));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCopyRangeRAFBucket() throws IOException {
+		checkRanges(new RAFBucket(new ByteArrayRandomAccessBuffer(data)));
+	}
+
+}